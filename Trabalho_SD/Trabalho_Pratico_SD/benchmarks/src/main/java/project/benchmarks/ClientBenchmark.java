@@ -0,0 +1,169 @@
+package project.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+import project.ClientLibrary;
+import project.Server;
+
+/**
+ * Pedidos de ida e volta com a ClientLibrary contra um servidor no mesmo
+ * processo, por loopback. Cada thread do benchmark tem a sua ligação, exceto
+ * no modo "shared-v2".
+ *
+ * protocol: "v1" (texto, síncrono), "pipeline" (v1 com correlation IDs), "v2" (binário)
+ * ou "shared-v2" (uma só ligação v2 partilhada por todas as threads).
+ * wal: modo do WAL do servidor ("off", "async" ou "sync").
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dserver.maxSessions=1024"})
+public class ClientBenchmark {
+
+    @Param({"v1", "pipeline", "v2", "shared-v2"})
+    public String protocol;
+
+    @Param({"100", "4096"})
+    public String valueSize;
+
+    @Param({"16"})
+    public String keySize;
+
+    @Param({"10000"})
+    public int keyCount;
+
+    @Param({"16"})
+    public int batchSize;
+
+    @Param({"off"})
+    public String wal;
+
+    String[] keys;
+    byte[][] values;
+    int port;
+    private final AtomicInteger nextUser = new AtomicInteger();
+    // Ligação comum no modo "shared-v2"
+    private ClientLibrary shared;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException, InterruptedException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        System.setProperty("server.port", Integer.toString(port));
+        System.setProperty("server.wal", wal);
+        System.setProperty("server.dataDir", Files.createTempDirectory("kv-bench").toString());
+
+        Thread server = new Thread(() -> Server.main(new String[0]), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        awaitListening(port);
+
+        keys = Workload.keys(keyCount, keySize, 1);
+        values = Workload.values(valueSize, 2);
+        for (int i = 0; i < keys.length; i++) {
+            Server.put(keys[i], values[i % values.length]);
+        }
+
+        if (protocol.equals("shared-v2")) {
+            shared = new ClientLibrary("localhost", port);
+            if (!shared.authenticate("bench-shared", "bench", true)) {
+                throw new IllegalStateException("Autenticação falhou para bench-shared");
+            }
+            shared.useProtocolV2();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeShared() throws IOException {
+        if (shared != null) {
+            shared.logout();
+            shared.close();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("localhost", port), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("O servidor não ficou à escuta na porta " + port);
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        final SplittableRandom random = new SplittableRandom();
+        ClientLibrary client;
+
+        boolean owned;
+
+        @Setup(Level.Trial)
+        public void open(ClientBenchmark benchmark) throws IOException {
+            if (benchmark.shared != null) {
+                client = benchmark.shared;
+                return;
+            }
+            owned = true;
+            String username = "bench-" + benchmark.nextUser.incrementAndGet();
+            client = new ClientLibrary("localhost", benchmark.port);
+            if (!client.authenticate(username, "bench", true)) {
+                throw new IllegalStateException("Autenticação falhou para " + username);
+            }
+            switch (benchmark.protocol) {
+                case "v1":
+                    break;
+                case "pipeline":
+                    client.enablePipelining();
+                    break;
+                case "v2":
+                    client.useProtocolV2();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Protocolo desconhecido: " + benchmark.protocol);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            if (!owned) {
+                return;
+            }
+            client.logout();
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public void put(Connection c) throws IOException {
+        SplittableRandom r = c.random;
+        c.client.put(keys[r.nextInt(keys.length)], values[r.nextInt(values.length)]);
+    }
+
+    @Benchmark
+    public byte[] get(Connection c) throws IOException {
+        return c.client.get(keys[c.random.nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public void multiPut(Connection c) throws IOException {
+        c.client.multiPut(Workload.randomPairs(keys, values, batchSize, c.random));
+    }
+
+    @Benchmark
+    public Map<String, byte[]> multiGet(Connection c) throws IOException {
+        return c.client.multiGet(Workload.randomKeys(keys, batchSize, c.random));
+    }
+}
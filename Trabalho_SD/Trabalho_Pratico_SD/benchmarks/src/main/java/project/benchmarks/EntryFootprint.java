@@ -0,0 +1,87 @@
+package project.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.IntFunction;
+import project.CompactShardStorage;
+import project.HeapShardStorage;
+import project.MappedShardStorage;
+import project.ShardStorage;
+import project.ShardedStore;
+
+/**
+ * Memória do heap gasta por entrada em cada armazenamento: enche um
+ * ShardedStore com bench.keys chaves e compara o heap usado (depois de GC)
+ * antes e depois.
+ *
+ *   java -Dbench.keys=1000000 -Dbench.keySize=16 -Dbench.valueSize=16 \
+ *        -cp target/benchmarks.jar project.benchmarks.EntryFootprint
+ *
+ * bench.storage escolhe os armazenamentos (por omissão "heap,compact,mapped";
+ * no mapped só conta o índice, os valores estão fora do heap) e
+ * bench.orderedIndex liga o índice ordenado, que guarda uma String por chave.
+ */
+public class EntryFootprint {
+
+    public static void main(String[] args) throws IOException {
+        int count = Integer.getInteger("bench.keys", 1_000_000);
+        String keySize = System.getProperty("bench.keySize", "16");
+        String valueSize = System.getProperty("bench.valueSize", "16");
+        boolean orderedIndex = Boolean.getBoolean("bench.orderedIndex");
+        int shards = Integer.getInteger("bench.shards", 64);
+
+        String[] keys = Workload.keys(count, keySize, 1);
+        Workload.SizeDistribution sizes = Workload.SizeDistribution.parse(valueSize);
+        SplittableRandom random = new SplittableRandom(2);
+        int[] valueLengths = new int[count];
+        long payload = 0;
+        for (int i = 0; i < count; i++) {
+            valueLengths[i] = sizes.sample(random);
+            payload += keys[i].length() + valueLengths[i];
+        }
+        byte[] buffer = new byte[Arrays.stream(valueLengths).max().orElse(0)];
+
+        System.out.printf("%d chaves (%s bytes), valores de %s bytes, %d shards, índice ordenado: %s%n",
+                count, keySize, valueSize, shards, orderedIndex);
+        System.out.printf("%-8s %14s %14s %14s%n", "storage", "bytes/entrada", "dados/entrada", "overhead");
+        for (String storage : System.getProperty("bench.storage", "heap,compact,mapped").split(",")) {
+            IntFunction<ShardStorage> factory = storageFactory(storage.trim());
+            long before = usedHeap();
+            ShardedStore store = new ShardedStore(shards, factory, orderedIndex);
+            for (int i = 0; i < count; i++) {
+                // Como os pedidos da rede: uma String nova por pedido e o valor num buffer reutilizado
+                store.put(new String(keys[i]), buffer, valueLengths[i]);
+            }
+            long used = usedHeap() - before;
+            Reference.reachabilityFence(store);
+            System.out.printf("%-8s %14.1f %14.1f %14.1f%n", storage.trim(), (double) used / count,
+                    (double) payload / count, (double) (used - payload) / count);
+        }
+    }
+
+    private static IntFunction<ShardStorage> storageFactory(String storage) throws IOException {
+        switch (storage) {
+            case "heap":
+                return i -> new HeapShardStorage();
+            case "compact":
+                return i -> new CompactShardStorage(0.5);
+            case "mapped": {
+                Path dir = Files.createTempDirectory("kv-footprint");
+                return i -> new MappedShardStorage(dir, String.format("shard-%03d", i), 64 << 20, 0.5);
+            }
+            default:
+                throw new IllegalArgumentException("Armazenamento desconhecido: " + storage);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,514 @@
+package project.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import project.ClientLibrary;
+import project.LatencyHistogram;
+
+/**
+ * Gerador de carga contra um servidor já em execução: load.clients sessões da
+ * ClientLibrary em paralelo, cada uma com a sua thread, e no fim um relatório
+ * de débito e latências (p50/p99/p999) por operação.
+ *
+ *   java -Dserver.maxSessions=64 -jar target/kv-store-1.0-SNAPSHOT.jar
+ *   java -Dload.clients=32 -Dload.distribution=zipf:0.99 -Dload.rate=20000 \
+ *        -cp benchmarks/target/benchmarks.jar project.benchmarks.LoadGenerator
+ *
+ * O servidor tem de admitir load.clients sessões (server.maxSessions), senão
+ * as restantes ficam na fila de admissão.
+ *
+ * Carga sintética: load.readRatio das operações são leituras (get, ou
+ * multiGet com load.batchSize > 1) e as restantes escritas (put/multiPut).
+ * As chaves seguem load.distribution (ver Workload.KeyDistribution) e os
+ * valores têm tamanhos tirados de load.valueSize ("100" ou "16..4096").
+ *
+ * Sem load.rate cada cliente faz um pedido a seguir ao outro (closed loop).
+ * Com load.rate (operações/s no total) os pedidos seguem um calendário fixo
+ * (open loop) e a latência conta desde a hora prevista de envio, para um
+ * servidor lento não esconder a fila que se forma à frente dele.
+ *
+ * load.record=ficheiro grava as operações geradas num trace; load.trace=ficheiro
+ * repete um trace (gravado ou escrito à mão) em vez de gerar carga. Cada linha é
+ *
+ *   <µs desde o início> get <chave>
+ *   <µs> put <chave> <tamanho>
+ *   <µs> multiGet <chave> <chave> ...
+ *   <µs> multiPut <chave> <tamanho> <chave> <tamanho> ...
+ *   <µs> delete <chave>
+ *
+ * (chaves sem espaços; linhas vazias ou começadas por # são ignoradas; as
+ * linhas não precisam de estar por ordem de tempo). As operações são
+ * repartidas pelos clientes pela primeira chave, para as da mesma chave saírem
+ * pela ordem do trace, e enviadas aos tempos gravados divididos por
+ * load.replaySpeed (0 = o mais depressa possível).
+ */
+public class LoadGenerator {
+
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", 12345);
+    private static final String PROTOCOL = System.getProperty("load.protocol", "v2");
+    private static final int CLIENTS = Integer.getInteger("load.clients", 8);
+    private static final long DURATION_SECONDS = Long.getLong("load.durationSec", 30);
+    private static final long WARMUP_SECONDS = Long.getLong("load.warmupSec", 5);
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "0"));
+    private static final double READ_RATIO = Double.parseDouble(System.getProperty("load.readRatio", "0.9"));
+    private static final int KEY_COUNT = Integer.getInteger("load.keyCount", 100_000);
+    private static final String KEY_SIZE = System.getProperty("load.keySize", "16");
+    private static final String VALUE_SIZE = System.getProperty("load.valueSize", "100");
+    private static final String DISTRIBUTION = System.getProperty("load.distribution", "uniform");
+    private static final int BATCH_SIZE = Integer.getInteger("load.batchSize", 1);
+    private static final boolean PRELOAD = Boolean.parseBoolean(System.getProperty("load.preload", "true"));
+    private static final String TRACE = System.getProperty("load.trace");
+    private static final String RECORD = System.getProperty("load.record");
+    private static final double REPLAY_SPEED = Double.parseDouble(System.getProperty("load.replaySpeed", "1"));
+    // Erros seguidos a partir dos quais um cliente desiste (ligação perdida)
+    private static final int MAX_CONSECUTIVE_ERRORS = 100;
+    private static final int PRELOAD_CHUNK = 256;
+
+    /**
+     * Uma operação gerada ou lida de um trace.
+     */
+    private static final class Operation {
+        final String type;
+        final String[] keys;
+        // Tamanho do valor de cada chave (só nas escritas)
+        final int[] sizes;
+        // Hora prevista relativa ao início (para repetir ou gravar o trace)
+        final long offsetNanos;
+
+        Operation(String type, String[] keys, int[] sizes, long offsetNanos) {
+            this.type = type;
+            this.keys = keys;
+            this.sizes = sizes;
+            this.offsetNanos = offsetNanos;
+        }
+    }
+
+    private static final class OperationStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    // Ordenadas por nome para o relatório sair sempre pela mesma ordem
+    private static final Map<String, OperationStats> stats = new ConcurrentSkipListMap<>();
+    private static final LongAdder completed = new LongAdder();
+    // Valores aleatórios por tamanho, partilhados por todos os clientes
+    private static final Map<Integer, byte[]> values = new ConcurrentHashMap<>();
+    private static BufferedWriter recorder;
+
+    public static void main(String[] args) throws Exception {
+        if (CLIENTS < 1 || BATCH_SIZE < 1 || READ_RATIO < 0 || READ_RATIO > 1 || RATE < 0 || REPLAY_SPEED < 0) {
+            throw new IllegalArgumentException("Configuração de carga inválida: clients " + CLIENTS + ", batchSize "
+                    + BATCH_SIZE + ", readRatio " + READ_RATIO + ", rate " + RATE + ", replaySpeed " + REPLAY_SPEED);
+        }
+        List<ClientLibrary> clients = connect();
+        try {
+            if (TRACE != null) {
+                replay(clients, readTrace(Path.of(TRACE)));
+            } else {
+                generate(clients);
+            }
+        } finally {
+            for (ClientLibrary client : clients) {
+                try {
+                    client.logout();
+                    client.close();
+                } catch (IOException e) {
+                    // Ligação já perdida
+                }
+            }
+        }
+    }
+
+    private static List<ClientLibrary> connect() throws IOException {
+        List<ClientLibrary> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            String username = "load-" + i;
+            ClientLibrary client = new ClientLibrary(HOST, PORT);
+            if (!client.authenticate(username, "load", true)) {
+                throw new IllegalStateException("Autenticação falhou para " + username);
+            }
+            switch (PROTOCOL) {
+                case "v1":
+                    break;
+                case "pipeline":
+                    client.enablePipelining();
+                    break;
+                case "v2":
+                    client.useProtocolV2();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Protocolo desconhecido: " + PROTOCOL);
+            }
+            clients.add(client);
+        }
+        return clients;
+    }
+
+    // -----------------------------------------------------------
+    // Carga sintética
+    // -----------------------------------------------------------
+    private static void generate(List<ClientLibrary> clients) throws Exception {
+        String[] keys = Workload.keys(KEY_COUNT, KEY_SIZE, 1);
+        Workload.KeyDistribution distribution = Workload.KeyDistribution.parse(DISTRIBUTION, KEY_COUNT);
+        Workload.SizeDistribution sizes = Workload.SizeDistribution.parse(VALUE_SIZE);
+        if (BATCH_SIZE > KEY_COUNT) {
+            throw new IllegalArgumentException("load.batchSize maior do que load.keyCount");
+        }
+        if (PRELOAD) {
+            preload(clients, keys, sizes);
+        }
+        if (RECORD != null) {
+            recorder = Files.newBufferedWriter(Path.of(RECORD));
+        }
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        // Intervalo entre pedidos de cada cliente em open loop (0 = closed loop)
+        long interval = RATE > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * CLIENTS / RATE) : 0;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i++) {
+            ClientLibrary client = clients.get(i);
+            SplittableRandom random = new SplittableRandom(1000 + i);
+            // Clientes desfasados para o calendário conjunto ficar uniforme
+            long first = start + interval * i / CLIENTS;
+            threads.add(startClient("load-client-" + i, () -> {
+                long next = first;
+                int failures = 0;
+                while (true) {
+                    long intended;
+                    if (interval > 0) {
+                        intended = next;
+                        next += interval;
+                        parkUntil(intended);
+                    } else {
+                        intended = System.nanoTime();
+                    }
+                    if (intended - end >= 0) {
+                        return;
+                    }
+                    Operation op = nextOperation(random, keys, distribution, sizes, intended - start);
+                    failures = run(client, op, intended, measureStart, failures);
+                    if (failures >= MAX_CONSECUTIVE_ERRORS) {
+                        return;
+                    }
+                }
+            }));
+        }
+        System.out.printf("%d clientes (%s), %s, leituras %.0f%%, %s%n", CLIENTS, PROTOCOL, DISTRIBUTION,
+                READ_RATIO * 100, RATE > 0 ? String.format("%.0f ops/s (open loop)", RATE) : "closed loop");
+        progress(threads, start);
+        if (recorder != null) {
+            recorder.close();
+        }
+        report(Math.min(System.nanoTime(), end) - measureStart);
+    }
+
+    private static Operation nextOperation(SplittableRandom random, String[] keys,
+                                           Workload.KeyDistribution distribution,
+                                           Workload.SizeDistribution sizes, long offsetNanos) {
+        boolean read = random.nextDouble() < READ_RATIO;
+        String[] opKeys = BATCH_SIZE == 1
+                ? new String[]{keys[distribution.next(random)]}
+                : distinctKeys(random, keys, distribution);
+        if (read) {
+            return new Operation(BATCH_SIZE == 1 ? "get" : "multiGet", opKeys, null, offsetNanos);
+        }
+        int[] opSizes = new int[opKeys.length];
+        for (int i = 0; i < opSizes.length; i++) {
+            opSizes[i] = sizes.sample(random);
+        }
+        return new Operation(BATCH_SIZE == 1 ? "put" : "multiPut", opKeys, opSizes, offsetNanos);
+    }
+
+    /**
+     * BATCH_SIZE chaves distintas segundo a distribuição. Com distribuições muito
+     * enviesadas, depois de muitas repetições completa com chaves uniformes.
+     */
+    private static String[] distinctKeys(SplittableRandom random, String[] keys,
+                                         Workload.KeyDistribution distribution) {
+        Set<String> chosen = new LinkedHashSet<>();
+        for (int draws = 0; chosen.size() < BATCH_SIZE; draws++) {
+            int index = draws < 4 * BATCH_SIZE ? distribution.next(random) : random.nextInt(keys.length);
+            chosen.add(keys[index]);
+        }
+        return chosen.toArray(new String[0]);
+    }
+
+    /**
+     * Escreve todas as chaves antes da medição, repartidas pelos clientes.
+     */
+    private static void preload(List<ClientLibrary> clients, String[] keys, Workload.SizeDistribution sizes)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i++) {
+            ClientLibrary client = clients.get(i);
+            int first = i;
+            SplittableRandom random = new SplittableRandom(i);
+            threads.add(startClient("load-preload-" + i, () -> {
+                Map<String, byte[]> chunk = new HashMap<>();
+                for (int k = first; k < keys.length; k += clients.size()) {
+                    chunk.put(keys[k], value(sizes.sample(random)));
+                    if (chunk.size() == PRELOAD_CHUNK || k + clients.size() >= keys.length) {
+                        try {
+                            client.multiPut(chunk);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        chunk.clear();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("Pré-carga: %d chaves em %d ms%n", keys.length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // -----------------------------------------------------------
+    // Repetição de traces
+    // -----------------------------------------------------------
+    private static void replay(List<ClientLibrary> clients, List<Operation> trace) throws Exception {
+        List<List<Operation>> perClient = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i++) {
+            perClient.add(new ArrayList<>());
+        }
+        for (Operation op : trace) {
+            perClient.get(Math.floorMod(op.keys[0].hashCode(), clients.size())).add(op);
+        }
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i++) {
+            ClientLibrary client = clients.get(i);
+            List<Operation> ops = perClient.get(i);
+            threads.add(startClient("load-replay-" + i, () -> {
+                int failures = 0;
+                for (Operation op : ops) {
+                    long intended;
+                    if (REPLAY_SPEED > 0) {
+                        intended = start + (long) (op.offsetNanos / REPLAY_SPEED);
+                        parkUntil(intended);
+                    } else {
+                        intended = System.nanoTime();
+                    }
+                    failures = run(client, op, intended, start, failures);
+                    if (failures >= MAX_CONSECUTIVE_ERRORS) {
+                        return;
+                    }
+                }
+            }));
+        }
+        System.out.printf("%d clientes (%s), trace %s com %d operações, velocidade %s%n", CLIENTS, PROTOCOL,
+                TRACE, trace.size(), REPLAY_SPEED > 0 ? REPLAY_SPEED + "x" : "máxima");
+        progress(threads, start);
+        report(System.nanoTime() - start);
+    }
+
+    private static List<Operation> readTrace(Path path) throws IOException {
+        List<Operation> trace = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(path)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                trace.add(parseTraceLine(line));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Linha " + lineNumber + " do trace inválida: " + line, e);
+            }
+        }
+        // Os clientes gravam as operações pela ordem em que terminam
+        trace.sort(Comparator.comparingLong(op -> op.offsetNanos));
+        return trace;
+    }
+
+    private static Operation parseTraceLine(String line) {
+        String[] f = line.split("\\s+");
+        long offset = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(f[0]));
+        String type = f[1];
+        switch (type) {
+            case "get":
+            case "delete":
+                requireFields(f, 3, 3);
+                return new Operation(type, new String[]{f[2]}, null, offset);
+            case "multiGet":
+                requireFields(f, 3, f.length);
+                return new Operation(type, Arrays.copyOfRange(f, 2, f.length), null, offset);
+            case "put":
+            case "multiPut": {
+                int n = (f.length - 2) / 2;
+                requireFields(f, 4, type.equals("put") ? 4 : f.length);
+                if ((f.length - 2) % 2 != 0) {
+                    throw new IllegalArgumentException("chave sem tamanho");
+                }
+                String[] keys = new String[n];
+                int[] sizes = new int[n];
+                for (int i = 0; i < n; i++) {
+                    keys[i] = f[2 + 2 * i];
+                    sizes[i] = Integer.parseInt(f[3 + 2 * i]);
+                }
+                return new Operation(type, keys, sizes, offset);
+            }
+            default:
+                throw new IllegalArgumentException("operação desconhecida " + type);
+        }
+    }
+
+    private static void requireFields(String[] fields, int min, int max) {
+        if (fields.length < min || fields.length > max) {
+            throw new IllegalArgumentException("número de campos errado");
+        }
+    }
+
+    private static synchronized void recordTrace(Operation op) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(TimeUnit.NANOSECONDS.toMicros(op.offsetNanos)).append(' ').append(op.type);
+        for (int i = 0; i < op.keys.length; i++) {
+            sb.append(' ').append(op.keys[i]);
+            if (op.sizes != null) {
+                sb.append(' ').append(op.sizes[i]);
+            }
+        }
+        recorder.write(sb.toString());
+        recorder.newLine();
+    }
+
+    // -----------------------------------------------------------
+    // Execução e relatório
+    // -----------------------------------------------------------
+    /**
+     * Executa op e regista a latência desde intended (se já passou measureStart).
+     *
+     * @return o novo número de erros seguidos do cliente
+     */
+    private static int run(ClientLibrary client, Operation op, long intended, long measureStart, int failures) {
+        boolean ok = true;
+        try {
+            switch (op.type) {
+                case "get":
+                    client.get(op.keys[0]);
+                    break;
+                case "put":
+                    client.put(op.keys[0], value(op.sizes[0]));
+                    break;
+                case "multiGet":
+                    client.multiGet(new HashSet<>(Arrays.asList(op.keys)));
+                    break;
+                case "multiPut": {
+                    Map<String, byte[]> pairs = new HashMap<>();
+                    for (int i = 0; i < op.keys.length; i++) {
+                        pairs.put(op.keys[i], value(op.sizes[i]));
+                    }
+                    client.multiPut(pairs);
+                    break;
+                }
+                case "delete":
+                    client.delete(op.keys[0]);
+                    break;
+                default:
+                    throw new IllegalStateException("Operação desconhecida: " + op.type);
+            }
+        } catch (IOException e) {
+            ok = false;
+            if (failures + 1 >= MAX_CONSECUTIVE_ERRORS) {
+                System.err.println(Thread.currentThread().getName() + " desistiu após "
+                        + MAX_CONSECUTIVE_ERRORS + " erros seguidos: " + e.getMessage());
+            }
+        }
+        long done = System.nanoTime();
+        completed.increment();
+        if (intended - measureStart >= 0) {
+            OperationStats s = stats.computeIfAbsent(op.type, t -> new OperationStats());
+            if (ok) {
+                s.latency.record(done - intended);
+            } else {
+                s.errors.increment();
+            }
+        }
+        if (recorder != null) {
+            try {
+                recordTrace(op);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return ok ? 0 : failures + 1;
+    }
+
+    private static byte[] value(int size) {
+        return values.computeIfAbsent(size, n -> {
+            byte[] value = new byte[n];
+            new SplittableRandom(n).nextBytes(value);
+            return value;
+        });
+    }
+
+    private static Thread startClient(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Imprime as operações por segundo enquanto houver clientes ativos.
+     */
+    private static void progress(List<Thread> threads, long start) throws InterruptedException {
+        long last = 0;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(1000);
+                long now = completed.sum();
+                if (thread.isAlive()) {
+                    System.out.printf("t=%4ds %10d ops/s%n",
+                            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), now - last);
+                }
+                last = now;
+            }
+        }
+    }
+
+    private static void report(long measuredNanos) {
+        double seconds = Math.max(measuredNanos, 1) / 1e9;
+        System.out.println();
+        System.out.printf("%-10s %10s %7s %10s %10s %10s %10s %10s %10s%n",
+                "operação", "n", "erros", "ops/s", "média(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+        long total = 0;
+        for (Map.Entry<String, OperationStats> entry : stats.entrySet()) {
+            LatencyHistogram h = entry.getValue().latency;
+            total += h.count();
+            System.out.printf("%-10s %10d %7d %10.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    entry.getKey(), h.count(), entry.getValue().errors.sum(), h.count() / seconds,
+                    micros(h.meanNanos()), micros(h.percentileNanos(0.50)), micros(h.percentileNanos(0.99)),
+                    micros(h.percentileNanos(0.999)), micros(h.maxNanos()));
+        }
+        System.out.printf("%-10s %10d %7s %10.0f%n", "total", total, "", total / seconds);
+    }
+
+    private static double micros(double nanos) {
+        return nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
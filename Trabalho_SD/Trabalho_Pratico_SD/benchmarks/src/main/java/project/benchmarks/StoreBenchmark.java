@@ -0,0 +1,96 @@
+package project.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import project.Server;
+
+/**
+ * Operações de Server (put/get/multiPut/multiGet) chamadas diretamente, sem
+ * rede nem WAL: mede o armazém (shards, locks e ShardStorage).
+ *
+ * Número de threads com -t N (ou ThreadScaling para 1..N); distribuições de
+ * tamanhos com -p keySize=... -p valueSize=... (ver Workload).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dserver.wal=off"})
+public class StoreBenchmark {
+
+    @Param({"16", "8..128"})
+    public String keySize;
+
+    @Param({"100", "4096", "16..65536"})
+    public String valueSize;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    @Param({"16"})
+    public int batchSize;
+
+    // "heap" ou "mapped" (sem a compactação periódica do Server.main)
+    @Param({"heap"})
+    public String storage;
+
+    String[] keys;
+    byte[][] values;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // O Server lê a configuração quando a classe é inicializada, ou seja,
+        // na primeira chamada abaixo (cada combinação de parâmetros corre num fork próprio)
+        System.setProperty("server.storage", storage);
+        System.setProperty("server.storage.dir", Files.createTempDirectory("kv-bench").toString());
+
+        keys = Workload.keys(keyCount, keySize, 1);
+        values = Workload.values(valueSize, 2);
+        for (int i = 0; i < keys.length; i++) {
+            Server.put(keys[i], values[i % values.length]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Benchmark
+    public long put(ThreadRandom t) {
+        SplittableRandom r = t.random;
+        return Server.put(keys[r.nextInt(keys.length)], values[r.nextInt(values.length)]);
+    }
+
+    @Benchmark
+    public byte[] get(ThreadRandom t) {
+        return Server.get(keys[t.random.nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public long multiPut(ThreadRandom t) {
+        return Server.multiPut(Workload.randomPairs(keys, values, batchSize, t.random));
+    }
+
+    @Benchmark
+    public Map<String, byte[]> multiGet(ThreadRandom t) {
+        return Server.multiGet(Workload.randomKeys(keys, batchSize, t.random));
+    }
+
+    /**
+     * 90% get / 10% put, a mistura típica de uma cache.
+     */
+    @Benchmark
+    public Object readMostly(ThreadRandom t) {
+        SplittableRandom r = t.random;
+        String key = keys[r.nextInt(keys.length)];
+        if (r.nextInt(10) == 0) {
+            return Server.put(key, values[r.nextInt(values.length)]);
+        }
+        return Server.get(key);
+    }
+}
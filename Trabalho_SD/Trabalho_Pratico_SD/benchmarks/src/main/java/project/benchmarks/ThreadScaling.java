@@ -0,0 +1,80 @@
+package project.benchmarks;
+
+import java.util.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Corre os benchmarks escolhidos com 1, 2, 4, ... N threads e imprime uma
+ * tabela de escalabilidade (score por número de threads).
+ *
+ *   java -Dbench.threads=1,2,4,8 -cp target/benchmarks.jar project.benchmarks.ThreadScaling \
+ *        "StoreBenchmark.get" -p valueSize=100
+ *
+ * Os argumentos são opções normais do JMH; -t é ignorado. Sem bench.threads usa
+ * potências de 2 até ao número de processadores.
+ */
+public class ThreadScaling {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options base = new CommandLineOptions(args);
+        List<Integer> threadCounts = threadCounts(System.getProperty("bench.threads"));
+
+        // benchmark + parâmetros -> score por número de threads
+        Map<String, Map<Integer, Double>> scores = new TreeMap<>();
+        String unit = "";
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder().parent(base).threads(threads).build();
+            for (RunResult result : new Runner(options).run()) {
+                String name = result.getParams().getBenchmark() + paramsOf(result);
+                scores.computeIfAbsent(name, n -> new TreeMap<>())
+                        .put(threads, result.getPrimaryResult().getScore());
+                unit = result.getPrimaryResult().getScoreUnit();
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-70s", "Benchmark (" + unit + ")");
+        for (int threads : threadCounts) {
+            System.out.printf(" %10s", threads + "t");
+        }
+        System.out.println();
+        for (Map.Entry<String, Map<Integer, Double>> row : scores.entrySet()) {
+            System.out.printf("%-70s", row.getKey());
+            for (int threads : threadCounts) {
+                Double score = row.getValue().get(threads);
+                System.out.printf(" %10s", score == null ? "-" : String.format("%.1f", score));
+            }
+            System.out.println();
+        }
+    }
+
+    private static List<Integer> threadCounts(String spec) {
+        List<Integer> counts = new ArrayList<>();
+        if (spec != null && !spec.isBlank()) {
+            for (String part : spec.split(",")) {
+                counts.add(Integer.parseInt(part.trim()));
+            }
+            return counts;
+        }
+        int max = Runtime.getRuntime().availableProcessors();
+        for (int t = 1; t < max; t *= 2) {
+            counts.add(t);
+        }
+        counts.add(max);
+        return counts;
+    }
+
+    private static String paramsOf(RunResult result) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : result.getParams().getParamsKeys()) {
+            sb.append(sb.length() == 0 ? " [" : ", ").append(key).append('=').append(result.getParams().getParam(key));
+        }
+        return sb.length() == 0 ? "" : sb.append(']').toString();
+    }
+}
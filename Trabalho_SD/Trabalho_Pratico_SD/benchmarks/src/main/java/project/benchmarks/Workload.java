@@ -0,0 +1,184 @@
+package project.benchmarks;
+
+import java.util.*;
+
+/**
+ * Geração das chaves e valores usados pelos benchmarks, com tamanhos tirados
+ * de uma distribuição ("64" = fixo, "16..4096" = uniforme nesse intervalo).
+ * Tudo é gerado antes da medição, para não contar alocações nem aleatoriedade
+ * no tempo das operações.
+ */
+public final class Workload {
+
+    // Número de valores distintos gerados (reutilizados ciclicamente)
+    private static final int VALUE_POOL = 1024;
+
+    private Workload() {
+    }
+
+    public static final class SizeDistribution {
+        private final int min;
+        private final int max;
+
+        private SizeDistribution(int min, int max) {
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException("Intervalo de tamanhos inválido: " + min + ".." + max);
+            }
+            this.min = min;
+            this.max = max;
+        }
+
+        public static SizeDistribution parse(String spec) {
+            int range = spec.indexOf("..");
+            if (range < 0) {
+                int size = Integer.parseInt(spec.trim());
+                return new SizeDistribution(size, size);
+            }
+            return new SizeDistribution(Integer.parseInt(spec.substring(0, range).trim()),
+                    Integer.parseInt(spec.substring(range + 2).trim()));
+        }
+
+        public int sample(SplittableRandom random) {
+            return min == max ? min : min + random.nextInt(max - min + 1);
+        }
+    }
+
+    /**
+     * Distribuição dos índices das chaves acedidas:
+     * "uniform", "zipf:θ" (0 < θ < 1; os índices mais baixos são os mais acedidos)
+     * ou "hotspot:h:p" (a fração p dos acessos vai para a fração h das chaves).
+     */
+    public static final class KeyDistribution {
+        private final int count;
+        private final String kind;
+        // zipf (método de Gray et al., como no YCSB)
+        private double theta;
+        private double zetan;
+        private double alpha;
+        private double eta;
+        // hotspot
+        private int hotKeys;
+        private double hotFraction;
+
+        private KeyDistribution(int count, String kind) {
+            if (count < 1) {
+                throw new IllegalArgumentException("Número de chaves inválido: " + count);
+            }
+            this.count = count;
+            this.kind = kind;
+        }
+
+        public static KeyDistribution parse(String spec, int count) {
+            String[] parts = spec.trim().split(":");
+            KeyDistribution d = new KeyDistribution(count, parts[0]);
+            switch (parts[0]) {
+                case "uniform":
+                    break;
+                case "zipf":
+                    d.theta = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.99;
+                    if (d.theta <= 0 || d.theta >= 1) {
+                        throw new IllegalArgumentException("Parâmetro zipf fora de ]0, 1[: " + d.theta);
+                    }
+                    d.zetan = zeta(count, d.theta);
+                    d.alpha = 1 / (1 - d.theta);
+                    d.eta = (1 - Math.pow(2.0 / count, 1 - d.theta)) / (1 - zeta(2, d.theta) / d.zetan);
+                    break;
+                case "hotspot":
+                    double hotSet = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.2;
+                    d.hotFraction = parts.length > 2 ? Double.parseDouble(parts[2]) : 0.8;
+                    if (hotSet <= 0 || hotSet > 1 || d.hotFraction < 0 || d.hotFraction > 1) {
+                        throw new IllegalArgumentException("Parâmetros hotspot inválidos: " + spec);
+                    }
+                    d.hotKeys = Math.max(1, (int) (count * hotSet));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Distribuição de chaves desconhecida: " + spec);
+            }
+            return d;
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        public int next(SplittableRandom random) {
+            switch (kind) {
+                case "zipf": {
+                    double u = random.nextDouble();
+                    double uz = u * zetan;
+                    if (uz < 1) {
+                        return 0;
+                    }
+                    if (uz < 1 + Math.pow(0.5, theta)) {
+                        return Math.min(1, count - 1);
+                    }
+                    return Math.min(count - 1, (int) (count * Math.pow(eta * u - eta + 1, alpha)));
+                }
+                case "hotspot":
+                    if (hotKeys == count || random.nextDouble() < hotFraction) {
+                        return random.nextInt(hotKeys);
+                    }
+                    return hotKeys + random.nextInt(count - hotKeys);
+                default:
+                    return random.nextInt(count);
+            }
+        }
+    }
+
+    /**
+     * Chaves distintas "k<índice em base 36>", completadas até ao tamanho sorteado.
+     */
+    public static String[] keys(int count, String sizeSpec, long seed) {
+        SizeDistribution sizes = SizeDistribution.parse(sizeSpec);
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] keys = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            sb.append('k').append(Integer.toString(i, 36));
+            int length = sizes.sample(random);
+            while (sb.length() < length) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            keys[i] = sb.toString();
+        }
+        return keys;
+    }
+
+    public static byte[][] values(String sizeSpec, long seed) {
+        SizeDistribution sizes = SizeDistribution.parse(sizeSpec);
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[][] values = new byte[VALUE_POOL][];
+        for (int i = 0; i < VALUE_POOL; i++) {
+            byte[] value = new byte[sizes.sample(random)];
+            for (int j = 0; j < value.length; j++) {
+                value[j] = (byte) random.nextInt(256);
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * n chaves distintas escolhidas ao acaso (n não pode exceder keys.length).
+     */
+    public static Set<String> randomKeys(String[] keys, int n, SplittableRandom random) {
+        Set<String> result = new HashSet<>();
+        while (result.size() < n) {
+            result.add(keys[random.nextInt(keys.length)]);
+        }
+        return result;
+    }
+
+    public static Map<String, byte[]> randomPairs(String[] keys, byte[][] values, int n, SplittableRandom random) {
+        Map<String, byte[]> result = new HashMap<>();
+        while (result.size() < n) {
+            result.put(keys[random.nextInt(keys.length)], values[random.nextInt(values.length)]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,325 @@
+package project;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Controlo de admissão de sessões com fila de espera FIFO.
+ *
+ * Cada cliente em espera recebe um Ticket com a sua própria Condition.
+ * Quando uma sessão termina, a vaga é passada diretamente ao primeiro ticket
+ * da fila (hand-off) e só esse cliente é acordado; os restantes continuam a
+ * dormir. O lock é exclusivo desta classe e não é partilhado com o dataStore.
+ *
+ * O limite de sessões pode ser fixo (minLimit == maxLimit) ou adaptativo: a
+ * cada intervalo, adjust() recebe a latência média dos pedidos e aplica AIMD
+ * (diminui 10% acima da latência alvo, aumenta 1 se houver clientes em fila
+ * e a latência estiver abaixo do alvo). Baixar o limite não termina sessões:
+ * só deixa de admitir novas até as ativas descerem abaixo dele.
+ *
+ * Pedidos recusados logo à entrada: fila cheia (maxQueue), utilizador com
+ * userQuota sessões ativas ou em fila e, depois de close(), todos.
+ */
+public class AdmissionController {
+
+    public static class Ticket {
+        private final Condition turn;
+        private final String user;
+        private boolean granted;
+        private String rejection;
+
+        private Ticket(Condition turn, String user) {
+            this.turn = turn;
+            this.user = user;
+        }
+
+        public boolean isGranted() {
+            return granted;
+        }
+
+        /**
+         * Motivo da recusa (à entrada, ou da fila por close()), ou null.
+         */
+        public String rejection() {
+            return rejection;
+        }
+    }
+
+    private static final double DECREASE_FACTOR = 0.9;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Ticket> waitingQueue = new ArrayDeque<>();
+    private final int maxQueue;
+    private final int userQuota;
+    private final long targetLatencyNanos;
+    private int minLimit;
+    private int maxLimit;
+    private int limit;
+    private int activeSessions = 0;
+    // Sessões ativas ou em fila de cada utilizador (só contadas com quota)
+    private final Map<String, Integer> sessionsByUser = new HashMap<>();
+    private long rejected = 0;
+    private long timedOut = 0;
+    // Motivo de close(); a partir daí nenhum pedido é aceite
+    private String closedReason;
+
+    /**
+     * Limite fixo, fila sem limite e sem quotas.
+     */
+    public AdmissionController(int maxSessions) {
+        this(maxSessions, maxSessions, maxSessions, Integer.MAX_VALUE, 0, 0);
+    }
+
+    /**
+     * @param initialLimit       limite de sessões inicial
+     * @param minLimit           limite mínimo do ajuste adaptativo
+     * @param maxLimit           limite máximo (igual a minLimit para um limite fixo)
+     * @param maxQueue           clientes em fila a partir dos quais os seguintes são recusados
+     * @param userQuota          sessões (ativas ou em fila) por utilizador; 0 sem quota
+     * @param targetLatencyNanos latência média dos pedidos acima da qual o limite desce
+     */
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit, int maxQueue,
+                               int userQuota, long targetLatencyNanos) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit
+                || maxQueue < 0 || userQuota < 0) {
+            throw new IllegalArgumentException("Configuração de admissão inválida: limite " + initialLimit
+                    + " em [" + minLimit + ", " + maxLimit + "], fila " + maxQueue + ", quota " + userQuota);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.userQuota = userQuota;
+        this.targetLatencyNanos = targetLatencyNanos;
+    }
+
+    /**
+     * Pede uma vaga. Se houver vaga e ninguém à frente, o ticket devolvido já
+     * vem concedido; se for recusado, rejection() diz porquê; caso contrário
+     * fica no fim da fila e é preciso chamar await().
+     */
+    public Ticket enter(String user) {
+        lock.lock();
+        try {
+            Ticket ticket = new Ticket(lock.newCondition(), user);
+            if (closedReason != null) {
+                ticket.rejection = closedReason;
+                rejected++;
+                return ticket;
+            }
+            if (userQuota > 0 && sessionsByUser.getOrDefault(user, 0) >= userQuota) {
+                ticket.rejection = "limite de " + userQuota + " sessões por utilizador atingido.";
+                rejected++;
+                return ticket;
+            }
+            if (activeSessions < limit && waitingQueue.isEmpty()) {
+                activeSessions++;
+                ticket.granted = true;
+            } else if (waitingQueue.size() >= maxQueue) {
+                ticket.rejection = "fila de espera cheia.";
+                rejected++;
+                return ticket;
+            } else {
+                waitingQueue.addLast(ticket);
+            }
+            if (userQuota > 0) {
+                sessionsByUser.merge(user, 1, Integer::sum);
+            }
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bloqueia até o ticket receber a vaga ou passar timeoutNanos (0 espera
+     * sem limite). Se o tempo acabar, o ticket sai da fila.
+     *
+     * @return true se a vaga foi concedida; false se o tempo acabou ou a fila
+     *         foi fechada (nesse caso rejection() diz porquê)
+     */
+    public boolean await(Ticket ticket, long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (!ticket.granted) {
+                if (ticket.rejection != null) {
+                    return false;
+                }
+                if (timeoutNanos <= 0) {
+                    ticket.turn.await();
+                } else if (remaining > 0) {
+                    remaining = ticket.turn.awaitNanos(remaining);
+                } else {
+                    waitingQueue.remove(ticket);
+                    forget(ticket.user);
+                    timedOut++;
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Desiste de um ticket (ex.: cliente desligou-se ou thread interrompida).
+     * Se a vaga já tinha sido concedida, é passada ao seguinte.
+     */
+    public void cancel(Ticket ticket) {
+        lock.lock();
+        try {
+            if (ticket.granted) {
+                releaseLocked(ticket.user);
+            } else if (waitingQueue.remove(ticket)) {
+                forget(ticket.user);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deixa de admitir sessões: os clientes em fila e os que chegarem depois
+     * são recusados com reason. As sessões ativas não são afetadas.
+     */
+    public void close(String reason) {
+        lock.lock();
+        try {
+            closedReason = reason;
+            for (Ticket ticket : waitingQueue) {
+                ticket.rejection = reason;
+                forget(ticket.user);
+                rejected++;
+                ticket.turn.signal();
+            }
+            waitingQueue.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Liberta a vaga de uma sessão do utilizador user que terminou.
+     */
+    public void release(String user) {
+        lock.lock();
+        try {
+            releaseLocked(user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseLocked(String user) {
+        activeSessions--;
+        forget(user);
+        grantWaiting();
+    }
+
+    private void forget(String user) {
+        if (userQuota > 0) {
+            sessionsByUser.computeIfPresent(user, (u, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    /**
+     * Entrega as vagas livres aos primeiros da fila (acordando só esses).
+     * Deve ser chamado com o lock adquirido.
+     */
+    private void grantWaiting() {
+        while (activeSessions < limit && !waitingQueue.isEmpty()) {
+            Ticket next = waitingQueue.pollFirst();
+            next.granted = true;
+            activeSessions++;
+            next.turn.signal();
+        }
+    }
+
+    /**
+     * Ajuste periódico do limite (só se for adaptativo) a partir da latência
+     * média dos pedidos concluídos no último intervalo.
+     */
+    public void adjust(double meanLatencyNanos, long samples) {
+        lock.lock();
+        try {
+            if (minLimit == maxLimit || samples == 0) {
+                return;
+            }
+            if (meanLatencyNanos > targetLatencyNanos) {
+                limit = Math.max(minLimit, Math.min(limit - 1, (int) (limit * DECREASE_FACTOR)));
+            } else if (!waitingQueue.isEmpty() && limit < maxLimit) {
+                limit++;
+                grantWaiting();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Muda o limite em execução (JMX). Com limite fixo passa a ser o novo
+     * limite fixo; com limite adaptativo fica dentro de [minLimit, maxLimit].
+     */
+    public void setLimit(int newLimit) {
+        if (newLimit < 1) {
+            throw new IllegalArgumentException("Limite de sessões inválido: " + newLimit);
+        }
+        lock.lock();
+        try {
+            if (minLimit == maxLimit) {
+                minLimit = maxLimit = newLimit;
+            }
+            limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+            grantWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int limit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int activeSessions() {
+        lock.lock();
+        try {
+            return activeSessions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queueLength() {
+        lock.lock();
+        try {
+            return waitingQueue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long rejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long timedOut() {
+        lock.lock();
+        try {
+            return timedOut;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
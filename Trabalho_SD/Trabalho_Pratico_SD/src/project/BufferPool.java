@@ -0,0 +1,74 @@
+package project;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool de byte[] reutilizáveis, por classes de tamanho (potências de 2).
+ *
+ * Usada para ler valores recebidos quando o armazenamento os copia para fora
+ * do heap: o buffer volta à pool logo a seguir ao put, em vez de ficar um
+ * byte[] novo por pedido à espera do GC.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 10; // 1 KB
+
+    private final ConcurrentLinkedQueue<byte[]>[] classes;
+    private final AtomicInteger[] sizes;
+    private final int maxPooledBytes;
+    private final int maxPerClass;
+
+    /**
+     * @param maxPooledBytes buffers maiores do que isto não são guardados na pool
+     * @param maxPerClass    número máximo de buffers guardados por classe de tamanho
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPooledBytes, int maxPerClass) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.maxPerClass = maxPerClass;
+        int numClasses = sizeClass(Math.max(maxPooledBytes, 1 << MIN_SHIFT)) + 1;
+        this.classes = new ConcurrentLinkedQueue[numClasses];
+        this.sizes = new AtomicInteger[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+            sizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Devolve um buffer com pelo menos minLength bytes.
+     */
+    public byte[] acquire(int minLength) {
+        if (minLength > maxPooledBytes) {
+            return new byte[minLength];
+        }
+        int c = sizeClass(minLength);
+        byte[] buffer = classes[c].poll();
+        if (buffer != null) {
+            sizes[c].decrementAndGet();
+            return buffer;
+        }
+        return new byte[1 << (c + MIN_SHIFT)];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length > maxPooledBytes || Integer.bitCount(buffer.length) != 1
+                || buffer.length < (1 << MIN_SHIFT)) {
+            return;
+        }
+        int c = sizeClass(buffer.length);
+        if (sizes[c].incrementAndGet() <= maxPerClass) {
+            classes[c].offer(buffer);
+        } else {
+            sizes[c].decrementAndGet();
+        }
+    }
+
+    private static int sizeClass(int length) {
+        if (length <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,323 @@
+package project;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache local de get/multiGet de um ClientLibrary (ver enableCache()).
+ *
+ * Limitada em entradas e em bytes (chave + valor); quando cheia despeja a
+ * entrada usada há mais tempo (LRU). Com TINY_LFU, uma chave nova só entra se
+ * for pedida mais vezes do que as que teria de despejar, contadas num
+ * count-min sketch que envelhece: chaves lidas uma só vez não expulsam as
+ * quentes.
+ *
+ * A coerência vem das invalidações enviadas pelo servidor (OP_TRACK): cada
+ * chave lida é seguida pelo servidor, que a envia quando volta a ser escrita
+ * por qualquer sessão. Sem elas (protocolo v1, ou servidor sem OP_TRACK) as
+ * entradas valem só durante o TTL. Um aviso pode chegar antes da resposta que
+ * invalida, por isso uma leitura em curso quando a chave é invalidada não
+ * fica guardada (ver beginFetch()).
+ *
+ * Segura com várias threads (um único lock).
+ */
+public class ClientCache {
+
+    public enum Policy { LRU, TINY_LFU }
+
+    // Devolvido por lookup() quando a chave não está na cache (null é "a chave não existe")
+    static final byte[] MISS = new byte[0];
+
+    private final Policy policy;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final FrequencySketch sketch;
+    // Leituras ao servidor em curso, por chave (ver beginFetch())
+    private final Map<String, Fetch> fetching = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private static final class Entry {
+        // null: a chave não existe no servidor
+        final byte[] value;
+        final long expiresAt;
+
+        Entry(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Fetch {
+        int inFlight;
+        // Muda a cada invalidação da chave enquanto houver leituras em curso
+        long generation;
+    }
+
+    /**
+     * @param maxEntries número máximo de chaves guardadas
+     * @param maxBytes   máximo de bytes guardados (chaves + valores)
+     * @param ttlMillis  validade de cada entrada, ou 0 para depender só das invalidações
+     */
+    public ClientCache(Policy policy, int maxEntries, long maxBytes, long ttlMillis) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Limites da cache inválidos: " + maxEntries + " entradas, "
+                    + maxBytes + " bytes.");
+        }
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("TTL inválido: " + ttlMillis);
+        }
+        this.policy = policy;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.sketch = policy == Policy.TINY_LFU ? new FrequencySketch(maxEntries) : null;
+    }
+
+    /**
+     * Cópia do valor guardado (null se a chave não existe), ou MISS.
+     */
+    synchronized byte[] lookup(String key) {
+        if (sketch != null) {
+            sketch.increment(key.hashCode());
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && ttlNanos > 0 && entry.expiresAt - System.nanoTime() <= 0) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return MISS;
+        }
+        hits.increment();
+        return entry.value != null ? entry.value.clone() : null;
+    }
+
+    /**
+     * Início de uma leitura de key ao servidor, depois de um MISS.
+     *
+     * @return geração a passar a endFetch()
+     */
+    synchronized long beginFetch(String key) {
+        Fetch fetch = fetching.computeIfAbsent(key, k -> new Fetch());
+        fetch.inFlight++;
+        return fetch.generation;
+    }
+
+    /**
+     * Fim de uma leitura começada com beginFetch(). O valor só é guardado se
+     * a leitura correu bem e key não foi invalidada entretanto.
+     *
+     * @param value valor lido (null se a chave não existe); é copiado
+     */
+    synchronized void endFetch(String key, long generation, byte[] value, boolean ok) {
+        Fetch fetch = fetching.get(key);
+        boolean current = fetch.generation == generation;
+        if (--fetch.inFlight == 0) {
+            fetching.remove(key);
+        }
+        if (ok && current) {
+            store(key, value != null ? value.clone() : null);
+        }
+    }
+
+    /**
+     * Retira key (escrita por este cliente ou aviso do servidor).
+     */
+    public synchronized void invalidate(String key) {
+        Fetch fetch = fetching.get(key);
+        if (fetch != null) {
+            fetch.generation++;
+        }
+        if (remove(key)) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Esvazia a cache, por exemplo quando a ligação que trazia os avisos cai.
+     */
+    public synchronized void invalidateAll() {
+        for (Fetch fetch : fetching.values()) {
+            fetch.generation++;
+        }
+        invalidations.add(entries.size());
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void store(String key, byte[] value) {
+        long size = entrySize(key, value);
+        if (size > maxBytes) {
+            return;
+        }
+        remove(key);
+        // Vítimas pela ordem LRU, até haver espaço para a nova entrada
+        List<String> victims = new ArrayList<>();
+        long freed = 0;
+        Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+        while (entries.size() - victims.size() >= maxEntries || bytes - freed + size > maxBytes) {
+            Map.Entry<String, Entry> victim = lru.next();
+            if (sketch != null && sketch.frequency(victim.getKey().hashCode()) >= sketch.frequency(key.hashCode())) {
+                // TinyLFU: a nova chave não é mais pedida do que a que sairia
+                rejections.increment();
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += entrySize(victim.getKey(), victim.getValue().value);
+        }
+        for (String victim : victims) {
+            remove(victim);
+            evictions.increment();
+        }
+        entries.put(key, new Entry(value, ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0));
+        bytes += size;
+    }
+
+    private boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        bytes -= entrySize(key, entry.value);
+        return true;
+    }
+
+    private static long entrySize(String key, byte[] value) {
+        return key.length() + (value != null ? value.length : 0);
+    }
+
+    // -----------------------------------------------------------
+    // Contadores
+    // -----------------------------------------------------------
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public double hitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Entradas despejadas por falta de espaço.
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Chaves lidas que o TinyLFU não deixou entrar.
+     */
+    public long rejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * Entradas retiradas por escritas deste cliente ou avisos do servidor.
+     */
+    public long invalidationCount() {
+        return invalidations.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    /**
+     * Validade das entradas, ou 0 se dependem só das invalidações.
+     */
+    public long ttlMillis() {
+        return ttlNanos / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClientCache[%s, %d entradas, %d bytes, hits=%d, misses=%d (%.1f%%), "
+                        + "despejos=%d, rejeitadas=%d, invalidações=%d]",
+                policy, size(), bytes(), hitCount(), missCount(), 100 * hitRatio(),
+                evictionCount(), rejectionCount(), invalidationCount());
+    }
+
+    /**
+     * Count-min sketch com contadores de 4 bits (16 por long) e 4 funções de
+     * hash; quando o número de incrementos chega a 10 vezes o tamanho, todos
+     * os contadores são divididos por 2, para a frequência seguir o presente.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+            this.table = new long[size];
+            this.mask = size - 1;
+            this.sampleSize = 10 * size;
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = rowHash(hash, i);
+                min = Math.min(min, (int) (table[(int) h & mask] >>> shift(h)) & 0xF);
+            }
+            return min;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = rowHash(hash, i);
+                int index = (int) h & mask;
+                int shift = shift(h);
+                if (((table[index] >>> shift) & 0xF) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        private static long rowHash(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return h ^ (h >>> 32);
+        }
+
+        // Um dos 16 contadores do long, escolhido por bits que não dão o índice
+        private static int shift(long h) {
+            return ((int) (h >>> 28) & 15) << 2;
+        }
+    }
+}
@@ -2,13 +2,76 @@ package project;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
 
 public class ClientHandler implements Runnable {
+    // Latência de cada comando, comum aos protocolos v1 e v2 (ver Metrics)
+    private static final Metrics.Timer PUT_TIMER = Metrics.timer("put");
+    private static final Metrics.Timer GET_TIMER = Metrics.timer("get");
+    private static final Metrics.Timer MULTI_PUT_TIMER = Metrics.timer("multiPut");
+    private static final Metrics.Timer MULTI_GET_TIMER = Metrics.timer("multiGet");
+    private static final Metrics.Timer SCAN_TIMER = Metrics.timer("scan");
+    private static final Metrics.Timer CAS_TIMER = Metrics.timer("cas");
+    private static final Metrics.Timer TXN_TIMER = Metrics.timer("txn");
+    private static final Metrics.Timer DELETE_TIMER = Metrics.timer("delete");
+    // Tempo até à resposta, incluindo a espera pela condição
+    private static final Metrics.Timer GET_WHEN_TIMER = Metrics.timer("getWhen");
+
+    // Numa paragem, quanto o loop v1 espera por mais pedidos depois do último
+    // (ver awaitRequest())
+    private static final int DRAIN_POLL_MS = 100;
+    private static final String READ_ONLY_MESSAGE = "Este servidor é uma réplica só de leitura: escreva no primário.";
+    private static final String STALE_MESSAGE = "Réplica desatualizada.";
+
     private Socket socket;
     private DataInputStream in;
     private DataOutputStream out;
     private String username;
+    // Ativado pelo comando "pipeline": pedidos/respostas passam a levar correlation ID
+    private boolean pipelined = false;
+    // LSN da última escrita feita por esta ligação (ver DurableOutputStream)
+    private volatile long lastWriteLsn = 0;
+    // Chave dos OP_GET, lida da rede sem criar a String (ver handleGetV2)
+    private byte[] keyBuffer = new byte[64];
+
+    // Em modo pipeline e no v2 há respostas escritas por outras threads (getWhen
+    // e eventos de watch, ver push()); cada resposta completa é escrita com este lock
+    private final ReentrantLock outLock = new ReentrantLock();
+    private final Queue<PushedReply> pushes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean pushing = new AtomicBoolean(false);
+    // getWhen pendentes e watches ativos desta ligação (correlation ID -> cancelamento)
+    private final Map<Integer, Runnable> subscriptions = new ConcurrentHashMap<>();
+    // Chaves lidas por esta ligação depois de OP_TRACK (cache do cliente); null sem tracking
+    private TrackedKeys tracked;
+    // Ativado por OP_COMPRESSED_VALUES: os valores das respostas vão como estão guardados
+    // (lido também pelas threads de push)
+    private volatile boolean compressedValues = false;
+    // Inatividade da sessão (ver Server.evictIdleSessions): fim do último pedido
+    // e se há um pedido em curso
+    private volatile long lastActivityNanos = System.nanoTime();
+    private volatile boolean busy = false;
+    // Ligação fechada pelo servidor (inatividade ou fim do prazo de uma paragem)
+    private volatile boolean closedByServer = false;
+    // Paragem do servidor (ver drain()): a sessão termina depois dos pedidos em curso
+    private volatile boolean draining = false;
+    // Upgrade para o v2 aceite (com o lock deste objeto, ver acceptUpgrade()) e já em curso
+    private boolean upgrading = false;
+    // Loop v1 bloqueado à espera do próximo pedido e entrada fechada por drain() nessa
+    // espera (com o lock deste objeto, ver awaitRequest())
+    private boolean awaitingRequest = false;
+    private boolean inputShut = false;
+    private volatile boolean protocolV2 = false;
+    // Ligação de um nó ou ClusterClient (OP_PEER com o segredo do cluster) e
+    // transações enviadas em partes (OP_STAGE) por esta ligação, as únicas que
+    // pode terminar sem OP_PEER; só usados pela thread da ligação
+    private boolean peer = false;
+    private final Set<String> stagedTransactions = new HashSet<>();
 
     public ClientHandler(Socket socket) {
         this.socket = socket;
@@ -22,16 +85,19 @@ public class ClientHandler implements Runnable {
     public void run() {
         try {
             in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new DurableOutputStream(socket.getOutputStream())));
 
             // 1) Autenticação
             if (!authenticate()) {
-                socket.close();
                 return;
             }
 
-            // 2) Esperar até ter vaga (ordem FIFO)
-            Server.waitForSessionAvailability(this);
+            // 2) Esperar até ter vaga (ordem FIFO); pode ser recusada
+            if (!Server.waitForSessionAvailability(this)) {
+                return;
+            }
+            lastActivityNanos = System.nanoTime();
 
             // 3) Finalmente ocupar a sessão
             Server.addActiveClient(this);
@@ -39,43 +105,144 @@ public class ClientHandler implements Runnable {
             // 4) Loop principal de comandos
             boolean running = true;
             while (running) {
+                int correlationId = 0;
                 String command;
                 try {
+                    if (!awaitRequest()) {
+                        // Paragem do servidor e nenhum pedido a meio: a sessão acaba aqui
+                        break;
+                    }
+                    // Em modo pipeline cada pedido vem precedido do seu correlation ID
+                    if (pipelined) {
+                        correlationId = in.readInt();
+                    }
                     command = in.readUTF();
                 } catch (EOFException e) {
                     // Cliente fechou a conexão abruptamente
                     break;
                 }
+                busy = true;
 
-                switch (command) {
-                    case "put":
-                        handlePut();
-                        break;
-                    case "get":
-                        handleGet();
-                        break;
-                    case "multiPut":
-                        handleMultiPut();
-                        break;
-                    case "multiGet":
-                        handleMultiGet();
-                        break;
-                    case "logout":
-                        running = false;
-                        break;
-                    default:
-                        sendMessage("Comando inválido.");
+                boolean upgrade = false;
+                if (pipelined) {
+                    // Do correlation ID ao fim da resposta: as respostas de getWhen e
+                    // watch (drainPushes()) vão para o mesmo stream
+                    outLock.lock();
+                }
+                try {
+                    // A resposta leva o mesmo correlation ID do pedido (logout não tem
+                    // resposta; getWhen e watch escrevem o seu quando a resposta sair)
+                    if (pipelined && !command.equals("logout") && !repliesLater(command)) {
+                        out.writeInt(correlationId);
+                    }
+                    long start = System.nanoTime();
+                    switch (command) {
+                        case "put":
+                        case "putTtl":
+                            handlePut(command.equals("putTtl"));
+                            PUT_TIMER.recordSince(start);
+                            break;
+                        case "get":
+                            handleGet();
+                            GET_TIMER.recordSince(start);
+                            break;
+                        case "multiPut":
+                        case "multiPutTtl":
+                            handleMultiPut(command.equals("multiPutTtl"));
+                            MULTI_PUT_TIMER.recordSince(start);
+                            break;
+                        case "delete":
+                            handleDelete();
+                            DELETE_TIMER.recordSince(start);
+                            break;
+                        case "multiGet":
+                            handleMultiGet();
+                            MULTI_GET_TIMER.recordSince(start);
+                            break;
+                        case "scan":
+                            handleScan();
+                            SCAN_TIMER.recordSince(start);
+                            break;
+                        case "getWhen":
+                            handleGetWhen(correlationId);
+                            break;
+                        case "watch":
+                            handleWatch(correlationId);
+                            break;
+                        case "unwatch":
+                            handleUnwatch();
+                            break;
+                        case "stats":
+                            writeMessage(Metrics.report());
+                            break;
+                        case "ping":
+                            writeMessage("pong");
+                            break;
+                        case Protocol.NEGOTIATE_V2:
+                            // Numa paragem o v2 é recusado: o cliente volta a ligar sem pedidos a meio
+                            if (!acceptUpgrade()) {
+                                writeMessage("Servidor a terminar: volte a ligar.");
+                                running = false;
+                                break;
+                            }
+                            // A partir daqui a ligação fala o protocolo binário v2 até ao fim
+                            writeMessage("Protocolo v2 ativo.");
+                            upgrade = true;
+                            break;
+                        case "pipeline":
+                            pipelined = true;
+                            writeMessage("Modo pipeline ativo.");
+                            break;
+                        case "logout":
+                            running = false;
+                            break;
+                        default:
+                            writeMessage("Comando inválido.");
+                    }
+
+                    // Em modo pipeline as respostas são enviadas em lote: só se faz flush
+                    // quando já não há mais pedidos recebidos à espera de serem processados
+                    if (!pipelined || upgrade || in.available() == 0) {
+                        out.flush();
+                    }
+                } finally {
+                    if (outLock.isHeldByCurrentThread()) {
+                        outLock.unlock();
+                    }
+                    requestDone();
+                }
+
+                if (upgrade) {
+                    protocolV2 = true;
+                    // drain() pode ter sido chamado durante o upgrade
+                    if (draining) {
+                        goAway();
+                    }
+                    runProtocolV2();
+                    running = false;
                 }
             }
 
             // Ao sair do loop, remover da lista de ativos
+            cancelSubscriptions();
             Server.removeActiveClient(this);
-            socket.close();
 
         } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+            // Uma sessão terminada pelo servidor acaba com o socket fechado
+            if (!closedByServer) {
+                e.printStackTrace();
+            }
             // Se der erro, remover também da lista
+            cancelSubscriptions();
             Server.removeActiveClient(this);
+        } finally {
+            // Em qualquer saída (também num erro de protocolo) o cliente vê a ligação
+            // fechada em vez de ficar à espera de uma resposta
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Já estava fechado
+            }
         }
     }
 
@@ -86,6 +253,18 @@ public class ClientHandler implements Runnable {
     private boolean authenticate() throws IOException {
         sendMessage("Insira o seu nome de utilizador:");
         username = in.readUTF();
+        if (username.equals(PreparedTransactions.STATUS_QUERY)) {
+            // Outro nó a perguntar o resultado de uma transação: responde e fecha.
+            // Sem o segredo do cluster fecha sem responder (a pergunta tem efeitos,
+            // ver PreparedTransactions.status())
+            String secret = in.readUTF();
+            String txId = in.readUTF();
+            if (Server.isClusterSecret(secret)) {
+                out.writeByte(Server.transactionStatus(txId));
+                out.flush();
+            }
+            return false;
+        }
         sendMessage("Insira a sua palavra-passe:");
         String password = in.readUTF();
 
@@ -111,6 +290,29 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Antes de qualquer byte seguir para o socket, espera que as escritas feitas
+     * por esta ligação estejam no WAL em disco. Assim nenhuma confirmação sai
+     * antes do fsync, mas vários pedidos em pipeline partilham o mesmo fsync.
+     */
+    private class DurableOutputStream extends FilterOutputStream {
+        DurableOutputStream(OutputStream socketOut) {
+            super(socketOut);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            Server.awaitDurable(lastWriteLsn);
+            this.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Server.awaitDurable(lastWriteLsn);
+            this.out.write(b, off, len);
+        }
+    }
+
     // ---------------------------------------------------------
     // Método util para enviar mensagem
     // ---------------------------------------------------------
@@ -119,73 +321,1319 @@ public class ClientHandler implements Runnable {
         out.flush();
     }
 
+    /**
+     * Escreve a mensagem sem fazer flush; o loop principal decide quando enviar.
+     */
+    private void writeMessage(String message) throws IOException {
+        out.writeUTF(message);
+    }
+
+    /**
+     * Responde a um pedido recusado e conta-o como erro do comando.
+     */
+    private void reject(Metrics.Timer timer, String message) throws IOException {
+        timer.error();
+        writeMessage(message);
+    }
+
+    /**
+     * Recusa de uma leitura v1, cuja resposta começa por um tamanho ou número
+     * de pares (get, multiGet, scan, getWhen): -1 seguido da mensagem.
+     */
+    private void rejectRead(Metrics.Timer timer, String message) throws IOException {
+        out.writeInt(-1);
+        reject(timer, message);
+    }
+
+    /**
+     * Numa réplica mais atrasada do que server.replica.maxStalenessMs recusa a
+     * leitura, como no v2 (ver refusedOnReplicaV2()).
+     *
+     * @return true se o pedido foi recusado e respondido
+     */
+    private boolean refusedStaleReadV1(Metrics.Timer timer) throws IOException {
+        if (!Server.isReplica() || !Server.replicaTooStale()) {
+            return false;
+        }
+        rejectRead(timer, STALE_MESSAGE);
+        return true;
+    }
+
     // ---------------------------------------------------------
     // Handlers de cada comando
     // ---------------------------------------------------------
-    private void handlePut() throws IOException {
+    /**
+     * put, ou putTtl com o TTL em ms (long) a seguir à chave.
+     */
+    private void handlePut(boolean withTtl) throws IOException {
         String key = in.readUTF();
+        long ttlMillis = withTtl ? in.readLong() : 0;
         int length = in.readInt();
         if (length < 0) {
-            sendMessage("Comprimento do valor inválido.");
+            reject(PUT_TIMER, "Comprimento do valor inválido.");
+            return;
+        }
+        if (length > Server.MAX_VALUE_BYTES) {
+            // Descarta o valor sem o alocar, para manter o stream sincronizado
+            in.skipNBytes(length);
+            reject(PUT_TIMER, "Valor demasiado grande (máximo " + Server.MAX_VALUE_BYTES + " bytes).");
             return;
         }
-        byte[] value = new byte[length];
-        in.readFully(value);
-        Server.put(key, value);
-        sendMessage("Chave-valor inseridos/atualizados com sucesso.");
+        if (Server.isReplica()) {
+            in.skipNBytes(length);
+            reject(PUT_TIMER, READ_ONLY_MESSAGE);
+            return;
+        }
+        if (withTtl) {
+            if (ttlMillis <= 0) {
+                in.skipNBytes(length);
+                reject(PUT_TIMER, "TTL inválido: " + ttlMillis);
+                return;
+            }
+            byte[] value = new byte[length];
+            in.readFully(value);
+            lastWriteLsn = Server.putExpiring(key, incoming(value), ttlMillis);
+        } else {
+            storeValue(key, length, in::readFully);
+        }
+        writeMessage(Protocol.PUT_OK);
     }
 
     private void handleGet() throws IOException {
         String key = in.readUTF();
-        byte[] value = Server.get(key);
-        if (value != null) {
-            out.writeInt(value.length);
-            out.write(value);
-        } else {
-            out.writeInt(0);
+        if (refusedStaleReadV1(GET_TIMER)) {
+            return;
         }
-        out.flush();
+        if (Server.fileBacked()) {
+            try (FileRegion region = Server.getRegion(key)) {
+                if (region != null && region.startsWith(Compression.MAGIC)) {
+                    writeValueV1(region.readBytes(), 0);
+                    return;
+                }
+                out.writeInt(region != null ? region.length() : 0);
+                if (region != null) {
+                    writeRegion(region);
+                }
+            }
+            return;
+        }
+        writeValueV1(Server.get(key), 0);
     }
 
-    private void handleMultiPut() throws IOException {
+    /**
+     * multiPut, ou multiPutTtl com o TTL em ms (long) antes do número de pares.
+     */
+    private void handleMultiPut(boolean withTtl) throws IOException {
+        long ttlMillis = withTtl ? in.readLong() : 0;
         int numPairs = in.readInt();
         if (numPairs <= 0) {
-            sendMessage("Número de pares inválido.");
+            reject(MULTI_PUT_TIMER, "Número de pares inválido.");
             return;
         }
         Map<String, byte[]> pairs = new HashMap<>();
+        // Com um valor demasiado grande o pedido é recusado, mas os pares seguintes
+        // são lidos na mesma: o próximo pedido só começa depois deles
+        String tooLarge = null;
         for (int i = 0; i < numPairs; i++) {
             String k = in.readUTF();
             int length = in.readInt();
             if (length < 0) {
-                sendMessage("Comprimento do valor inválido para a chave: " + k);
-                return;
+                // Sem o comprimento não se sabe onde acaba o pedido: a ligação não pode continuar
+                throw new Protocol.ProtocolException("Comprimento do valor inválido para a chave: " + k);
+            }
+            if (tooLarge != null || length > Server.MAX_VALUE_BYTES) {
+                in.skipNBytes(length);
+                if (tooLarge == null) {
+                    tooLarge = k;
+                }
+                continue;
             }
             byte[] val = new byte[length];
             in.readFully(val);
-            pairs.put(k, val);
+            pairs.put(k, incoming(val));
+        }
+        if (tooLarge != null) {
+            reject(MULTI_PUT_TIMER, "Valor demasiado grande para a chave: " + tooLarge);
+            return;
+        }
+        if (Server.isReplica()) {
+            reject(MULTI_PUT_TIMER, READ_ONLY_MESSAGE);
+            return;
+        }
+        if (withTtl && ttlMillis <= 0) {
+            reject(MULTI_PUT_TIMER, "TTL inválido: " + ttlMillis);
+            return;
+        }
+        lastWriteLsn = withTtl ? Server.multiPutExpiring(pairs, ttlMillis) : Server.multiPut(pairs);
+        writeMessage(Protocol.MULTI_PUT_OK);
+    }
+
+    private void handleDelete() throws IOException {
+        String key = in.readUTF();
+        if (Server.isReplica()) {
+            reject(DELETE_TIMER, READ_ONLY_MESSAGE);
+            return;
+        }
+        long lsn = Server.delete(key);
+        if (lsn < 0) {
+            writeMessage(Protocol.NOT_FOUND);
+            return;
         }
-        Server.multiPut(pairs);
-        sendMessage("Pares chave-valor inseridos/atualizados atomicamente.");
+        lastWriteLsn = lsn;
+        writeMessage(Protocol.DELETED);
     }
 
     private void handleMultiGet() throws IOException {
         int numKeys = in.readInt();
         if (numKeys <= 0) {
-            sendMessage("Número de chaves inválido.");
+            rejectRead(MULTI_GET_TIMER, "Número de chaves inválido.");
             return;
         }
         Set<String> keys = new HashSet<>();
         for (int i = 0; i < numKeys; i++) {
             keys.add(in.readUTF());
         }
-        Map<String, byte[]> result = Server.multiGet(keys);
+        if (refusedStaleReadV1(MULTI_GET_TIMER)) {
+            return;
+        }
+        Map<String, byte[]> result;
+        if (Server.fileBacked()) {
+            Map<String, FileRegion> regions = Server.multiGetRegions(keys);
+            try {
+                result = decodedRegions(regions);
+                if (result == null) {
+                    out.writeInt(regions.size());
+                    for (Map.Entry<String, FileRegion> entry : regions.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeInt(entry.getValue().length());
+                        writeRegion(entry.getValue());
+                    }
+                    return;
+                }
+            } finally {
+                closeAll(regions.values());
+            }
+        } else {
+            result = outgoing(Server.multiGet(keys));
+        }
         out.writeInt(result.size());
         for (Map.Entry<String, byte[]> entry : result.entrySet()) {
             out.writeUTF(entry.getKey());
             out.writeInt(entry.getValue().length);
             out.write(entry.getValue());
         }
+    }
+
+    /**
+     * scan: uma parte dos pares com chave em [início, fim), por ordem (ver
+     * Server.scan()). Pedido: início, fim ("" sem limite), início exclusivo
+     * (boolean), máximo de pares (int, 0 = limite do servidor).
+     * Resposta: [há mais: boolean][n: int] e n x [chave][tamanho: int][valor].
+     */
+    private void handleScan() throws IOException {
+        String from = in.readUTF();
+        String to = in.readUTF();
+        boolean exclusive = in.readBoolean();
+        int maxEntries = in.readInt();
+        if (Server.isReplica() && Server.replicaTooStale()) {
+            // Como as outras leituras, mas a resposta começa por [há mais]
+            out.writeBoolean(false);
+            rejectRead(SCAN_TIMER, STALE_MESSAGE);
+            return;
+        }
+        ShardedStore.ScanResult result = Server.hasOrderedIndex()
+                ? Server.scan(from, !exclusive, to.isEmpty() ? null : to, maxEntries)
+                : null;
+        if (result == null) {
+            // A resposta não tem forma de levar uma mensagem de erro: scan vazio
+            SCAN_TIMER.error();
+            out.writeBoolean(false);
+            out.writeInt(0);
+            return;
+        }
+        out.writeBoolean(result.more);
+        out.writeInt(result.entries.size());
+        for (Map.Entry<String, byte[]> entry : result.entries) {
+            byte[] value = outgoing(entry.getValue());
+            out.writeUTF(entry.getKey());
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    /**
+     * getWhen: valor de key quando condKey tiver o valor pedido. Sem pipeline o
+     * pedido bloqueia a ligação até à resposta; em modo pipeline a resposta sai
+     * quando a condição se verificar, sem atrasar os pedidos seguintes.
+     * Resposta: [tamanho: int][valor], com tamanho 0 se key não existir; um
+     * pedido recusado tem tamanho -1 seguido da mensagem (UTF).
+     */
+    private void handleGetWhen(int correlationId) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        String key = in.readUTF();
+        String condKey = in.readUTF();
+        int length = in.readInt();
+        if (length < 0) {
+            // Sem o comprimento não se sabe onde acaba o pedido: a ligação não pode continuar
+            throw new Protocol.ProtocolException("Comprimento do valor da condição inválido: " + length);
+        }
+        if (length > Server.MAX_VALUE_BYTES) {
+            in.skipNBytes(length);
+            if (pipelined) {
+                out.writeInt(correlationId);
+            }
+            rejectRead(GET_WHEN_TIMER, "Valor da condição demasiado grande (máximo " + Server.MAX_VALUE_BYTES + " bytes).");
+            return;
+        }
+        byte[] condValue = new byte[length];
+        in.readFully(condValue);
+        if (Server.isReplica() && Server.replicaTooStale()) {
+            if (pipelined) {
+                out.writeInt(correlationId);
+            }
+            rejectRead(GET_WHEN_TIMER, STALE_MESSAGE);
+            return;
+        }
+
+        // Comparado com os bytes guardados, por isso na mesma forma
+        CompletableFuture<byte[]> result = Server.getWhen(key, condKey, incoming(condValue));
+        if (!pipelined || result.isDone()) {
+            byte[] value;
+            try {
+                value = result.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            if (pipelined) {
+                out.writeInt(correlationId);
+            }
+            writeValueV1(value, 0);
+            GET_WHEN_TIMER.recordSince(start);
+            return;
+        }
+        subscriptions.put(correlationId, () -> result.cancel(false));
+        result.thenAccept(value -> push(() -> {
+            if (subscriptions.remove(correlationId) != null) {
+                out.writeInt(correlationId);
+                writeValueV1(value, 0);
+                GET_WHEN_TIMER.recordSince(start);
+            }
+        }));
+    }
+
+    /**
+     * watch (só em modo pipeline): cada evento é [correlation ID do watch]
+     * [tamanho: int][valor], com tamanho -1 se a chave não existir. O primeiro
+     * evento traz o valor atual.
+     */
+    private void handleWatch(int correlationId) throws IOException {
+        String key = in.readUTF();
+        if (!pipelined) {
+            writeMessage("O comando watch requer o modo pipeline.");
+            return;
+        }
+        // Registado antes do watch, para o evento inicial não ser descartado
+        subscriptions.put(correlationId, () -> { });
+        Runnable cancel = Server.watch(key, value -> push(() -> {
+            if (subscriptions.containsKey(correlationId)) {
+                out.writeInt(correlationId);
+                writeValueV1(value, -1);
+            }
+        }));
+        subscriptions.put(correlationId, cancel);
+    }
+
+    /**
+     * Cancela um watch: [correlation ID do watch]. Escrito com outLock, por isso
+     * nenhum evento desse watch sai depois desta resposta.
+     */
+    private void handleUnwatch() throws IOException {
+        int watchId = in.readInt();
+        Runnable cancel = subscriptions.remove(watchId);
+        if (cancel != null) {
+            cancel.run();
+        }
+        writeMessage(cancel != null ? "Watch cancelado." : "Watch inexistente.");
+    }
+
+    private void writeValueV1(byte[] value, int missingLength) throws IOException {
+        if (value == null) {
+            out.writeInt(missingLength);
+            return;
+        }
+        value = outgoing(value);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    /**
+     * Comandos cuja resposta é escrita mais tarde, com o seu próprio correlation ID.
+     */
+    private static boolean repliesLater(String command) {
+        return command.equals("getWhen") || command.equals("watch");
+    }
+
+    // ---------------------------------------------------------
+    // Respostas escritas fora do loop de pedidos
+    // ---------------------------------------------------------
+    /**
+     * Resposta completa (cabeçalho e corpo) a escrever no stream de saída.
+     */
+    @FunctionalInterface
+    private interface PushedReply {
+        void write() throws IOException;
+    }
+
+    /**
+     * Envia uma resposta a partir de outra thread (tipicamente a de uma escrita
+     * no armazém, que não pode bloquear). As respostas ficam numa fila e são
+     * escritas por uma virtual thread com outLock, pela ordem de chegada.
+     */
+    private void push(PushedReply reply) {
+        pushes.add(reply);
+        if (pushing.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("push-" + username).start(this::drainPushes);
+        }
+    }
+
+    private void drainPushes() {
+        do {
+            outLock.lock();
+            try {
+                PushedReply reply;
+                while ((reply = pushes.poll()) != null) {
+                    reply.write();
+                }
+                out.flush();
+            } catch (IOException e) {
+                // Ligação perdida: o loop de pedidos trata do fecho
+                pushes.clear();
+            } finally {
+                outLock.unlock();
+                pushing.set(false);
+            }
+            // Uma resposta chegada entre o último poll e o set(false) não fica esquecida
+        } while (!pushes.isEmpty() && pushing.compareAndSet(false, true));
+    }
+
+    /**
+     * Espera pelo primeiro byte do próximo pedido v1 sem o consumir. Fora de
+     * uma paragem a leitura bloqueia sem prazo; se drain() chegar durante essa
+     * espera, fecha a entrada e a sessão sai sem ter começado nenhum pedido.
+     * Numa paragem com pedidos a chegar (pipeline), continua a servi-los e só
+     * sai quando nenhum chega durante DRAIN_POLL_MS: o v1 não tem como avisar
+     * o cliente, por isso a sessão acaba sempre entre pedidos completos.
+     *
+     * @return false se o servidor está a terminar e não chegou nenhum pedido
+     */
+    private boolean awaitRequest() throws IOException {
+        if (in.available() > 0) {
+            return true;
+        }
+        boolean blocking;
+        synchronized (this) {
+            blocking = !draining;
+            awaitingRequest = blocking;
+        }
+        if (blocking) {
+            try {
+                peek();
+            } finally {
+                synchronized (this) {
+                    awaitingRequest = false;
+                    blocking = !inputShut;
+                }
+            }
+            // Com a entrada fechada por drain() o que tenha chegado não é processado
+            return blocking;
+        }
+        // O timeout só vale para o início do pedido: o resto lê-se sem prazo
+        socket.setSoTimeout(DRAIN_POLL_MS);
+        try {
+            peek();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Espera por um byte e deixa-o no buffer; com EOF, a leitura do pedido acaba em EOFException.
+     */
+    private void peek() throws IOException {
+        in.mark(1);
+        if (in.read() >= 0) {
+            in.reset();
+        }
+    }
+
+    private void requestDone() {
+        lastActivityNanos = System.nanoTime();
+        busy = false;
+    }
+
+    /**
+     * Tempo desde o fim do último pedido; 0 se houver um pedido em curso ou
+     * getWhen/watch pendentes (a sessão está à espera, não inativa).
+     */
+    public long idleNanos() {
+        if (busy || !subscriptions.isEmpty()) {
+            return 0;
+        }
+        return System.nanoTime() - lastActivityNanos;
+    }
+
+    /**
+     * Termina a sessão por inatividade fechando o socket; o loop de comandos
+     * sai com erro de leitura e liberta a vaga.
+     *
+     * @return false se a sessão já tinha sido terminada
+     */
+    public boolean evict() {
+        if (!terminate()) {
+            return false;
+        }
+        System.out.println("Sessão de " + username + " terminada por inatividade.");
+        return true;
+    }
+
+    /**
+     * Pede à sessão que termine sem perder pedidos (paragem do servidor). No
+     * v2 o cliente recebe STATUS_GOING_AWAY e sai com OP_LOGOUT depois das
+     * respostas em curso; no v1 o loop de comandos sai entre pedidos (ver
+     * awaitRequest()), e uma sessão parada à espera do próximo é acordada aqui.
+     */
+    public void drain() {
+        boolean upgraded;
+        synchronized (this) {
+            draining = true;
+            upgraded = upgrading;
+            if (awaitingRequest) {
+                // Nenhum pedido começado: o loop vê o EOF e inputShut, e sai
+                inputShut = true;
+                try {
+                    socket.shutdownInput();
+                } catch (IOException e) {
+                    // Já estava fechado
+                }
+            }
+        }
+        // Se o upgrade ainda não acabou, é o loop de comandos que avisa ao entrar no v2
+        if (upgraded && protocolV2) {
+            goAway();
+        }
+    }
+
+    /**
+     * false se o servidor já está a terminar (a sessão não passa para o v2).
+     */
+    private synchronized boolean acceptUpgrade() {
+        if (draining) {
+            return false;
+        }
+        upgrading = true;
+        return true;
+    }
+
+    private void goAway() {
+        push(() -> writeErrorV2(0, Protocol.STATUS_GOING_AWAY, "Servidor a terminar: volte a ligar."));
+    }
+
+    /**
+     * Fecha o socket (fim do prazo de uma paragem, ou inatividade).
+     *
+     * @return false se a sessão já tinha sido terminada
+     */
+    public boolean terminate() {
+        if (closedByServer) {
+            return false;
+        }
+        closedByServer = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Já estava fechado
+        }
+        return true;
+    }
+
+    private void cancelSubscriptions() {
+        for (Integer id : new ArrayList<>(subscriptions.keySet())) {
+            Runnable cancel = subscriptions.remove(id);
+            if (cancel != null) {
+                cancel.run();
+            }
+        }
+        if (tracked != null) {
+            tracked.close();
+        }
+    }
+
+    // ---------------------------------------------------------
+    // Transferência de valores
+    // ---------------------------------------------------------
+    /**
+     * Lê os bytes de um valor para um buffer de destino.
+     */
+    @FunctionalInterface
+    private interface ValueReader {
+        void read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Lê um valor recebido e guarda-o. Se o armazenamento copiar os valores
+     * (ex.: "mapped"), o valor é lido para um buffer da pool, que é devolvido
+     * logo a seguir ao put; caso contrário o byte[] lido fica no armazém.
+     */
+    private void storeValue(String key, int length, ValueReader reader) throws IOException {
+        if (Server.copiesValues()) {
+            byte[] buffer = Server.valueBuffers.acquire(length);
+            try {
+                reader.read(buffer, 0, length);
+                byte[] encoded = Server.compression.encode(buffer, 0, length);
+                lastWriteLsn = encoded != null ? Server.put(key, encoded) : Server.put(key, buffer, length);
+            } finally {
+                Server.valueBuffers.release(buffer);
+            }
+        } else {
+            byte[] value = new byte[length];
+            reader.read(value, 0, length);
+            lastWriteLsn = Server.put(key, incoming(value));
+        }
+    }
+
+    /**
+     * Forma guardada de um valor recebido (ver Compression): a compressão é
+     * feita aqui, na thread da ligação, antes de tocar no armazém.
+     */
+    private static byte[] incoming(byte[] value) {
+        return Server.compression.encode(value);
+    }
+
+    /**
+     * Valor guardado na forma a enviar a esta ligação: descomprimido, exceto
+     * depois de OP_COMPRESSED_VALUES.
+     */
+    private byte[] outgoing(byte[] stored) {
+        return compressedValues ? stored : Compression.decode(stored);
+    }
+
+    private Map<String, byte[]> outgoing(Map<String, byte[]> stored) {
+        if (!compressedValues) {
+            stored.replaceAll((k, v) -> Compression.decode(v));
+        }
+        return stored;
+    }
+
+    /**
+     * Se alguma região estiver comprimida e esta ligação não receber valores
+     * comprimidos, os valores descomprimidos (não fecha as regiões); senão null.
+     */
+    private Map<String, byte[]> decodedRegions(Map<String, FileRegion> regions) {
+        if (compressedValues || regions.values().stream().noneMatch(r -> r.startsWith(Compression.MAGIC))) {
+            return null;
+        }
+        Map<String, byte[]> values = new HashMap<>();
+        for (Map.Entry<String, FileRegion> entry : regions.entrySet()) {
+            values.put(entry.getKey(), Compression.decode(entry.getValue().readBytes()));
+        }
+        return values;
+    }
+
+    /**
+     * Escreve um valor guardado em ficheiro. Valores pequenos passam pelo buffer
+     * de saída; os grandes seguem do ficheiro diretamente para o socket com
+     * transferTo(), depois de enviar o que já está no buffer (cabeçalhos incluídos).
+     */
+    private void writeRegion(FileRegion region) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null || region.length() < Server.ZERO_COPY_MIN_BYTES) {
+            out.write(region.readBytes());
+            return;
+        }
         out.flush();
+        region.transferTo(channel);
+    }
+
+    private static void closeAll(Collection<FileRegion> regions) {
+        for (FileRegion region : regions) {
+            region.close();
+        }
+    }
+
+    // ---------------------------------------------------------
+    // Protocolo binário v2
+    // ---------------------------------------------------------
+    /**
+     * Loop de comandos do protocolo v2. Cada frame traz opcode, correlation ID e
+     * tamanho do payload; um pedido mal formado ou desconhecido é descartado e
+     * recebe um código de estado, sem dessincronizar a ligação.
+     */
+    private void runProtocolV2() throws IOException {
+        while (true) {
+            int opcode = in.read();
+            if (opcode < 0) {
+                return;
+            }
+            int correlationId;
+            Protocol.FrameReader frame;
+            try {
+                correlationId = Protocol.readVarint(in);
+                frame = new Protocol.FrameReader(in, Protocol.readVarint(in));
+            } catch (EOFException e) {
+                return;
+            }
+            if (opcode == Protocol.OP_LOGOUT) {
+                return;
+            }
+            busy = true;
+            // Cada resposta é escrita inteira com outLock (ver push())
+            outLock.lock();
+            try {
+                if (frame.remaining() > Server.MAX_FRAME_BYTES) {
+                    frame.skipRest();
+                    writeErrorV2(correlationId, Protocol.STATUS_BAD_REQUEST,
+                            "Frame demasiado grande (máximo " + Server.MAX_FRAME_BYTES + " bytes).");
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                    continue;
+                }
+
+                Metrics.Timer timer = timerV2(opcode);
+                if (refusedOnReplicaV2(opcode, correlationId, frame) || refusedToClientV2(opcode, correlationId, frame)) {
+                    if (timer != null) {
+                        timer.error();
+                    }
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    switch (opcode) {
+                        case Protocol.OP_PUT:
+                        case Protocol.OP_PUT_TTL:
+                            handlePutV2(opcode, correlationId, frame);
+                            break;
+                        case Protocol.OP_GET:
+                            handleGetV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_MULTI_PUT:
+                        case Protocol.OP_MULTI_PUT_TTL:
+                            handleMultiPutV2(opcode, correlationId, frame);
+                            break;
+                        case Protocol.OP_DELETE:
+                            handleDeleteV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_MULTI_GET:
+                            handleMultiGetV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_SCAN:
+                            handleScanV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_GET_VERSIONED:
+                            handleGetVersionedV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_CAS:
+                            handleCasV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_TXN:
+                            handleTxnV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_GET_WHEN:
+                            handleGetWhenV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_WATCH:
+                            handleWatchV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_UNWATCH:
+                            handleUnwatchV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_TRACK:
+                            handleTrackV2(correlationId);
+                            break;
+                        case Protocol.OP_COMPRESSED_VALUES:
+                            // Escrito com outLock: as respostas (e pushes) seguintes já veem a flag
+                            compressedValues = true;
+                            writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+                            break;
+                        case Protocol.OP_PING:
+                            writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+                            break;
+                        case Protocol.OP_PREPARE:
+                        case Protocol.OP_STAGE:
+                            handlePrepareV2(opcode, correlationId, frame);
+                            break;
+                        case Protocol.OP_COMMIT:
+                            handleCommitV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_ABORT:
+                            String aborted = frame.readKey();
+                            if (!ownsTransaction(aborted)) {
+                                writeForbiddenV2(correlationId);
+                                break;
+                            }
+                            Server.abort(aborted);
+                            writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+                            break;
+                        case Protocol.OP_PEER:
+                            if (!Server.isClusterSecret(frame.readKey())) {
+                                writeErrorV2(correlationId, Protocol.STATUS_FORBIDDEN, "Segredo do cluster inválido.");
+                                break;
+                            }
+                            peer = true;
+                            writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+                            break;
+                        case Protocol.OP_FORGET:
+                            Server.forgetTransaction(frame.readKey());
+                            writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+                            break;
+                        case Protocol.OP_DUMP_SHARD:
+                            handleDumpShardV2(correlationId, frame);
+                            break;
+                        case Protocol.OP_STATS:
+                            byte[] report = Protocol.encodeKey(Metrics.report());
+                            writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, report.length);
+                            out.write(report);
+                            break;
+                        default:
+                            frame.skipRest();
+                            writeErrorV2(correlationId, Protocol.STATUS_UNKNOWN_OP, "Opcode desconhecido: " + opcode);
+                    }
+                } catch (Protocol.ProtocolException e) {
+                    if (timer != null) {
+                        timer.error();
+                    }
+                    frame.skipRest();
+                    writeErrorV2(correlationId, Protocol.STATUS_BAD_REQUEST, e.getMessage());
+                }
+                if (timer != null) {
+                    timer.recordSince(start);
+                }
+                // Ignora bytes a mais no fim do frame
+                frame.skipRest();
+
+                // Respostas em lote: flush só quando não há mais pedidos já recebidos
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            } finally {
+                outLock.unlock();
+                requestDone();
+            }
+        }
+    }
+
+    /**
+     * Numa réplica, recusa as escritas (READ_ONLY) e, se a réplica estiver mais
+     * atrasada do que server.replica.maxStalenessMs, as leituras (STALE).
+     *
+     * @return true se o pedido foi recusado e respondido
+     */
+    private boolean refusedOnReplicaV2(int opcode, int correlationId, Protocol.FrameReader frame) throws IOException {
+        if (!Server.isReplica()) {
+            return false;
+        }
+        switch (opcode) {
+            case Protocol.OP_PUT:
+            case Protocol.OP_PUT_TTL:
+            case Protocol.OP_MULTI_PUT:
+            case Protocol.OP_MULTI_PUT_TTL:
+            case Protocol.OP_DELETE:
+            case Protocol.OP_PREPARE:
+            case Protocol.OP_STAGE:
+            case Protocol.OP_COMMIT:
+            case Protocol.OP_CAS:
+            case Protocol.OP_TXN:
+                frame.skipRest();
+                writeErrorV2(correlationId, Protocol.STATUS_READ_ONLY, READ_ONLY_MESSAGE);
+                return true;
+            case Protocol.OP_GET:
+            case Protocol.OP_MULTI_GET:
+            case Protocol.OP_GET_WHEN:
+            case Protocol.OP_SCAN:
+            case Protocol.OP_GET_VERSIONED:
+                if (Server.replicaTooStale()) {
+                    frame.skipRest();
+                    writeErrorV2(correlationId, Protocol.STATUS_STALE, STALE_MESSAGE);
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Recusa (FORBIDDEN) as operações só entre nós numa ligação sem OP_PEER:
+     * votos de two-phase commit, decisões esquecidas e cópias de shards (com
+     * as chaves de todos os utilizadores).
+     *
+     * @return true se o pedido foi recusado e respondido
+     */
+    private boolean refusedToClientV2(int opcode, int correlationId, Protocol.FrameReader frame) throws IOException {
+        if (peer) {
+            return false;
+        }
+        switch (opcode) {
+            case Protocol.OP_PREPARE:
+            case Protocol.OP_FORGET:
+            case Protocol.OP_DUMP_SHARD:
+                frame.skipRest();
+                writeForbiddenV2(correlationId);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * COMMIT/ABORT: sem OP_PEER, só das transações enviadas em partes por esta ligação.
+     */
+    private boolean ownsTransaction(String txId) {
+        return stagedTransactions.remove(txId) || peer;
+    }
+
+    private void writeForbiddenV2(int correlationId) throws IOException {
+        writeErrorV2(correlationId, Protocol.STATUS_FORBIDDEN, "Operação reservada aos nós do cluster (OP_PEER).");
+    }
+
+    /**
+     * Timer do opcode, ou null para os que não são medidos.
+     */
+    private static Metrics.Timer timerV2(int opcode) {
+        switch (opcode) {
+            case Protocol.OP_PUT:
+            case Protocol.OP_PUT_TTL:
+                return PUT_TIMER;
+            case Protocol.OP_GET:
+            case Protocol.OP_GET_VERSIONED:
+                return GET_TIMER;
+            case Protocol.OP_MULTI_PUT:
+            case Protocol.OP_MULTI_PUT_TTL:
+                return MULTI_PUT_TIMER;
+            case Protocol.OP_DELETE:
+                return DELETE_TIMER;
+            case Protocol.OP_MULTI_GET:
+                return MULTI_GET_TIMER;
+            case Protocol.OP_SCAN:
+                return SCAN_TIMER;
+            case Protocol.OP_CAS:
+                return CAS_TIMER;
+            case Protocol.OP_TXN:
+                return TXN_TIMER;
+            default:
+                return null;
+        }
+    }
+
+    private void writeReplyHeaderV2(int correlationId, int status, int payloadLength) throws IOException {
+        Protocol.writeVarint(out, correlationId);
+        out.writeByte(status);
+        Protocol.writeVarint(out, payloadLength);
+    }
+
+    private void writeErrorV2(int correlationId, int status, String message) throws IOException {
+        byte[] text = Protocol.encodeKey(message);
+        writeReplyHeaderV2(correlationId, status, text.length);
+        out.write(text);
+    }
+
+    private void handlePutV2(int opcode, int correlationId, Protocol.FrameReader frame) throws IOException {
+        String key = frame.readKey();
+        long ttlMillis = opcode == Protocol.OP_PUT_TTL ? readTtl(frame) : 0;
+        int length = frame.remaining();
+        if (length > Server.MAX_VALUE_BYTES) {
+            throw new Protocol.ProtocolException("Valor demasiado grande (máximo " + Server.MAX_VALUE_BYTES + " bytes).");
+        }
+        if (ttlMillis > 0) {
+            lastWriteLsn = Server.putExpiring(key, incoming(frame.readRest()), ttlMillis);
+        } else {
+            storeValue(key, length, (buffer, offset, n) -> frame.readFully(buffer, n));
+        }
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+    }
+
+    private static long readTtl(Protocol.FrameReader frame) throws IOException {
+        long ttlMillis = frame.readLong();
+        if (ttlMillis <= 0) {
+            throw new Protocol.ProtocolException("TTL inválido: " + ttlMillis);
+        }
+        return ttlMillis;
+    }
+
+    private void handleDeleteV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        long lsn = Server.delete(frame.readKey());
+        if (lsn < 0) {
+            writeReplyHeaderV2(correlationId, Protocol.STATUS_NOT_FOUND, 0);
+            return;
+        }
+        lastWriteLsn = lsn;
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+    }
+
+    private void handleGetV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        if (Server.fileBacked()) {
+            String key = frame.readKey();
+            // Seguida antes da leitura: uma escrita entre as duas gera o aviso
+            if (tracked != null) {
+                tracked.track(key);
+            }
+            try (FileRegion region = Server.getRegion(key)) {
+                if (region == null || (!compressedValues && region.startsWith(Compression.MAGIC))) {
+                    writeValueV2(correlationId, region != null ? region.readBytes() : null);
+                    return;
+                }
+                writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, region.length());
+                writeRegion(region);
+            }
+            return;
+        }
+        if (tracked != null) {
+            String key = frame.readKey();
+            tracked.track(key);
+            writeValueV2(correlationId, Server.get(key));
+            return;
+        }
+        // A chave é lida para um buffer da ligação e procurada sem criar a String
+        int keyLength = frame.readVarint();
+        if (keyLength > frame.remaining()) {
+            throw new Protocol.ProtocolException("Chave truncada: " + keyLength + " bytes.");
+        }
+        if (keyLength > keyBuffer.length) {
+            keyBuffer = new byte[Math.max(keyLength, keyBuffer.length * 2)];
+        }
+        frame.readFully(keyBuffer, keyLength);
+        writeValueV2(correlationId, Server.get(keyBuffer, keyLength));
+    }
+
+    private void handleMultiPutV2(int opcode, int correlationId, Protocol.FrameReader frame) throws IOException {
+        long ttlMillis = opcode == Protocol.OP_MULTI_PUT_TTL ? readTtl(frame) : 0;
+        int numPairs = frame.readVarint();
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < numPairs; i++) {
+            String k = frame.readKey();
+            pairs.put(k, incoming(frame.readField()));
+        }
+        lastWriteLsn = ttlMillis > 0 ? Server.multiPutExpiring(pairs, ttlMillis) : Server.multiPut(pairs);
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+    }
+
+    /**
+     * OP_GET_VERSIONED: resposta [versão: 8 bytes][valor], ou NOT_FOUND.
+     */
+    private void handleGetVersionedV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        Versioned versioned = Server.getVersioned(frame.readKey());
+        if (versioned == null) {
+            writeReplyHeaderV2(correlationId, Protocol.STATUS_NOT_FOUND, 0);
+            return;
+        }
+        byte[] value = outgoing(versioned.value);
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 8 + value.length);
+        out.writeLong(versioned.version);
+        out.write(value);
+    }
+
+    /**
+     * OP_CAS: resposta [versão nova: 8 bytes], ou CONFLICT se a versão atual
+     * não for a esperada.
+     */
+    private void handleCasV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        String key = frame.readKey();
+        long expectedVersion = frame.readLong();
+        if (frame.remaining() > Server.MAX_VALUE_BYTES) {
+            throw new Protocol.ProtocolException("Valor demasiado grande (máximo " + Server.MAX_VALUE_BYTES + " bytes).");
+        }
+        ShardedStore.CasResult result = Server.cas(key, expectedVersion, incoming(frame.readRest()));
+        if (result == null) {
+            writeErrorV2(correlationId, Protocol.STATUS_CONFLICT, "Versão de " + key + " alterada.");
+            return;
+        }
+        lastWriteLsn = result.lsn;
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 8);
+        out.writeLong(result.version);
+    }
+
+    /**
+     * OP_TXN: commit de uma transação otimista (leituras com a versão lida e
+     * escritas); CONFLICT se alguma versão mudou, sem aplicar nada.
+     */
+    private void handleTxnV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        int numReads = frame.readVarint();
+        Map<String, Long> reads = new HashMap<>();
+        for (int i = 0; i < numReads; i++) {
+            String k = frame.readKey();
+            reads.put(k, frame.readLong());
+        }
+        int numWrites = frame.readVarint();
+        Map<String, byte[]> writes = new HashMap<>();
+        for (int i = 0; i < numWrites; i++) {
+            String k = frame.readKey();
+            writes.put(k, incoming(frame.readField()));
+        }
+        long lsn = Server.commitIfUnchanged(reads, writes);
+        if (lsn < 0) {
+            writeErrorV2(correlationId, Protocol.STATUS_CONFLICT, "Versões lidas alteradas.");
+            return;
+        }
+        if (lsn > 0) {
+            lastWriteLsn = lsn;
+        }
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+    }
+
+    /**
+     * OP_PREPARE: primeira fase de um multiPut entre nós (a resposta só sai com
+     * o voto no WAL); OP_STAGE: mais uma parte de um multiPut atómico enviado
+     * em partes. CONFLICT se alguma chave já estiver reservada por outra transação.
+     */
+    private void handlePrepareV2(int opcode, int correlationId, Protocol.FrameReader frame) throws IOException {
+        String txId = frame.readKey();
+        String coordinator = opcode == Protocol.OP_PREPARE ? frame.readKey() : null;
+        int numPairs = frame.readVarint();
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < numPairs; i++) {
+            String k = frame.readKey();
+            pairs.put(k, incoming(frame.readField()));
+        }
+        if (opcode == Protocol.OP_STAGE) {
+            if (!Server.stage(txId, pairs)) {
+                writeErrorV2(correlationId, Protocol.STATUS_CONFLICT, "Chaves reservadas por outra transação.");
+                return;
+            }
+            stagedTransactions.add(txId);
+        } else {
+            long lsn = Server.prepare(txId, coordinator, pairs);
+            if (lsn < 0) {
+                writeErrorV2(correlationId, Protocol.STATUS_CONFLICT, "Chaves reservadas por outra transação.");
+                return;
+            }
+            lastWriteLsn = lsn;
+        }
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+    }
+
+    /**
+     * OP_COMMIT: segunda fase; NOT_FOUND se a transação já não existir.
+     */
+    private void handleCommitV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        String txId = frame.readKey();
+        if (!ownsTransaction(txId)) {
+            writeForbiddenV2(correlationId);
+            return;
+        }
+        long lsn = Server.commit(txId);
+        if (lsn < 0) {
+            writeErrorV2(correlationId, Protocol.STATUS_NOT_FOUND, "Transação desconhecida (abortada ou expirada).");
+            return;
+        }
+        lastWriteLsn = lsn;
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, 0);
+    }
+
+    private void handleDumpShardV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        Map<String, Long> ttls = new HashMap<>();
+        Map<String, byte[]> entries = Server.dumpShard(frame.readVarint(), ttls);
+        if (entries == null) {
+            writeReplyHeaderV2(correlationId, Protocol.STATUS_NOT_FOUND, 0);
+            return;
+        }
+        // Antes dos pares, o TTL que resta às chaves que expiram
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        DataOutputStream p = new DataOutputStream(prefix);
+        Protocol.writeVarint(p, ttls.size());
+        for (Map.Entry<String, Long> ttl : ttls.entrySet()) {
+            Protocol.writeBytes(p, Protocol.encodeKey(ttl.getKey()));
+            p.writeLong(ttl.getValue());
+        }
+        writeMultiGetV2(correlationId, prefix.toByteArray(), outgoing(entries), value -> value.length, out::write);
+    }
+
+    private void handleMultiGetV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        int numKeys = frame.readVarint();
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < numKeys; i++) {
+            keys.add(frame.readKey());
+        }
+        if (tracked != null) {
+            for (String key : keys) {
+                tracked.track(key);
+            }
+        }
+        if (Server.fileBacked()) {
+            Map<String, FileRegion> regions = Server.multiGetRegions(keys);
+            Map<String, byte[]> decoded;
+            try {
+                decoded = decodedRegions(regions);
+                if (decoded == null) {
+                    writeMultiGetV2(correlationId, regions, FileRegion::length, this::writeRegion);
+                    return;
+                }
+            } finally {
+                closeAll(regions.values());
+            }
+            writeMultiGetV2(correlationId, decoded, value -> value.length, out::write);
+            return;
+        }
+        writeMultiGetV2(correlationId, outgoing(Server.multiGet(keys)), value -> value.length, out::write);
+    }
+
+    /**
+     * OP_SCAN: resposta [há mais: 1 byte] seguida de pares como no MULTI_GET, por ordem de chave.
+     */
+    private void handleScanV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        String from = frame.readKey();
+        String to = frame.readKey();
+        int flags = frame.readVarint();
+        int maxEntries = frame.readVarint();
+        if (!Server.hasOrderedIndex()) {
+            SCAN_TIMER.error();
+            writeErrorV2(correlationId, Protocol.STATUS_ERROR, "Índice ordenado desligado (server.index.ordered).");
+            return;
+        }
+        ShardedStore.ScanResult result = Server.scan(from, (flags & Protocol.SCAN_EXCLUSIVE_START) == 0,
+                to.isEmpty() ? null : to, maxEntries);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : result.entries) {
+            entries.put(entry.getKey(), outgoing(entry.getValue()));
+        }
+        writeMultiGetV2(correlationId, new byte[]{(byte) (result.more ? 1 : 0)}, entries,
+                value -> value.length, out::write);
+    }
+
+    /**
+     * OP_GET_WHEN: a resposta (OK com o valor, ou NOT_FOUND) sai quando a
+     * condição se verificar; entretanto a ligação continua a servir pedidos.
+     */
+    private void handleGetWhenV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        long start = System.nanoTime();
+        String key = frame.readKey();
+        String condKey = frame.readKey();
+        if (frame.remaining() > Server.MAX_VALUE_BYTES) {
+            throw new Protocol.ProtocolException("Valor da condição demasiado grande (máximo "
+                    + Server.MAX_VALUE_BYTES + " bytes).");
+        }
+        // Comparado com os bytes guardados, por isso na mesma forma
+        byte[] condValue = incoming(frame.readRest());
+
+        CompletableFuture<byte[]> result = Server.getWhen(key, condKey, condValue);
+        if (result.isDone()) {
+            writeValueV2(correlationId, result.join());
+            GET_WHEN_TIMER.recordSince(start);
+            return;
+        }
+        subscriptions.put(correlationId, () -> result.cancel(false));
+        result.thenAccept(value -> push(() -> {
+            if (subscriptions.remove(correlationId) != null) {
+                writeValueV2(correlationId, value);
+                GET_WHEN_TIMER.recordSince(start);
+            }
+        }));
+    }
+
+    /**
+     * OP_WATCH: cada evento é uma resposta com o correlation ID do watch (OK com
+     * o valor, ou NOT_FOUND); o primeiro traz o valor atual.
+     */
+    private void handleWatchV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        String key = frame.readKey();
+        subscriptions.put(correlationId, () -> { });
+        Runnable cancel = Server.watch(key, value -> push(() -> {
+            if (subscriptions.containsKey(correlationId)) {
+                writeValueV2(correlationId, value);
+            }
+        }));
+        subscriptions.put(correlationId, cancel);
+    }
+
+    /**
+     * OP_UNWATCH: [correlation ID do watch: varint]. Responde OK (ou NOT_FOUND);
+     * nenhum evento do watch é enviado depois desta resposta.
+     */
+    private void handleUnwatchV2(int correlationId, Protocol.FrameReader frame) throws IOException {
+        Runnable cancel = subscriptions.remove(frame.readVarint());
+        if (cancel != null) {
+            cancel.run();
+        }
+        writeReplyHeaderV2(correlationId, cancel != null ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND, 0);
+    }
+
+    /**
+     * OP_TRACK: a partir daqui as chaves lidas por GET/MULTI_GET desta ligação
+     * são seguidas (ver TrackedKeys) e cada uma que mude é enviada numa
+     * resposta com este correlation ID, [1][chave]; a primeira resposta, [0],
+     * confirma o pedido.
+     */
+    private void handleTrackV2(int correlationId) throws IOException {
+        if (tracked != null) {
+            writeErrorV2(correlationId, Protocol.STATUS_BAD_REQUEST, "Tracking já ativo nesta ligação.");
+            return;
+        }
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, Protocol.varintSize(0));
+        Protocol.writeVarint(out, 0);
+        tracked = Server.track(key -> {
+            byte[] k = Protocol.encodeKey(key);
+            push(() -> {
+                writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, Protocol.varintSize(1) + Protocol.fieldSize(k));
+                Protocol.writeVarint(out, 1);
+                Protocol.writeBytes(out, k);
+            });
+        });
+    }
+
+    private void writeValueV2(int correlationId, byte[] value) throws IOException {
+        if (value == null) {
+            writeReplyHeaderV2(correlationId, Protocol.STATUS_NOT_FOUND, 0);
+            return;
+        }
+        value = outgoing(value);
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, value.length);
+        out.write(value);
+    }
+
+    @FunctionalInterface
+    private interface ValueWriter<V> {
+        void write(V value) throws IOException;
+    }
+
+    private <V> void writeMultiGetV2(int correlationId, Map<String, V> result,
+                                     ToIntFunction<V> sizeOf,
+                                     ValueWriter<V> writer) throws IOException {
+        writeMultiGetV2(correlationId, new byte[0], result, sizeOf, writer);
+    }
+
+    /**
+     * @param prefix bytes escritos no payload antes dos pares
+     */
+    private <V> void writeMultiGetV2(int correlationId, byte[] prefix, Map<String, V> result,
+                                     ToIntFunction<V> sizeOf,
+                                     ValueWriter<V> writer) throws IOException {
+        // O tamanho do payload tem de ser conhecido antes de escrever o primeiro byte
+        List<byte[]> encodedKeys = new ArrayList<>(result.size());
+        long length = prefix.length + Protocol.varintSize(result.size());
+        for (Map.Entry<String, V> entry : result.entrySet()) {
+            byte[] k = Protocol.encodeKey(entry.getKey());
+            encodedKeys.add(k);
+            int size = sizeOf.applyAsInt(entry.getValue());
+            length += Protocol.fieldSize(k) + Protocol.varintSize(size) + size;
+        }
+        if (length > Server.MAX_FRAME_BYTES) {
+            writeErrorV2(correlationId, Protocol.STATUS_ERROR, "Resposta demasiado grande; divida o multiGet.");
+            return;
+        }
+
+        writeReplyHeaderV2(correlationId, Protocol.STATUS_OK, (int) length);
+        out.write(prefix);
+        Protocol.writeVarint(out, result.size());
+        int i = 0;
+        for (V value : result.values()) {
+            Protocol.writeBytes(out, encodedKeys.get(i++));
+            Protocol.writeVarint(out, sizeOf.applyAsInt(value));
+            writer.write(value);
+        }
     }
 }
@@ -25,6 +25,12 @@ public class ClientInterface {
 
             System.out.println("Autenticado e sessão obtida com sucesso!");
 
+            // Passa para o protocolo binário v2
+            client.useProtocolV2();
+
+            // Watches ativos (chave -> subscrição), criados com a opção 8
+            Map<String, ClientLibrary.Watch> watches = new HashMap<>();
+
             // Loop principal
             boolean running = true;
             while (running) {
@@ -34,6 +40,11 @@ public class ClientInterface {
                 System.out.println("3. multiPut");
                 System.out.println("4. multiGet");
                 System.out.println("5. Sair");
+                System.out.println("6. stats");
+                System.out.println("7. getWhen");
+                System.out.println("8. watch (ativar/desativar)");
+                System.out.println("9. prefix (chaves começadas por...)");
+                System.out.println("10. delete");
                 System.out.print("Opção: ");
                 String optionStr = scanner.nextLine();
 
@@ -52,6 +63,7 @@ public class ClientInterface {
                         System.out.print("Valor: ");
                         String valuePut = scanner.nextLine();
                         client.put(keyPut, valuePut.getBytes());
+                        System.out.println("Chave-valor inseridos/atualizados com sucesso.");
                         break;
                     case 2:
                         System.out.print("Chave: ");
@@ -59,6 +71,8 @@ public class ClientInterface {
                         byte[] valueGet = client.get(keyGet);
                         if (valueGet != null) {
                             System.out.println("Valor obtido: " + new String(valueGet));
+                        } else {
+                            System.out.println("Chave não encontrada.");
                         }
                         break;
                     case 3:
@@ -80,6 +94,7 @@ public class ClientInterface {
                             pairs.put(k, v.getBytes());
                         }
                         client.multiPut(pairs);
+                        System.out.println("Pares chave-valor inseridos/atualizados atomicamente.");
                         break;
                     case 4:
                         Set<String> keys = new HashSet<>();
@@ -109,8 +124,56 @@ public class ClientInterface {
                         client.close();
                         System.out.println("Sessão encerrada. Até breve!");
                         break;
+                    case 6:
+                        System.out.print(client.stats());
+                        break;
+                    case 7:
+                        System.out.print("Chave a ler: ");
+                        String keyWhen = scanner.nextLine();
+                        System.out.print("Chave da condição: ");
+                        String condKey = scanner.nextLine();
+                        System.out.print("Valor esperado: ");
+                        String condValue = scanner.nextLine();
+                        System.out.println("À espera que " + condKey + " = " + condValue + "...");
+                        byte[] valueWhen = client.getWhen(keyWhen, condKey, condValue.getBytes());
+                        if (valueWhen != null) {
+                            System.out.println("Valor obtido: " + new String(valueWhen));
+                        } else {
+                            System.out.println("Chave não encontrada.");
+                        }
+                        break;
+                    case 8:
+                        System.out.print("Chave: ");
+                        String keyWatch = scanner.nextLine();
+                        ClientLibrary.Watch existing = watches.remove(keyWatch);
+                        if (existing != null) {
+                            existing.close();
+                            System.out.println("Deixou de observar " + keyWatch + ".");
+                            break;
+                        }
+                        watches.put(keyWatch, client.watch(keyWatch, value ->
+                                System.out.println("\n[watch] " + keyWatch + " = "
+                                        + (value != null ? new String(value) : "(não existe)"))));
+                        break;
+                    case 9:
+                        System.out.print("Prefixo: ");
+                        String prefix = scanner.nextLine();
+                        Iterator<Map.Entry<String, byte[]>> found = client.prefix(prefix);
+                        int shown = 0;
+                        while (found.hasNext()) {
+                            Map.Entry<String, byte[]> entry = found.next();
+                            System.out.println(entry.getKey() + ": " + new String(entry.getValue()));
+                            shown++;
+                        }
+                        System.out.println(shown + " chave(s) encontrada(s).");
+                        break;
+                    case 10:
+                        System.out.print("Chave a remover: ");
+                        String keyDelete = scanner.nextLine();
+                        System.out.println(client.delete(keyDelete) ? "Chave removida." : "Chave não encontrada.");
+                        break;
                     default:
-                        System.out.println("Opção inválida. Por favor, escolha entre 1 e 5.");
+                        System.out.println("Opção inválida. Por favor, escolha entre 1 e 10.");
                 }
             }
 
@@ -1,16 +1,170 @@
 package project;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class ClientLibrary {
-    private Socket socket;
+    // Trocados por reconnect() (com writeLock)
+    private volatile Socket socket;
     private DataInputStream in;
     private DataOutputStream out;
 
+    // -----------------------------------------------------------
+    // Estado do modo pipeline (ativado com enablePipelining())
+    // -----------------------------------------------------------
+    private volatile boolean pipelined = false;
+    // Versão do protocolo em uso: 1 (comandos writeUTF) ou 2 (binário, ver Protocol)
+    private volatile int protocolVersion = 1;
+    private final AtomicInteger nextCorrelationId = new AtomicInteger(1);
+    // Pedidos enviados cuja resposta ainda não chegou (correlation ID -> pedido)
+    private final Map<Integer, PendingReply<?>> pending = new ConcurrentHashMap<>();
+    // Serializa a escrita de pedidos completos no socket
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Thread replyReader;
+    // Erro que terminou a thread leitora; a partir daí os pedidos falham logo
+    private volatile IOException failure;
+
+    // Credenciais da sessão, reutilizadas nas ligações às réplicas de leitura e ao religar
+    private String username;
+    private String password;
+    // Réplicas para onde vão get/multiGet (ver addReadReplica()); lista imutável, trocada ao adicionar
+    private volatile List<ClientLibrary> readReplicas = List.of();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    // Depois de enableCompression() os valores das respostas v2 podem vir
+    // comprimidos; só é lido e alterado na thread leitora
+    private boolean compressedValues = false;
+
+    // Cache local de get/multiGet (ver enableCache()); null se desligada
+    private volatile ClientCache cache;
+    // Cache que recebe os avisos OP_TRACK desta ligação (também nas réplicas), esvaziada se a ligação cair
+    private volatile ClientCache trackingCache;
+
+    // Religação automática (ver enableReconnect()): servidor inicial e alternativos,
+    // espera máxima entre tentativas e prazo para religar (0 = desligada)
+    private static final long INITIAL_BACKOFF_MS = 50;
+    private final List<InetSocketAddress> endpoints = new CopyOnWriteArrayList<>();
+    private int endpoint = 0;
+    private volatile long maxBackoffMillis;
+    private volatile long reconnectTimeoutMillis = 0;
+    // Número da ligação atual; cada pedido guarda aquele em que foi escrito
+    private volatile int connection = 0;
+    private volatile boolean reconnecting = false;
+    private volatile boolean closed = false;
+    private volatile boolean compressionRequested = false;
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * Lê o corpo de uma resposta (depois do correlation ID) do stream de entrada.
+     */
+    @FunctionalInterface
+    private interface ReplyDecoder<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Lê o payload de uma resposta v2, dado o seu código de estado.
+     */
+    @FunctionalInterface
+    private interface FrameDecoder<T> {
+        T read(int status, Protocol.FrameReader payload) throws IOException;
+    }
+
+    /**
+     * Escreve o corpo de um pedido (depois do correlation ID) no stream de saída.
+     */
+    @FunctionalInterface
+    private interface RequestEncoder {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class PendingReply<T> {
+        final ReplyDecoder<T> decoder;
+        final FrameDecoder<T> frameDecoder;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // Pedidos com várias respostas (watch): cada uma vai para aqui e o pedido
+        // continua pendente até ser retirado explicitamente
+        final Consumer<T> stream;
+        // Opcode v2 (0 no v1); ligação em que foi escrito (-1 antes disso) e o
+        // pedido, guardado se puder ser repetido noutra ligação (ver reconnect())
+        int opcode;
+        volatile int connection = -1;
+        volatile RequestEncoder request;
+
+        PendingReply(ReplyDecoder<T> decoder, FrameDecoder<T> frameDecoder) {
+            this(decoder, frameDecoder, null);
+        }
+
+        PendingReply(ReplyDecoder<T> decoder, FrameDecoder<T> frameDecoder, Consumer<T> stream) {
+            this.decoder = decoder;
+            this.frameDecoder = frameDecoder;
+            this.stream = stream;
+        }
+
+        boolean isStream() {
+            return stream != null;
+        }
+
+        /**
+         * Pode ficar sem resposta indefinidamente (watch, tracking, getWhen).
+         */
+        boolean isLongLived() {
+            return stream != null || opcode == Protocol.OP_GET_WHEN;
+        }
+
+        /**
+         * Subscrições e leituras: repetir o pedido noutra ligação não muda o
+         * resultado. As escritas, cas e transações não são repetidas.
+         */
+        boolean isRepeatable() {
+            if (stream != null) {
+                return true;
+            }
+            switch (opcode) {
+                case Protocol.OP_GET:
+                case Protocol.OP_MULTI_GET:
+                case Protocol.OP_GET_VERSIONED:
+                case Protocol.OP_SCAN:
+                case Protocol.OP_GET_WHEN:
+                case Protocol.OP_DUMP_SHARD:
+                case Protocol.OP_STATS:
+                case Protocol.OP_PING:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        void complete(DataInputStream in) throws IOException {
+            deliver(decoder.read(in));
+        }
+
+        void complete(int status, Protocol.FrameReader payload) throws IOException {
+            deliver(frameDecoder.read(status, payload));
+        }
+
+        private void deliver(T value) {
+            if (stream != null) {
+                stream.accept(value);
+            } else {
+                future.complete(value);
+            }
+        }
+    }
+
     public ClientLibrary(String host, int port) throws IOException {
+        endpoints.add(new InetSocketAddress(host, port));
         this.socket = new Socket(host, port);
+        // Cada pedido sai num único flush: não há ganho em esperar pelo ACK (Nagle)
+        this.socket.setTcpNoDelay(true);
         this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
@@ -18,25 +172,50 @@ public class ClientLibrary {
     /**
      * Autentica o utilizador (ou regista se necessário) e aguarda até o
      * servidor enviar "Sessão disponível!" caso haja fila de espera.
+     *
+     * @throws IOException também se o servidor recusar a sessão (fila cheia,
+     *                     quota do utilizador ou tempo de espera esgotado)
      */
     public boolean authenticate(String username, String password) throws IOException {
+        return authenticate(username, password, null);
+    }
+
+    /**
+     * Versão não interativa (ex.: ClientPool): se o utilizador não existir, é
+     * registado quando registerIfMissing for true; nada é escrito no terminal.
+     */
+    public boolean authenticate(String username, String password, boolean registerIfMissing) throws IOException {
+        return authenticate(username, password, registerIfMissing ? "sim" : "nao");
+    }
+
+    /**
+     * @param registerAnswer resposta à pergunta de registo; null para a pedir no
+     *                       terminal (modo interativo, que mostra as mensagens do servidor)
+     */
+    private boolean authenticate(String username, String password, String registerAnswer) throws IOException {
+        boolean interactive = registerAnswer == null;
         // 1) Ler "Insira o seu nome de utilizador:"
         String serverMessage = receiveMessage();
-        System.out.println("Server> " + serverMessage);
+        if (interactive) {
+            System.out.println("Server> " + serverMessage);
+        }
 
         // Enviar username
         sendMessage(username);
 
         // 2) Ler "Insira a sua palavra-passe:"
         serverMessage = receiveMessage();
-        System.out.println("Server> " + serverMessage);
+        if (interactive) {
+            System.out.println("Server> " + serverMessage);
+        }
 
         // Enviar password
         sendMessage(password);
 
         // Agora, o servidor pode mandar várias mensagens
         // ("Autenticação bem-sucedida.", "Registo bem-sucedido.",
-        //  "Aguardando vaga...", "Sessão disponível!", ou "Autenticação falhada.")
+        //  "Aguardando vaga...", "Sessão disponível!", "Sessão recusada: ..."
+        //  ou "Autenticação falhada.")
         while (true) {
             String response;
             try {
@@ -45,13 +224,18 @@ public class ClientLibrary {
                 return false;
             }
 
-            System.out.println("Server> " + response);
+            if (interactive) {
+                System.out.println("Server> " + response);
+            }
 
             // Se perguntar se deseja registar...
             if (response.contains("Deseja registar-se? (sim/nao)")) {
-                Scanner scanner = new Scanner(System.in);
-                System.out.print("Resposta (sim/nao): ");
-                String userResp = scanner.nextLine();
+                String userResp = registerAnswer;
+                if (interactive) {
+                    Scanner scanner = new Scanner(System.in);
+                    System.out.print("Resposta (sim/nao): ");
+                    userResp = scanner.nextLine();
+                }
                 sendMessage(userResp);
             }
             // Falha
@@ -71,87 +255,1976 @@ public class ClientLibrary {
                 // apenas continua lendo;
                 // quando houver vaga, o servidor enviará "Sessão disponível!"
             }
+            // Fila cheia, quota do utilizador ou tempo de espera esgotado: o
+            // servidor fecha a ligação
+            else if (response.startsWith("Sessão recusada")) {
+                throw new IOException(response);
+            }
             // Quando vier "Sessão disponível!"
             else if (response.contains("Sessão disponível!")) {
                 // Agora estamos prontos
+                this.username = username;
+                this.password = password;
                 return true;
             }
         }
     }
 
+    // -----------------------------------------------------------
+    // Operações síncronas (seguras com várias threads, ver submit())
+    // -----------------------------------------------------------
     public void put(String key, byte[] value) throws IOException {
-        sendMessage("put");
-        sendMessage(key);
-        out.writeInt(value.length);
-        out.write(value);
-        out.flush();
-        String response = receiveMessage();
-        System.out.println(response);
+        await(putAsync(key, value));
     }
 
     public byte[] get(String key) throws IOException {
-        sendMessage("get");
-        sendMessage(key);
-        int length = in.readInt();
-        if (length > 0) {
-            byte[] value = new byte[length];
-            in.readFully(value);
-            return value;
+        return await(getAsync(key));
+    }
+
+    public void multiPut(Map<String, byte[]> pairs) throws IOException {
+        await(multiPutAsync(pairs));
+    }
+
+    /**
+     * put() com expiração: a chave desaparece ttlMillis depois de escrita
+     * (a menos que seja reescrita antes).
+     */
+    public void put(String key, byte[] value, long ttlMillis) throws IOException {
+        await(putAsync(key, value, ttlMillis));
+    }
+
+    /**
+     * multiPut() atómico em que todas as chaves expiram ttlMillis depois de escritas.
+     */
+    public void multiPut(Map<String, byte[]> pairs, long ttlMillis) throws IOException {
+        await(multiPutAsync(pairs, ttlMillis));
+    }
+
+    /**
+     * @return false se a chave não existia
+     */
+    public boolean delete(String key) throws IOException {
+        return await(deleteAsync(key));
+    }
+
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return new HashMap<>();
+        }
+        return await(multiGetAsync(keys));
+    }
+
+    // Partes de um multiGetStream/multiPutStream enviadas sem esperar pela resposta da primeira
+    private static final int STREAM_WINDOW = 4;
+    public static final int DEFAULT_STREAM_CHUNK = 1024;
+
+    /**
+     * multiGet de muitas chaves sem as juntar num só pedido nem num só mapa: as
+     * chaves seguem em partes de chunkSize, com até STREAM_WINDOW partes em
+     * curso (com pipeline/v2), e sink recebe os pares de cada parte, pela ordem
+     * das partes, assim que a resposta chega (nesta thread). Chaves inexistentes
+     * não aparecem. Cada parte é lida atomicamente, o conjunto não; para uma
+     * leitura atómica de todas as chaves usa-se multiGet().
+     */
+    public void multiGetStream(Iterator<String> keys, int chunkSize, BiConsumer<String, byte[]> sink)
+            throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Tamanho das partes inválido: " + chunkSize);
+        }
+        Deque<CompletableFuture<Map<String, byte[]>>> inFlight = new ArrayDeque<>();
+        while (keys.hasNext()) {
+            Set<String> chunk = new HashSet<>();
+            while (keys.hasNext() && chunk.size() < chunkSize) {
+                chunk.add(keys.next());
+            }
+            inFlight.addLast(multiGetAsync(chunk));
+            if (inFlight.size() >= STREAM_WINDOW) {
+                await(inFlight.pollFirst()).forEach(sink);
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            await(inFlight.pollFirst()).forEach(sink);
+        }
+    }
+
+    /**
+     * multiPut de muitos pares, lidos de pairs à medida que são enviados em
+     * partes de chunkSize (até STREAM_WINDOW em curso), sem os juntar todos em
+     * memória. Pares com a mesma chave ficam com o último valor.
+     * - atomic = false: cada parte é aplicada atomicamente assim que chega.
+     * - atomic = true: no v2 as partes ficam preparadas no servidor numa
+     *   transação (OP_STAGE, com as chaves reservadas) e são aplicadas de uma
+     *   vez no fim (OP_COMMIT); se alguma parte falhar nada é aplicado. O
+     *   servidor guarda as partes até ao commit. No v1 é um único multiPut.
+     */
+    public void multiPutStream(Iterator<Map.Entry<String, byte[]>> pairs, int chunkSize, boolean atomic)
+            throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Tamanho das partes inválido: " + chunkSize);
+        }
+        if (atomic && protocolVersion != 2) {
+            Map<String, byte[]> all = new HashMap<>();
+            pairs.forEachRemaining(e -> all.put(e.getKey(), e.getValue()));
+            if (!all.isEmpty()) {
+                multiPut(all);
+            }
+            return;
+        }
+        String txId = atomic ? UUID.randomUUID().toString() : null;
+        // Chaves das partes de uma transação, para as retirar da cache depois do commit
+        List<String> staged = new ArrayList<>();
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        boolean sent = false;
+        try {
+            while (pairs.hasNext()) {
+                Map<String, byte[]> chunk = new HashMap<>();
+                while (pairs.hasNext() && chunk.size() < chunkSize) {
+                    Map.Entry<String, byte[]> entry = pairs.next();
+                    chunk.put(entry.getKey(), entry.getValue());
+                }
+                if (atomic && cache != null) {
+                    staged.addAll(chunk.keySet());
+                }
+                inFlight.addLast(atomic
+                        ? submitPairsFrame(Protocol.OP_STAGE, List.of(Protocol.encodeKey(txId)), chunk)
+                        : multiPutAsync(chunk));
+                sent = true;
+                if (inFlight.size() >= STREAM_WINDOW) {
+                    await(inFlight.pollFirst());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                await(inFlight.pollFirst());
+            }
+        } catch (IOException | RuntimeException e) {
+            if (atomic && sent) {
+                // Sem esperar: se a ligação caiu, a transação expira no servidor
+                abortAsync(txId);
+            }
+            throw e;
+        }
+        if (atomic && sent) {
+            await(invalidating(staged, commitAsync(txId)));
+        }
+    }
+
+    /**
+     * Valor de key assim que condKey tiver o valor condValue (null se key não
+     * existir nesse momento). Bloqueia até a condição se verificar; sem modo
+     * pipeline a ligação fica ocupada durante a espera, com pipeline/v2 os
+     * outros pedidos continuam a ser servidos (ver getWhenAsync()).
+     */
+    public byte[] getWhen(String key, String condKey, byte[] condValue) throws IOException {
+        return await(getWhenAsync(key, condKey, condValue));
+    }
+
+    /**
+     * Pares com chave em [startKey, endKey), por ordem de chave (endKey null ou
+     * vazio: até ao fim; limit <= 0: sem limite). O iterador pede os pares ao
+     * servidor em partes de SCAN_CHUNK à medida que são consumidos, com a parte
+     * seguinte já pedida enquanto se percorre a atual; erros de comunicação saem
+     * como UncheckedIOException. O resultado não é uma vista atómica do
+     * intervalo. Precisa do índice ordenado no servidor (server.index.ordered).
+     */
+    public Iterator<Map.Entry<String, byte[]>> scan(String startKey, String endKey, int limit) {
+        return new ScanIterator(startKey, endKey == null || endKey.isEmpty() ? null : endKey,
+                limit > 0 ? limit : Long.MAX_VALUE);
+    }
+
+    /**
+     * Pares cuja chave começa por prefix, por ordem de chave (ver scan()).
+     */
+    public Iterator<Map.Entry<String, byte[]>> prefix(String prefix) {
+        return scan(prefix, prefixEnd(prefix), 0);
+    }
+
+    /**
+     * Menor string maior do que todas as que começam por prefix (null se não existir).
+     */
+    static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Subscreve as escritas em key. O listener recebe primeiro o valor atual
+     * e depois cada novo valor (null se a chave não existir), na thread que lê
+     * as respostas: não pode bloquear nem esperar por outros pedidos desta
+     * ligação. Ativa o modo pipeline se ainda não estiver ativo.
+     */
+    public Watch watch(String key, Consumer<byte[]> listener) throws IOException {
+        if (!pipelined) {
+            enablePipelining();
+        }
+        int id = nextCorrelationId.getAndIncrement();
+        if (protocolVersion == 2) {
+            byte[] k = Protocol.encodeKey(key);
+            PendingReply<byte[]> reply = new PendingReply<>(null, (status, f) -> {
+                if (status == Protocol.STATUS_NOT_FOUND) {
+                    return null;
+                }
+                checkStatus(status, f);
+                return value(f.readRest());
+            }, listener);
+            await(sendAndKeep(id, reply, o -> {
+                o.writeByte(Protocol.OP_WATCH);
+                Protocol.writeVarint(o, id);
+                Protocol.writeVarint(o, Protocol.fieldSize(k));
+                Protocol.writeBytes(o, k);
+            }));
         } else {
-            System.out.println("Chave não encontrada.");
-            return null;
+            PendingReply<byte[]> reply = new PendingReply<>(i -> {
+                int length = i.readInt();
+                if (length < 0) {
+                    return null;
+                }
+                byte[] value = new byte[length];
+                i.readFully(value);
+                return value;
+            }, null, listener);
+            await(sendAndKeep(id, reply, o -> {
+                o.writeInt(id);
+                o.writeUTF("watch");
+                o.writeUTF(key);
+            }));
         }
+        return new Watch(id);
     }
 
-    public void multiPut(Map<String, byte[]> pairs) throws IOException {
-        sendMessage("multiPut");
-        out.writeInt(pairs.size());
-        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-            sendMessage(entry.getKey());
-            out.writeInt(entry.getValue().length);
-            out.write(entry.getValue());
+    /**
+     * Subscrição criada por watch(); close() cancela-a e espera pela confirmação,
+     * depois da qual o listener já não é chamado.
+     */
+    public final class Watch implements AutoCloseable {
+        private final int id;
+        private boolean closed = false;
+
+        private Watch(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (protocolVersion == 2) {
+                await(submitFrame(Protocol.OP_UNWATCH, Protocol.varintSize(id), o -> Protocol.writeVarint(o, id),
+                        (status, f) -> {
+                            // A confirmação vem depois do último evento do watch
+                            pending.remove(id);
+                            return null;
+                        }));
+                return;
+            }
+            await(submit(o -> {
+                o.writeUTF("unwatch");
+                o.writeInt(id);
+            }, i -> {
+                i.readUTF();
+                pending.remove(id);
+                return null;
+            }));
         }
-        out.flush();
-        String response = receiveMessage();
-        System.out.println(response);
     }
 
-    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
-        sendMessage("multiGet");
-        out.writeInt(keys.size());
-        for (String key : keys) {
-            sendMessage(key);
+    private static final int SCAN_CHUNK = 256;
+
+    /**
+     * Parte de um scan devolvida pelo servidor.
+     */
+    private static final class ScanPage {
+        final List<Map.Entry<String, byte[]>> entries;
+        final boolean more;
+
+        ScanPage(List<Map.Entry<String, byte[]>> entries, boolean more) {
+            this.entries = entries;
+            this.more = more;
         }
-        out.flush();
-        int numPairs = in.readInt();
-        Map<String, byte[]> result = new HashMap<>();
-        for (int i = 0; i < numPairs; i++) {
-            String k = in.readUTF();
-            int length = in.readInt();
-            byte[] val = new byte[length];
-            in.readFully(val);
-            result.put(k, val);
+    }
+
+    /**
+     * Iterador de scan(): guarda no máximo a parte atual e a seguinte.
+     */
+    private final class ScanIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final String endKey;
+        private long remaining;
+        private Iterator<Map.Entry<String, byte[]>> page = Collections.emptyIterator();
+        // Parte seguinte já pedida; null depois da última
+        private CompletableFuture<ScanPage> next;
+
+        ScanIterator(String startKey, String endKey, long limit) {
+            this.endKey = endKey;
+            this.remaining = limit;
+            this.next = scanPageAsync(startKey, true, endKey, (int) Math.min(SCAN_CHUNK, limit));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && next != null && remaining > 0) {
+                ScanPage current;
+                try {
+                    current = await(next);
+                } catch (IOException e) {
+                    next = null;
+                    throw new UncheckedIOException(e);
+                }
+                next = null;
+                page = current.entries.iterator();
+                long following = remaining - current.entries.size();
+                if (current.more && following > 0 && !current.entries.isEmpty()) {
+                    String last = current.entries.get(current.entries.size() - 1).getKey();
+                    next = scanPageAsync(last, false, endKey, (int) Math.min(SCAN_CHUNK, following));
+                }
+            }
+            return page.hasNext() && remaining > 0;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            return page.next();
         }
-        return result;
     }
 
-    public void logout() throws IOException {
-        sendMessage("logout");
+    // -----------------------------------------------------------
+    // Versões, compare-and-set e transações otimistas (só v2)
+    // -----------------------------------------------------------
+    // Tentativas de transaction() antes de desistir por conflitos
+    private static final int TRANSACTION_ATTEMPTS = 16;
+
+    /**
+     * Valor e versão de key (null se não existir). Vai sempre ao servidor
+     * principal, nunca às réplicas de leitura.
+     */
+    public Versioned getVersioned(String key) throws IOException {
+        return await(getVersionedAsync(key));
     }
 
-    public void close() throws IOException {
-        socket.close();
+    /**
+     * Escreve value só se a versão de key ainda for expectedVersion (0: só se
+     * a chave não existir).
+     *
+     * @return versão nova, ou -1 se a versão já não era a esperada
+     */
+    public long cas(String key, long expectedVersion, byte[] value) throws IOException {
+        return await(casAsync(key, expectedVersion, value));
+    }
+
+    /**
+     * compare-and-set de várias chaves: escreve values só se cada chave de
+     * expectedVersions ainda tiver essa versão (0: não existe). Tudo ou nada.
+     *
+     * @return false se alguma versão mudou (nada é escrito)
+     */
+    public boolean multiCas(Map<String, Long> expectedVersions, Map<String, byte[]> values) throws IOException {
+        return await(commitIfUnchangedAsync(expectedVersions, values));
+    }
+
+    public CompletableFuture<Versioned> getVersionedAsync(String key) {
+        requireV2();
+        byte[] k = Protocol.encodeKey(key);
+        return submitFrame(Protocol.OP_GET_VERSIONED, Protocol.fieldSize(k), o -> Protocol.writeBytes(o, k),
+                (status, f) -> {
+                    if (status == Protocol.STATUS_NOT_FOUND) {
+                        return null;
+                    }
+                    checkStatus(status, f);
+                    long version = f.readLong();
+                    return new Versioned(value(f.readRest()), version);
+                });
+    }
+
+    public CompletableFuture<Long> casAsync(String key, long expectedVersion, byte[] value) {
+        requireV2();
+        return invalidating(List.of(key), sendCasAsync(key, expectedVersion, value));
+    }
+
+    private CompletableFuture<Long> sendCasAsync(String key, long expectedVersion, byte[] value) {
+        byte[] k = Protocol.encodeKey(key);
+        return submitFrame(Protocol.OP_CAS, Protocol.fieldSize(k) + 8 + value.length, o -> {
+            Protocol.writeBytes(o, k);
+            o.writeLong(expectedVersion);
+            o.write(value);
+        }, (status, f) -> {
+            if (status == Protocol.STATUS_CONFLICT) {
+                f.skipRest();
+                return -1L;
+            }
+            checkStatus(status, f);
+            return f.readLong();
+        });
+    }
+
+    /**
+     * Frame OP_TXN: true se as escritas foram aplicadas, false se alguma versão lida mudou.
+     */
+    private CompletableFuture<Boolean> commitIfUnchangedAsync(Map<String, Long> reads, Map<String, byte[]> writes) {
+        requireV2();
+        return invalidating(writes.keySet(), sendTxnAsync(reads, writes));
+    }
+
+    private CompletableFuture<Boolean> sendTxnAsync(Map<String, Long> reads, Map<String, byte[]> writes) {
+        List<byte[]> readKeys = new ArrayList<>(reads.size());
+        List<Long> versions = new ArrayList<>(reads.size());
+        int length = Protocol.varintSize(reads.size()) + Protocol.varintSize(writes.size());
+        for (Map.Entry<String, Long> read : reads.entrySet()) {
+            byte[] k = Protocol.encodeKey(read.getKey());
+            readKeys.add(k);
+            versions.add(read.getValue());
+            length += Protocol.fieldSize(k) + 8;
+        }
+        List<byte[]> writeKeys = new ArrayList<>(writes.size());
+        List<byte[]> values = new ArrayList<>(writes.size());
+        for (Map.Entry<String, byte[]> write : writes.entrySet()) {
+            byte[] k = Protocol.encodeKey(write.getKey());
+            writeKeys.add(k);
+            values.add(write.getValue());
+            length += Protocol.fieldSize(k) + Protocol.fieldSize(write.getValue());
+        }
+        return submitFrame(Protocol.OP_TXN, length, o -> {
+            Protocol.writeVarint(o, readKeys.size());
+            for (int i = 0; i < readKeys.size(); i++) {
+                Protocol.writeBytes(o, readKeys.get(i));
+                o.writeLong(versions.get(i));
+            }
+            Protocol.writeVarint(o, writeKeys.size());
+            for (int i = 0; i < writeKeys.size(); i++) {
+                Protocol.writeBytes(o, writeKeys.get(i));
+                Protocol.writeBytes(o, values.get(i));
+            }
+        }, (status, f) -> {
+            if (status == Protocol.STATUS_CONFLICT) {
+                f.skipRest();
+                return false;
+            }
+            checkStatus(status, f);
+            return true;
+        });
+    }
+
+    /**
+     * Inicia uma transação otimista (ver Transaction).
+     */
+    public Transaction beginTransaction() {
+        requireV2();
+        return new Transaction();
+    }
+
+    /**
+     * Corpo de uma transação para transaction(); pode ser executado várias vezes.
+     */
+    @FunctionalInterface
+    public interface TransactionBody<T> {
+        T run(Transaction tx) throws IOException;
+    }
+
+    /**
+     * Executa body numa transação otimista e faz commit; em caso de conflito
+     * repete tudo (com uma espera aleatória crescente) até TRANSACTION_ATTEMPTS
+     * vezes. body não deve ter efeitos fora da transação.
+     *
+     * @return o resultado de body na tentativa que fez commit
+     */
+    public <T> T transaction(TransactionBody<T> body) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Transaction tx = beginTransaction();
+            T result = body.run(tx);
+            if (tx.commit()) {
+                return result;
+            }
+            if (attempt == TRANSACTION_ATTEMPTS) {
+                throw new IOException("Transação abortada: " + attempt + " conflitos seguidos.");
+            }
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(1, 2 << Math.min(attempt, 8)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Transação interrompida.", e);
+            }
+        }
+    }
+
+    /**
+     * Transação otimista: get() lê do servidor e regista a versão lida,
+     * put() só guarda a escrita localmente, e commit() aplica todas as
+     * escritas de uma vez se nenhuma chave lida tiver mudado entretanto
+     * (isolamento serializável sobre as chaves lidas). Nada fica bloqueado no
+     * servidor antes do commit. Não é segura com várias threads.
+     */
+    public final class Transaction {
+        private final Map<String, Long> reads = new HashMap<>();
+        private final Map<String, byte[]> readValues = new HashMap<>();
+        private final Map<String, byte[]> writes = new HashMap<>();
+        private boolean finished = false;
+
+        private Transaction() {
+        }
+
+        /**
+         * Valor de key visto pela transação: o escrito por ela, o lido antes
+         * (leituras repetidas veem o mesmo valor) ou o atual no servidor.
+         */
+        public byte[] get(String key) throws IOException {
+            checkOpen();
+            if (writes.containsKey(key)) {
+                return writes.get(key);
+            }
+            if (reads.containsKey(key)) {
+                return readValues.get(key);
+            }
+            Versioned current = getVersioned(key);
+            reads.put(key, current != null ? current.version : 0);
+            readValues.put(key, current != null ? current.value : null);
+            return current != null ? current.value : null;
+        }
+
+        public void put(String key, byte[] value) {
+            checkOpen();
+            writes.put(key, value);
+        }
+
+        /**
+         * @return false se alguma chave lida mudou (nada é escrito)
+         */
+        public boolean commit() throws IOException {
+            checkOpen();
+            finished = true;
+            if (writes.isEmpty() && reads.size() <= 1) {
+                // Uma só leitura é sempre consistente consigo própria
+                return true;
+            }
+            return await(commitIfUnchangedAsync(reads, writes));
+        }
+
+        private void checkOpen() {
+            if (finished) {
+                throw new IllegalStateException("Transação já terminada.");
+            }
+        }
+    }
+
+    /**
+     * Relatório de métricas do servidor (contadores, latências e gauges), em texto.
+     */
+    public String stats() throws IOException {
+        return await(statsAsync());
+    }
+
+    /**
+     * Verificação de saúde: ida e volta ao servidor sem tocar no armazém.
+     */
+    public void ping() throws IOException {
+        await(pingAsync());
+    }
+
+    /**
+     * false depois de a ligação ser fechada ou de a thread leitora a perder,
+     * e enquanto o cliente está a religar (ver enableReconnect()).
+     */
+    public boolean isOpen() {
+        return !closed && !reconnecting && !socket.isClosed() && failure == null;
+    }
+
+    /**
+     * Pedidos enviados ainda sem resposta (inclui watches ativos).
+     */
+    public int pendingRequests() {
+        return pending.size();
     }
 
     // ---------------------------------------------------
-    // Métodos auxiliares
+    // Religação automática
     // ---------------------------------------------------
-    private void sendMessage(String message) throws IOException {
-        out.writeUTF(message);
-        out.flush();
+    /**
+     * Passa a religar sozinho quando a ligação cai ou quando o servidor avisa
+     * que vai terminar (STATUS_GOING_AWAY), tentando o servidor inicial e os
+     * de addEndpoint() em rotação, com esperas exponenciais (aleatórias entre
+     * metade e o todo) até maxBackoffMillis. Na ligação nova repete a
+     * autenticação, o protocolo v2, a compressão, o tracking da cache (que é
+     * esvaziada) e os watches (que recebem de novo o valor atual), e reenvia
+     * as leituras ainda sem resposta. As réplicas de leitura seguem a mesma
+     * política.
+     *
+     * Com o aviso do servidor nada se perde: os pedidos novos esperam, os que
+     * estão em curso são respondidos pelo servidor antigo e só depois a
+     * ligação é trocada. Se a ligação simplesmente cair, as escritas, cas e
+     * transações sem resposta falham com IOException (podem ou não ter sido
+     * aplicadas). Enquanto religa, os pedidos novos esperam; se não conseguir
+     * em timeoutMillis, o cliente fica fechado e os pedidos falham. Só no
+     * protocolo v2.
+     */
+    public synchronized void enableReconnect(long maxBackoffMillis, long timeoutMillis) {
+        requireV2();
+        if (maxBackoffMillis <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Tempos de religação inválidos: " + maxBackoffMillis + " ms, "
+                    + timeoutMillis + " ms.");
+        }
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.reconnectTimeoutMillis = timeoutMillis;
+        for (ClientLibrary replica : readReplicas) {
+            replica.enableReconnect(maxBackoffMillis, timeoutMillis);
+        }
     }
 
-    private String receiveMessage() throws IOException {
-        return in.readUTF();
+    /**
+     * Servidor alternativo para enableReconnect() (ex.: outro nó atrás do mesmo serviço).
+     */
+    public void addEndpoint(String host, int port) {
+        endpoints.add(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Número de vezes que o cliente religou.
+     */
+    public long reconnectCount() {
+        return reconnects.get();
+    }
+
+    /**
+     * Aviso de que o servidor vai terminar, recebido pela thread leitora da ligação conn.
+     */
+    private void goingAway(int conn, String message) {
+        IOException notice = new IOException(message);
+        if (reconnectTimeoutMillis > 0 && !closed) {
+            Thread.ofVirtual().name("client-reconnect").start(() -> reconnect(conn, notice, true));
+            return;
+        }
+        // Sem religação: os pedidos novos falham já, os que estão em curso ainda são
+        // respondidos, e depois sai-se para o servidor não ficar à espera até ao prazo
+        if (failure == null) {
+            failure = notice;
+        }
+        Thread reader = Thread.currentThread();
+        Thread.ofVirtual().name("client-logout").start(() -> {
+            // O servidor fecha a ligação no fim do seu prazo, o que também acaba a espera
+            awaitAnswered(conn, reader, System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+            closed = true;
+            try {
+                writeLogout();
+            } catch (IOException e) {
+                // A ligação já estava fechada
+            }
+        });
+    }
+
+    /**
+     * Troca a ligação conn por uma nova (ver enableReconnect()). Corre numa
+     * thread própria, com writeLock durante todo o processo.
+     *
+     * @param goingAway true se o servidor avisou: espera pelas respostas em curso antes de sair
+     */
+    private void reconnect(int conn, IOException cause, boolean goingAway) {
+        writeLock.lock();
+        try {
+            if (conn != connection || closed) {
+                return;
+            }
+            reconnecting = true;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectTimeoutMillis);
+            Thread oldReader = replyReader;
+            // A partir daqui a thread leitora antiga já não trata o fim da ligação
+            connection = conn + 1;
+            if (goingAway) {
+                // O servidor antigo responde ao que já foi enviado e fecha a ligação depois do logout
+                awaitAnswered(conn, oldReader, deadline);
+                try {
+                    writeLogout();
+                } catch (IOException e) {
+                    // Já fechada
+                }
+                join(oldReader, deadline);
+            }
+            closeQuietly(socket);
+            join(oldReader, System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+            // Sem os avisos da ligação antiga nada garante que as entradas ainda são válidas
+            ClientCache c = trackingCache;
+            if (c != null) {
+                c.invalidateAll();
+            }
+
+            // Pedidos da ligação antiga sem resposta: leituras e subscrições são repetidas, o resto falha
+            List<Integer> ids = new ArrayList<>(pending.keySet());
+            Collections.sort(ids);
+            Map<Integer, PendingReply<?>> resend = new LinkedHashMap<>();
+            for (Integer id : ids) {
+                PendingReply<?> reply = pending.get(id);
+                if (reply == null || reply.connection != conn) {
+                    continue;
+                }
+                if (reply.request != null) {
+                    resend.put(id, reply);
+                } else if (pending.remove(id, reply)) {
+                    reply.future.completeExceptionally(new IOException(
+                            "Ligação perdida antes da resposta (o pedido pode ter sido aplicado): "
+                                    + cause.getMessage(), cause));
+                }
+            }
+
+            IOException last = cause;
+            long backoff = Math.min(INITIAL_BACKOFF_MS, maxBackoffMillis);
+            // Depois de um aviso tenta-se primeiro outro servidor, se houver
+            int next = goingAway ? endpoint + 1 : endpoint;
+            while (!closed) {
+                endpoint = Math.floorMod(next++, endpoints.size());
+                try {
+                    connect(endpoints.get(endpoint), deadline);
+                    startFrameReader();
+                    for (Map.Entry<Integer, PendingReply<?>> entry : resend.entrySet()) {
+                        PendingReply<?> reply = entry.getValue();
+                        // Pode já ter sido respondido numa tentativa anterior
+                        if (pending.get(entry.getKey()) == reply) {
+                            reply.connection = connection;
+                            reply.request.write(out);
+                        }
+                    }
+                    out.flush();
+                    reconnects.incrementAndGet();
+                    return;
+                } catch (IOException e) {
+                    last = e;
+                    // A thread leitora desta tentativa, se chegou a arrancar, termina sem religar
+                    connection++;
+                    closeQuietly(socket);
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                // Entre metade e o todo: os clientes de um servidor que terminou não voltam todos juntos
+                long sleep = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                try {
+                    Thread.sleep(Math.min(sleep, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    last = new InterruptedIOException("Interrompido a religar.");
+                    break;
+                }
+                backoff = Math.min(backoff * 2, maxBackoffMillis);
+            }
+            failPending(closed ? new IOException("Cliente fechado.") : last);
+        } finally {
+            reconnecting = false;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Abre uma ligação a address e repete o que foi negociado na anterior:
+     * autenticação, protocolo v2 e compressão. Chamado com writeLock.
+     */
+    private void connect(InetSocketAddress address, long deadline) throws IOException {
+        Socket s = new Socket();
+        socket = s;
+        s.connect(address, remainingMillis(deadline));
+        s.setTcpNoDelay(true);
+        // O servidor pode pôr a sessão em fila: a espera também conta para o prazo
+        s.setSoTimeout(remainingMillis(deadline));
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        // Sem registo: num servidor que não conhece o utilizador a ligação falha
+        if (!authenticate(username, password, false)) {
+            throw new IOException("Autenticação recusada por " + address + ".");
+        }
+        sendMessage(Protocol.NEGOTIATE_V2);
+        String response = receiveMessage();
+        if (!response.contains("v2")) {
+            throw new IOException("O servidor " + address + " não aceitou o protocolo v2: " + response);
+        }
+        compressedValues = false;
+        if (compressionRequested) {
+            // Ainda sem thread leitora: a resposta é lida aqui
+            out.writeByte(Protocol.OP_COMPRESSED_VALUES);
+            Protocol.writeVarint(out, nextCorrelationId.getAndIncrement());
+            Protocol.writeVarint(out, 0);
+            out.flush();
+            Protocol.readVarint(in);
+            int status = in.readUnsignedByte();
+            checkStatus(status, new Protocol.FrameReader(in, Protocol.readVarint(in)));
+            compressedValues = true;
+        }
+        s.setSoTimeout(0);
+    }
+
+    /**
+     * Espera até os pedidos escritos na ligação conn terem resposta, exceto os
+     * que podem nunca a ter (watch, tracking, getWhen), até deadline ou até a
+     * thread leitora dessa ligação terminar.
+     */
+    private void awaitAnswered(int conn, Thread reader, long deadline) {
+        while (deadline - System.nanoTime() > 0 && reader.isAlive()) {
+            boolean waiting = false;
+            for (PendingReply<?> reply : pending.values()) {
+                if (reply.connection == conn && !reply.isLongLived()) {
+                    waiting = true;
+                    break;
+                }
+            }
+            if (!waiting) {
+                return;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void writeLogout() throws IOException {
+        writeLock.lock();
+        try {
+            out.writeByte(Protocol.OP_LOGOUT);
+            Protocol.writeVarint(out, nextCorrelationId.getAndIncrement());
+            Protocol.writeVarint(out, 0);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void join(Thread thread, long deadline) {
+        try {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int remainingMillis(long deadline) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Nada a fazer
+        }
+    }
+
+    // ---------------------------------------------------
+    // Réplicas de leitura
+    // ---------------------------------------------------
+    /**
+     * Passa a enviar get/multiGet (síncronos e assíncronos) a uma réplica
+     * (servidor com -Dserver.replicaOf), com as credenciais deste cliente e em
+     * protocolo v2. Com várias réplicas, os pedidos são distribuídos em
+     * rotação. A replicação é assíncrona: uma leitura numa réplica pode não ver
+     * uma escrita acabada de fazer no primário, mas nunca vem de uma réplica
+     * mais atrasada do que o seu server.replica.maxStalenessMs (nesse caso o
+     * pedido é repetido no primário).
+     *
+     * O utilizador tem de já existir na réplica (é replicado do primário).
+     */
+    public void addReadReplica(String host, int port) throws IOException {
+        if (username == null) {
+            throw new IllegalStateException("É preciso autenticar antes de adicionar réplicas.");
+        }
+        ClientLibrary replica = new ClientLibrary(host, port);
+        try {
+            if (!replica.authenticate(username, password, false)) {
+                throw new IOException("Autenticação recusada pela réplica " + host + ":" + port + ".");
+            }
+            replica.useProtocolV2();
+            if (reconnectTimeoutMillis > 0) {
+                replica.enableReconnect(maxBackoffMillis, reconnectTimeoutMillis);
+            }
+        } catch (IOException | RuntimeException e) {
+            replica.close();
+            throw e;
+        }
+        synchronized (this) {
+            ClientCache c = cache;
+            if (c != null) {
+                try {
+                    replica.startTracking(c);
+                } catch (IOException | RuntimeException e) {
+                    replica.close();
+                    throw e;
+                }
+            }
+            List<ClientLibrary> updated = new ArrayList<>(readReplicas);
+            updated.add(replica);
+            readReplicas = List.copyOf(updated);
+        }
+    }
+
+    /**
+     * Próxima réplica aberta, em rotação; null se não houver nenhuma.
+     */
+    private ClientLibrary readReplica() {
+        List<ClientLibrary> replicas = readReplicas;
+        for (int i = 0; i < replicas.size(); i++) {
+            ClientLibrary replica = replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+            if (replica.isOpen()) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------
+    // Cache local
+    // ---------------------------------------------------
+    /**
+     * Liga uma cache local à frente de get/multiGet, síncronos e assíncronos
+     * (ver ClientCache). No protocolo v2 o servidor, e cada réplica de
+     * leitura, avisa quando uma chave lida muda, por isso uma entrada vale
+     * até ser invalidada ou despejada; ttlMillis limita ainda a sua validade
+     * e é o único mecanismo no v1 ou num servidor sem OP_TRACK. As escritas
+     * deste cliente retiram logo da cache as chaves escritas.
+     *
+     * @param ttlMillis validade das entradas, ou 0 para depender só dos avisos
+     *                  (exige o protocolo v2)
+     */
+    public synchronized ClientCache enableCache(ClientCache.Policy policy, int maxEntries, long maxBytes,
+                                                long ttlMillis) throws IOException {
+        if (cache != null) {
+            throw new IllegalStateException("A cache já está ativa.");
+        }
+        ClientCache c = new ClientCache(policy, maxEntries, maxBytes, ttlMillis);
+        if (protocolVersion == 2) {
+            startTracking(c);
+            for (ClientLibrary replica : readReplicas) {
+                replica.startTracking(c);
+            }
+        } else if (ttlMillis == 0) {
+            throw new IllegalStateException("Sem o protocolo v2 não há avisos do servidor: a cache precisa de um TTL.");
+        }
+        cache = c;
+        return c;
+    }
+
+    /**
+     * Cache ativada com enableCache() (contadores de hits/misses), ou null.
+     */
+    public ClientCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Pede a esta ligação os avisos das chaves lidas que mudem (OP_TRACK) e
+     * entrega-os a c. Um servidor sem OP_TRACK só é aceite se a cache tiver
+     * TTL, que passa a ser o único limite das entradas.
+     */
+    private void startTracking(ClientCache c) throws IOException {
+        int id = nextCorrelationId.getAndIncrement();
+        CompletableFuture<Void> accepted = new CompletableFuture<>();
+        PendingReply<List<String>> reply = new PendingReply<>(null, (status, f) -> {
+            checkStatus(status, f);
+            int n = f.readVarint();
+            List<String> keys = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                keys.add(f.readKey());
+            }
+            return keys;
+        }, keys -> {
+            // A primeira resposta (sem chaves) confirma o pedido
+            if (keys.isEmpty()) {
+                accepted.complete(null);
+            } else {
+                keys.forEach(c::invalidate);
+            }
+        });
+        reply.future.whenComplete((value, e) -> {
+            pending.remove(id);
+            accepted.completeExceptionally(e);
+        });
+        try {
+            await(sendAndKeep(id, reply, o -> {
+                o.writeByte(Protocol.OP_TRACK);
+                Protocol.writeVarint(o, id);
+                Protocol.writeVarint(o, 0);
+            }));
+            await(accepted);
+        } catch (StatusException e) {
+            if (e.status() != Protocol.STATUS_UNKNOWN_OP || c.ttlMillis() == 0) {
+                throw e;
+            }
+            return;
+        }
+        trackingCache = c;
+    }
+
+    public void logout() throws IOException {
+        // O servidor fecha a ligação a seguir: não é para religar
+        closed = true;
+        for (ClientLibrary replica : readReplicas) {
+            try {
+                replica.logout();
+            } catch (IOException e) {
+                // A réplica já não estava disponível
+            }
+        }
+        if (protocolVersion == 2) {
+            writeLogout();
+            return;
+        }
+        if (pipelined) {
+            writeLock.lock();
+            try {
+                out.writeInt(nextCorrelationId.getAndIncrement());
+                sendMessage("logout");
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+        writeLock.lock();
+        try {
+            sendMessage("logout");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // ---------------------------------------------------
+    // Modo pipeline e API assíncrona
+    // ---------------------------------------------------
+    /**
+     * Passa a ligação para modo pipeline (depois de authenticate()).
+     * A partir daqui cada pedido leva um correlation ID e podem ser enviados
+     * vários pedidos sem esperar pelas respostas; uma thread dedicada lê as
+     * respostas e completa os respetivos CompletableFuture.
+     *
+     * A mudança de modo deve ser feita antes de partilhar o cliente entre threads.
+     */
+    public void enablePipelining() throws IOException {
+        writeLock.lock();
+        try {
+            if (pipelined) {
+                return;
+            }
+            sendMessage("pipeline");
+            receiveMessage();
+            pipelined = true;
+            replyReader = new Thread(this::readReplies, "client-reply-reader");
+            replyReader.setDaemon(true);
+            replyReader.start();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Negoceia o protocolo binário v2 (depois de authenticate()). O v2 leva
+     * sempre correlation ID, por isso ativa também o modo pipeline.
+     */
+    public void useProtocolV2() throws IOException {
+        writeLock.lock();
+        try {
+            if (protocolVersion == 2) {
+                return;
+            }
+            if (pipelined) {
+                throw new IllegalStateException("O protocolo v2 tem de ser negociado antes do modo pipeline.");
+            }
+            sendMessage(Protocol.NEGOTIATE_V2);
+            String response = receiveMessage();
+            if (!response.contains("v2")) {
+                throw new IOException("O servidor não aceitou o protocolo v2: " + response);
+            }
+            protocolVersion = 2;
+            pipelined = true;
+            startFrameReader();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Passa a receber os valores como estão guardados no servidor, comprimidos
+     * se ele usar server.compression.minBytes (ver Compression), e
+     * descomprime-os aqui: poupa rede e o trabalho de descomprimir no
+     * servidor. Os valores enviados seguem sem compressão (o servidor
+     * comprime-os). Só no protocolo v2.
+     */
+    public void enableCompression() throws IOException {
+        requireV2();
+        await(submitFrame(Protocol.OP_COMPRESSED_VALUES, 0, o -> { }, (status, f) -> {
+            checkStatus(status, f);
+            // Na thread leitora: as respostas seguintes já são descomprimidas
+            compressedValues = true;
+            return null;
+        }));
+        compressionRequested = true;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return invalidating(List.of(key), sendPutAsync(key, value));
+    }
+
+    private CompletableFuture<Void> sendPutAsync(String key, byte[] value) {
+        if (protocolVersion == 2) {
+            byte[] k = Protocol.encodeKey(key);
+            return submitFrame(Protocol.OP_PUT, Protocol.fieldSize(k) + value.length, o -> {
+                Protocol.writeBytes(o, k);
+                o.write(value);
+            }, (status, f) -> {
+                checkStatus(status, f);
+                return null;
+            });
+        }
+        return submit(o -> {
+            o.writeUTF("put");
+            o.writeUTF(key);
+            o.writeInt(value.length);
+            o.write(value);
+        }, i -> {
+            expectMessage(i, Protocol.PUT_OK);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> putAsync(String key, byte[] value, long ttlMillis) {
+        requirePositiveTtl(ttlMillis);
+        return invalidating(List.of(key), sendPutAsync(key, value, ttlMillis));
+    }
+
+    private CompletableFuture<Void> sendPutAsync(String key, byte[] value, long ttlMillis) {
+        if (protocolVersion == 2) {
+            byte[] k = Protocol.encodeKey(key);
+            return submitFrame(Protocol.OP_PUT_TTL, Protocol.fieldSize(k) + 8 + value.length, o -> {
+                Protocol.writeBytes(o, k);
+                o.writeLong(ttlMillis);
+                o.write(value);
+            }, (status, f) -> {
+                checkStatus(status, f);
+                return null;
+            });
+        }
+        return submit(o -> {
+            o.writeUTF("putTtl");
+            o.writeUTF(key);
+            o.writeLong(ttlMillis);
+            o.writeInt(value.length);
+            o.write(value);
+        }, i -> {
+            expectMessage(i, Protocol.PUT_OK);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(String key) {
+        return invalidating(List.of(key), sendDeleteAsync(key));
+    }
+
+    private CompletableFuture<Boolean> sendDeleteAsync(String key) {
+        if (protocolVersion == 2) {
+            byte[] k = Protocol.encodeKey(key);
+            return submitFrame(Protocol.OP_DELETE, Protocol.fieldSize(k), o -> Protocol.writeBytes(o, k),
+                    (status, f) -> {
+                        if (status == Protocol.STATUS_NOT_FOUND) {
+                            return false;
+                        }
+                        checkStatus(status, f);
+                        return true;
+                    });
+        }
+        return submit(o -> {
+            o.writeUTF("delete");
+            o.writeUTF(key);
+        }, i -> {
+            String message = i.readUTF();
+            if (message.equals(Protocol.NOT_FOUND)) {
+                return false;
+            }
+            if (!message.equals(Protocol.DELETED)) {
+                throw new RejectedException(message);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Com cache, retira as chaves escritas quando a escrita termina (mesmo que
+     * falhe): o aviso do servidor pode chegar depois da resposta, e um get
+     * feito a seguir tem de ver a escrita.
+     */
+    private <T> CompletableFuture<T> invalidating(Collection<String> keys, CompletableFuture<T> write) {
+        ClientCache c = cache;
+        if (c == null) {
+            return write;
+        }
+        return write.whenComplete((result, e) -> keys.forEach(c::invalidate));
+    }
+
+    private static void requirePositiveTtl(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("TTL inválido: " + ttlMillis);
+        }
+    }
+
+    /**
+     * Com réplicas de leitura, o pedido vai para uma delas; se a réplica o
+     * recusar (ex.: desatualizada) ou falhar, é repetido neste servidor.
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        ClientCache c = cache;
+        if (c == null) {
+            return readAsync(key);
+        }
+        byte[] cached = c.lookup(key);
+        if (cached != ClientCache.MISS) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long generation = c.beginFetch(key);
+        return readAsync(key).whenComplete((value, e) -> c.endFetch(key, generation, value, e == null));
+    }
+
+    private CompletableFuture<byte[]> readAsync(String key) {
+        ClientLibrary replica = readReplica();
+        if (replica != null) {
+            return replica.getAsync(key).exceptionallyComposeAsync(e -> getHereAsync(key));
+        }
+        return getHereAsync(key);
+    }
+
+    private CompletableFuture<byte[]> getHereAsync(String key) {
+        if (protocolVersion == 2) {
+            byte[] k = Protocol.encodeKey(key);
+            return submitFrame(Protocol.OP_GET, Protocol.fieldSize(k), o -> Protocol.writeBytes(o, k), (status, f) -> {
+                // No v2 uma chave inexistente distingue-se de um valor vazio
+                if (status == Protocol.STATUS_NOT_FOUND) {
+                    return null;
+                }
+                checkStatus(status, f);
+                return value(f.readRest());
+            });
+        }
+        return submit(o -> {
+            o.writeUTF("get");
+            o.writeUTF(key);
+        }, ClientLibrary::readValue);
+    }
+
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs) {
+        return invalidating(pairs.keySet(), sendMultiPutAsync(pairs));
+    }
+
+    private CompletableFuture<Void> sendMultiPutAsync(Map<String, byte[]> pairs) {
+        if (protocolVersion == 2) {
+            return submitPairsFrame(Protocol.OP_MULTI_PUT, null, pairs);
+        }
+        return submit(o -> {
+            o.writeUTF("multiPut");
+            o.writeInt(pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                o.writeUTF(entry.getKey());
+                o.writeInt(entry.getValue().length);
+                o.write(entry.getValue());
+            }
+        }, i -> {
+            expectMessage(i, Protocol.MULTI_PUT_OK);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs, long ttlMillis) {
+        requirePositiveTtl(ttlMillis);
+        return invalidating(pairs.keySet(), sendMultiPutAsync(pairs, ttlMillis));
+    }
+
+    private CompletableFuture<Void> sendMultiPutAsync(Map<String, byte[]> pairs, long ttlMillis) {
+        if (protocolVersion == 2) {
+            return submitPairsFrame(Protocol.OP_MULTI_PUT_TTL, null, ttlMillis, pairs);
+        }
+        return submit(o -> {
+            o.writeUTF("multiPutTtl");
+            o.writeLong(ttlMillis);
+            o.writeInt(pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                o.writeUTF(entry.getKey());
+                o.writeInt(entry.getValue().length);
+                o.write(entry.getValue());
+            }
+        }, i -> {
+            expectMessage(i, Protocol.MULTI_PUT_OK);
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> submitPairsFrame(int opcode, List<byte[]> prefix, Map<String, byte[]> pairs) {
+        return submitPairsFrame(opcode, prefix, 0, pairs);
+    }
+
+    /**
+     * Frame v2 com [prefixo][TTL][n][n x (chave, valor)] e resposta vazia.
+     *
+     * @param prefix    campos escritos antes dos pares (ex.: id da transação), ou null
+     * @param ttlMillis TTL escrito em 8 bytes antes dos pares, ou 0 para nenhum
+     */
+    private CompletableFuture<Void> submitPairsFrame(int opcode, List<byte[]> prefix, long ttlMillis,
+                                                     Map<String, byte[]> pairs) {
+        List<byte[]> keys = new ArrayList<>(pairs.size());
+        List<byte[]> values = new ArrayList<>(pairs.size());
+        int length = Protocol.varintSize(pairs.size()) + (ttlMillis > 0 ? 8 : 0);
+        if (prefix != null) {
+            for (byte[] field : prefix) {
+                length += Protocol.fieldSize(field);
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            byte[] k = Protocol.encodeKey(entry.getKey());
+            keys.add(k);
+            values.add(entry.getValue());
+            length += Protocol.fieldSize(k) + Protocol.fieldSize(entry.getValue());
+        }
+        return submitFrame(opcode, length, o -> {
+            if (prefix != null) {
+                for (byte[] field : prefix) {
+                    Protocol.writeBytes(o, field);
+                }
+            }
+            if (ttlMillis > 0) {
+                o.writeLong(ttlMillis);
+            }
+            Protocol.writeVarint(o, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                Protocol.writeBytes(o, keys.get(i));
+                Protocol.writeBytes(o, values.get(i));
+            }
+        }, (status, f) -> {
+            checkStatus(status, f);
+            return null;
+        });
+    }
+
+    /**
+     * Como getAsync(), pode ser servido por uma réplica de leitura.
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        if (keys.isEmpty()) {
+            return CompletableFuture.completedFuture(new HashMap<>());
+        }
+        ClientCache c = cache;
+        if (c == null) {
+            return multiReadAsync(keys);
+        }
+        // Só as chaves que faltam na cache vão ao servidor
+        Map<String, byte[]> result = new HashMap<>();
+        Map<String, Long> missing = new HashMap<>();
+        for (String key : keys) {
+            byte[] cached = c.lookup(key);
+            if (cached == ClientCache.MISS) {
+                missing.put(key, c.beginFetch(key));
+            } else if (cached != null) {
+                result.put(key, cached);
+            }
+        }
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+        return multiReadAsync(missing.keySet()).whenComplete((values, e) -> {
+            for (Map.Entry<String, Long> fetch : missing.entrySet()) {
+                c.endFetch(fetch.getKey(), fetch.getValue(), e == null ? values.get(fetch.getKey()) : null, e == null);
+            }
+        }).thenApply(values -> {
+            result.putAll(values);
+            return result;
+        });
+    }
+
+    private CompletableFuture<Map<String, byte[]>> multiReadAsync(Set<String> keys) {
+        ClientLibrary replica = readReplica();
+        if (replica != null) {
+            return replica.multiGetAsync(keys).exceptionallyComposeAsync(e -> multiGetHereAsync(keys));
+        }
+        return multiGetHereAsync(keys);
+    }
+
+    private CompletableFuture<Map<String, byte[]>> multiGetHereAsync(Set<String> keys) {
+        if (protocolVersion == 2) {
+            List<byte[]> encoded = new ArrayList<>(keys.size());
+            int length = Protocol.varintSize(keys.size());
+            for (String key : keys) {
+                byte[] k = Protocol.encodeKey(key);
+                encoded.add(k);
+                length += Protocol.fieldSize(k);
+            }
+            return submitFrame(Protocol.OP_MULTI_GET, length, o -> {
+                Protocol.writeVarint(o, encoded.size());
+                for (byte[] k : encoded) {
+                    Protocol.writeBytes(o, k);
+                }
+            }, (status, f) -> {
+                checkStatus(status, f);
+                int numPairs = f.readVarint();
+                Map<String, byte[]> result = new HashMap<>();
+                for (int i = 0; i < numPairs; i++) {
+                    String k = f.readKey();
+                    result.put(k, value(f.readField()));
+                }
+                return result;
+            });
+        }
+        return submit(o -> {
+            o.writeUTF("multiGet");
+            o.writeInt(keys.size());
+            for (String key : keys) {
+                o.writeUTF(key);
+            }
+        }, ClientLibrary::readPairs);
+    }
+
+    /**
+     * Até maxEntries pares com chave a seguir a from (inclusive ou não) e antes
+     * de to (null sem limite); o servidor pode devolver menos (ver server.scan.*).
+     */
+    private CompletableFuture<ScanPage> scanPageAsync(String from, boolean inclusive, String to, int maxEntries) {
+        if (protocolVersion == 2) {
+            byte[] f = Protocol.encodeKey(from);
+            byte[] t = Protocol.encodeKey(to != null ? to : "");
+            int flags = inclusive ? 0 : Protocol.SCAN_EXCLUSIVE_START;
+            return submitFrame(Protocol.OP_SCAN,
+                    Protocol.fieldSize(f) + Protocol.fieldSize(t) + Protocol.varintSize(flags)
+                            + Protocol.varintSize(maxEntries), o -> {
+                        Protocol.writeBytes(o, f);
+                        Protocol.writeBytes(o, t);
+                        Protocol.writeVarint(o, flags);
+                        Protocol.writeVarint(o, maxEntries);
+                    }, (status, frame) -> {
+                        checkStatus(status, frame);
+                        boolean more = frame.readBytes(1)[0] != 0;
+                        int numPairs = frame.readVarint();
+                        List<Map.Entry<String, byte[]>> entries = new ArrayList<>(numPairs);
+                        for (int i = 0; i < numPairs; i++) {
+                            String k = frame.readKey();
+                            entries.add(new AbstractMap.SimpleImmutableEntry<>(k, value(frame.readField())));
+                        }
+                        return new ScanPage(entries, more);
+                    });
+        }
+        return submit(o -> {
+            o.writeUTF("scan");
+            o.writeUTF(from);
+            o.writeUTF(to != null ? to : "");
+            o.writeBoolean(!inclusive);
+            o.writeInt(maxEntries);
+        }, i -> {
+            boolean more = i.readBoolean();
+            int numPairs = readCount(i);
+            List<Map.Entry<String, byte[]>> entries = new ArrayList<>(numPairs);
+            for (int n = 0; n < numPairs; n++) {
+                String k = i.readUTF();
+                byte[] val = new byte[i.readInt()];
+                i.readFully(val);
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(k, val));
+            }
+            return new ScanPage(entries, more);
+        });
+    }
+
+    /**
+     * Versão assíncrona de getWhen(): o future completa quando a condição se
+     * verificar, sem impedir outros pedidos na mesma ligação.
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String condKey, byte[] condValue) {
+        if (protocolVersion == 2) {
+            byte[] k = Protocol.encodeKey(key);
+            byte[] c = Protocol.encodeKey(condKey);
+            return submitFrame(Protocol.OP_GET_WHEN, Protocol.fieldSize(k) + Protocol.fieldSize(c) + condValue.length,
+                    o -> {
+                        Protocol.writeBytes(o, k);
+                        Protocol.writeBytes(o, c);
+                        o.write(condValue);
+                    }, (status, f) -> {
+                        if (status == Protocol.STATUS_NOT_FOUND) {
+                            return null;
+                        }
+                        checkStatus(status, f);
+                        return value(f.readRest());
+                    });
+        }
+        return submit(o -> {
+            o.writeUTF("getWhen");
+            o.writeUTF(key);
+            o.writeUTF(condKey);
+            o.writeInt(condValue.length);
+            o.write(condValue);
+        }, ClientLibrary::readValue);
+    }
+
+    public CompletableFuture<Void> pingAsync() {
+        if (protocolVersion == 2) {
+            return submitFrame(Protocol.OP_PING, 0, o -> { }, (status, f) -> {
+                checkStatus(status, f);
+                return null;
+            });
+        }
+        return submit(o -> o.writeUTF("ping"), i -> {
+            i.readUTF();
+            return null;
+        });
+    }
+
+    public CompletableFuture<String> statsAsync() {
+        if (protocolVersion == 2) {
+            return submitFrame(Protocol.OP_STATS, 0, o -> { }, (status, f) -> {
+                checkStatus(status, f);
+                return Protocol.decodeKey(f.readRest());
+            });
+        }
+        return submit(o -> o.writeUTF("stats"), i -> i.readUTF());
+    }
+
+    /**
+     * Regista o pedido como pendente e escreve-o no socket sem esperar pela resposta.
+     *
+     * Sem modo pipeline não há correlation IDs: o pedido é escrito e a resposta
+     * lida aqui mesmo, com writeLock, e o future já vem completo. Assim os
+     * métodos são seguros com várias threads em qualquer modo, mas só o modo
+     * pipeline/v2 permite várias threads com pedidos em curso ao mesmo tempo.
+     */
+    private <T> CompletableFuture<T> submit(RequestEncoder encoder, ReplyDecoder<T> decoder) {
+        if (!pipelined) {
+            writeLock.lock();
+            try {
+                // Voltar a verificar: o modo pode ter mudado enquanto se esperava pelo lock
+                if (!pipelined) {
+                    encoder.write(out);
+                    out.flush();
+                    return CompletableFuture.completedFuture(decoder.read(in));
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        int id = nextCorrelationId.getAndIncrement();
+        PendingReply<T> reply = new PendingReply<>(decoder, null);
+        return send(id, reply, o -> {
+            o.writeInt(id);
+            encoder.write(o);
+        });
+    }
+
+    // ---------------------------------------------------
+    // Transações e rebalanceamento entre nós (usados pelo ClusterClient; só v2)
+    // ---------------------------------------------------
+    /**
+     * Apresenta o segredo do cluster (server.cluster.secret do servidor): a
+     * ligação passa a poder usar as operações entre nós (ver Protocol.OP_PEER).
+     */
+    void authenticatePeer(String secret) throws IOException {
+        requireV2();
+        byte[] s = Protocol.encodeKey(secret);
+        await(submitFrame(Protocol.OP_PEER, Protocol.fieldSize(s), o -> Protocol.writeBytes(o, s), (status, f) -> {
+            checkStatus(status, f);
+            return null;
+        }));
+    }
+
+    /**
+     * @param coordinator "" se este nó é o coordenador da transação, senão o
+     *                    "host:porta" do coordenador (ver PreparedTransactions)
+     */
+    CompletableFuture<Void> prepareAsync(String txId, String coordinator, Map<String, byte[]> pairs) {
+        requireV2();
+        return submitPairsFrame(Protocol.OP_PREPARE,
+                List.of(Protocol.encodeKey(txId), Protocol.encodeKey(coordinator)), pairs);
+    }
+
+    CompletableFuture<Void> commitAsync(String txId) {
+        return submitTxFrame(Protocol.OP_COMMIT, txId);
+    }
+
+    CompletableFuture<Void> abortAsync(String txId) {
+        return submitTxFrame(Protocol.OP_ABORT, txId);
+    }
+
+    CompletableFuture<Void> forgetAsync(String txId) {
+        return submitTxFrame(Protocol.OP_FORGET, txId);
+    }
+
+    private CompletableFuture<Void> submitTxFrame(int opcode, String txId) {
+        requireV2();
+        byte[] id = Protocol.encodeKey(txId);
+        return submitFrame(opcode, Protocol.fieldSize(id), o -> Protocol.writeBytes(o, id), (status, f) -> {
+            checkStatus(status, f);
+            return null;
+        });
+    }
+
+    /**
+     * Conteúdo de um shard do servidor (ver dumpShardAsync()).
+     */
+    static final class ShardDump {
+        final Map<String, byte[]> entries;
+        // TTL que restava (ms) às chaves que expiram
+        final Map<String, Long> ttls;
+
+        ShardDump(Map<String, byte[]> entries, Map<String, Long> ttls) {
+            this.entries = entries;
+            this.ttls = ttls;
+        }
+    }
+
+    /**
+     * Conteúdo do shard index do servidor, ou null se o servidor tiver menos shards.
+     */
+    CompletableFuture<ShardDump> dumpShardAsync(int index) {
+        requireV2();
+        return submitFrame(Protocol.OP_DUMP_SHARD, Protocol.varintSize(index), o -> Protocol.writeVarint(o, index),
+                (status, f) -> {
+                    if (status == Protocol.STATUS_NOT_FOUND) {
+                        return null;
+                    }
+                    checkStatus(status, f);
+                    int numTtls = f.readVarint();
+                    Map<String, Long> ttls = new HashMap<>();
+                    for (int i = 0; i < numTtls; i++) {
+                        String k = f.readKey();
+                        ttls.put(k, f.readLong());
+                    }
+                    int numPairs = f.readVarint();
+                    Map<String, byte[]> result = new HashMap<>();
+                    for (int i = 0; i < numPairs; i++) {
+                        String k = f.readKey();
+                        result.put(k, value(f.readField()));
+                    }
+                    return new ShardDump(result, ttls);
+                });
+    }
+
+    private void requireV2() {
+        if (protocolVersion != 2) {
+            throw new IllegalStateException("Operação disponível só no protocolo v2 (useProtocolV2()).");
+        }
+    }
+
+    /**
+     * Versão v2 de submit(): escreve um frame [opcode][correlation ID][tamanho][payload].
+     */
+    private <T> CompletableFuture<T> submitFrame(int opcode, int payloadLength,
+                                                 RequestEncoder payload, FrameDecoder<T> decoder) {
+        int id = nextCorrelationId.getAndIncrement();
+        PendingReply<T> reply = new PendingReply<>(null, decoder);
+        reply.opcode = opcode;
+        return send(id, reply, o -> {
+            o.writeByte(opcode);
+            Protocol.writeVarint(o, id);
+            Protocol.writeVarint(o, payloadLength);
+            payload.write(o);
+        });
+    }
+
+    /**
+     * Envia um pedido de resposta múltipla (ver PendingReply.stream); o future
+     * devolvido só indica se o pedido foi escrito.
+     */
+    private CompletableFuture<Void> sendAndKeep(int id, PendingReply<?> reply, RequestEncoder request) {
+        pending.put(id, reply);
+        writeLock.lock();
+        try {
+            if (failure != null) {
+                pending.remove(id);
+                return CompletableFuture.failedFuture(failure);
+            }
+            // Guardado sempre: a subscrição é refeita se o cliente religar
+            reply.request = request;
+            reply.connection = connection;
+            request.write(out);
+            out.flush();
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            if (reconnectTimeoutMillis == 0) {
+                pending.remove(id);
+                return CompletableFuture.failedFuture(e);
+            }
+            // A thread leitora vai dar pela falha e reconnect() repete o pedido
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private <T> CompletableFuture<T> send(int id, PendingReply<T> reply, RequestEncoder request) {
+        pending.put(id, reply);
+        writeLock.lock();
+        try {
+            // Depois de a thread leitora terminar (ou de o cliente desistir de
+            // religar enquanto se esperava pelo lock) ninguém completaria este pedido
+            IOException lost = failure;
+            if (lost != null) {
+                pending.remove(id);
+                reply.future.completeExceptionally(lost);
+                return reply.future;
+            }
+            if (reconnectTimeoutMillis > 0 && reply.isRepeatable()) {
+                reply.request = request;
+            }
+            reply.connection = connection;
+            request.write(out);
+            // Se houver outra thread à espera para escrever, ela fará o flush por nós
+            if (!writeLock.hasQueuedThreads()) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Com religação, um pedido que pode ser repetido fica para reconnect()
+            if (reply.request == null) {
+                pending.remove(id);
+                reply.future.completeExceptionally(e);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return reply.future;
+    }
+
+    /**
+     * Ciclo da thread leitora: associa cada resposta ao pedido pelo correlation ID.
+     */
+    private void readReplies() {
+        try {
+            while (true) {
+                int id = in.readInt();
+                PendingReply<?> reply = takePending(id);
+                try {
+                    reply.complete(in);
+                } catch (RejectedException e) {
+                    // A resposta foi lida até ao fim; a ligação continua utilizável
+                    reply.future.completeExceptionally(e);
+                }
+            }
+        } catch (IOException e) {
+            // Ligação terminada: falha todos os pedidos ainda pendentes
+            failPending(e);
+        }
+    }
+
+    /**
+     * Arranca a thread leitora v2 da ligação atual (com writeLock).
+     */
+    private void startFrameReader() {
+        int conn = connection;
+        DataInputStream input = in;
+        replyReader = new Thread(() -> readFrames(conn, input), "client-reply-reader");
+        replyReader.setDaemon(true);
+        replyReader.start();
+    }
+
+    /**
+     * Ciclo da thread leitora no protocolo v2, para a ligação número conn.
+     */
+    private void readFrames(int conn, DataInputStream in) {
+        try {
+            while (true) {
+                int id = Protocol.readVarint(in);
+                int status = in.readUnsignedByte();
+                Protocol.FrameReader payload = new Protocol.FrameReader(in, Protocol.readVarint(in));
+                if (id == 0) {
+                    // Aviso do servidor, não é resposta a nenhum pedido
+                    String message = Protocol.decodeKey(payload.readRest());
+                    if (status == Protocol.STATUS_GOING_AWAY) {
+                        goingAway(conn, message);
+                    }
+                    continue;
+                }
+                PendingReply<?> reply = takePending(id);
+                try {
+                    reply.complete(status, payload);
+                } catch (IOException e) {
+                    // Erro desta resposta (ex.: estado de erro); a ligação continua utilizável
+                    reply.future.completeExceptionally(e);
+                }
+                payload.skipRest();
+            }
+        } catch (IOException e) {
+            if (conn != connection) {
+                // Ligação já trocada por reconnect()
+                return;
+            }
+            if (reconnectTimeoutMillis > 0 && !closed) {
+                Thread.ofVirtual().name("client-reconnect").start(() -> reconnect(conn, e, false));
+            } else {
+                failPending(e);
+            }
+        }
+    }
+
+    /**
+     * Pedido a que pertence a resposta; só os pedidos com uma única resposta
+     * deixam de estar pendentes.
+     */
+    private PendingReply<?> takePending(int id) throws IOException {
+        PendingReply<?> reply = pending.get(id);
+        if (reply == null) {
+            throw new IOException("Resposta com correlation ID desconhecido: " + id);
+        }
+        if (!reply.isStream()) {
+            pending.remove(id);
+        }
+        return reply;
+    }
+
+    /**
+     * Valor recebido numa resposta v2, descomprimido se for caso disso.
+     */
+    private byte[] value(byte[] received) throws IOException {
+        if (!compressedValues) {
+            return received;
+        }
+        try {
+            return Compression.decode(received);
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Converte um estado de erro v2 numa exceção com a mensagem enviada pelo servidor.
+     */
+    private static void checkStatus(int status, Protocol.FrameReader payload) throws IOException {
+        if (status != Protocol.STATUS_OK) {
+            String message = Protocol.decodeKey(payload.readRest());
+            throw new StatusException(status, message);
+        }
+    }
+
+    /**
+     * Pedido v2 recusado pelo servidor, com o código de estado da resposta.
+     */
+    public static class StatusException extends IOException {
+        private final int status;
+
+        public StatusException(int status, String message) {
+            super("Pedido recusado pelo servidor (" + Protocol.statusName(status) + "): " + message);
+            this.status = status;
+        }
+
+        public int status() {
+            return status;
+        }
+    }
+
+    /**
+     * Pedido v1 recusado pelo servidor, com a mensagem que veio na resposta.
+     */
+    public static class RejectedException extends IOException {
+        public RejectedException(String message) {
+            super("Pedido recusado pelo servidor: " + message);
+        }
+    }
+
+    private void failPending(IOException e) {
+        // Mantém a primeira causa (ex.: o aviso de que o servidor ia terminar)
+        if (failure == null) {
+            failure = e;
+        }
+        // Sem avisos desta ligação nada garante que as entradas ainda são válidas
+        ClientCache c = trackingCache;
+        if (c != null) {
+            c.invalidateAll();
+        }
+        for (Integer id : new ArrayList<>(pending.keySet())) {
+            PendingReply<?> reply = pending.remove(id);
+            if (reply != null) {
+                reply.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrompido à espera da resposta.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        for (ClientLibrary replica : readReplicas) {
+            replica.close();
+        }
+        socket.close();
+    }
+
+    // ---------------------------------------------------
+    // Métodos auxiliares
+    // ---------------------------------------------------
+    private void sendMessage(String message) throws IOException {
+        out.writeUTF(message);
+        out.flush();
+    }
+
+    private String receiveMessage() throws IOException {
+        return in.readUTF();
+    }
+
+    /**
+     * [tamanho: int][valor], com tamanho 0 para chave inexistente (como no get).
+     */
+    /**
+     * Resposta v1 de uma escrita: a mensagem de sucesso ou, se o servidor
+     * recusou o pedido (valor grande demais, réplica, TTL inválido...), a razão.
+     */
+    private static void expectMessage(DataInputStream in, String success) throws IOException {
+        String message = in.readUTF();
+        if (!message.equals(success)) {
+            throw new RejectedException(message);
+        }
+    }
+
+    /**
+     * Tamanho ou número de pares no início de uma resposta v1 de leitura; -1 é
+     * um pedido recusado (ex.: réplica desatualizada), seguido da mensagem.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count == -1) {
+            throw new RejectedException(in.readUTF());
+        }
+        return count;
+    }
+
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        if (length <= 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private static Map<String, byte[]> readPairs(DataInputStream in) throws IOException {
+        int numPairs = readCount(in);
+        Map<String, byte[]> result = new HashMap<>();
+        for (int i = 0; i < numPairs; i++) {
+            String k = in.readUTF();
+            int length = in.readInt();
+            byte[] val = new byte[length];
+            in.readFully(val);
+            result.put(k, val);
+        }
+        return result;
     }
 }
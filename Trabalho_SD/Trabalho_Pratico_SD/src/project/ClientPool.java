@@ -0,0 +1,245 @@
+package project;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cliente para aplicações com muitas threads: um conjunto limitado de sessões
+ * autenticadas, todas no protocolo v2, em que cada sessão multiplexa muitos
+ * pedidos em curso (correlation IDs). Assim N threads partilham poucas das
+ * MAX_SESSIONS vagas do servidor.
+ *
+ * Cada pedido segue pela sessão com menos pedidos pendentes. Uma sessão cuja
+ * ligação caiu, ou que não responde ao ping periódico, é substituída por uma
+ * nova; os pedidos que já estavam nela falham com IOException (não são
+ * repetidos automaticamente).
+ */
+public class ClientPool implements AutoCloseable {
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final long pingTimeoutMillis;
+
+    private final AtomicReferenceArray<ClientLibrary> sessions;
+    // Um lock por posição, para substituir uma sessão sem bloquear as outras
+    private final Object[] slotLocks;
+    private final ScheduledExecutorService healthCheck;
+    private volatile boolean closed = false;
+
+    /**
+     * @param size               número de sessões (cada uma ocupa uma vaga no servidor)
+     * @param healthCheckMillis  intervalo entre pings a cada sessão (0 desliga)
+     */
+    public ClientPool(String host, int port, String username, String password,
+                      int size, long healthCheckMillis) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Tamanho do pool inválido: " + size);
+        }
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.pingTimeoutMillis = Math.max(1000, healthCheckMillis);
+        this.sessions = new AtomicReferenceArray<>(size);
+        this.slotLocks = new Object[size];
+        for (int i = 0; i < size; i++) {
+            slotLocks[i] = new Object();
+        }
+        for (int i = 0; i < size; i++) {
+            try {
+                sessions.set(i, open());
+            } catch (IOException e) {
+                closeSessions();
+                throw e;
+            }
+        }
+
+        if (healthCheckMillis > 0) {
+            healthCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "client-pool-health");
+                t.setDaemon(true);
+                return t;
+            });
+            healthCheck.scheduleWithFixedDelay(this::checkSessions,
+                    healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+        } else {
+            healthCheck = null;
+        }
+    }
+
+    public ClientPool(String host, int port, String username, String password, int size) throws IOException {
+        this(host, port, username, password, size, 5000);
+    }
+
+    // -----------------------------------------------------------
+    // Operações (seguras com qualquer número de threads)
+    // -----------------------------------------------------------
+    public void put(String key, byte[] value) throws IOException {
+        session().put(key, value);
+    }
+
+    public byte[] get(String key) throws IOException {
+        return session().get(key);
+    }
+
+    public void multiPut(Map<String, byte[]> pairs) throws IOException {
+        session().multiPut(pairs);
+    }
+
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        return session().multiGet(keys);
+    }
+
+    public byte[] getWhen(String key, String condKey, byte[] condValue) throws IOException {
+        return session().getWhen(key, condKey, condValue);
+    }
+
+    public CompletableFuture<Void> putAsync(String key, byte[] value) throws IOException {
+        return session().putAsync(key, value);
+    }
+
+    public CompletableFuture<byte[]> getAsync(String key) throws IOException {
+        return session().getAsync(key);
+    }
+
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs) throws IOException {
+        return session().multiPutAsync(pairs);
+    }
+
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) throws IOException {
+        return session().multiGetAsync(keys);
+    }
+
+    public CompletableFuture<byte[]> getWhenAsync(String key, String condKey, byte[] condValue) throws IOException {
+        return session().getWhenAsync(key, condKey, condValue);
+    }
+
+    public int size() {
+        return sessions.length();
+    }
+
+    // -----------------------------------------------------------
+    // Escolha e substituição de sessões
+    // -----------------------------------------------------------
+    /**
+     * Sessão aberta com menos pedidos pendentes; se nenhuma estiver aberta,
+     * substitui a primeira.
+     */
+    private ClientLibrary session() throws IOException {
+        if (closed) {
+            throw new IOException("O pool de ligações foi fechado.");
+        }
+        ClientLibrary best = null;
+        int bestPending = Integer.MAX_VALUE;
+        for (int i = 0; i < sessions.length(); i++) {
+            ClientLibrary s = sessions.get(i);
+            if (s != null && s.isOpen()) {
+                int p = s.pendingRequests();
+                if (p < bestPending) {
+                    best = s;
+                    bestPending = p;
+                }
+            }
+        }
+        return best != null ? best : replace(0);
+    }
+
+    /**
+     * Troca a sessão da posição i por uma nova, se ainda estiver fechada
+     * (outra thread pode já a ter substituído).
+     */
+    private ClientLibrary replace(int i) throws IOException {
+        synchronized (slotLocks[i]) {
+            ClientLibrary current = sessions.get(i);
+            if (current != null && current.isOpen()) {
+                return current;
+            }
+            if (current != null) {
+                closeQuietly(current);
+            }
+            ClientLibrary fresh = open();
+            sessions.set(i, fresh);
+            return fresh;
+        }
+    }
+
+    private ClientLibrary open() throws IOException {
+        ClientLibrary client = new ClientLibrary(host, port);
+        try {
+            if (!client.authenticate(username, password, true)) {
+                throw new IOException("Autenticação falhada para " + username + ".");
+            }
+            client.useProtocolV2();
+            return client;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(client);
+            throw e;
+        }
+    }
+
+    /**
+     * Ping a todas as sessões; as que falham são fechadas e reabertas.
+     */
+    private void checkSessions() {
+        for (int i = 0; i < sessions.length() && !closed; i++) {
+            ClientLibrary s = sessions.get(i);
+            try {
+                if (s == null || !s.isOpen()) {
+                    replace(i);
+                    continue;
+                }
+                s.pingAsync().get(pingTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                // Sem resposta: a sessão é dada como perdida
+                closeQuietly(s);
+                try {
+                    replace(i);
+                } catch (IOException reopen) {
+                    // Tenta de novo no próximo ciclo
+                }
+            } catch (IOException e) {
+                // Servidor indisponível: tenta de novo no próximo ciclo
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (healthCheck != null) {
+            healthCheck.shutdownNow();
+        }
+        closeSessions();
+    }
+
+    private void closeSessions() {
+        for (int i = 0; i < sessions.length(); i++) {
+            synchronized (slotLocks[i]) {
+                ClientLibrary s = sessions.getAndSet(i, null);
+                if (s != null) {
+                    try {
+                        s.logout();
+                    } catch (IOException e) {
+                        // A ligação já estava fechada
+                    }
+                    closeQuietly(s);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(ClientLibrary client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Nada a fazer
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package project;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cliente de um conjunto de servidores independentes ("host:porta") entre os
+ * quais o espaço de chaves é repartido por hashing consistente (HashRing).
+ *
+ * Mantém uma ligação v2 autenticada por nó (o utilizador é registado em cada
+ * nó se ainda não existir, e a ligação apresenta o segredo do cluster,
+ * server.cluster.secret dos nós) e envia cada pedido diretamente ao nó dono da
+ * chave. multiGet/multiPut são divididos por nó e enviados em paralelo.
+ *
+ * Atomicidade do multiPut entre nós (MultiPutMode):
+ *  - ATOMIC (por omissão): two-phase commit conduzido por este cliente, com
+ *    um dos nós como coordenador (ver PreparedTransactions): o commit vai
+ *    primeiro ao coordenador e é aí que a transação fica decidida. Um nó que
+ *    votou e não recebe o commit (cliente perdido, ligação em baixo, nó
+ *    reiniciado) pergunta o resultado ao coordenador, por isso os endereços
+ *    dados a este cliente têm de servir também entre os nós. As leituras podem
+ *    ver o commit já feito num nó e ainda não noutro.
+ *  - PER_NODE: cada nó aplica a sua parte atomicamente, sem garantias entre nós.
+ * Um multiPut cujas chaves estão todas no mesmo nó é sempre um multiPut normal.
+ *
+ * O anel é deste cliente: ao juntar um nó com addNode(), os outros clientes
+ * têm de fazer o mesmo.
+ */
+public class ClusterClient implements AutoCloseable {
+
+    public enum MultiPutMode { ATOMIC, PER_NODE }
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    // Tentativas de um multiPut ATOMIC quando o prepare encontra chaves reservadas
+    private static final int PREPARE_ATTEMPTS = 5;
+
+    private final String username;
+    private final String password;
+    private final String clusterSecret;
+    private final Map<String, ClientLibrary> connections = new HashMap<>();
+    private volatile HashRing ring;
+    // Operações com o read lock; addNode() com o write lock (nada em curso durante a migração)
+    private final ReentrantReadWriteLock topology = new ReentrantReadWriteLock();
+
+    /**
+     * @param clusterSecret segredo partilhado pelos nós (two-phase commit e addNode())
+     */
+    public ClusterClient(List<String> nodes, String username, String password, String clusterSecret)
+            throws IOException {
+        this(nodes, username, password, clusterSecret, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ClusterClient(List<String> nodes, String username, String password, String clusterSecret,
+                         int virtualNodes) throws IOException {
+        this.username = username;
+        this.password = password;
+        this.clusterSecret = clusterSecret;
+        this.ring = new HashRing(nodes, virtualNodes);
+        try {
+            for (String node : ring.nodes()) {
+                connections.put(node, connect(node));
+            }
+        } catch (IOException | RuntimeException e) {
+            closeConnections();
+            throw e;
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Operações
+    // -----------------------------------------------------------
+    public void put(String key, byte[] value) throws IOException {
+        topology.readLock().lock();
+        try {
+            owner(key).put(key, value);
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    public byte[] get(String key) throws IOException {
+        topology.readLock().lock();
+        try {
+            return owner(key).get(key);
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        topology.readLock().lock();
+        try {
+            List<CompletableFuture<Map<String, byte[]>>> parts = new ArrayList<>();
+            for (Map.Entry<String, Set<String>> part : ring.partition(keys).entrySet()) {
+                parts.add(connections.get(part.getKey()).multiGetAsync(part.getValue()));
+            }
+            Map<String, byte[]> result = new HashMap<>();
+            for (CompletableFuture<Map<String, byte[]>> part : parts) {
+                result.putAll(ClientLibrary.await(part));
+            }
+            return result;
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    public void multiPut(Map<String, byte[]> pairs) throws IOException {
+        multiPut(pairs, MultiPutMode.ATOMIC);
+    }
+
+    public void multiPut(Map<String, byte[]> pairs, MultiPutMode mode) throws IOException {
+        if (pairs.isEmpty()) {
+            return;
+        }
+        topology.readLock().lock();
+        try {
+            Map<String, Map<String, byte[]>> byNode = ring.partition(pairs);
+            if (byNode.size() == 1 || mode == MultiPutMode.PER_NODE) {
+                List<CompletableFuture<Void>> parts = new ArrayList<>();
+                for (Map.Entry<String, Map<String, byte[]>> part : byNode.entrySet()) {
+                    parts.add(connections.get(part.getKey()).multiPutAsync(part.getValue()));
+                }
+                for (CompletableFuture<Void> part : parts) {
+                    ClientLibrary.await(part);
+                }
+                return;
+            }
+            multiPutAtomic(byNode);
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    /**
+     * Two-phase commit: prepare em todos os nós; se algum falhar, abort em
+     * todos e nova tentativa (só em caso de conflito); senão commit no
+     * coordenador e depois nos outros.
+     */
+    private void multiPutAtomic(Map<String, Map<String, byte[]>> byNode) throws IOException {
+        String coordinator = Collections.min(byNode.keySet());
+        for (int attempt = 1; ; attempt++) {
+            String txId = UUID.randomUUID().toString();
+            Map<String, CompletableFuture<Void>> prepares = new HashMap<>();
+            for (Map.Entry<String, Map<String, byte[]>> part : byNode.entrySet()) {
+                String node = part.getKey();
+                prepares.put(node, connections.get(node).prepareAsync(txId,
+                        node.equals(coordinator) ? "" : coordinator, part.getValue()));
+            }
+            IOException failure = null;
+            for (CompletableFuture<Void> prepare : prepares.values()) {
+                try {
+                    ClientLibrary.await(prepare);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            if (failure == null) {
+                commitAll(txId, coordinator, byNode.keySet());
+                return;
+            }
+            abortAll(txId, byNode.keySet());
+            boolean conflict = failure instanceof ClientLibrary.StatusException
+                    && ((ClientLibrary.StatusException) failure).status() == Protocol.STATUS_CONFLICT;
+            if (!conflict || attempt == PREPARE_ATTEMPTS) {
+                throw new IOException("multiPut abortado: " + failure.getMessage(), failure);
+            }
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(1, 5 << attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("multiPut interrompido.", e);
+            }
+        }
+    }
+
+    /**
+     * O commit no coordenador decide a transação. Se falhar aí, os outros nós
+     * abortam (expirada no coordenador) ou perguntam-lhe o resultado (ligação
+     * perdida). Se falhar noutro nó, esse nó aplica-a quando perguntar ao
+     * coordenador; o coordenador só esquece a decisão depois de todos a aplicarem.
+     */
+    private void commitAll(String txId, String coordinator, Set<String> nodes) throws IOException {
+        try {
+            ClientLibrary.await(connections.get(coordinator).commitAsync(txId));
+        } catch (ClientLibrary.StatusException e) {
+            abortAll(txId, nodes);
+            throw new IOException("multiPut abortado: transação expirada no coordenador " + coordinator + ".", e);
+        } catch (IOException e) {
+            throw new IOException("Resultado do multiPut desconhecido (coordenador " + coordinator
+                    + "): os nós aplicam-no ou abortam-no conforme a decisão do coordenador.", e);
+        }
+        Map<String, CompletableFuture<Void>> commits = new HashMap<>();
+        for (String node : nodes) {
+            if (!node.equals(coordinator)) {
+                commits.put(node, connections.get(node).commitAsync(txId));
+            }
+        }
+        boolean allApplied = true;
+        for (CompletableFuture<Void> commit : commits.values()) {
+            try {
+                ClientLibrary.await(commit);
+            } catch (IOException e) {
+                allApplied = false;
+            }
+        }
+        if (allApplied) {
+            try {
+                connections.get(coordinator).forgetAsync(txId);
+            } catch (RuntimeException e) {
+                // A decisão fica guardada no coordenador
+            }
+        }
+    }
+
+    private void abortAll(String txId, Set<String> nodes) {
+        for (String node : nodes) {
+            try {
+                connections.get(node).abortAsync(txId);
+            } catch (RuntimeException e) {
+                // Ligação perdida: o nó pergunta o resultado ao coordenador
+            }
+        }
+    }
+
+    private ClientLibrary owner(String key) {
+        return connections.get(ring.nodeFor(key));
+    }
+
+    // -----------------------------------------------------------
+    // Topologia
+    // -----------------------------------------------------------
+    public List<String> nodes() {
+        return ring.nodes();
+    }
+
+    /**
+     * Junta um nó ao anel e copia para ele, a partir dos nós existentes (shard
+     * a shard), as chaves que passam a ser suas. Durante a migração as
+     * operações deste cliente esperam. As chaves com TTL levam o prazo que lhes
+     * restava. As cópias antigas ficam nos nós de origem mas deixam de ser lidas.
+     *
+     * @return número de chaves copiadas
+     */
+    public long addNode(String node) throws IOException {
+        topology.writeLock().lock();
+        try {
+            if (connections.containsKey(node)) {
+                return 0;
+            }
+            ClientLibrary target = connect(node);
+            HashRing updated = ring.with(node);
+            long moved = 0;
+            try {
+                for (String source : ring.nodes()) {
+                    ClientLibrary from = connections.get(source);
+                    for (int shard = 0; ; shard++) {
+                        ClientLibrary.ShardDump dump = ClientLibrary.await(from.dumpShardAsync(shard));
+                        if (dump == null) {
+                            break;
+                        }
+                        Map<String, byte[]> moving = new HashMap<>();
+                        List<CompletableFuture<Void>> expiring = new ArrayList<>();
+                        for (Map.Entry<String, byte[]> entry : dump.entries.entrySet()) {
+                            if (!updated.nodeFor(entry.getKey()).equals(node)) {
+                                continue;
+                            }
+                            // As chaves com TTL levam o prazo que lhes resta (uma a uma, em pipeline)
+                            Long ttl = dump.ttls.get(entry.getKey());
+                            if (ttl != null) {
+                                expiring.add(target.putAsync(entry.getKey(), entry.getValue(), ttl));
+                            } else {
+                                moving.put(entry.getKey(), entry.getValue());
+                            }
+                        }
+                        if (!moving.isEmpty()) {
+                            target.multiPut(moving);
+                        }
+                        for (CompletableFuture<Void> put : expiring) {
+                            ClientLibrary.await(put);
+                        }
+                        moved += moving.size() + expiring.size();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(target);
+                throw e;
+            }
+            connections.put(node, target);
+            ring = updated;
+            return moved;
+        } finally {
+            topology.writeLock().unlock();
+        }
+    }
+
+    private ClientLibrary connect(String node) throws IOException {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Nó inválido (esperado host:porta): " + node);
+        }
+        ClientLibrary client = new ClientLibrary(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        try {
+            if (!client.authenticate(username, password, true)) {
+                throw new IOException("Autenticação falhada em " + node + ".");
+            }
+            client.useProtocolV2();
+            client.authenticatePeer(clusterSecret);
+            return client;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(client);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        topology.writeLock().lock();
+        try {
+            closeConnections();
+        } finally {
+            topology.writeLock().unlock();
+        }
+    }
+
+    private void closeConnections() {
+        for (ClientLibrary client : connections.values()) {
+            try {
+                client.logout();
+            } catch (IOException e) {
+                // A ligação já estava fechada
+            }
+            closeQuietly(client);
+        }
+        connections.clear();
+    }
+
+    private static void closeQuietly(ClientLibrary client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Nada a fazer
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Armazenamento compacto para muitas chaves pequenas: não há objetos por
+ * entrada (nem String, nem nó de HashMap, nem byte[]).
+ *
+ * Cada par é acrescentado a uma arena de páginas byte[] como [tamanho da
+ * chave: varint][tamanho do valor: varint][chave UTF-8][valor]. O índice é
+ * uma tabela de endereçamento aberto (sondagem linear) sobre três arrays
+ * paralelos: hash da chave, referência ao registo ((página + 1) << 32 |
+ * offset; 0 = posição livre) e versão. As remoções puxam para trás as
+ * entradas seguintes da sequência, por isso não há marcas de apagado.
+ *
+ * O hash é o hashCode() da String da chave, que na String já vem calculado e
+ * que, para chaves ASCII recebidas em bytes, se calcula sem criar a String
+ * (get(byte[], int, int)). As comparações com a chave guardada são feitas
+ * codificando a String em UTF-8 à medida, sem cópias.
+ *
+ * Um put sobre uma chave existente deixa o registo antigo como espaço morto;
+ * compact() copia os registos vivos de uma página muito fragmentada para a
+ * página ativa e liberta-a.
+ */
+public class CompactShardStorage implements ShardStorage {
+
+    // As páginas crescem de MIN_PAGE até MAX_PAGE (shards pequenos gastam pouco)
+    private static final int MIN_PAGE = 4 << 10;
+    private static final int MAX_PAGE = 1 << 20;
+    // Mistura multiplicativa: os bits baixos do hash já escolheram o shard
+    private static final int MIX = 0x9E3779B9;
+
+    private final double compactRatio;
+
+    private int[] hashes = new int[16];
+    private long[] refs = new long[16];
+    private long[] versions = new long[16];
+    // 32 - log2(capacidade da tabela)
+    private int shift = 28;
+    private int size = 0;
+
+    private final List<byte[]> pages = new ArrayList<>();
+    private int[] pageUsed = new int[4];
+    private int[] pageDead = new int[4];
+    // Índices de páginas libertadas, reutilizados pelas páginas novas
+    private final Deque<Integer> freePages = new ArrayDeque<>();
+    private int active = -1;
+    private int nextPageSize = MIN_PAGE;
+    // Bytes das chaves e valores vivos
+    private long liveBytes = 0;
+
+    /**
+     * @param compactRatio fração de espaço morto a partir da qual uma página é compactada
+     */
+    public CompactShardStorage(double compactRatio) {
+        this.compactRatio = compactRatio;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        int slot = slotOf(key);
+        return slot < 0 ? null : value(refs[slot]);
+    }
+
+    @Override
+    public byte[] get(byte[] key, int length, int hash) {
+        int mask = refs.length - 1;
+        for (int i = indexFor(hash); refs[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] != hash) {
+                continue;
+            }
+            byte[] page = pages.get(page(refs[i]));
+            int offset = offset(refs[i]);
+            int keyLength = readVarint(page, offset);
+            int valueLength = readVarint(page, offset + Protocol.varintSize(keyLength));
+            int keyStart = offset + Protocol.varintSize(keyLength) + Protocol.varintSize(valueLength);
+            if (Arrays.equals(page, keyStart, keyStart + keyLength, key, 0, length)) {
+                return Arrays.copyOfRange(page, keyStart + keyLength, keyStart + keyLength + valueLength);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long version(String key) {
+        int slot = slotOf(key);
+        return slot < 0 ? 0 : versions[slot];
+    }
+
+    @Override
+    public boolean put(String key, byte[] value, long version) {
+        return put(key, value, value.length, version);
+    }
+
+    @Override
+    public boolean put(String key, byte[] buffer, int length, long version) {
+        int hash = key.hashCode();
+        int slot = slotOf(key);
+        int keyLength = utf8Length(key);
+        long ref = append(key, keyLength, buffer, length);
+        liveBytes += keyLength + length;
+        if (slot >= 0) {
+            liveBytes -= markDead(refs[slot]);
+            refs[slot] = ref;
+            versions[slot] = version;
+            return false;
+        }
+        if ((size + 1) * 4L > refs.length * 3L) {
+            resize(refs.length * 2);
+        }
+        slot = freeSlot(hash);
+        hashes[slot] = hash;
+        refs[slot] = ref;
+        versions[slot] = version;
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean copiesValues() {
+        return true;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return false;
+        }
+        liveBytes -= markDead(refs[slot]);
+        deleteSlot(slot);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long storedBytes() {
+        return liveBytes;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, byte[]> action) {
+        for (long ref : refs) {
+            if (ref == 0) {
+                continue;
+            }
+            byte[] page = pages.get(page(ref));
+            int offset = offset(ref);
+            int keyLength = readVarint(page, offset);
+            int keyStart = offset + Protocol.varintSize(keyLength)
+                    + Protocol.varintSize(readVarint(page, offset + Protocol.varintSize(keyLength)));
+            action.accept(new String(page, keyStart, keyLength, StandardCharsets.UTF_8), value(ref));
+        }
+    }
+
+    /**
+     * Compacta no máximo uma página por chamada, para limitar o tempo em que o
+     * write lock do shard fica ocupado.
+     */
+    @Override
+    public void compact() {
+        for (int p = 0; p < pages.size(); p++) {
+            if (p == active || pages.get(p) == null || pageUsed[p] == 0) {
+                continue;
+            }
+            if (pageDead[p] >= pageUsed[p]) {
+                freePage(p);
+                return;
+            }
+            if (pageDead[p] >= pageUsed[p] * compactRatio) {
+                relocateLive(p);
+                freePage(p);
+                return;
+            }
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Tabela de dispersão
+    // -----------------------------------------------------------
+    private int indexFor(int hash) {
+        return (hash * MIX) >>> shift;
+    }
+
+    private int slotOf(String key) {
+        int hash = key.hashCode();
+        int mask = refs.length - 1;
+        for (int i = indexFor(hash); refs[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && keyEquals(refs[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int freeSlot(int hash) {
+        int mask = refs.length - 1;
+        int i = indexFor(hash);
+        while (refs[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Liberta a posição e puxa para trás as entradas seguintes que deixariam
+     * de ser encontradas a partir da sua posição de origem.
+     */
+    private void deleteSlot(int slot) {
+        int mask = refs.length - 1;
+        int hole = slot;
+        for (int j = (slot + 1) & mask; refs[j] != 0; j = (j + 1) & mask) {
+            int home = indexFor(hashes[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                hashes[hole] = hashes[j];
+                refs[hole] = refs[j];
+                versions[hole] = versions[j];
+                hole = j;
+            }
+        }
+        hashes[hole] = 0;
+        refs[hole] = 0;
+        versions[hole] = 0;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        long[] oldRefs = refs;
+        long[] oldVersions = versions;
+        hashes = new int[capacity];
+        refs = new long[capacity];
+        versions = new long[capacity];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        for (int i = 0; i < oldRefs.length; i++) {
+            if (oldRefs[i] != 0) {
+                int slot = freeSlot(oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                refs[slot] = oldRefs[i];
+                versions[slot] = oldVersions[i];
+            }
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Arena de registos
+    // -----------------------------------------------------------
+    private static int page(long ref) {
+        return (int) (ref >>> 32) - 1;
+    }
+
+    private static int offset(long ref) {
+        return (int) ref;
+    }
+
+    private long append(String key, int keyLength, byte[] value, int valueLength) {
+        int recordSize = Protocol.varintSize(keyLength) + Protocol.varintSize(valueLength) + keyLength + valueLength;
+        int p = pageWithRoom(recordSize);
+        byte[] page = pages.get(p);
+        int offset = pageUsed[p];
+        int pos = writeVarint(page, offset, keyLength);
+        pos = writeVarint(page, pos, valueLength);
+        pos = encodeUtf8(key, page, pos);
+        System.arraycopy(value, 0, page, pos, valueLength);
+        pageUsed[p] += recordSize;
+        return ((long) (p + 1) << 32) | offset;
+    }
+
+    private int pageWithRoom(int recordSize) {
+        if (active >= 0 && pages.get(active).length - pageUsed[active] >= recordSize) {
+            return active;
+        }
+        byte[] page = new byte[Math.max(nextPageSize, recordSize)];
+        nextPageSize = Math.min(MAX_PAGE, nextPageSize * 2);
+        Integer reused = freePages.poll();
+        int p;
+        if (reused != null) {
+            p = reused;
+            pages.set(p, page);
+        } else {
+            p = pages.size();
+            pages.add(page);
+            if (p == pageUsed.length) {
+                pageUsed = Arrays.copyOf(pageUsed, p * 2);
+                pageDead = Arrays.copyOf(pageDead, p * 2);
+            }
+        }
+        pageUsed[p] = 0;
+        pageDead[p] = 0;
+        active = p;
+        return p;
+    }
+
+    /**
+     * @return bytes de chave e valor do registo que passou a espaço morto
+     */
+    private int markDead(long ref) {
+        int p = page(ref);
+        byte[] page = pages.get(p);
+        int offset = offset(ref);
+        int keyLength = readVarint(page, offset);
+        int valueLength = readVarint(page, offset + Protocol.varintSize(keyLength));
+        pageDead[p] += Protocol.varintSize(keyLength) + Protocol.varintSize(valueLength) + keyLength + valueLength;
+        return keyLength + valueLength;
+    }
+
+    private byte[] value(long ref) {
+        byte[] page = pages.get(page(ref));
+        int offset = offset(ref);
+        int keyLength = readVarint(page, offset);
+        int valueLength = readVarint(page, offset + Protocol.varintSize(keyLength));
+        int valueStart = offset + Protocol.varintSize(keyLength) + Protocol.varintSize(valueLength) + keyLength;
+        return Arrays.copyOfRange(page, valueStart, valueStart + valueLength);
+    }
+
+    /**
+     * Copia para a página ativa os registos de p ainda apontados pela tabela
+     * (percorre a tabela, sem voltar a calcular os hashes das chaves).
+     */
+    private void relocateLive(int p) {
+        byte[] page = pages.get(p);
+        // A página a compactar não pode receber as suas próprias cópias
+        if (active == p) {
+            active = -1;
+        }
+        for (int slot = 0; slot < refs.length; slot++) {
+            if (refs[slot] == 0 || page(refs[slot]) != p) {
+                continue;
+            }
+            int offset = offset(refs[slot]);
+            int keyLength = readVarint(page, offset);
+            int valueLength = readVarint(page, offset + Protocol.varintSize(keyLength));
+            int recordSize = Protocol.varintSize(keyLength) + Protocol.varintSize(valueLength) + keyLength + valueLength;
+            int target = pageWithRoom(recordSize);
+            System.arraycopy(page, offset, pages.get(target), pageUsed[target], recordSize);
+            refs[slot] = ((long) (target + 1) << 32) | pageUsed[target];
+            pageUsed[target] += recordSize;
+        }
+    }
+
+    private void freePage(int p) {
+        pages.set(p, null);
+        pageUsed[p] = 0;
+        pageDead[p] = 0;
+        freePages.add(p);
+    }
+
+    // -----------------------------------------------------------
+    // Codificação
+    // -----------------------------------------------------------
+    private static int readVarint(byte[] page, int pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = page[pos++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int writeVarint(byte[] page, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            page[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        page[pos++] = (byte) value;
+        return pos;
+    }
+
+    private boolean keyEquals(long ref, String key) {
+        byte[] page = pages.get(page(ref));
+        int offset = offset(ref);
+        int keyLength = readVarint(page, offset);
+        int valueLength = readVarint(page, offset + Protocol.varintSize(keyLength));
+        int keyStart = offset + Protocol.varintSize(keyLength) + Protocol.varintSize(valueLength);
+        return equalsUtf8(key, page, keyStart, keyLength);
+    }
+
+    /**
+     * Tamanho de key em UTF-8, igual ao de key.getBytes(UTF_8) (um surrogate
+     * isolado vale um byte, o '?' que o JDK escreve no seu lugar).
+     */
+    private static int utf8Length(String key) {
+        int n = key.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(key.charAt(i + 1))) {
+                    length += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    private static int encodeUtf8(String key, byte[] out, int pos) {
+        int n = key.length();
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, key.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * true se os length bytes em page a partir de start são key em UTF-8
+     * (codificada como em encodeUtf8()).
+     */
+    private static boolean equalsUtf8(String key, byte[] page, int start, int length) {
+        int n = key.length();
+        if (length < n || length > 3 * n) {
+            return false;
+        }
+        int pos = start;
+        int end = start + length;
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            int cp;
+            int size;
+            if (c < 0x80) {
+                if (pos >= end || page[pos++] != c) {
+                    return false;
+                }
+                continue;
+            } else if (c < 0x800) {
+                cp = c;
+                size = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(key.charAt(i + 1))) {
+                cp = Character.toCodePoint(c, key.charAt(++i));
+                size = 4;
+            } else if (Character.isSurrogate(c)) {
+                cp = '?';
+                size = 1;
+            } else {
+                cp = c;
+                size = 3;
+            }
+            if (pos + size > end) {
+                return false;
+            }
+            // Primeiro byte com o prefixo do tamanho, seguintes com 6 bits cada
+            int first = size == 1 ? cp : (0xF00 >> size & 0xF0 | cp >> (6 * (size - 1))) & 0xFF;
+            if ((page[pos++] & 0xFF) != first) {
+                return false;
+            }
+            for (int k = size - 2; k >= 0; k--) {
+                if ((page[pos++] & 0xFF) != (0x80 | ((cp >> (6 * k)) & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return pos == end;
+    }
+}
@@ -0,0 +1,160 @@
+package project;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressão transparente de valores (Deflate).
+ *
+ * Um valor comprimido é guardado como [MAGIC][tamanho original: varint]
+ * [dados deflate]. O servidor comprime os valores recebidos com pelo menos
+ * minBytes (na thread da ligação, antes de tocar no armazém) se isso poupar
+ * pelo menos 1/8 do tamanho; os valores originais que já começam por MAGIC
+ * são sempre comprimidos, para que todo o valor guardado que começa por MAGIC
+ * seja comprimido. Como só o servidor comprime, o mesmo valor fica sempre
+ * com os mesmos bytes (getWhen compara os bytes guardados).
+ *
+ * Nas respostas os valores são descomprimidos pelo servidor, exceto para as
+ * sessões que negociaram OP_COMPRESSED_VALUES: essas recebem os bytes
+ * guardados e descomprimem-nos no cliente (decode()).
+ */
+public class Compression {
+
+    public static final byte[] MAGIC = {0x00, 'K', 'V', 'Z'};
+
+    private final int minBytes;
+    private final int level;
+    // Deflater/Inflater reutilizados: cada um tem estado nativo caro de criar
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param minBytes valores mais pequenos não são comprimidos (0 desliga a compressão)
+     * @param level    nível do Deflater (1 = mais rápido, 9 = mais pequeno)
+     */
+    public Compression(int minBytes, int level) {
+        this.minBytes = minBytes;
+        this.level = level;
+    }
+
+    public boolean enabled() {
+        return minBytes > 0;
+    }
+
+    /**
+     * Forma guardada de value[offset..offset+length).
+     *
+     * @return os bytes comprimidos, ou null se o valor fica como está
+     */
+    public byte[] encode(byte[] value, int offset, int length) {
+        boolean escape = startsWithMagic(value, offset, length);
+        if (!escape && (minBytes <= 0 || length < minBytes)) {
+            return null;
+        }
+        // Comprimido só se poupar 1/8; um valor que tem de ser escapado cabe sempre
+        int limit = escape ? length + length / 1000 + 64 : length - length / 8;
+        return deflate(value, offset, length, limit);
+    }
+
+    /**
+     * Como encode(), devolvendo value se não for comprimido.
+     */
+    public byte[] encode(byte[] value) {
+        byte[] encoded = encode(value, 0, value.length);
+        return encoded != null ? encoded : value;
+    }
+
+    public static boolean isEncoded(byte[] value) {
+        return value != null && startsWithMagic(value, 0, value.length);
+    }
+
+    /**
+     * Valor original de um valor guardado (o próprio value se não estiver comprimido).
+     *
+     * @throws IllegalStateException se os dados comprimidos estiverem corrompidos
+     */
+    public static byte[] decode(byte[] value) {
+        if (!isEncoded(value)) {
+            return value;
+        }
+        int pos = MAGIC.length;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos == value.length || shift > 28) {
+                throw new IllegalStateException("Valor comprimido inválido.");
+            }
+            byte b = value[pos++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(value, pos, value.length - pos);
+            byte[] original = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(original, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new IllegalStateException("Valor comprimido inválido: " + n + " de " + length + " bytes.");
+            }
+            return original;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Valor comprimido inválido.", e);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    /**
+     * [MAGIC][length][deflate], ou null se os dados comprimidos passarem de limit bytes.
+     */
+    private byte[] deflate(byte[] value, int offset, int length, int limit) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            deflater.setInput(value, offset, length);
+            deflater.finish();
+            int header = MAGIC.length + Protocol.varintSize(length);
+            byte[] out = new byte[header + limit];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == limit) {
+                    return null;
+                }
+                n += deflater.deflate(out, header + n, limit - n);
+            }
+            System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+            int pos = MAGIC.length;
+            int v = length;
+            while ((v & ~0x7F) != 0) {
+                out[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out[pos] = (byte) v;
+            return Arrays.copyOf(out, header + n);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    private static boolean startsWithMagic(byte[] value, int offset, int length) {
+        return length >= MAGIC.length && Arrays.equals(value, offset, offset + MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+}
@@ -0,0 +1,138 @@
+package project;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Palavras-passe guardadas com sal e PBKDF2, e cache das credenciais já
+ * verificadas.
+ *
+ * Cada credencial é "pbkdf2-sha256$iterações$sal$hash" (Base64); é isto que
+ * fica no mapa de utilizadores, no WAL, nos snapshots e na replicação.
+ * Verificar o PBKDF2 é caro de propósito, por isso depois de uma
+ * autenticação certa guarda-se um SHA-256 da palavra-passe com um segredo
+ * aleatório deste processo: as autenticações seguintes do mesmo utilizador
+ * (ex.: muitos clientes a religar ao mesmo tempo) custam um hash. Nada disto
+ * usa locks partilhados.
+ */
+public class Credentials {
+
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int iterations;
+    private final int maxCached;
+    // Só existe em memória; sem ele os digests da cache não servem para nada
+    private final byte[] secret = new byte[32];
+    // username -> credencial verificada e digest da palavra-passe aceite
+    private final Map<String, Verified> verified = new ConcurrentHashMap<>();
+
+    private static final class Verified {
+        final String credential;
+        final byte[] digest;
+
+        Verified(String credential, byte[] digest) {
+            this.credential = credential;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * @param iterations iterações do PBKDF2 nas credenciais novas
+     * @param maxCached  número máximo de utilizadores na cache de verificações (0 desliga)
+     */
+    public Credentials(int iterations, int maxCached) {
+        this.iterations = iterations;
+        this.maxCached = maxCached;
+        random.nextBytes(secret);
+    }
+
+    /**
+     * Credencial a guardar para password, com um sal novo.
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$"
+                + b64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * false para credenciais antigas guardadas em texto (snapshots e WAL de versões anteriores).
+     */
+    public static boolean isHashed(String credential) {
+        return credential.startsWith(PREFIX);
+    }
+
+    /**
+     * true se password corresponde à credencial guardada de username.
+     */
+    public boolean verify(String username, String password, String credential) {
+        byte[] digest = maxCached > 0 ? digest(password) : null;
+        Verified cached = digest != null ? verified.get(username) : null;
+        if (cached != null && cached.credential.equals(credential)) {
+            return MessageDigest.isEqual(cached.digest, digest);
+        }
+        if (!check(password, credential)) {
+            return false;
+        }
+        if (digest != null) {
+            if (verified.size() >= maxCached) {
+                // Sem ordem de uso: sai um utilizador qualquer, que só volta a pagar o PBKDF2
+                Iterator<String> any = verified.keySet().iterator();
+                if (any.hasNext()) {
+                    verified.remove(any.next());
+                }
+            }
+            verified.put(username, new Verified(credential, digest));
+        }
+        return true;
+    }
+
+    private static boolean check(String password, String credential) {
+        if (!isHashed(credential)) {
+            return MessageDigest.isEqual(credential.getBytes(StandardCharsets.UTF_8),
+                    password.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = credential.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[2]);
+        return MessageDigest.isEqual(expected, pbkdf2(password, b64.decode(parts[1]), Integer.parseInt(parts[0])));
+    }
+
+    private byte[] digest(String password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(secret);
+            return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package project;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Um valor guardado num segmento de ficheiro, enviado para o socket com
+ * FileChannel.transferTo() sem passar por um byte[] no heap.
+ *
+ * Enquanto a região estiver aberta o segmento fica "preso" e a compactação não
+ * o recicla; close() liberta-o.
+ */
+public class FileRegion implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final int offset;
+    private final int length;
+    private final AtomicInteger pins;
+    private boolean closed = false;
+
+    FileRegion(FileChannel channel, MappedByteBuffer mapped, int offset, int length, AtomicInteger pins) {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.offset = offset;
+        this.length = length;
+        this.pins = pins;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Cópia do valor para o heap (usada para valores pequenos).
+     */
+    public byte[] readBytes() {
+        byte[] value = new byte[length];
+        mapped.get(offset, value);
+        return value;
+    }
+
+    /**
+     * true se o valor começa por prefix (lido do mapeamento, sem copiar o valor).
+     */
+    public boolean startsWith(byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (mapped.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Envia o valor diretamente do ficheiro para o canal de destino.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long position = offset;
+        long end = (long) offset + length;
+        while (position < end) {
+            position += channel.transferTo(position, end - position, target);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            pins.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Anel de hashing consistente com nós virtuais: cada nó ("host:porta") ocupa
+ * virtualNodes posições no anel e cada chave pertence ao primeiro nó a seguir
+ * à posição do seu hash. Ao juntar um nó só mudam de dono as chaves que passam
+ * a cair nas posições dele (cerca de 1/N do total).
+ *
+ * Imutável: with() devolve um anel novo.
+ */
+public final class HashRing {
+
+    private final int virtualNodes;
+    private final List<String> nodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("O anel precisa de nós e de pelo menos um nó virtual por nó.");
+        }
+        this.virtualNodes = virtualNodes;
+        this.nodes = List.copyOf(new LinkedHashSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int v = 0; v < virtualNodes; v++) {
+                // Colisões (raras) ficam com o primeiro nó, em todos os clientes por igual
+                ring.putIfAbsent(hash(node + "#" + v), node);
+            }
+        }
+    }
+
+    /**
+     * Anel com mais um nó.
+     */
+    public HashRing with(String node) {
+        List<String> updated = new ArrayList<>(nodes);
+        updated.add(node);
+        return new HashRing(updated, virtualNodes);
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Agrupa as chaves pelo nó dono.
+     */
+    public Map<String, Set<String>> partition(Collection<String> keys) {
+        Map<String, Set<String>> byNode = new HashMap<>();
+        for (String key : keys) {
+            byNode.computeIfAbsent(nodeFor(key), n -> new HashSet<>()).add(key);
+        }
+        return byNode;
+    }
+
+    /**
+     * Agrupa os pares pelo nó dono da chave.
+     */
+    public Map<String, Map<String, byte[]>> partition(Map<String, byte[]> pairs) {
+        Map<String, Map<String, byte[]>> byNode = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            byNode.computeIfAbsent(nodeFor(entry.getKey()), n -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        return byNode;
+    }
+
+    /**
+     * FNV-1a de 64 bits sobre o UTF-8, seguido da mistura final do MurmurHash3
+     * (o FNV sozinho espalha mal chaves que só diferem no fim). Tem de ser
+     * igual em todos os clientes, por isso não usa String.hashCode().
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
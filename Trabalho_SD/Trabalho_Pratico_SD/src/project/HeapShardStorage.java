@@ -0,0 +1,67 @@
+package project;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Armazenamento por omissão: um HashMap com os valores em byte[] no heap.
+ */
+public class HeapShardStorage implements ShardStorage {
+
+    private static final class Entry {
+        final byte[] value;
+        final long version;
+
+        Entry(byte[] value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    private final Map<String, Entry> data = new HashMap<>();
+    private long storedBytes = 0;
+
+    @Override
+    public byte[] get(String key) {
+        Entry entry = data.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    @Override
+    public long version(String key) {
+        Entry entry = data.get(key);
+        return entry != null ? entry.version : 0;
+    }
+
+    @Override
+    public boolean put(String key, byte[] value, long version) {
+        Entry old = data.put(key, new Entry(value, version));
+        storedBytes += old == null ? key.length() + value.length : value.length - old.value.length;
+        return old == null;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        Entry old = data.remove(key);
+        if (old == null) {
+            return false;
+        }
+        storedBytes -= key.length() + old.value.length;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public long storedBytes() {
+        return storedBytes;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, byte[]> action) {
+        data.forEach((key, entry) -> action.accept(key, entry.value));
+    }
+}
@@ -0,0 +1,17 @@
+package project;
+
+/**
+ * Observador das alterações a uma chave do armazém (ver ShardedStore.addListener()).
+ */
+@FunctionalInterface
+public interface KeyListener {
+
+    /**
+     * Chamado com o write lock do shard da chave, por isso não pode bloquear
+     * nem voltar a aceder ao armazém.
+     *
+     * @param value novo valor, ou null se a chave não existe
+     * @return false para deixar de ser notificado
+     */
+    boolean changed(String key, byte[] value);
+}
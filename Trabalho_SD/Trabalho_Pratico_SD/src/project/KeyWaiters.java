@@ -0,0 +1,125 @@
+package project;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Leituras condicionais (getWhen), subscrições de chaves (watch) e chaves
+ * seguidas para as caches dos clientes (TrackedKeys) sobre o ShardedStore.
+ *
+ * Assenta nos observadores por chave do armazém: uma escrita só acorda quem
+ * espera pela chave escrita, e nenhuma thread fica parada à espera da
+ * condição. Os resultados são entregues por CompletableFuture/callbacks.
+ */
+public class KeyWaiters {
+
+    private final ShardedStore store;
+    // Novas tentativas de getWhen, feitas fora dos locks do armazém
+    private final ExecutorService retries =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("getWhen-", 0).factory());
+    private final AtomicInteger pendingGetWhen = new AtomicInteger();
+    private final AtomicInteger activeWatches = new AtomicInteger();
+    private final AtomicInteger trackedKeys = new AtomicInteger();
+
+    public KeyWaiters(ShardedStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Valor de key num instante em que condKey tem o valor condValue.
+     *
+     * A verificação e a leitura são feitas com um multiGet atómico; se a
+     * condição não se verifica, fica um observador em condKey que volta a
+     * tentar quando for escrito o valor esperado. Cancelar o future retira o
+     * observador.
+     */
+    public CompletableFuture<byte[]> getWhen(String key, String condKey, byte[] condValue) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        pendingGetWhen.incrementAndGet();
+        result.whenComplete((value, e) -> pendingGetWhen.decrementAndGet());
+        attempt(key, condKey, condValue, result);
+        return result;
+    }
+
+    private void attempt(String key, String condKey, byte[] condValue, CompletableFuture<byte[]> result) {
+        if (result.isDone()) {
+            return;
+        }
+        Set<String> keys = new HashSet<>();
+        keys.add(key);
+        keys.add(condKey);
+        Map<String, byte[]> values = store.multiGet(keys);
+        if (Arrays.equals(values.get(condKey), condValue)) {
+            result.complete(values.get(key));
+            return;
+        }
+
+        KeyListener listener = (k, value) -> {
+            if (result.isDone()) {
+                return false;
+            }
+            if (!Arrays.equals(value, condValue)) {
+                return true;
+            }
+            // A leitura de key pode precisar de outro shard: repete fora do lock
+            retries.execute(() -> attempt(key, condKey, condValue, result));
+            return false;
+        };
+        // Com o valor atual: uma escrita feita depois do multiGet não se perde
+        store.addListener(condKey, listener, true);
+        result.whenComplete((value, e) -> {
+            if (e != null) {
+                store.removeListener(condKey, listener);
+            }
+        });
+    }
+
+    /**
+     * Subscreve key: sink recebe o valor atual (null se não existir) e depois
+     * cada novo valor, pela ordem das escritas. É chamado com o lock do shard,
+     * por isso deve apenas enfileirar o valor.
+     *
+     * @return ação que cancela a subscrição
+     */
+    public Runnable watch(String key, Consumer<byte[]> sink) {
+        AtomicBoolean active = new AtomicBoolean(true);
+        KeyListener listener = (k, value) -> {
+            if (!active.get()) {
+                return false;
+            }
+            sink.accept(value);
+            return true;
+        };
+        activeWatches.incrementAndGet();
+        store.addListener(key, listener, true);
+        return () -> {
+            if (active.compareAndSet(true, false)) {
+                activeWatches.decrementAndGet();
+                store.removeListener(key, listener);
+            }
+        };
+    }
+
+    /**
+     * Chaves seguidas de uma ligação (OP_TRACK): invalidate recebe cada chave
+     * que mudou depois de lida, com o lock do shard (ver TrackedKeys).
+     */
+    public TrackedKeys track(int maxKeys, Consumer<String> invalidate) {
+        return new TrackedKeys(store, maxKeys, trackedKeys, invalidate);
+    }
+
+    public int pendingGetWhen() {
+        return pendingGetWhen.get();
+    }
+
+    public int activeWatches() {
+        return activeWatches.get();
+    }
+
+    public int trackedKeys() {
+        return trackedKeys.get();
+    }
+}
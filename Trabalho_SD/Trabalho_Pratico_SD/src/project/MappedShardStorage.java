@@ -0,0 +1,302 @@
+package project;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Armazenamento de um shard fora do heap, em segmentos de ficheiros mapeados em memória.
+ *
+ * Cada valor é acrescentado ao segmento ativo como [tamanho da chave: int]
+ * [tamanho do valor: int][versão: long][chave UTF-8][valor]; no heap fica apenas o índice
+ * chave -> (segmento, offset), empacotado num long. Um put sobre uma chave
+ * existente deixa o registo antigo como espaço morto; compact() copia os
+ * registos vivos de um segmento muito fragmentado para o segmento ativo e
+ * recicla-o.
+ *
+ * Os ficheiros são apagados logo a seguir a serem mapeados: servem apenas para
+ * o sistema operativo poder tirar páginas da RAM e para enviar valores com
+ * transferTo() (ver FileRegion). A durabilidade continua a ser dada pelo WAL e
+ * pelos snapshots.
+ */
+public class MappedShardStorage implements ShardStorage {
+
+    private static final int HEADER = 16;
+
+    private static class Segment {
+        final int id;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // Regiões abertas sobre este segmento (FileRegion); com pins > 0 não é reciclado
+        final AtomicInteger pins = new AtomicInteger();
+        int writePos = 0;
+        long deadBytes = 0;
+
+        Segment(int id, FileChannel channel, MappedByteBuffer buffer, int capacity) {
+            this.id = id;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    private final Path dir;
+    private final String name;
+    private final int segmentSize;
+    private final double compactRatio;
+
+    // chave -> (id do segmento << 32) | offset do registo
+    private final Map<String, Long> index = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private final Deque<Segment> freeSegments = new ArrayDeque<>();
+    private Segment active;
+    // Bytes dos registos vivos (cabeçalho + chave + valor)
+    private long liveBytes = 0;
+
+    /**
+     * @param compactRatio fração de espaço morto a partir da qual um segmento é compactado
+     */
+    public MappedShardStorage(Path dir, String name, int segmentSize, double compactRatio) {
+        this.dir = dir;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.compactRatio = compactRatio;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        Long location = index.get(key);
+        return location == null ? null : readValue(location);
+    }
+
+    @Override
+    public long version(String key) {
+        Long location = index.get(key);
+        if (location == null) {
+            return 0;
+        }
+        return segments.get((int) (location >>> 32)).buffer.getLong((int) (long) location + 8);
+    }
+
+    @Override
+    public boolean put(String key, byte[] value, long version) {
+        return put(key, value, value.length, version);
+    }
+
+    @Override
+    public boolean put(String key, byte[] buffer, int length, long version) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        long location = append(k, buffer, length, version);
+        liveBytes += HEADER + k.length + length;
+        Long old = index.put(key, location);
+        if (old != null) {
+            liveBytes -= markDead(old);
+        }
+        return old == null;
+    }
+
+    /**
+     * O registo fica como espaço morto, recuperado por compact().
+     */
+    @Override
+    public boolean remove(String key) {
+        Long old = index.remove(key);
+        if (old == null) {
+            return false;
+        }
+        liveBytes -= markDead(old);
+        return true;
+    }
+
+    @Override
+    public boolean copiesValues() {
+        return true;
+    }
+
+    @Override
+    public boolean fileBacked() {
+        return true;
+    }
+
+    /**
+     * Chamado com o read lock do shard; o contador de pins é atómico porque
+     * vários leitores podem abrir regiões ao mesmo tempo.
+     */
+    @Override
+    public FileRegion getRegion(String key) {
+        Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        Segment segment = segments.get((int) (location >>> 32));
+        int offset = (int) (long) location;
+        int keyLength = segment.buffer.getInt(offset);
+        int valueLength = segment.buffer.getInt(offset + 4);
+        segment.pins.incrementAndGet();
+        return new FileRegion(segment.channel, segment.buffer, offset + HEADER + keyLength, valueLength, segment.pins);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public long storedBytes() {
+        return liveBytes;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, byte[]> action) {
+        for (Map.Entry<String, Long> entry : index.entrySet()) {
+            action.accept(entry.getKey(), readValue(entry.getValue()));
+        }
+    }
+
+    /**
+     * Compacta no máximo um segmento por chamada, para limitar o tempo em que o
+     * write lock do shard fica ocupado.
+     */
+    @Override
+    public void compact() {
+        for (Segment segment : segments) {
+            // Segmentos com regiões a serem enviadas ficam para a próxima vez
+            if (segment == active || segment.writePos == 0 || segment.pins.get() > 0) {
+                continue;
+            }
+            if (segment.deadBytes >= segment.writePos) {
+                recycle(segment);
+                return;
+            }
+            if (segment.deadBytes >= segment.writePos * compactRatio) {
+                relocateLive(segment);
+                recycle(segment);
+                return;
+            }
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Segmentos
+    // -----------------------------------------------------------
+    private long append(byte[] key, byte[] value, int valueLength, long version) {
+        int recordSize = HEADER + key.length + valueLength;
+        Segment segment = segmentWithRoom(recordSize);
+        int offset = segment.writePos;
+        MappedByteBuffer buf = segment.buffer;
+        buf.putInt(offset, key.length);
+        buf.putInt(offset + 4, valueLength);
+        buf.putLong(offset + 8, version);
+        buf.put(offset + HEADER, key);
+        buf.put(offset + HEADER + key.length, value, 0, valueLength);
+        segment.writePos += recordSize;
+        return ((long) segment.id << 32) | offset;
+    }
+
+    private Segment segmentWithRoom(int recordSize) {
+        if (active != null && active.capacity - active.writePos >= recordSize) {
+            return active;
+        }
+        Segment reused = null;
+        for (Iterator<Segment> it = freeSegments.iterator(); it.hasNext(); ) {
+            Segment candidate = it.next();
+            if (candidate.capacity >= recordSize) {
+                it.remove();
+                reused = candidate;
+                break;
+            }
+        }
+        active = reused != null ? reused : newSegment(Math.max(segmentSize, recordSize));
+        return active;
+    }
+
+    private Segment newSegment(int capacity) {
+        int id = segments.size();
+        Path file = dir.resolve(String.format("%s-%05d.seg", name, id));
+        FileChannel channel;
+        MappedByteBuffer buffer;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Não foi possível mapear o segmento " + file, e);
+        }
+        try {
+            // O mapeamento e o canal continuam válidos depois de o ficheiro ser apagado
+            Files.delete(file);
+        } catch (IOException e) {
+            file.toFile().deleteOnExit();
+        }
+        Segment segment = new Segment(id, channel, buffer, capacity);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * @return tamanho do registo que passou a espaço morto
+     */
+    private int markDead(long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        int size = recordSize(segment, (int) location);
+        segment.deadBytes += size;
+        return size;
+    }
+
+    private static int recordSize(Segment segment, int offset) {
+        return HEADER + segment.buffer.getInt(offset) + segment.buffer.getInt(offset + 4);
+    }
+
+    private byte[] readValue(long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        int offset = (int) location;
+        int keyLength = segment.buffer.getInt(offset);
+        byte[] value = new byte[segment.buffer.getInt(offset + 4)];
+        segment.buffer.get(offset + HEADER + keyLength, value);
+        return value;
+    }
+
+    /**
+     * Copia para o segmento ativo os registos ainda apontados pelo índice.
+     */
+    private void relocateLive(Segment segment) {
+        // O segmento a compactar não pode receber as suas próprias cópias
+        if (active == segment) {
+            active = null;
+        }
+        int offset = 0;
+        while (offset < segment.writePos) {
+            int keyLength = segment.buffer.getInt(offset);
+            int valueLength = segment.buffer.getInt(offset + 4);
+            long location = ((long) segment.id << 32) | offset;
+            byte[] k = new byte[keyLength];
+            segment.buffer.get(offset + HEADER, k);
+            String key = new String(k, StandardCharsets.UTF_8);
+            Long current = index.get(key);
+            if (current != null && current == location) {
+                byte[] value = new byte[valueLength];
+                segment.buffer.get(offset + HEADER + keyLength, value);
+                index.put(key, append(k, value, valueLength, segment.buffer.getLong(offset + 8)));
+            }
+            offset += HEADER + keyLength + valueLength;
+        }
+    }
+
+    private void recycle(Segment segment) {
+        segment.writePos = 0;
+        segment.deadBytes = 0;
+        freeSegments.add(segment);
+    }
+}
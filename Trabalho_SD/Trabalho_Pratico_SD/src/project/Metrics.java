@@ -0,0 +1,111 @@
+package project;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Métricas do servidor: temporizadores (contador + histograma de latência) por
+ * nome e gauges calculadas a pedido. Expostas pelo comando "stats" do
+ * protocolo e por JMX (ver ServerStats).
+ */
+public final class Metrics {
+
+    private Metrics() {
+    }
+
+    /**
+     * Contador de ocorrências e histograma das respetivas durações.
+     */
+    public static class Timer {
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        /**
+         * Regista a duração desde startNanos (obtido com System.nanoTime()).
+         */
+        public void recordSince(long startNanos) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+
+        public void error() {
+            errors.increment();
+        }
+
+        public long count() {
+            return histogram.count();
+        }
+
+        public long errors() {
+            return errors.sum();
+        }
+
+        public LatencyHistogram histogram() {
+            return histogram;
+        }
+    }
+
+    // Ordenados por nome para o relatório sair sempre pela mesma ordem
+    private static final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static Map<String, Timer> timers() {
+        return Collections.unmodifiableMap(timers);
+    }
+
+    public static Map<String, Long> gaugeValues() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        synchronized (gauges) {
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                values.put(gauge.getKey(), gauge.getValue().getAsLong());
+            }
+        }
+        return values;
+    }
+
+    public static void reset() {
+        for (Timer timer : timers.values()) {
+            timer.histogram.reset();
+            timer.errors.reset();
+        }
+    }
+
+    /**
+     * Relatório em texto simples (uma linha por métrica), usado pelo comando "stats".
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-18s %10s %7s %10s %10s %10s %10s %10s%n",
+                "comando", "n", "erros", "média(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer t = entry.getValue();
+            LatencyHistogram h = t.histogram;
+            sb.append(String.format("%-18s %10d %7d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    entry.getKey(), h.count(), t.errors(), micros(h.meanNanos()),
+                    micros(h.percentileNanos(0.50)), micros(h.percentileNanos(0.99)),
+                    micros(h.percentileNanos(0.999)), micros(h.maxNanos())));
+        }
+        for (Map.Entry<String, Long> gauge : gaugeValues().entrySet()) {
+            sb.append(String.format("%-18s %10d%n", gauge.getKey(), gauge.getValue()));
+        }
+        return sb.toString();
+    }
+
+    static double micros(double nanos) {
+        return nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,40 @@
+package project;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Registo ordenado das mutações aplicadas ao ShardedStore.
+ *
+ * Os métodos são chamados com os locks dos shards afetados ainda adquiridos,
+ * pelo que a ordem do registo coincide com a ordem de aplicação de cada chave.
+ * Devolvem o número de sequência (LSN) atribuído à mutação.
+ */
+public interface MutationLog {
+
+    long logPut(String key, byte[] value);
+
+    /**
+     * Como logPut(key, value), com o valor nos primeiros length bytes de buffer.
+     */
+    default long logPut(String key, byte[] buffer, int length) {
+        return logPut(key, Arrays.copyOf(buffer, length));
+    }
+
+    /**
+     * Um multiPut é registado como uma única entrada, para ser reaplicado de forma atómica.
+     */
+    long logMultiPut(Map<String, byte[]> pairs);
+
+    /**
+     * put com a chave a expirar no instante expiresAt (ms desde a época).
+     */
+    long logPutExpiring(String key, byte[] value, long expiresAt);
+
+    long logMultiPutExpiring(Map<String, byte[]> pairs, long expiresAt);
+
+    /**
+     * Remoção explícita ou por despejo (as expirações não são registadas).
+     */
+    long logDelete(String key);
+}
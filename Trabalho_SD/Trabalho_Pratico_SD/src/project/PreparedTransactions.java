@@ -0,0 +1,463 @@
+package project;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Participante do two-phase commit usado nos multiPut que atravessam vários
+ * nós (ver ClusterClient).
+ *
+ * prepare() reserva as chaves do pedido para a transação e guarda os pares;
+ * se alguma chave já estiver reservada por outra transação o prepare falha
+ * logo (sem esperas, logo sem deadlocks entre coordenadores). commit() aplica
+ * os pares com um multiPut local e liberta as chaves; abort() só as liberta.
+ *
+ * Enquanto uma chave está reservada, as escritas normais nessa chave esperam
+ * pelo fim da transação (awaitUnlocked); as leituras veem o valor anterior.
+ *
+ * Um dos nós da transação é o coordenador: o cliente faz-lhe o commit antes
+ * de todos os outros, e é o commit (ou abort) nesse nó que decide a
+ * transação. Depois de votar sim (prepare), um participante já não aborta por
+ * si: a transação fica no WAL (e nos snapshots) até ao commit ou abort, e se
+ * estes não chegarem em timeoutMillis o participante pergunta o resultado ao
+ * coordenador (queryStatus()), repetindo enquanto não houver resposta. O
+ * coordenador aborta as suas transações preparadas há mais de timeoutMillis;
+ * a uma pergunta sobre uma transação que não conhece responde abortada (e
+ * recusa o prepare dela, se ainda chegar). As decisões de commit ficam
+ * guardadas até o cliente confirmar que todos os nós as aplicaram (forget()).
+ *
+ * stage() prepara a transação em várias partes (multiPut atómico enviado aos
+ * poucos a um só nó, ver ClientLibrary.multiPutStream()); cada parte adia o
+ * prazo. Essas transações não votam: vivem só em memória e são abortadas ao
+ * fim de timeoutMillis.
+ */
+public class PreparedTransactions {
+
+    // Pergunta de um participante ao coordenador, enviada em vez do nome de
+    // utilizador (ver ClientHandler.authenticate()), seguida do segredo do cluster
+    // e do id da transação; a resposta é um byte STATUS_* (nenhuma sem o segredo)
+    public static final String STATUS_QUERY = "\0txn-status";
+    public static final int STATUS_PENDING = 0;
+    public static final int STATUS_COMMITTED = 1;
+    public static final int STATUS_ABORTED = 2;
+
+    // Intervalo entre perguntas ao coordenador de uma transação por decidir
+    private static final long RESOLVE_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int QUERY_TIMEOUT_MS = 2000;
+    // Transações desconhecidas dadas como abortadas (um prepare atrasado é recusado)
+    private static final int MAX_REFUSED = 10_000;
+
+    private static final class Prepared {
+        final Map<String, byte[]> pairs;
+        // null enquanto recebe partes (stage()); "" se este nó é o coordenador;
+        // senão "host:porta" do coordenador
+        final String coordinator;
+        // Protegido por lock (stage() e expire() adiam-no)
+        long deadline;
+
+        Prepared(Map<String, byte[]> pairs, String coordinator, long deadline) {
+            this.pairs = pairs;
+            this.coordinator = coordinator;
+            this.deadline = deadline;
+        }
+
+        boolean voted() {
+            return coordinator != null;
+        }
+    }
+
+    private final long timeoutNanos;
+    // Segredo do cluster, enviado nas perguntas ao coordenador
+    private final String secret;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // Protegido por lock; locked também é lido sem lock no caminho rápido
+    private final Map<String, Prepared> prepared = new HashMap<>();
+    private final Map<String, String> locked = new ConcurrentHashMap<>();
+    // Decisões deste nó como coordenador (protegidas por lock)
+    private final Set<String> committed = new HashSet<>();
+    private final Set<String> refused = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_REFUSED;
+        }
+    });
+    // null com o WAL desligado: as transações preparadas vivem só em memória
+    private volatile WriteAheadLog log;
+
+    public PreparedTransactions(long timeoutMillis, String secret) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.secret = secret;
+    }
+
+    /**
+     * Passa a registar os votos e as decisões no WAL (depois da recuperação).
+     */
+    public void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Vota sim na transação: reserva as chaves e regista a transação no WAL.
+     *
+     * @param coordinator "" se este nó é o coordenador, senão o seu "host:porta"
+     * @return LSN do registo (a resposta só pode sair depois de ele estar em
+     *         disco; 0 sem WAL), ou -1 se a transação já existe ou foi recusada,
+     *         ou alguma chave está reservada por outra
+     */
+    public long prepare(String txId, String coordinator, Map<String, byte[]> pairs) {
+        lock.lock();
+        try {
+            if (prepared.containsKey(txId) || committed.contains(txId) || refused.contains(txId)) {
+                return -1;
+            }
+            for (String key : pairs.keySet()) {
+                if (locked.containsKey(key)) {
+                    return -1;
+                }
+            }
+            for (String key : pairs.keySet()) {
+                locked.put(key, txId);
+            }
+            prepared.put(txId, new Prepared(pairs, coordinator, System.nanoTime() + timeoutNanos));
+            return append(WriteAheadLog.txnPreparedRecord(txId, coordinator, pairs));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acrescenta os pares à transação txId, criando-a se ainda não existir.
+     *
+     * @return false se alguma chave estiver reservada por outra transação, ou
+     *         se txId já votou (prepare())
+     */
+    public boolean stage(String txId, Map<String, byte[]> pairs) {
+        lock.lock();
+        try {
+            Prepared tx = prepared.get(txId);
+            if (tx != null && tx.voted()) {
+                return false;
+            }
+            for (String key : pairs.keySet()) {
+                String owner = locked.get(key);
+                if (owner != null && !owner.equals(txId)) {
+                    return false;
+                }
+            }
+            for (String key : pairs.keySet()) {
+                locked.put(key, txId);
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            if (tx == null) {
+                prepared.put(txId, new Prepared(new HashMap<>(pairs), null, deadline));
+            } else {
+                tx.pairs.putAll(pairs);
+                tx.deadline = deadline;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Regista a decisão, aplica a transação com apply (um multiPut local) e
+     * liberta as chaves.
+     *
+     * @return o resultado de apply (LSN), ou -1 se a transação não existe
+     *         (nunca preparada, já abortada ou expirada)
+     */
+    public long commit(String txId, ToLongFunction<Map<String, byte[]>> apply) {
+        // Tudo com o lock: records() nunca vê a transação já fora do mapa mas
+        // ainda por aplicar (ver Server.takeSnapshot())
+        lock.lock();
+        try {
+            Prepared tx = prepared.remove(txId);
+            if (tx == null) {
+                return -1;
+            }
+            try {
+                if (tx.voted()) {
+                    boolean decision = tx.coordinator.isEmpty();
+                    append(WriteAheadLog.txnCommittedRecord(txId, decision));
+                    if (decision) {
+                        committed.add(txId);
+                    }
+                }
+                return apply.applyAsLong(tx.pairs);
+            } finally {
+                release(tx);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false se a transação não existia
+     */
+    public boolean abort(String txId) {
+        Prepared tx;
+        lock.lock();
+        try {
+            tx = prepared.remove(txId);
+            if (tx != null && tx.voted()) {
+                append(WriteAheadLog.txnAbortedRecord(txId));
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (tx == null) {
+            return false;
+        }
+        release(tx);
+        return true;
+    }
+
+    /**
+     * Resultado de uma transação coordenada por este nó (STATUS_*), pedido por
+     * um participante que votou e não recebeu o commit nem o abort. Só para
+     * quem apresentou o segredo do cluster: uma transação desconhecida passa a
+     * ser recusada.
+     */
+    public int status(String txId) {
+        lock.lock();
+        try {
+            if (prepared.containsKey(txId)) {
+                return STATUS_PENDING;
+            }
+            if (committed.contains(txId)) {
+                return STATUS_COMMITTED;
+            }
+            // Abortada, ou o prepare ainda não chegou: nesse caso passa a ser recusado
+            refused.add(txId);
+            return STATUS_ABORTED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Esquece a decisão de commit de txId, já aplicada em todos os nós.
+     */
+    public void forget(String txId) {
+        lock.lock();
+        try {
+            committed.remove(txId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Prepared tx) {
+        lock.lock();
+        try {
+            for (String key : tx.pairs.keySet()) {
+                locked.remove(key);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long append(byte[] record) {
+        WriteAheadLog wal = log;
+        return wal != null ? wal.append(record) : 0;
+    }
+
+    /**
+     * Chamado periodicamente. Aborta as transações que não votaram (ou de que
+     * este nó é o coordenador) paradas há mais de timeoutMillis; das outras
+     * pergunta o resultado ao coordenador e aplica-o com apply (commit).
+     */
+    public void expire(ToLongFunction<Map<String, byte[]>> apply) {
+        List<String> expired = new ArrayList<>();
+        Map<String, String> inDoubt = new HashMap<>();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            for (Map.Entry<String, Prepared> entry : prepared.entrySet()) {
+                Prepared tx = entry.getValue();
+                if (now - tx.deadline <= 0) {
+                    continue;
+                }
+                if (!tx.voted() || tx.coordinator.isEmpty()) {
+                    expired.add(entry.getKey());
+                } else {
+                    inDoubt.put(entry.getKey(), tx.coordinator);
+                    tx.deadline = now + Math.min(timeoutNanos, RESOLVE_RETRY_NANOS);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (String txId : expired) {
+            if (abort(txId)) {
+                System.out.println("Transação " + txId + " abortada por timeout.");
+            }
+        }
+        for (Map.Entry<String, String> entry : inDoubt.entrySet()) {
+            String txId = entry.getKey();
+            int status;
+            try {
+                status = queryStatus(entry.getValue(), txId);
+            } catch (IOException | RuntimeException e) {
+                // Coordenador indisponível: a transação continua por decidir
+                continue;
+            }
+            if (status == STATUS_COMMITTED && commit(txId, apply) >= 0) {
+                System.out.println("Transação " + txId + " confirmada pelo coordenador " + entry.getValue() + ".");
+            } else if (status == STATUS_ABORTED && abort(txId)) {
+                System.out.println("Transação " + txId + " abortada pelo coordenador " + entry.getValue() + ".");
+            }
+        }
+    }
+
+    /**
+     * Pergunta ao coordenador ("host:porta") o resultado da transação txId.
+     *
+     * @return um dos STATUS_*
+     */
+    private int queryStatus(String coordinator, String txId) throws IOException {
+        int colon = coordinator.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(coordinator.substring(0, colon),
+                    Integer.parseInt(coordinator.substring(colon + 1))), QUERY_TIMEOUT_MS);
+            socket.setSoTimeout(QUERY_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // "Insira o seu nome de utilizador:"
+            in.readUTF();
+            out.writeUTF(STATUS_QUERY);
+            out.writeUTF(secret);
+            out.writeUTF(txId);
+            out.flush();
+            return in.readUnsignedByte();
+        }
+    }
+
+    /**
+     * Registos do WAL que repõem as transações votadas e as decisões de commit
+     * (guardados no snapshot, porque os segmentos onde estavam são apagados).
+     */
+    public List<byte[]> records() {
+        lock.lock();
+        try {
+            List<byte[]> records = new ArrayList<>();
+            for (Map.Entry<String, Prepared> entry : prepared.entrySet()) {
+                Prepared tx = entry.getValue();
+                if (tx.voted()) {
+                    records.add(WriteAheadLog.txnPreparedRecord(entry.getKey(), tx.coordinator, tx.pairs));
+                }
+            }
+            for (String txId : committed) {
+                records.add(WriteAheadLog.txnCommittedRecord(txId, true));
+            }
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Recuperação (registos do snapshot e do WAL, antes de aceitar pedidos)
+    // -----------------------------------------------------------
+    public void recoverPrepared(String txId, String coordinator, Map<String, byte[]> pairs) {
+        lock.lock();
+        try {
+            // O mesmo voto pode vir do snapshot e do segmento seguinte
+            Prepared old = prepared.remove(txId);
+            if (old != null) {
+                release(old);
+            }
+            for (String key : pairs.keySet()) {
+                locked.put(key, txId);
+            }
+            prepared.put(txId, new Prepared(pairs, coordinator, System.nanoTime() + timeoutNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reaplica o commit (a escrita dos pares pode não ter chegado ao WAL).
+     */
+    public void recoverCommitted(String txId, boolean decision, ToLongFunction<Map<String, byte[]>> apply) {
+        lock.lock();
+        try {
+            Prepared tx = prepared.remove(txId);
+            if (tx != null) {
+                apply.applyAsLong(tx.pairs);
+                release(tx);
+            }
+            if (decision) {
+                committed.add(txId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recoverAborted(String txId) {
+        lock.lock();
+        try {
+            Prepared tx = prepared.remove(txId);
+            if (tx != null) {
+                release(tx);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera até nenhuma das chaves estar reservada por uma transação.
+     */
+    public void awaitUnlocked(Collection<String> keys) {
+        if (locked.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (anyLocked(keys)) {
+                released.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void awaitUnlocked(String key) {
+        if (locked.isEmpty() || !locked.containsKey(key)) {
+            return;
+        }
+        awaitUnlocked(List.of(key));
+    }
+
+    private boolean anyLocked(Collection<String> keys) {
+        for (String key : keys) {
+            if (locked.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int pending() {
+        lock.lock();
+        try {
+            return prepared.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
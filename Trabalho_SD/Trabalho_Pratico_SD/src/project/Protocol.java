@@ -0,0 +1,309 @@
+package project;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo binário v2 (negociado com o comando v1 "v2" depois da sessão obtida).
+ *
+ * Pedido:   [opcode: 1 byte][correlation ID: varint][tamanho do payload: varint][payload]
+ * Resposta: [correlation ID: varint][status: 1 byte][tamanho do payload: varint][payload]
+ *
+ * Dentro do payload, chaves e valores são escritos como [tamanho: varint][bytes];
+ * as chaves vão em UTF-8, sem o limite de 64 KB do writeUTF. O último campo de
+ * um payload pode omitir o tamanho (ocupa o resto do frame), como o valor do PUT
+ * e o valor devolvido pelo GET.
+ *
+ * O correlation ID 0 não é usado pelos pedidos: uma resposta com ID 0 é um
+ * aviso do servidor (STATUS_GOING_AWAY).
+ */
+public final class Protocol {
+
+    private Protocol() {
+    }
+
+    // Comando v1 que negoceia a passagem para o protocolo v2
+    public static final String NEGOTIATE_V2 = "v2";
+
+    // Respostas v1 das escritas aceites; outra mensagem é a razão da recusa
+    public static final String PUT_OK = "Chave-valor inseridos/atualizados com sucesso.";
+    public static final String MULTI_PUT_OK = "Pares chave-valor inseridos/atualizados atomicamente.";
+    public static final String DELETED = "Chave removida.";
+    public static final String NOT_FOUND = "Chave não encontrada.";
+
+    // -----------------------------------------------------------
+    // Opcodes
+    // -----------------------------------------------------------
+    public static final int OP_PUT = 0x01;        // chave, valor (resto do frame)
+    public static final int OP_GET = 0x02;        // chave
+    public static final int OP_MULTI_PUT = 0x03;  // n, n x (chave, valor)
+    public static final int OP_MULTI_GET = 0x04;  // n, n x chave
+    public static final int OP_STATS = 0x05;      // sem payload; resposta: relatório em texto UTF-8
+    public static final int OP_GET_WHEN = 0x06;   // chave, chave da condição, valor da condição (resto do frame)
+    public static final int OP_WATCH = 0x07;      // chave; várias respostas, uma por escrita
+    public static final int OP_UNWATCH = 0x08;    // correlation ID do watch (varint)
+    public static final int OP_PING = 0x09;       // sem payload; resposta OK vazia
+    public static final int OP_PREPARE = 0x0A;    // id da transação, coordenador, n, n x (chave, valor);
+                                                  // ver PreparedTransactions
+    public static final int OP_COMMIT = 0x0B;     // id da transação
+    public static final int OP_ABORT = 0x0C;      // id da transação
+    public static final int OP_DUMP_SHARD = 0x0D; // índice do shard; resposta: n, n x (chave, TTL restante em ms
+                                                  // (8 bytes)) e depois como a do MULTI_GET (NOT_FOUND depois do último)
+    public static final int OP_SCAN = 0x0E;       // início, fim (vazio = sem limite), flags, máximo de pares;
+                                                  // resposta: [há mais: 1 byte] e pares como no MULTI_GET, por ordem
+    public static final int OP_STAGE = 0x0F;      // id da transação, n, n x (chave, valor); acrescenta os pares
+                                                  // a uma transação enviada em partes (sem coordenador)
+    public static final int OP_GET_VERSIONED = 0x10; // chave; resposta: [versão: 8 bytes][valor (resto do frame)]
+    public static final int OP_CAS = 0x11;        // chave, versão esperada (8 bytes), valor (resto do frame);
+                                                  // resposta: [versão nova: 8 bytes], ou CONFLICT
+    public static final int OP_TXN = 0x12;        // n, n x (chave, versão lida: 8 bytes), m, m x (chave, valor);
+                                                  // resposta: OK, ou CONFLICT se alguma versão mudou
+    public static final int OP_DELETE = 0x13;     // chave; resposta OK, ou NOT_FOUND se não existia
+    public static final int OP_PUT_TTL = 0x14;    // chave, TTL em ms (8 bytes), valor (resto do frame)
+    public static final int OP_MULTI_PUT_TTL = 0x15; // TTL em ms (8 bytes), n, n x (chave, valor)
+    public static final int OP_TRACK = 0x16;      // sem payload; segue as chaves lidas por GET/MULTI_GET desta
+                                                  // ligação: várias respostas [n][n x chave], n = 0 na primeira
+    public static final int OP_COMPRESSED_VALUES = 0x17; // sem payload; depois da resposta OK, os valores das
+                                                  // respostas vão como estão guardados (ver Compression)
+    public static final int OP_FORGET = 0x18;     // id da transação; o coordenador esquece a decisão de commit
+                                                  // (já aplicada em todos os nós, ver PreparedTransactions)
+    public static final int OP_PEER = 0x19;       // segredo do cluster (server.cluster.secret); a ligação passa a
+                                                  // poder usar PREPARE, FORGET, DUMP_SHARD e COMMIT/ABORT de
+                                                  // transações de outras ligações; FORBIDDEN se não for o segredo
+    public static final int OP_LOGOUT = 0x7F;     // sem payload e sem resposta
+
+    // Flags do OP_SCAN
+    public static final int SCAN_EXCLUSIVE_START = 0x01;
+
+    // -----------------------------------------------------------
+    // Códigos de estado das respostas
+    // -----------------------------------------------------------
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_NOT_FOUND = 1;
+    public static final int STATUS_BAD_REQUEST = 2;
+    public static final int STATUS_UNKNOWN_OP = 3;
+    public static final int STATUS_ERROR = 4;
+    public static final int STATUS_READ_ONLY = 5;  // escrita enviada a uma réplica
+    public static final int STATUS_STALE = 6;      // réplica mais atrasada do que o permitido
+    public static final int STATUS_CONFLICT = 7;   // prepare com chaves reservadas por outra transação,
+                                                   // ou cas/txn com uma versão que já mudou
+    public static final int STATUS_GOING_AWAY = 8; // aviso (correlation ID 0, mensagem no payload): o servidor
+                                                   // vai terminar; o cliente espera pelas respostas em curso,
+                                                   // envia OP_LOGOUT e volta a ligar
+    public static final int STATUS_FORBIDDEN = 9;  // operação entre nós numa ligação sem OP_PEER
+
+    public static String statusName(int status) {
+        switch (status) {
+            case STATUS_OK:
+                return "OK";
+            case STATUS_NOT_FOUND:
+                return "NOT_FOUND";
+            case STATUS_BAD_REQUEST:
+                return "BAD_REQUEST";
+            case STATUS_UNKNOWN_OP:
+                return "UNKNOWN_OP";
+            case STATUS_ERROR:
+                return "ERROR";
+            case STATUS_READ_ONLY:
+                return "READ_ONLY";
+            case STATUS_STALE:
+                return "STALE";
+            case STATUS_CONFLICT:
+                return "CONFLICT";
+            case STATUS_GOING_AWAY:
+                return "GOING_AWAY";
+            case STATUS_FORBIDDEN:
+                return "FORBIDDEN";
+            default:
+                return "STATUS_" + status;
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Varints (7 bits por byte, bit mais alto = continua)
+    // -----------------------------------------------------------
+    public static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint malformado.");
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    // -----------------------------------------------------------
+    // Campos com tamanho (chaves e valores)
+    // -----------------------------------------------------------
+    public static byte[] encodeKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String decodeKey(byte[] key) {
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * true se os primeiros length bytes de key são ASCII (um char da String por byte).
+     */
+    public static boolean isAscii(byte[] key, int length) {
+        for (int i = 0; i < length; i++) {
+            if (key[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * hashCode() da String de uma chave ASCII (primeiros length bytes de key),
+     * sem a criar.
+     */
+    public static int asciiKeyHash(byte[] key, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + key[i];
+        }
+        return h;
+    }
+
+    public static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Número de bytes ocupados por um campo [tamanho: varint][bytes].
+     */
+    public static int fieldSize(byte[] bytes) {
+        return varintSize(bytes.length) + bytes.length;
+    }
+
+    // -----------------------------------------------------------
+    // Leitura de payloads
+    // -----------------------------------------------------------
+    /**
+     * Lê os campos de um payload diretamente do stream, sem o copiar para um
+     * buffer intermédio, controlando quantos bytes ainda restam no frame.
+     */
+    public static class FrameReader {
+        private final DataInputStream in;
+        private int remaining;
+
+        public FrameReader(DataInputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        public int remaining() {
+            return remaining;
+        }
+
+        public int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                consume(1);
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("Varint malformado.");
+        }
+
+        public long readLong() throws IOException {
+            consume(8);
+            return in.readLong();
+        }
+
+        public byte[] readBytes(int length) throws IOException {
+            if (length < 0) {
+                throw new ProtocolException("Comprimento inválido: " + length);
+            }
+            consume(length);
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        /**
+         * Lê length bytes para o início de um buffer fornecido pelo chamador.
+         */
+        public void readFully(byte[] buffer, int length) throws IOException {
+            if (length < 0 || length > buffer.length) {
+                throw new ProtocolException("Comprimento inválido: " + length);
+            }
+            consume(length);
+            in.readFully(buffer, 0, length);
+        }
+
+        /**
+         * Lê um campo [tamanho: varint][bytes].
+         */
+        public byte[] readField() throws IOException {
+            return readBytes(readVarint());
+        }
+
+        public String readKey() throws IOException {
+            return decodeKey(readField());
+        }
+
+        /**
+         * Lê o resto do frame (último campo, sem tamanho explícito).
+         */
+        public byte[] readRest() throws IOException {
+            return readBytes(remaining);
+        }
+
+        /**
+         * Descarta o que faltar ler do frame, para manter o stream sincronizado.
+         */
+        public void skipRest() throws IOException {
+            while (remaining > 0) {
+                int skipped = in.skipBytes(remaining);
+                if (skipped <= 0) {
+                    in.readByte();
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+
+        private void consume(int n) throws ProtocolException {
+            if (n > remaining) {
+                throw new ProtocolException("Frame truncado: faltam " + (n - remaining) + " bytes.");
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Pedido mal formado: o frame é descartado e responde-se com BAD_REQUEST,
+     * sem fechar a ligação.
+     */
+    public static class ProtocolException extends IOException {
+        public ProtocolException(String message) {
+            super(message);
+        }
+    }
+}
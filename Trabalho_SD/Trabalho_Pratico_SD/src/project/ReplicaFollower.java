@@ -0,0 +1,138 @@
+package project;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lado réplica da replicação: liga-se à porta de replicação do primário e
+ * aplica, por ordem, os registos recebidos (ver ReplicationSource).
+ *
+ * Se a ligação cair, volta a ligar com a última sequência aplicada e recebe
+ * só o que falta (ou uma cópia completa, se já não estiver no backlog).
+ *
+ * Staleness: um heartbeat do primário garante que todos os registos até à
+ * sequência nele indicada já foram aplicados. O atraso da réplica é o tempo
+ * desde o último heartbeat (infinito enquanto não houver uma cópia completa).
+ */
+public class ReplicaFollower {
+
+    private static final long RETRY_MIN_MS = 200;
+    private static final long RETRY_MAX_MS = 5000;
+    // Sem nada do primário durante este tempo (nem heartbeats), a ligação é dada como perdida
+    private static final int READ_TIMEOUT_MS = 10_000;
+
+    private final String host;
+    private final int port;
+    private final String secret;
+    private final WriteAheadLog.RecordHandler apply;
+
+    // Escritos só pela thread da replicação
+    private volatile long runId = 0;
+    private volatile long appliedSeq = -1;
+    private volatile boolean synced = false;
+    private volatile long lastHeartbeatNanos;
+
+    /**
+     * @param apply aplica cada registo recebido (os mesmos registos do WAL)
+     */
+    public ReplicaFollower(String host, int port, String secret, WriteAheadLog.RecordHandler apply) {
+        this.host = host;
+        this.port = port;
+        this.secret = secret;
+        this.apply = apply;
+    }
+
+    /**
+     * Lança a thread (daemon) que acompanha o primário.
+     */
+    public void start() {
+        Thread t = new Thread(this::run, "replica-follower");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void run() {
+        long retryMs = RETRY_MIN_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), (int) RETRY_MAX_MS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                System.out.println("Ligado ao primário " + host + ":" + port + " (sequência " + appliedSeq + ")");
+                retryMs = RETRY_MIN_MS;
+                follow(socket);
+            } catch (IOException e) {
+                System.out.println("Replicação interrompida: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(retryMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryMs = Math.min(RETRY_MAX_MS, retryMs * 2);
+        }
+    }
+
+    private void follow(Socket socket) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeUTF(ReplicationSource.HELLO);
+        out.writeUTF(secret);
+        out.writeLong(runId);
+        out.writeLong(synced ? appliedSeq : -1);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        while (true) {
+            int frame = in.readUnsignedByte();
+            switch (frame) {
+                case ReplicationSource.FRAME_RECORD: {
+                    long seq = in.readLong();
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    WriteAheadLog.applyRecord(record, apply);
+                    if (seq > 0) {
+                        appliedSeq = seq;
+                    }
+                    break;
+                }
+                case ReplicationSource.FRAME_SNAPSHOT:
+                    // Até ao fim da cópia o estado é uma mistura de antes e depois
+                    synced = false;
+                    lastHeartbeatNanos = 0;
+                    runId = in.readLong();
+                    System.out.println("A copiar o estado completo do primário...");
+                    break;
+                case ReplicationSource.FRAME_SYNCED:
+                    appliedSeq = in.readLong();
+                    synced = true;
+                    System.out.println("Cópia completa recebida (sequência " + appliedSeq + ")");
+                    break;
+                case ReplicationSource.FRAME_HEARTBEAT:
+                    in.readLong();
+                    lastHeartbeatNanos = System.nanoTime();
+                    break;
+                case ReplicationSource.FRAME_ERROR:
+                    throw new IOException(in.readUTF());
+                default:
+                    throw new IOException("Mensagem de replicação desconhecida: " + frame);
+            }
+        }
+    }
+
+    /**
+     * Tempo desde a última confirmação de que a réplica estava em dia com o
+     * primário (Long.MAX_VALUE antes da primeira cópia completa).
+     */
+    public long stalenessMillis() {
+        if (!synced || lastHeartbeatNanos == 0) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeartbeatNanos);
+    }
+
+    public long appliedSeq() {
+        return appliedSeq;
+    }
+}
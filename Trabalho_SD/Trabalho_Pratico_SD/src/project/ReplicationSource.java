@@ -0,0 +1,301 @@
+package project;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lado primário da replicação: publica a sequência ordenada de mutações para
+ * as réplicas (ver ReplicaFollower).
+ *
+ * Fica no lugar do MutationLog do ShardedStore; cada mutação é codificada uma
+ * vez (no formato dos registos do WAL), passada ao WAL, se existir, e guardada
+ * num backlog circular com o seu número de sequência. Os registos de
+ * utilizadores seguem pelo mesmo caminho (logUser).
+ *
+ * Cada réplica liga-se à porta de replicação e indica a última sequência que
+ * aplicou (e de que execução do primário). Se ainda estiver no backlog, recebe
+ * só o que falta; senão recebe uma cópia completa (utilizadores e shards, um a
+ * um) seguida dos registos desde o início da cópia. Como os registos são puts (o último ganha), reaplicar um
+ * registo já incluído na cópia não altera o resultado final.
+ *
+ * A replicação é assíncrona: o primário não espera pelas réplicas.
+ *
+ * Mensagens do primário para a réplica:
+ *   [FRAME_RECORD][seq: long][tamanho: int][registo]  (seq 0 durante a cópia)
+ *   [FRAME_SNAPSHOT][execução: long]                  início de uma cópia completa
+ *   [FRAME_SYNCED][seq: long]                         fim da cópia, estado = seq
+ *   [FRAME_HEARTBEAT][seq: long]                      todos os registos até seq já foram enviados
+ *   [FRAME_ERROR][mensagem: UTF]
+ */
+public class ReplicationSource implements MutationLog, Closeable {
+
+    static final String HELLO = "replicate";
+    static final int FRAME_RECORD = 1;
+    static final int FRAME_SNAPSHOT = 2;
+    static final int FRAME_SYNCED = 3;
+    static final int FRAME_HEARTBEAT = 4;
+    static final int FRAME_ERROR = 5;
+
+    private final WriteAheadLog wal;
+    private final ShardedStore store;
+    private final Map<String, String> users;
+    private final String secret;
+    private final long heartbeatNanos;
+    // Identifica esta execução: as sequências recomeçam quando o primário reinicia
+    private final long runId = new Random().nextLong();
+
+    // Backlog: o registo com sequência s está em ring[s % ring.length]
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final byte[][] ring;
+    private long lastSeq = 0;
+
+    private final AtomicInteger replicas = new AtomicInteger();
+    private ServerSocket listener;
+
+    /**
+     * @param wal      WAL a que as mutações também são entregues (null sem WAL)
+     * @param backlog  número de registos guardados para réplicas que voltam a ligar
+     */
+    public ReplicationSource(WriteAheadLog wal, ShardedStore store, Map<String, String> users,
+                             String secret, int backlog, long heartbeatMillis) {
+        if (backlog <= 0 || heartbeatMillis <= 0) {
+            throw new IllegalArgumentException("Configuração de replicação inválida: " + backlog + ", " + heartbeatMillis);
+        }
+        this.wal = wal;
+        this.store = store;
+        this.users = users;
+        this.secret = secret;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        this.ring = new byte[backlog][];
+    }
+
+    // -----------------------------------------------------------
+    // MutationLog
+    // -----------------------------------------------------------
+    @Override
+    public long logPut(String key, byte[] value) {
+        return logPut(key, value, value.length);
+    }
+
+    @Override
+    public long logPut(String key, byte[] buffer, int length) {
+        return publish(WriteAheadLog.putRecord(key, buffer, length));
+    }
+
+    @Override
+    public long logMultiPut(Map<String, byte[]> pairs) {
+        return publish(WriteAheadLog.multiPutRecord(pairs));
+    }
+
+    @Override
+    public long logPutExpiring(String key, byte[] value, long expiresAt) {
+        return publish(WriteAheadLog.putExpiringRecord(key, value, expiresAt));
+    }
+
+    @Override
+    public long logMultiPutExpiring(Map<String, byte[]> pairs, long expiresAt) {
+        return publish(WriteAheadLog.multiPutExpiringRecord(pairs, expiresAt));
+    }
+
+    @Override
+    public long logDelete(String key) {
+        return publish(WriteAheadLog.deleteRecord(key));
+    }
+
+    /**
+     * @return LSN no WAL (0 sem WAL), para usar com awaitDurable()
+     */
+    public long logUser(String username, String password) {
+        return publish(WriteAheadLog.userRecord(username, password));
+    }
+
+    private long publish(byte[] record) {
+        long lsn = wal != null ? wal.append(record) : 0;
+        lock.lock();
+        try {
+            lastSeq++;
+            ring[(int) (lastSeq % ring.length)] = record;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return lsn;
+    }
+
+    public long lastSeq() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int replicas() {
+        return replicas.get();
+    }
+
+    // -----------------------------------------------------------
+    // Ligações das réplicas
+    // -----------------------------------------------------------
+    /**
+     * Aceita réplicas na porta dada, cada uma servida por uma virtual thread.
+     */
+    public void listen(int port) throws IOException {
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(port));
+        Thread.ofVirtual().name("replication-accept").start(() -> {
+            while (!listener.isClosed()) {
+                try {
+                    Socket socket = listener.accept();
+                    Thread.ofVirtual().name("replication-" + socket.getRemoteSocketAddress()).start(() -> serve(socket));
+                } catch (IOException e) {
+                    if (!listener.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    private void serve(Socket socket) {
+        String replica = socket.getRemoteSocketAddress().toString();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            if (!in.readUTF().equals(HELLO) || !in.readUTF().equals(secret)) {
+                out.writeByte(FRAME_ERROR);
+                out.writeUTF("Pedido de replicação recusado.");
+                out.flush();
+                return;
+            }
+            long replicaRun = in.readLong();
+            long applied = in.readLong();
+            if (replicaRun != runId) {
+                // Sequência de outra execução do primário: só serve uma cópia completa
+                applied = -1;
+            }
+            replicas.incrementAndGet();
+            try {
+                System.out.println("Réplica ligada: " + replica + " (sequência " + applied + ")");
+                stream(out, applied);
+            } finally {
+                replicas.decrementAndGet();
+            }
+        } catch (IOException e) {
+            // Réplica desligou-se ou ficou para trás do backlog; volta a ligar sozinha
+        }
+        System.out.println("Réplica desligada: " + replica);
+    }
+
+    /**
+     * Envia os registos a seguir a applied (ou uma cópia completa, se já não
+     * estiverem no backlog) e depois acompanha os novos registos até a ligação cair.
+     */
+    private void stream(DataOutputStream out, long applied) throws IOException {
+        long next;
+        lock.lock();
+        try {
+            next = inBacklog(applied + 1) ? applied + 1 : -1;
+        } finally {
+            lock.unlock();
+        }
+        if (next < 0) {
+            next = sendSnapshot(out) + 1;
+        }
+
+        long lastHeartbeat = 0;
+        List<byte[]> batch = new ArrayList<>();
+        while (true) {
+            long upTo;
+            lock.lock();
+            try {
+                if (next > lastSeq) {
+                    appended.awaitNanos(heartbeatNanos);
+                }
+                if (!inBacklog(next)) {
+                    throw new IOException("A réplica ficou para trás do backlog.");
+                }
+                upTo = lastSeq;
+                for (long s = next; s <= upTo && batch.size() < 1024; s++) {
+                    batch.add(ring[(int) (s % ring.length)]);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            for (byte[] record : batch) {
+                writeRecord(out, next++, record);
+            }
+            batch.clear();
+            long now = System.nanoTime();
+            if (next > upTo && now - lastHeartbeat >= heartbeatNanos) {
+                out.writeByte(FRAME_HEARTBEAT);
+                out.writeLong(upTo);
+                lastHeartbeat = now;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * true se o registo seq ainda está no backlog (ou é o próximo a ser escrito).
+     * Chamado com lock.
+     */
+    private boolean inBacklog(long seq) {
+        return seq >= 1 && seq <= lastSeq + 1 && seq > lastSeq - ring.length;
+    }
+
+    /**
+     * Cópia completa: utilizadores e chaves, shard a shard.
+     *
+     * @return sequência a partir da qual os registos seguintes completam a cópia
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long start = lastSeq();
+        out.writeByte(FRAME_SNAPSHOT);
+        out.writeLong(runId);
+        for (Map.Entry<String, String> user : users.entrySet()) {
+            writeRecord(out, 0, WriteAheadLog.userRecord(user.getKey(), user.getValue()));
+        }
+        Map<String, Long> expiries = new HashMap<>();
+        for (int i = 0; i < store.shardCount(); i++) {
+            expiries.clear();
+            for (Map.Entry<String, byte[]> entry : store.copyShard(i, expiries)) {
+                byte[] value = entry.getValue();
+                Long expiresAt = expiries.get(entry.getKey());
+                writeRecord(out, 0, expiresAt != null
+                        ? WriteAheadLog.putExpiringRecord(entry.getKey(), value, expiresAt)
+                        : WriteAheadLog.putRecord(entry.getKey(), value, value.length));
+            }
+        }
+        out.writeByte(FRAME_SYNCED);
+        out.writeLong(start);
+        return start;
+    }
+
+    private static void writeRecord(DataOutputStream out, long seq, byte[] record) throws IOException {
+        out.writeByte(FRAME_RECORD);
+        out.writeLong(seq);
+        out.writeInt(record.length);
+        out.write(record);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (listener != null) {
+            listener.close();
+        }
+    }
+}
@@ -1,68 +1,661 @@
 package project;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class Server {
-    // Ajuste aqui conforme desejar o limite de sessões concorrentes
-    public static final int MAX_SESSIONS = 2;
+    // Limite de sessões concorrentes (configurável com -Dserver.maxSessions=N); com
+    // admissão adaptativa é o limite inicial, ajustado (AIMD) entre minSessions e
+    // maxSessions conforme a latência média dos pedidos (ver AdmissionController)
+    public static final int MAX_SESSIONS = Integer.getInteger("server.maxSessions", 2);
+    private static final boolean ADMISSION_ADAPTIVE =
+            Boolean.parseBoolean(System.getProperty("server.admission.adaptive", "false"));
+    private static final int ADMISSION_MIN_SESSIONS = Integer.getInteger("server.admission.minSessions", 1);
+    private static final int ADMISSION_MAX_SESSIONS = Integer.getInteger("server.admission.maxSessions", 256);
+    private static final long ADMISSION_TARGET_US = Long.getLong("server.admission.targetLatencyMicros", 5000);
+    private static final long ADMISSION_INTERVAL_MS = Long.getLong("server.admission.intervalMs", 1000);
+    // Fila de espera limitada: os clientes a mais, ou à espera há mais de queueTimeoutMs
+    // (0 sem limite), recebem "Sessão recusada"; userQuota limita as sessões por utilizador
+    private static final int ADMISSION_MAX_QUEUE = Integer.getInteger("server.admission.maxQueue", 1024);
+    private static final long QUEUE_TIMEOUT_MS = Long.getLong("server.admission.queueTimeoutMs", 60_000);
+    private static final int USER_QUOTA = Integer.getInteger("server.admission.userQuota", 0);
+    // Sessões sem pedidos há idleTimeoutMs são terminadas quando há clientes em fila (0 desliga)
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("server.session.idleTimeoutMs", 300_000);
+    // Paragem (SIGTERM ou JMX): prazo para as sessões ativas terminarem os pedidos em curso
+    private static final long SHUTDOWN_DRAIN_MS = Long.getLong("server.shutdown.drainMs", 10_000);
 
-    // Utilizadores registados (username -> password)
-    private static Map<String, String> users = new HashMap<>();
+    // Porta de escuta e tamanho da fila de ligações pendentes do accept()
+    public static final int PORT = Integer.getInteger("server.port", 12345);
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("server.backlog", 1024);
 
-    // Armazém de dados (chave -> valor em bytes)
-    private static Map<String, byte[]> dataStore = new HashMap<>();
+    // Motor de execução das ligações: "virtual" (por omissão) ou "platform"
+    public static final String ENGINE = System.getProperty("server.engine", "virtual");
+
+    // Limites de tamanho: um prefixo de comprimento inválido não pode esgotar a memória
+    public static final int MAX_VALUE_BYTES = Integer.getInteger("server.maxValueBytes", 64 << 20);
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("server.maxFrameBytes", 256 << 20);
+
+    // Valores a partir deste tamanho são enviados do ficheiro para o socket com
+    // transferTo() (só com armazenamento "mapped")
+    public static final int ZERO_COPY_MIN_BYTES = Integer.getInteger("server.zeroCopyMinBytes", 64 << 10);
+
+    // Buffers reutilizáveis para ler valores recebidos quando o armazenamento os copia
+    public static final BufferPool valueBuffers = new BufferPool(
+            Integer.getInteger("server.bufferPool.maxBytes", 1 << 20),
+            Integer.getInteger("server.bufferPool.perClass", 64));
+
+    // Compressão dos valores (ver Compression): os que têm pelo menos compression.minBytes
+    // (0 desliga) são guardados comprimidos com o nível compression.level do Deflater
+    public static final Compression compression = new Compression(
+            Integer.getInteger("server.compression.minBytes", 0),
+            Integer.getInteger("server.compression.level", 1));
+
+    // Utilizadores registados (username -> credencial, ver Credentials); mapa concorrente, sem lock global
+    private static final Map<String, String> users = new ConcurrentHashMap<>();
+
+    // Iterações do PBKDF2 nas palavras-passe novas e nº de utilizadores com a
+    // verificação em cache (as autenticações seguintes não repetem o PBKDF2)
+    private static final Credentials credentials = new Credentials(
+            Integer.getInteger("server.auth.iterations", 100_000),
+            Integer.getInteger("server.auth.cacheSize", 10_000));
+
+    // Durabilidade: diretório de dados e modo do WAL
+    //  - "sync":  a resposta a um put só sai depois do fsync do lote (group commit)
+    //  - "async": o WAL é escrito em segundo plano, sem atrasar as respostas
+    //  - "off":   sem WAL nem snapshots (tudo em memória, como antes)
+    public static final Path DATA_DIR = Paths.get(System.getProperty("server.dataDir", "data"));
+    public static final String WAL_MODE = System.getProperty("server.wal", "sync");
+    private static final long WAL_SYNC_INTERVAL_MS = Long.getLong("server.wal.syncIntervalMs", 2);
+    private static final int WAL_SYNC_RECORDS = Integer.getInteger("server.wal.syncRecords", 512);
+    private static final long SNAPSHOT_INTERVAL_SEC = Long.getLong("server.snapshot.intervalSec", 60);
+
+    // Replicação primário/réplicas (ver ReplicationSource e ReplicaFollower)
+    //  - replication.port: porta onde o primário aceita réplicas (0 = sem replicação)
+    //  - replicaOf: "host:porta" de replicação do primário; o servidor passa a ser
+    //    uma réplica só de leitura, sem WAL próprio (copia o estado ao arrancar)
+    //  - replica.maxStalenessMs: acima deste atraso a réplica recusa leituras
+    public static final int REPLICATION_PORT = Integer.getInteger("server.replication.port", 0);
+    public static final String REPLICA_OF = System.getProperty("server.replicaOf", "");
+    private static final String REPLICATION_SECRET = System.getProperty("server.replication.secret", "");
+    private static final int REPLICATION_BACKLOG = Integer.getInteger("server.replication.backlog", 100_000);
+    private static final long REPLICATION_HEARTBEAT_MS = Long.getLong("server.replication.heartbeatMs", 100);
+    public static final long REPLICA_MAX_STALENESS_MS = Long.getLong("server.replica.maxStalenessMs", 1000);
+
+    // Número de shards do armazém de dados (configurável com -Dserver.shards=N)
+    public static final int NUM_SHARDS = Integer.getInteger("server.shards", 64);
+
+    // Armazenamento dos valores de cada shard
+    //  - "heap":   byte[] no heap (por omissão)
+    //  - "mapped": segmentos de ficheiros mapeados em memória, fora do heap
+    //  - "compact": chaves em UTF-8 e valores em páginas byte[], sem objetos por
+    //    entrada (para muitas chaves pequenas; ver CompactShardStorage)
+    public static final String STORAGE = System.getProperty("server.storage", "heap");
+    private static final Path STORAGE_DIR = Paths.get(System.getProperty("server.storage.dir",
+            DATA_DIR.resolve("segments").toString()));
+    private static final int STORAGE_SEGMENT_MB = Integer.getInteger("server.storage.segmentMB", 64);
+    private static final double STORAGE_COMPACT_RATIO =
+            Double.parseDouble(System.getProperty("server.storage.compactRatio", "0.5"));
+
+    // Medição dos tempos de espera/ocupação dos locks do armazém (ver Metrics)
+    private static final boolean LOCK_TIMING =
+            Boolean.parseBoolean(System.getProperty("server.metrics.lockTiming", "true"));
+
+    // Índice ordenado das chaves para scan/prefix; cada resposta leva no máximo
+    // scan.chunkEntries pares e pouco mais de scan.chunkBytes de valores
+    private static final boolean ORDERED_INDEX =
+            Boolean.parseBoolean(System.getProperty("server.index.ordered", "true"));
+    private static final int SCAN_CHUNK_ENTRIES = Integer.getInteger("server.scan.chunkEntries", 1024);
+    private static final int SCAN_CHUNK_BYTES = Integer.getInteger("server.scan.chunkBytes", 1 << 20);
+
+    // Armazém de dados (chave -> valor em bytes), particionado com um lock por shard
+    private static final ShardedStore dataStore =
+            new ShardedStore(NUM_SHARDS, Server::newShardStorage, ORDERED_INDEX);
+
+    // Expiração (TTL): as chaves expiradas deixam logo de ser lidas e são
+    // removidas de expiry.intervalMs em expiry.intervalMs
+    private static final long EXPIRY_INTERVAL_MS = Long.getLong("server.expiry.intervalMs", 100);
+    // Limite de memória: acima de memory.maxBytes guardados (chaves + valores; 0 sem
+    // limite), as chaves são despejadas pela política memory.policy ("lru" ou "lfu"),
+    // escolhendo a pior de memory.samples chaves ao acaso, de memory.intervalMs em memory.intervalMs
+    private static final long MEMORY_MAX_BYTES = Long.getLong("server.memory.maxBytes", 0);
+    private static final String MEMORY_POLICY = System.getProperty("server.memory.policy", "lru");
+    private static final int MEMORY_SAMPLES = Integer.getInteger("server.memory.samples", 5);
+    private static final long MEMORY_INTERVAL_MS = Long.getLong("server.memory.intervalMs", 10);
+
+    static {
+        if (MEMORY_MAX_BYTES > 0) {
+            dataStore.setEviction(evictionPolicy(MEMORY_POLICY), MEMORY_SAMPLES);
+        }
+    }
+
+    // Micro-lotes de puts concorrentes (ver WriteBatcher); maxSize 1 desliga
+    private static final int BATCH_MAX_SIZE = Integer.getInteger("server.batch.maxSize", 64);
+    private static final long BATCH_MAX_DELAY_US = Long.getLong("server.batch.maxDelayMicros", 0);
+    private static final WriteBatcher batcher = BATCH_MAX_SIZE > 1
+            ? new WriteBatcher(dataStore, BATCH_MAX_SIZE, BATCH_MAX_DELAY_US) : null;
+
+    // Two-phase commit dos multiPut entre nós (ver ClusterClient); uma transação
+    // preparada sem commit/abort durante txn.timeoutMs é abortada
+    //  - cluster.secret: segredo partilhado pelos nós e pelos ClusterClient, exigido
+    //    nas operações entre nós (OP_PEER e perguntas de estado das transações);
+    //    vazio desliga-as
+    private static final long TXN_TIMEOUT_MS = Long.getLong("server.txn.timeoutMs", 10_000);
+    private static final String CLUSTER_SECRET = System.getProperty("server.cluster.secret", "");
+    private static final PreparedTransactions transactions = new PreparedTransactions(TXN_TIMEOUT_MS, CLUSTER_SECRET);
+
+    // getWhen/watch: esperas por chave sobre os observadores do dataStore
+    private static final KeyWaiters waiters = new KeyWaiters(dataStore);
+    // Caches dos clientes: máximo de chaves seguidas por ligação (OP_TRACK)
+    private static final int TRACKING_MAX_KEYS = Integer.getInteger("server.tracking.maxKeys", 100_000);
 
     // Conjunto de clientes que estão, efetivamente, a ocupar uma sessão
-    public static Set<ClientHandler> activeClients = new HashSet<>();
+    public static final Set<ClientHandler> activeClients = ConcurrentHashMap.newKeySet();
+
+    // Admissão de sessões com fila FIFO (lock próprio, independente do dataStore)
+    private static final AdmissionController admission = ADMISSION_ADAPTIVE
+            ? new AdmissionController(MAX_SESSIONS, ADMISSION_MIN_SESSIONS, ADMISSION_MAX_SESSIONS,
+                    ADMISSION_MAX_QUEUE, USER_QUOTA, TimeUnit.MICROSECONDS.toNanos(ADMISSION_TARGET_US))
+            : new AdmissionController(MAX_SESSIONS, MAX_SESSIONS, MAX_SESSIONS,
+                    ADMISSION_MAX_QUEUE, USER_QUOTA, 0);
+    // Pedidos cuja latência média ajusta o limite adaptativo; totais do intervalo anterior
+    private static final Metrics.Timer[] REQUEST_TIMERS = {
+            Metrics.timer("put"), Metrics.timer("get"), Metrics.timer("multiPut"), Metrics.timer("multiGet")};
+    private static long lastRequestCount = 0;
+    private static long lastRequestNanos = 0;
+    private static final AtomicLong evictedSessions = new AtomicLong();
+
+    private static WriteAheadLog wal;
+    private static long lastSnapshotLsn = 0;
+    private static ReplicationSource replication;
+    private static ReplicaFollower follower;
+    // Socket de escuta e estado da paragem (ver shutdown())
+    private static volatile ServerSocketChannel listener;
+    private static final AtomicBoolean stopping = new AtomicBoolean(false);
+    private static final CountDownLatch stopped = new CountDownLatch(1);
 
-    // Fila de espera para garantir a ordem FIFO
-    private static Queue<ClientHandler> waitingQueue = new LinkedList<>();
+    private static final Metrics.Timer AUTH_TIMER = Metrics.timer("auth");
+    private static final Metrics.Timer REGISTER_TIMER = Metrics.timer("register");
+    private static final Metrics.Timer QUEUE_WAIT_TIMER = Metrics.timer("session.queueWait");
 
-    // Lock e Condition para sincronizar o acesso
-    public static Lock lock = new ReentrantLock();
-    public static Condition sessionAvailable = lock.newCondition();
+    // Tarefas periódicas (snapshots, compactação do armazenamento)
+    private static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+    // Expiração e despejo, numa thread própria para não ficarem atrás de um snapshot
+    private static final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "expiry");
+        t.setDaemon(true);
+        return t;
+    });
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(12345)) {
-            System.out.println("Servidor iniciado na porta 12345");
+        // Canal em modo bloqueante: os sockets aceites têm um SocketChannel, usado
+        // para enviar valores grandes com transferTo()
+        ServerSocketChannel serverChannel;
+        try {
+            // Aberto antes da recuperação: quem (re)liga durante o arranque fica no
+            // backlog à espera, em vez de ver a ligação recusada
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+            if (!isReplica()) {
+                startDurability();
+            }
+            startReplication();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        listener = serverChannel;
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::shutdown, "shutdown"));
+        registerMetrics();
+        maintenance.scheduleWithFixedDelay(() -> transactions.expire(dataStore::multiPut), 1, 1, TimeUnit.SECONDS);
+        if (ADMISSION_ADAPTIVE) {
+            maintenance.scheduleWithFixedDelay(Server::adjustAdmission,
+                    ADMISSION_INTERVAL_MS, ADMISSION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (IDLE_TIMEOUT_MS > 0) {
+            long period = Math.min(1000, IDLE_TIMEOUT_MS);
+            maintenance.scheduleWithFixedDelay(Server::evictIdleSessions, period, period, TimeUnit.MILLISECONDS);
+        }
+        expiry.scheduleWithFixedDelay(dataStore::expireKeys,
+                EXPIRY_INTERVAL_MS, EXPIRY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // Numa réplica os despejos chegam do primário (como delete)
+        if (MEMORY_MAX_BYTES > 0 && !isReplica()) {
+            long budget = TimeUnit.MILLISECONDS.toNanos(MEMORY_INTERVAL_MS);
+            expiry.scheduleWithFixedDelay(() -> dataStore.evict(MEMORY_MAX_BYTES, budget),
+                    MEMORY_INTERVAL_MS, MEMORY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        // Compactação do espaço morto dos segmentos mapeados ou das páginas compactas
+        if (STORAGE.equals("mapped") || STORAGE.equals("compact")) {
+            maintenance.scheduleWithFixedDelay(dataStore::compact, 1, 1, TimeUnit.SECONDS);
+        }
+
+        ExecutorService connections = newConnectionExecutor(ENGINE);
+        try (serverChannel) {
+            System.out.println("Servidor iniciado na porta " + PORT + " (motor: " + ENGINE + ")");
 
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(clientSocket);
-                new Thread(handler).start();
+                SocketChannel clientChannel = serverChannel.accept();
+                ClientHandler handler = new ClientHandler(clientChannel.socket());
+                connections.execute(handler);
+            }
+        } catch (IOException e) {
+            // Socket de escuta fechado por shutdown()
+            if (!stopping.get()) {
+                e.printStackTrace();
+            }
+        } finally {
+            connections.shutdown();
+        }
+        // Parado por JMX: o processo só termina depois do snapshot final
+        if (stopping.get()) {
+            awaitStopped();
+        }
+    }
+
+    /**
+     * Paragem ordenada (SIGTERM/Ctrl-C pelo shutdown hook, ou a operação JMX):
+     * 1) deixa de aceitar ligações e recusa a fila de espera ("Sessão recusada:
+     *    servidor a terminar"), para esses clientes irem a outro servidor;
+     * 2) pede às sessões ativas que terminem (ClientHandler.drain()) e espera
+     *    por elas até server.shutdown.drainMs, fechando as que ainda restarem;
+     * 3) tira um snapshot e fecha o WAL: o arranque seguinte só carrega o
+     *    snapshot, sem registos do WAL para reaplicar.
+     * Chamadas repetidas esperam pela primeira.
+     */
+    public static void shutdown() {
+        if (!stopping.compareAndSet(false, true)) {
+            awaitStopped();
+            return;
+        }
+        long start = System.nanoTime();
+        System.out.println("A terminar: " + activeClients.size() + " sessões ativas, "
+                + admission.queueLength() + " em fila.");
+        try {
+            ServerSocketChannel l = listener;
+            if (l != null) {
+                l.close();
+            }
+            admission.close("servidor a terminar; volte a ligar.");
+            for (ClientHandler client : activeClients) {
+                client.drain();
+            }
+
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DRAIN_MS);
+            while (!activeClients.isEmpty() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            int forced = 0;
+            for (ClientHandler client : activeClients) {
+                if (client.terminate()) {
+                    forced++;
+                }
+            }
+
+            maintenance.shutdown();
+            expiry.shutdownNow();
+            maintenance.awaitTermination(SHUTDOWN_DRAIN_MS, TimeUnit.MILLISECONDS);
+            if (replication != null) {
+                replication.close();
+            }
+            if (wal != null) {
+                takeSnapshot();
+                wal.close();
+            }
+            System.out.println("Servidor terminado em "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms ("
+                    + forced + " sessões fechadas no fim do prazo).");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private static void awaitStopped() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gauges do servidor e bean JMX "project:type=ServerStats".
+     */
+    static void registerMetrics() {
+        dataStore.setLockTiming(LOCK_TIMING);
+        Metrics.gauge("sessions.active", admission::activeSessions);
+        Metrics.gauge("sessions.queued", admission::queueLength);
+        Metrics.gauge("sessions.limit", admission::limit);
+        Metrics.gauge("sessions.rejected", admission::rejected);
+        Metrics.gauge("sessions.timedOut", admission::timedOut);
+        Metrics.gauge("sessions.evicted", evictedSessions::get);
+        Metrics.gauge("store.keys", dataStore::size);
+        Metrics.gauge("store.bytes", dataStore::storedBytes);
+        Metrics.gauge("store.expired", dataStore::expiredCount);
+        Metrics.gauge("store.evicted", dataStore::evictedCount);
+        Metrics.gauge("getWhen.pending", waiters::pendingGetWhen);
+        Metrics.gauge("watch.active", waiters::activeWatches);
+        Metrics.gauge("tracking.keys", waiters::trackedKeys);
+        Metrics.gauge("txn.prepared", transactions::pending);
+        if (replication != null) {
+            Metrics.gauge("replication.seq", replication::lastSeq);
+            Metrics.gauge("replication.replicas", replication::replicas);
+        }
+        if (follower != null) {
+            Metrics.gauge("replica.seq", follower::appliedSeq);
+            Metrics.gauge("replica.stalenessMs", follower::stalenessMillis);
+        }
+        if (batcher != null) {
+            Metrics.gauge("batch.count", batcher::batches);
+            Metrics.gauge("batch.puts", batcher::puts);
+        }
+        ServerStats.register();
+    }
+
+    /**
+     * Cria o executor que corre um ClientHandler por ligação.
+     * - "virtual":  uma virtual thread por ligação; ligações inativas ou em fila
+     *               de espera não ocupam threads do sistema operativo.
+     * - "platform": uma thread do sistema por ligação (comportamento original).
+     */
+    static ExecutorService newConnectionExecutor(String engine) {
+        switch (engine) {
+            case "virtual":
+                return Executors.newThreadPerTaskExecutor(
+                        Thread.ofVirtual().name("client-", 0).factory());
+            case "platform":
+                return Executors.newThreadPerTaskExecutor(
+                        Thread.ofPlatform().name("client-", 0).factory());
+            default:
+                throw new IllegalArgumentException("Motor de servidor desconhecido: " + engine);
+        }
+    }
+
+    static ShardedStore.Eviction evictionPolicy(String name) {
+        switch (name) {
+            case "lru":
+                return ShardedStore.Eviction.LRU;
+            case "lfu":
+                return ShardedStore.Eviction.LFU;
+            default:
+                throw new IllegalArgumentException("Política de despejo desconhecida: " + name);
+        }
+    }
+
+    /**
+     * Cria o armazenamento de um shard conforme server.storage.
+     */
+    static ShardStorage newShardStorage(int shard) {
+        switch (STORAGE) {
+            case "heap":
+                return new HeapShardStorage();
+            case "mapped":
+                return new MappedShardStorage(STORAGE_DIR, String.format("shard-%03d", shard),
+                        STORAGE_SEGMENT_MB << 20, STORAGE_COMPACT_RATIO);
+            case "compact":
+                return new CompactShardStorage(STORAGE_COMPACT_RATIO);
+            default:
+                throw new IllegalArgumentException("Armazenamento desconhecido: " + STORAGE);
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Durabilidade (WAL + snapshots)
+    // -----------------------------------------------------------
+    /**
+     * Recupera o estado (último snapshot + segmentos do WAL seguintes), abre um
+     * segmento novo do WAL e agenda os snapshots periódicos.
+     */
+    static void startDurability() throws IOException {
+        if (WAL_MODE.equals("off")) {
+            return;
+        }
+        if (!WAL_MODE.equals("sync") && !WAL_MODE.equals("async")) {
+            throw new IllegalArgumentException("Modo de WAL desconhecido: " + WAL_MODE);
+        }
+
+        long start = System.nanoTime();
+        WriteAheadLog.RecordHandler recovery = new WriteAheadLog.RecordHandler() {
+            @Override
+            public void put(String key, byte[] value) {
+                dataStore.put(key, value);
+            }
+
+            @Override
+            public void multiPut(Map<String, byte[]> pairs) {
+                dataStore.multiPut(pairs);
             }
+
+            @Override
+            public void putExpiring(String key, byte[] value, long expiresAt) {
+                dataStore.putExpiring(key, value, expiresAt);
+            }
+
+            @Override
+            public void multiPutExpiring(Map<String, byte[]> pairs, long expiresAt) {
+                dataStore.multiPutExpiring(pairs, expiresAt);
+            }
+
+            @Override
+            public void delete(String key) {
+                dataStore.delete(key);
+            }
+
+            @Override
+            public void user(String username, String password) {
+                users.put(username, password);
+            }
+
+            @Override
+            public void txnPrepared(String txId, String coordinator, Map<String, byte[]> pairs) {
+                transactions.recoverPrepared(txId, coordinator, pairs);
+            }
+
+            @Override
+            public void txnCommitted(String txId, boolean decision) {
+                transactions.recoverCommitted(txId, decision, dataStore::multiPut);
+            }
+
+            @Override
+            public void txnAborted(String txId) {
+                transactions.recoverAborted(txId);
+            }
+        };
+        long snapshot = Snapshot.latest(DATA_DIR);
+        long keys = 0;
+        if (snapshot > 0) {
+            dataStore.deferIndex();
+            keys = Snapshot.load(Snapshot.path(DATA_DIR, snapshot), users, recovery, dataStore);
+            dataStore.rebuildIndex();
+        }
+        long records = WriteAheadLog.replay(DATA_DIR, snapshot, recovery);
+        System.out.println("Recuperação: " + keys + " chaves do snapshot, " + records
+                + " registos do WAL em " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        // Só depois da recuperação se passa a registar as mutações
+        wal = new WriteAheadLog(DATA_DIR, WAL_MODE.equals("sync"), WAL_SYNC_INTERVAL_MS, WAL_SYNC_RECORDS);
+        dataStore.setMutationLog(wal);
+        transactions.setLog(wal);
+        if (records > 0) {
+            // O estado reposto do WAL ainda não está num snapshot: o próximo (ou o da
+            // paragem) escreve-o mesmo sem escritas novas, e o arranque seguinte não o repete
+            lastSnapshotLsn = -1;
+        }
+
+        maintenance.scheduleWithFixedDelay(Server::takeSnapshot,
+                SNAPSHOT_INTERVAL_SEC, SNAPSHOT_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Com replication.port, passa a publicar as mutações para as réplicas (à
+     * frente do WAL, se existir); com replicaOf, começa a seguir o primário.
+     */
+    static void startReplication() throws IOException {
+        if (REPLICATION_PORT > 0) {
+            replication = new ReplicationSource(wal, dataStore, users, REPLICATION_SECRET,
+                    REPLICATION_BACKLOG, REPLICATION_HEARTBEAT_MS);
+            dataStore.setMutationLog(replication);
+            replication.listen(REPLICATION_PORT);
+            System.out.println("Replicação disponível na porta " + REPLICATION_PORT);
+        }
+        if (isReplica()) {
+            int colon = REPLICA_OF.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("server.replicaOf deve ser host:porta: " + REPLICA_OF);
+            }
+            follower = new ReplicaFollower(REPLICA_OF.substring(0, colon),
+                    Integer.parseInt(REPLICA_OF.substring(colon + 1)), REPLICATION_SECRET,
+                    new WriteAheadLog.RecordHandler() {
+                        @Override
+                        public void put(String key, byte[] value) {
+                            dataStore.put(key, value);
+                        }
+
+                        @Override
+                        public void multiPut(Map<String, byte[]> pairs) {
+                            dataStore.multiPut(pairs);
+                        }
+
+                        @Override
+                        public void putExpiring(String key, byte[] value, long expiresAt) {
+                            dataStore.putExpiring(key, value, expiresAt);
+                        }
+
+                        @Override
+                        public void multiPutExpiring(Map<String, byte[]> pairs, long expiresAt) {
+                            dataStore.multiPutExpiring(pairs, expiresAt);
+                        }
+
+                        @Override
+                        public void delete(String key) {
+                            dataStore.delete(key);
+                        }
+
+                        @Override
+                        public void user(String username, String password) {
+                            users.put(username, password);
+                            if (replication != null) {
+                                replication.logUser(username, password);
+                            }
+                        }
+                    });
+            follower.start();
+        }
+    }
+
+    public static boolean isReplica() {
+        return !REPLICA_OF.isEmpty();
+    }
+
+    /**
+     * true numa réplica que não confirma estar em dia com o primário há mais
+     * de REPLICA_MAX_STALENESS_MS.
+     */
+    public static boolean replicaTooStale() {
+        return follower != null && follower.stalenessMillis() > REPLICA_MAX_STALENESS_MS;
+    }
+
+    /**
+     * Roda o WAL, escreve um snapshot e apaga os segmentos que ele cobre.
+     * Não faz nada se não houve escritas desde o último snapshot.
+     */
+    public static void takeSnapshot() {
+        if (wal == null || wal.lastLsn() == lastSnapshotLsn) {
+            return;
+        }
+        try {
+            long lsn = wal.lastLsn();
+            long segment = wal.rotate();
+            Snapshot.write(DATA_DIR, segment, users, transactions.records(), dataStore);
+            wal.deleteSegmentsBefore(segment);
+            Snapshot.deleteOlderThan(DATA_DIR, segment);
+            lastSnapshotLsn = lsn;
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Espera que a mutação com este LSN esteja em disco (não faz nada com o WAL
+     * desligado ou em modo "async").
+     */
+    public static void awaitDurable(long lsn) throws IOException {
+        WriteAheadLog log = wal;
+        if (log != null && lsn > 0) {
+            log.awaitDurable(lsn);
+        }
+    }
+
     // -----------------------------------------------------------
     // Métodos de Gestão de Utilizadores
     // -----------------------------------------------------------
     public static boolean registerUser(String username, String password) {
-        lock.lock();
-        try {
-            if (users.containsKey(username)) {
-                return false;
-            } else {
-                users.put(username, password);
-                return true;
-            }
-        } finally {
-            lock.unlock();
+        long start = System.nanoTime();
+        // Numa réplica os utilizadores vêm do primário
+        if (isReplica() || users.containsKey(username)) {
+            REGISTER_TIMER.error();
+            return false;
         }
+        // O PBKDF2 é feito antes de tocar no mapa
+        String credential = credentials.hash(password);
+        if (users.putIfAbsent(username, credential) != null) {
+            REGISTER_TIMER.error();
+            return false;
+        }
+        logUser(username, credential);
+        REGISTER_TIMER.recordSince(start);
+        return true;
     }
 
     public static boolean authenticateUser(String username, String password) {
-        lock.lock();
+        long start = System.nanoTime();
+        String stored = users.get(username);
+        boolean ok = stored != null && credentials.verify(username, password, stored);
+        if (ok && !Credentials.isHashed(stored) && !isReplica()) {
+            // Palavra-passe em texto (dados de uma versão anterior): passa a ser guardada com hash
+            String credential = credentials.hash(password);
+            if (users.replace(username, stored, credential)) {
+                logUser(username, credential);
+            }
+        }
+        AUTH_TIMER.recordSince(start);
+        if (!ok) {
+            AUTH_TIMER.error();
+        }
+        return ok;
+    }
+
+    private static void logUser(String username, String credential) {
+        WriteAheadLog log = wal;
+        long lsn = replication != null ? replication.logUser(username, credential)
+                : log != null ? log.logUser(username, credential) : 0;
         try {
-            return users.containsKey(username) && users.get(username).equals(password);
-        } finally {
-            lock.unlock();
+            awaitDurable(lsn);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -71,107 +664,340 @@ public class Server {
     // -----------------------------------------------------------
     /**
      * Aguarda até que haja vaga E seja a vez deste cliente (o primeiro na fila).
-     * 1) Adiciona o cliente à fila.
-     * 2) Enquanto não houver vaga OU não for o primeiro da fila, fica bloqueado.
-     * 3) Ao sair do while, remove da fila e informa o cliente que a sessão está disponível.
+     * 1) Pede um ticket ao AdmissionController (que o coloca na fila se necessário).
+     * 2) Se tiver de esperar, avisa o cliente e dorme até a vaga lhe ser entregue.
+     * 3) Informa o cliente que a sessão está disponível.
+     *
+     * @return false se a sessão foi recusada (fila cheia, quota do utilizador ou
+     *         tempo de espera esgotado); o cliente já recebeu "Sessão recusada: ..."
      */
-    public static void waitForSessionAvailability(ClientHandler client)
+    public static boolean waitForSessionAvailability(ClientHandler client)
             throws InterruptedException, IOException {
 
-        lock.lock();
+        long start = System.nanoTime();
+        AdmissionController.Ticket ticket = admission.enter(client.getUsername());
+        if (ticket.rejection() != null) {
+            QUEUE_WAIT_TIMER.error();
+            client.sendMessage("Sessão recusada: " + ticket.rejection());
+            return false;
+        }
         try {
-            // 1) Coloca o cliente na fila
-            waitingQueue.add(client);
-
-            // 2) Bloqueia enquanto:
-            //    - O servidor estiver cheio (activeClients.size() >= MAX_SESSIONS)
-            //    - OU este cliente NÃO for o primeiro da fila (waitingQueue.peek() != client)
-            while (activeClients.size() >= MAX_SESSIONS
-                    || waitingQueue.peek() != client) {
-
+            if (!ticket.isGranted()) {
                 // Envia uma mensagem avisando que está na fila de espera
                 client.sendMessage("Aguardando vaga... Você está na fila.");
-                sessionAvailable.await();
+                if (!admission.await(ticket, TimeUnit.MILLISECONDS.toNanos(QUEUE_TIMEOUT_MS))) {
+                    QUEUE_WAIT_TIMER.error();
+                    client.sendMessage("Sessão recusada: " + (ticket.rejection() != null ? ticket.rejection()
+                            : "tempo de espera esgotado (" + QUEUE_TIMEOUT_MS + " ms)."));
+                    return false;
+                }
             }
-
-            // Se saiu do while, significa:
-            //  - Há vaga (activeClients.size() < MAX_SESSIONS)
-            //  - Este cliente é o primeiro da fila (waitingQueue.peek() == client)
-
-            waitingQueue.remove();
+            // Inclui as entradas imediatas, para a distribuição refletir todos os clientes
+            QUEUE_WAIT_TIMER.recordSince(start);
             client.sendMessage("Sessão disponível! Pode agora utilizar o serviço.");
-
-        } finally {
-            lock.unlock();
+            return true;
+        } catch (InterruptedException | IOException e) {
+            // O cliente nunca chegou a ocupar a sessão: devolve o lugar/vaga
+            QUEUE_WAIT_TIMER.error();
+            admission.cancel(ticket);
+            throw e;
         }
     }
 
     public static void addActiveClient(ClientHandler client) {
-        lock.lock();
-        try {
-            activeClients.add(client);
-            System.out.println("Cliente " + client.getUsername()
-                    + " entrou. Sessões ativas: " + activeClients.size());
-        } finally {
-            lock.unlock();
+        activeClients.add(client);
+        System.out.println("Cliente " + client.getUsername()
+                + " entrou. Sessões ativas: " + activeClients.size());
+        // Admitido enquanto shutdown() percorria as sessões ativas
+        if (stopping.get()) {
+            client.drain();
         }
     }
 
     public static void removeActiveClient(ClientHandler client) {
-        lock.lock();
-        try {
-            activeClients.remove(client);
+        // Só liberta a vaga se o cliente a estava de facto a ocupar
+        if (activeClients.remove(client)) {
             System.out.println("Cliente " + client.getUsername()
                     + " saiu. Sessões ativas: " + activeClients.size());
-            // Acorda todos os que estão em 'await()', para que verifiquem se agora é a sua vez
-            sessionAvailable.signalAll();
-        } finally {
-            lock.unlock();
+            // Passa a vaga apenas ao próximo da fila
+            admission.release(client.getUsername());
+        }
+    }
+
+    /**
+     * Ajuste periódico do limite de sessões com a latência média dos pedidos
+     * concluídos desde o ajuste anterior.
+     */
+    static void adjustAdmission() {
+        long count = 0;
+        long nanos = 0;
+        for (Metrics.Timer timer : REQUEST_TIMERS) {
+            count += timer.count();
+            nanos += timer.histogram().sumNanos();
+        }
+        long samples = count - lastRequestCount;
+        long elapsed = nanos - lastRequestNanos;
+        lastRequestCount = count;
+        lastRequestNanos = nanos;
+        // Negativo depois de um reset das métricas: ignora esse intervalo
+        if (samples > 0 && elapsed >= 0) {
+            admission.adjust((double) elapsed / samples, samples);
+        }
+    }
+
+    /**
+     * Com clientes em fila, termina as sessões inativas há mais de
+     * idleTimeoutMs (as mais antigas primeiro), no máximo uma por cliente em fila.
+     */
+    static void evictIdleSessions() {
+        int queued = admission.queueLength();
+        if (queued == 0) {
+            return;
+        }
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+        List<ClientHandler> idle = new ArrayList<>();
+        for (ClientHandler client : activeClients) {
+            if (client.idleNanos() >= idleNanos) {
+                idle.add(client);
+            }
         }
+        idle.sort(Comparator.comparingLong(ClientHandler::idleNanos).reversed());
+        for (ClientHandler client : idle.subList(0, Math.min(queued, idle.size()))) {
+            if (client.evict()) {
+                evictedSessions.incrementAndGet();
+            }
+        }
+    }
+
+    public static int sessionLimit() {
+        return admission.limit();
+    }
+
+    public static void setSessionLimit(int limit) {
+        admission.setLimit(limit);
     }
 
     // -----------------------------------------------------------
     // Métodos de leitura/escrita no dataStore (put/get etc.)
     // -----------------------------------------------------------
-    public static void put(String key, byte[] value) {
-        lock.lock();
-        try {
-            dataStore.put(key, value);
-        } finally {
-            lock.unlock();
-        }
+    /**
+     * @return LSN da escrita no WAL (0 sem WAL), para usar com awaitDurable()
+     */
+    public static long put(String key, byte[] value) {
+        transactions.awaitUnlocked(key);
+        return batcher != null ? batcher.put(key, value) : dataStore.put(key, value);
+    }
+
+    /**
+     * Como put(key, value), com o valor nos primeiros length bytes de buffer
+     * (que pode voltar à pool logo a seguir).
+     */
+    public static long put(String key, byte[] buffer, int length) {
+        transactions.awaitUnlocked(key);
+        return batcher != null ? batcher.put(key, buffer, length) : dataStore.put(key, buffer, length);
+    }
+
+    /**
+     * put com a chave a expirar daqui a ttlMillis (ver ShardedStore.putExpiring()).
+     */
+    public static long putExpiring(String key, byte[] value, long ttlMillis) {
+        transactions.awaitUnlocked(key);
+        return dataStore.putExpiring(key, value, System.currentTimeMillis() + ttlMillis);
+    }
+
+    /**
+     * @return LSN da remoção, ou -1 se a chave não existia
+     */
+    public static long delete(String key) {
+        transactions.awaitUnlocked(key);
+        return dataStore.delete(key);
+    }
+
+    /**
+     * true se o armazenamento copia os valores recebidos, caso em que os
+     * handlers os leem para buffers de valueBuffers.
+     */
+    public static boolean copiesValues() {
+        return dataStore.copiesValues();
+    }
+
+    public static boolean fileBacked() {
+        return dataStore.fileBacked();
     }
 
     public static byte[] get(String key) {
-        lock.lock();
-        try {
-            return dataStore.getOrDefault(key, null);
-        } finally {
-            lock.unlock();
-        }
+        return dataStore.get(key);
     }
 
-    public static void multiPut(Map<String, byte[]> pairs) {
-        lock.lock();
-        try {
-            dataStore.putAll(pairs);
-        } finally {
-            lock.unlock();
-        }
+    /**
+     * get() com a chave em UTF-8 nos primeiros length bytes de key (ver ShardedStore.get(byte[], int)).
+     */
+    public static byte[] get(byte[] key, int length) {
+        return dataStore.get(key, length);
+    }
+
+    public static FileRegion getRegion(String key) {
+        return dataStore.getRegion(key);
+    }
+
+    public static Map<String, FileRegion> multiGetRegions(Set<String> keys) {
+        return dataStore.multiGetRegions(keys);
+    }
+
+    /**
+     * @return LSN da escrita no WAL (0 sem WAL), para usar com awaitDurable()
+     */
+    public static long multiPut(Map<String, byte[]> pairs) {
+        transactions.awaitUnlocked(pairs.keySet());
+        return dataStore.multiPut(pairs);
+    }
+
+    /**
+     * multiPut com todas as chaves a expirar daqui a ttlMillis.
+     */
+    public static long multiPutExpiring(Map<String, byte[]> pairs, long ttlMillis) {
+        transactions.awaitUnlocked(pairs.keySet());
+        return dataStore.multiPutExpiring(pairs, System.currentTimeMillis() + ttlMillis);
     }
 
     public static Map<String, byte[]> multiGet(Set<String> keys) {
-        lock.lock();
-        try {
-            Map<String, byte[]> result = new HashMap<>();
-            for (String key : keys) {
-                if (dataStore.containsKey(key)) {
-                    result.put(key, dataStore.get(key));
-                }
-            }
-            return result;
-        } finally {
-            lock.unlock();
+        return dataStore.multiGet(keys);
+    }
+
+    public static Versioned getVersioned(String key) {
+        return dataStore.getVersioned(key);
+    }
+
+    /**
+     * Compare-and-set (ver ShardedStore.cas()).
+     *
+     * @return versão nova e LSN, ou null se a versão de key não for expectedVersion
+     */
+    public static ShardedStore.CasResult cas(String key, long expectedVersion, byte[] value) {
+        transactions.awaitUnlocked(key);
+        return dataStore.cas(key, expectedVersion, value);
+    }
+
+    /**
+     * Commit de uma transação otimista (ver ShardedStore.commitIfUnchanged()).
+     *
+     * @return LSN da escrita, ou -1 se alguma das versões lidas mudou
+     */
+    public static long commitIfUnchanged(Map<String, Long> reads, Map<String, byte[]> writes) {
+        transactions.awaitUnlocked(writes.keySet());
+        return dataStore.commitIfUnchanged(reads, writes);
+    }
+
+    public static boolean hasOrderedIndex() {
+        return dataStore.hasOrderedIndex();
+    }
+
+    /**
+     * Próxima parte de um scan (ver ShardedStore.scan()), com no máximo
+     * maxEntries pares e os limites de server.scan.*.
+     */
+    public static ShardedStore.ScanResult scan(String from, boolean fromInclusive, String to, int maxEntries) {
+        int entries = maxEntries > 0 ? Math.min(maxEntries, SCAN_CHUNK_ENTRIES) : SCAN_CHUNK_ENTRIES;
+        return dataStore.scan(from, fromInclusive, to, entries, SCAN_CHUNK_BYTES);
+    }
+
+    /**
+     * Valor de key assim que condKey tiver o valor condValue (ver KeyWaiters.getWhen()).
+     */
+    public static CompletableFuture<byte[]> getWhen(String key, String condKey, byte[] condValue) {
+        return waiters.getWhen(key, condKey, condValue);
+    }
+
+    /**
+     * Subscreve as escritas em key (ver KeyWaiters.watch()).
+     *
+     * @return ação que cancela a subscrição
+     */
+    public static Runnable watch(String key, Consumer<byte[]> sink) {
+        return waiters.watch(key, sink);
+    }
+
+    /**
+     * Chaves seguidas de uma ligação com cache no cliente (ver TrackedKeys).
+     */
+    public static TrackedKeys track(Consumer<String> invalidate) {
+        return waiters.track(TRACKING_MAX_KEYS, invalidate);
+    }
+
+    // -----------------------------------------------------------
+    // Participação em transações e rebalanceamento entre nós (ClusterClient)
+    // -----------------------------------------------------------
+    /**
+     * Primeira fase: reserva as chaves para a transação e regista o voto no
+     * WAL (ver PreparedTransactions).
+     *
+     * @param coordinator "" se este nó é o coordenador, senão o seu "host:porta"
+     * @return LSN do voto, ou -1 se alguma chave já estiver reservada por outra transação
+     */
+    public static long prepare(String txId, String coordinator, Map<String, byte[]> pairs) {
+        return transactions.prepare(txId, coordinator, pairs);
+    }
+
+    /**
+     * Prepara a transação em partes (ver PreparedTransactions.stage()).
+     *
+     * @return false se alguma chave estiver reservada por outra transação
+     */
+    public static boolean stage(String txId, Map<String, byte[]> pairs) {
+        return transactions.stage(txId, pairs);
+    }
+
+    /**
+     * Segunda fase: aplica a transação com um multiPut atómico local.
+     *
+     * @return LSN da escrita, ou -1 se a transação não existir (abortada ou expirada)
+     */
+    public static long commit(String txId) {
+        return transactions.commit(txId, dataStore::multiPut);
+    }
+
+    public static boolean abort(String txId) {
+        return transactions.abort(txId);
+    }
+
+    /**
+     * Resultado de uma transação coordenada por este nó, pedido por um participante.
+     */
+    /**
+     * true se secret é o segredo do cluster (false com o segredo por configurar).
+     */
+    public static boolean isClusterSecret(String secret) {
+        return !CLUSTER_SECRET.isEmpty() && MessageDigest.isEqual(
+                CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static int transactionStatus(String txId) {
+        return transactions.status(txId);
+    }
+
+    public static void forgetTransaction(String txId) {
+        transactions.forget(txId);
+    }
+
+    /**
+     * Conteúdo do shard index (cópia com o read lock do shard), ou null se não existir.
+     *
+     * @param ttls recebe o TTL que resta (ms) às chaves copiadas que expiram
+     */
+    public static Map<String, byte[]> dumpShard(int index, Map<String, Long> ttls) {
+        if (index < 0 || index >= dataStore.shardCount()) {
+            return null;
+        }
+        Map<String, Long> expiries = new HashMap<>();
+        Map<String, byte[]> entries = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : dataStore.copyShard(index, expiries)) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> expiry : expiries.entrySet()) {
+            // Prazo relativo: os relógios dos nós não têm de estar acertados
+            ttls.put(expiry.getKey(), Math.max(1, expiry.getValue() - now));
         }
+        return entries;
     }
 }
@@ -0,0 +1,112 @@
+package project;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Implementação JMX das métricas (ver Metrics).
+ */
+public class ServerStats implements ServerStatsMXBean {
+
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerStats(),
+                    new ObjectName("project:type=ServerStats"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return gauge("sessions.active");
+    }
+
+    @Override
+    public long getQueueLength() {
+        return gauge("sessions.queued");
+    }
+
+    @Override
+    public int getSessionLimit() {
+        return Server.sessionLimit();
+    }
+
+    @Override
+    public void setSessionLimit(int limit) {
+        Server.setSessionLimit(limit);
+    }
+
+    @Override
+    public long getKeyCount() {
+        return gauge("store.keys");
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return gauge("store.bytes");
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        Metrics.timers().forEach((name, timer) -> counts.put(name, timer.count()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getCommandErrors() {
+        Map<String, Long> errors = new TreeMap<>();
+        Metrics.timers().forEach((name, timer) -> errors.put(name, timer.errors()));
+        return errors;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Micros() {
+        return latencies(h -> h.percentileNanos(0.50));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Micros() {
+        return latencies(h -> h.percentileNanos(0.99));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP999Micros() {
+        return latencies(h -> h.percentileNanos(0.999));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMicros() {
+        return latencies(LatencyHistogram::maxNanos);
+    }
+
+    @Override
+    public String getReport() {
+        return Metrics.report();
+    }
+
+    @Override
+    public void reset() {
+        Metrics.reset();
+    }
+
+    @Override
+    public void shutdown() {
+        Server.shutdown();
+    }
+
+    private static long gauge(String name) {
+        return Metrics.gaugeValues().getOrDefault(name, 0L);
+    }
+
+    private static Map<String, Double> latencies(ToDoubleFunction<LatencyHistogram> nanos) {
+        Map<String, Double> result = new TreeMap<>();
+        Metrics.timers().forEach((name, timer) ->
+                result.put(name, Metrics.micros(nanos.applyAsDouble(timer.histogram()))));
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+package project;
+
+import java.util.Map;
+
+/**
+ * Interface JMX das métricas do servidor (registada como "project:type=ServerStats").
+ */
+public interface ServerStatsMXBean {
+
+    long getActiveSessions();
+
+    long getQueueLength();
+
+    /**
+     * Limite de sessões atual; alterável em execução (ver AdmissionController.setLimit).
+     */
+    int getSessionLimit();
+
+    void setSessionLimit(int limit);
+
+    long getKeyCount();
+
+    long getStoredBytes();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getCommandErrors();
+
+    Map<String, Double> getLatencyP50Micros();
+
+    Map<String, Double> getLatencyP99Micros();
+
+    Map<String, Double> getLatencyP999Micros();
+
+    Map<String, Double> getLatencyMaxMicros();
+
+    String getReport();
+
+    void reset();
+
+    /**
+     * Paragem ordenada do servidor (ver Server.shutdown()).
+     */
+    void shutdown();
+}
@@ -0,0 +1,88 @@
+package project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Armazenamento dos pares chave-valor de um shard do ShardedStore, com a
+ * versão de cada chave (atribuída pelo ShardedStore a cada escrita).
+ *
+ * As implementações não são thread-safe: o ShardedStore chama os métodos de
+ * leitura com o read lock do shard e os de escrita com o write lock. Por isso
+ * get() e forEach() não podem alterar estado interno.
+ */
+public interface ShardStorage {
+
+    byte[] get(String key);
+
+    /**
+     * get() com a chave em UTF-8 nos primeiros length bytes de key, para quem a
+     * recebe assim da rede; hash é o hashCode() da String correspondente.
+     */
+    default byte[] get(byte[] key, int length, int hash) {
+        return get(new String(key, 0, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Versão guardada com a chave, ou 0 se a chave não existir.
+     */
+    long version(String key);
+
+    /**
+     * @return true se a chave não existia
+     */
+    boolean put(String key, byte[] value, long version);
+
+    /**
+     * Guarda os primeiros length bytes de buffer. O buffer pode ser reutilizado
+     * pelo chamador logo a seguir, por isso quem não copia o valor tem de o fazer aqui.
+     */
+    default boolean put(String key, byte[] buffer, int length, long version) {
+        return put(key, Arrays.copyOf(buffer, length), version);
+    }
+
+    /**
+     * true se put() copia o valor para memória própria (e não guarda o byte[]
+     * recebido); nesse caso vale a pena ler os valores para buffers reutilizáveis.
+     */
+    default boolean copiesValues() {
+        return false;
+    }
+
+    /**
+     * true se os valores vivem em ficheiros e getRegion() está disponível.
+     */
+    default boolean fileBacked() {
+        return false;
+    }
+
+    /**
+     * O valor como região de ficheiro, para envio sem cópia para o heap; null se
+     * a chave não existir ou se o armazenamento não for baseado em ficheiros.
+     * A região tem de ser fechada depois de usada.
+     */
+    default FileRegion getRegion(String key) {
+        return null;
+    }
+
+    /**
+     * @return false se a chave não existia
+     */
+    boolean remove(String key);
+
+    int size();
+
+    /**
+     * Bytes ocupados pelas chaves e valores vivos (sem contar o espaço morto).
+     */
+    long storedBytes();
+
+    void forEach(BiConsumer<String, byte[]> action);
+
+    /**
+     * Manutenção periódica (ex.: compactação de espaço morto), chamada com o write lock.
+     */
+    default void compact() {
+    }
+}
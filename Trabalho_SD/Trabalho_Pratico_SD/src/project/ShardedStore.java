@@ -0,0 +1,1189 @@
+package project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+import java.util.function.IntFunction;
+
+/**
+ * Armazém chave-valor dividido em N segmentos (shards), cada um com o seu
+ * próprio ReentrantReadWriteLock.
+ *
+ * - Leituras no mesmo shard não se bloqueiam entre si (read lock partilhado).
+ * - Escritas em shards diferentes correm em paralelo.
+ * - multiPut/multiGet bloqueiam todos os shards envolvidos por ordem crescente
+ *   de índice, o que garante atomicidade sem risco de deadlock.
+ *
+ * O armazenamento de cada shard é uma ShardStorage (heap, mapeado em memória
+ * ou compacto), que guarda também a versão de cada chave.
+ *
+ * Cada shard guarda também os observadores (KeyListener) das suas chaves,
+ * notificados dentro do write lock de cada escrita; com isto getWhen/watch
+ * acordam apenas quem espera pela chave alterada.
+ *
+ * Com lockTiming ativo, o tempo de espera por locks e o tempo em que ficam
+ * ocupados são registados nos timers "store.lockWait" e "store.lockHold".
+ *
+ * Opcionalmente mantém um índice ordenado das chaves (skip list concorrente),
+ * atualizado dentro do write lock de cada escrita e depois de o valor estar
+ * guardado, para scan() percorrer intervalos de chaves por ordem sem bloquear
+ * os shards.
+ *
+ * Cada chave tem uma versão (getVersioned()), que muda a cada escrita e é
+ * usada por cas() e commitIfUnchanged() (transações otimistas). As versões
+ * vêm de um contador por shard, incrementado com o write lock; começam no
+ * instante de arranque (em ms, deslocado 20 bits), por isso não se repetem
+ * entre execuções do servidor e não precisam de ir para o WAL nem para os
+ * snapshots: depois de um reinício todas as versões antigas deixam de valer.
+ *
+ * Expiração: putExpiring()/multiPutExpiring() dão às chaves um prazo absoluto
+ * (System.currentTimeMillis()); um put normal tira-o. Uma chave expirada
+ * deixa logo de ser lida e é removida por expireKeys(), chamado
+ * periodicamente, que percorre os prazos de cada shard (min-heap) com
+ * tryLock, sem esperar por shards ocupados. As remoções por expiração não
+ * vão para o registo de mutações: quem reaplica o registo conhece os prazos.
+ *
+ * Limite de memória: com uma política de despejo (setEviction()), evict()
+ * remove chaves até os bytes guardados descerem abaixo do limite. A vítima
+ * é a pior de uma amostra aleatória de chaves do shard (LRU aproximado pelo
+ * último acesso, ou LFU por um contador logarítmico que decai com o tempo),
+ * como no Redis. Os acessos são registados sem locks extra no caminho das
+ * leituras; os despejos são registados como delete.
+ */
+public class ShardedStore {
+
+    public enum Eviction { NONE, LRU, LFU }
+
+    /**
+     * Metadados de uma chave com TTL, ou de todas as chaves com despejo (a
+     * versão fica no ShardStorage); alterados com o write lock do shard,
+     * exceto lastAccess/frequency, também atualizados por leitores (corridas
+     * inofensivas: só servem para escolher vítimas de despejo).
+     */
+    private static final class KeyMeta {
+        // Prazo (ms desde a época); 0 sem TTL
+        long expiresAt;
+        // Posição em Shard.keys (só com despejo)
+        int slot = -1;
+        int lastAccess;
+        int frequency;
+    }
+
+    private static final class Deadline {
+        final long at;
+        final String key;
+
+        Deadline(long at, String key) {
+            this.at = at;
+            this.key = key;
+        }
+    }
+
+    private static class Shard {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final ShardStorage data;
+        // Observadores por chave; protegido pelo lock do shard (alterações com o write lock)
+        final Map<String, List<KeyListener>> listeners = new HashMap<>();
+        // Metadados das chaves com TTL (todas com despejo); protegido pelo lock do shard
+        final Map<String, KeyMeta> meta = new HashMap<>();
+        long lastVersion = VERSION_BASE;
+        // Prazos das chaves com TTL; entradas de prazos já alterados são descartadas ao sair
+        final PriorityQueue<Deadline> deadlines = new PriorityQueue<>(Comparator.comparingLong(d -> d.at));
+        int expiring = 0;
+        // Menor prazo em deadlines, lido sem lock por expireKeys()
+        volatile long nextDeadline = Long.MAX_VALUE;
+        // Chaves do shard, para amostragem aleatória no despejo (só com despejo)
+        final List<String> keys = new ArrayList<>();
+
+        Shard(ShardStorage data) {
+            this.data = data;
+        }
+
+        /**
+         * Versão atual de key (0 se não existir ou tiver expirado); chamado com o lock do shard.
+         */
+        long version(String key) {
+            long version = data.version(key);
+            if (version == 0 || expiring == 0) {
+                return version;
+            }
+            KeyMeta m = meta.get(key);
+            return m != null && m.expiresAt != 0 && m.expiresAt <= System.currentTimeMillis() ? 0 : version;
+        }
+    }
+
+    private static final long VERSION_BASE = System.currentTimeMillis() << 20;
+
+    private static final Metrics.Timer LOCK_WAIT = Metrics.timer("store.lockWait");
+    private static final Metrics.Timer LOCK_HOLD = Metrics.timer("store.lockHold");
+
+    // Chaves removidas por expiração em cada passagem, por shard (limita o tempo com o lock)
+    private static final int EXPIRE_PER_LOCK = 256;
+    // Despejos por aquisição do lock de um shard
+    private static final int EVICT_PER_LOCK = 32;
+    // LFU: contador inicial, fator logarítmico e minutos por cada unidade de decaimento (como no Redis)
+    private static final int LFU_INIT = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+    // Multiplicador da escolha do shard (ver shardIndex())
+    private static final int SHARD_MIX = 0x85EBCA6B;
+
+    private final Shard[] shards;
+    private final int mask;
+    private final int shardShift;
+    private volatile boolean lockTiming = false;
+    // Registo de mutações (WAL); null enquanto a durabilidade estiver desligada
+    private volatile MutationLog mutationLog;
+    // Chaves por ordem (String.compareTo); null sem índice ordenado
+    private final NavigableSet<String> orderedIndex;
+    // Carregamento de um snapshot em curso: o índice só é feito no fim (ver deferIndex())
+    private volatile boolean indexDeferred = false;
+    // Bytes guardados (ShardStorage.storedBytes()) somados, atualizados a cada escrita
+    private final LongAdder usedBytes = new LongAdder();
+    private volatile Eviction eviction = Eviction.NONE;
+    private volatile int evictionSamples = 5;
+    // Relógio dos acessos (segundos desde a criação), avançado por evict()
+    private final long startNanos = System.nanoTime();
+    private volatile int accessClock = 0;
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * Resultado de um cas() aplicado: a versão nova e o LSN da escrita.
+     */
+    public static final class CasResult {
+        public final long version;
+        public final long lsn;
+
+        CasResult(long version, long lsn) {
+            this.version = version;
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * Parte de um scan(): os pares por ordem de chave e se o intervalo tem mais.
+     */
+    public static final class ScanResult {
+        public final List<Map.Entry<String, byte[]>> entries;
+        public final boolean more;
+
+        ScanResult(List<Map.Entry<String, byte[]>> entries, boolean more) {
+            this.entries = entries;
+            this.more = more;
+        }
+    }
+
+    public ShardedStore(int numShards) {
+        this(numShards, i -> new HeapShardStorage());
+    }
+
+    /**
+     * @param storageFactory cria o armazenamento do shard com o índice dado
+     */
+    public ShardedStore(int numShards, IntFunction<ShardStorage> storageFactory) {
+        this(numShards, storageFactory, false);
+    }
+
+    /**
+     * @param orderedIndex mantém o índice ordenado das chaves usado por scan()
+     */
+    public ShardedStore(int numShards, IntFunction<ShardStorage> storageFactory, boolean orderedIndex) {
+        if (numShards <= 0) {
+            throw new IllegalArgumentException("Número de shards inválido: " + numShards);
+        }
+        // Arredonda para a potência de 2 seguinte, para usar máscara em vez de módulo
+        int n = Integer.highestOneBit(numShards - 1) << 1;
+        if (numShards == 1) {
+            n = 1;
+        }
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(storageFactory.apply(i));
+        }
+        this.mask = n - 1;
+        this.shardShift = 32 - Integer.numberOfTrailingZeros(n);
+        this.orderedIndex = orderedIndex ? new ConcurrentSkipListSet<>() : null;
+    }
+
+    /**
+     * Liga o registo de mutações. Deve ser chamado depois da recuperação, para
+     * que a reaplicação do WAL não volte a ser registada.
+     */
+    public void setMutationLog(MutationLog mutationLog) {
+        this.mutationLog = mutationLog;
+    }
+
+    /**
+     * Liga ou desliga a medição dos tempos de espera e de ocupação dos locks.
+     */
+    public void setLockTiming(boolean lockTiming) {
+        this.lockTiming = lockTiming;
+    }
+
+    /**
+     * Escolhe a política de despejo usada por evict(); tem de ser chamado com o
+     * armazém vazio (as chaves só são amostradas se a política o exigir).
+     *
+     * @param samples chaves comparadas para escolher cada vítima
+     */
+    public void setEviction(Eviction policy, int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("Número de amostras inválido: " + samples);
+        }
+        if (size() > 0) {
+            throw new IllegalStateException("A política de despejo tem de ser escolhida com o armazém vazio.");
+        }
+        this.eviction = policy;
+        this.evictionSamples = samples;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public int shardIndex(String key) {
+        return shardIndex(key.hashCode());
+    }
+
+    private int shardIndex(int h) {
+        // Bits altos de uma multiplicação: os bits baixos escolhem o balde do
+        // HashMap do shard e, se também escolhessem o shard, cada mapa só usaria
+        // 1/n dos seus baldes (listas longas, convertidas em árvores)
+        return ((h * SHARD_MIX) >>> shardShift) & mask;
+    }
+
+    // -----------------------------------------------------------
+    // Operações sobre uma única chave
+    // -----------------------------------------------------------
+    /**
+     * @return LSN atribuído pelo registo de mutações (0 se não houver registo)
+     */
+    public long put(String key, byte[] value) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.writeLock();
+        long acquiredAt = acquire(l);
+        try {
+            store(shard, key, value, 0);
+            notifyListeners(shard, key, value);
+            MutationLog log = mutationLog;
+            return log != null ? log.logPut(key, value) : 0;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * Como put(key, value), com o valor nos primeiros length bytes de buffer.
+     * O buffer pode ser reutilizado quando o método retorna.
+     */
+    public long put(String key, byte[] buffer, int length) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.writeLock();
+        long acquiredAt = acquire(l);
+        try {
+            store(shard, key, buffer, length, 0);
+            if (!shard.listeners.isEmpty() && shard.listeners.containsKey(key)) {
+                // O buffer vai ser reutilizado: os observadores recebem uma cópia
+                notifyListeners(shard, key, Arrays.copyOf(buffer, length));
+            }
+            MutationLog log = mutationLog;
+            return log != null ? log.logPut(key, buffer, length) : 0;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * Como put(key, value), com a chave a expirar no instante expiresAt
+     * (System.currentTimeMillis()).
+     */
+    public long putExpiring(String key, byte[] value, long expiresAt) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.writeLock();
+        long acquiredAt = acquire(l);
+        try {
+            store(shard, key, value, expiresAt);
+            notifyListeners(shard, key, value);
+            MutationLog log = mutationLog;
+            return log != null ? log.logPutExpiring(key, value, expiresAt) : 0;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * Aplica um lote de puts independentes (ver WriteBatcher): o valor da chave
+     * keys[i] são os primeiros lengths[i] bytes de buffers[i]. Ao contrário do
+     * multiPut, o lote não é atómico; cada shard é bloqueado uma única vez, um de
+     * cada vez, e cada put fica com o seu registo no WAL. Puts da mesma chave são
+     * aplicados pela ordem do lote. O armazém só pode ficar com buffers[i] se
+     * owned[i] for true; os outros são copiados e podem ser reutilizados quando
+     * o método retorna.
+     *
+     * @return maior LSN atribuído (0 se não houver registo de mutações)
+     */
+    public long putBatch(String[] keys, byte[][] buffers, int[] lengths, boolean[] owned, int count) {
+        // (shard << 32 | posição), ordenado: agrupa por shard mantendo a ordem do lote
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = ((long) shardIndex(keys[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        long lsn = 0;
+        MutationLog log = mutationLog;
+        int next = 0;
+        while (next < count) {
+            Shard shard = shards[(int) (order[next] >>> 32)];
+            Lock l = shard.lock.writeLock();
+            long acquiredAt = acquire(l);
+            try {
+                do {
+                    int i = (int) order[next];
+                    String key = keys[i];
+                    byte[] buffer = buffers[i];
+                    int length = lengths[i];
+                    if (owned[i] && length == buffer.length && !shard.data.copiesValues()) {
+                        // O armazém fica com o próprio array
+                        store(shard, key, buffer, 0);
+                        notifyListeners(shard, key, buffer);
+                    } else {
+                        store(shard, key, buffer, length, 0);
+                        if (!shard.listeners.isEmpty() && shard.listeners.containsKey(key)) {
+                            notifyListeners(shard, key, Arrays.copyOf(buffer, length));
+                        }
+                    }
+                    if (log != null) {
+                        lsn = Math.max(lsn, log.logPut(key, buffer, length));
+                    }
+                    next++;
+                } while (next < count && shards[(int) (order[next] >>> 32)] == shard);
+            } finally {
+                release(l, acquiredAt);
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * Remove key.
+     *
+     * @return LSN da remoção (0 sem registo de mutações), ou -1 se a chave não existia
+     */
+    public long delete(String key) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.writeLock();
+        long acquiredAt = acquire(l);
+        try {
+            // Uma chave expirada ainda por remover já não existia para os clientes
+            boolean existed = shard.version(key) != 0;
+            if (!remove(shard, key) || !existed) {
+                return -1;
+            }
+            MutationLog log = mutationLog;
+            return log != null ? log.logDelete(key) : 0;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * true se o armazenamento copia os valores (ver ShardStorage.copiesValues()).
+     */
+    public boolean copiesValues() {
+        return shards[0].data.copiesValues();
+    }
+
+    /**
+     * true se os valores vivem em ficheiros e getRegion()/multiGetRegions() estão disponíveis.
+     */
+    public boolean fileBacked() {
+        return shards[0].data.fileBacked();
+    }
+
+    /**
+     * Valor como região de ficheiro (ver ShardStorage.getRegion()); tem de ser fechada.
+     */
+    public FileRegion getRegion(String key) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.readLock();
+        long acquiredAt = acquire(l);
+        try {
+            return live(shard, key) ? shard.data.getRegion(key) : null;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    public byte[] get(String key) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.readLock();
+        long acquiredAt = acquire(l);
+        try {
+            byte[] value = shard.data.get(key);
+            return value != null && live(shard, key) ? value : null;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * get() com a chave em UTF-8 nos primeiros length bytes de key (ex.: lida da
+     * rede para um buffer reutilizável). Uma chave ASCII é procurada sem criar a
+     * String, se o armazenamento o permitir (ver ShardStorage.get(byte[], int, int)).
+     */
+    public byte[] get(byte[] key, int length) {
+        if (!Protocol.isAscii(key, length)) {
+            return get(new String(key, 0, length, StandardCharsets.UTF_8));
+        }
+        int hash = Protocol.asciiKeyHash(key, length);
+        Shard shard = shards[shardIndex(hash)];
+        Lock l = shard.lock.readLock();
+        long acquiredAt = acquire(l);
+        try {
+            byte[] value = shard.data.get(key, length, hash);
+            if (value == null || (shard.expiring == 0 && eviction == Eviction.NONE)) {
+                return value;
+            }
+            // Prazos e acessos estão nos metadados, indexados pela String
+            return live(shard, new String(key, 0, length, StandardCharsets.ISO_8859_1)) ? value : null;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * Valor e versão de key, lidos com o mesmo read lock.
+     *
+     * @return null se a chave não existir
+     */
+    public Versioned getVersioned(String key) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.readLock();
+        long acquiredAt = acquire(l);
+        try {
+            byte[] value = shard.data.get(key);
+            return value != null && live(shard, key) ? new Versioned(value, shard.version(key)) : null;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * Compare-and-set: escreve value só se a versão atual de key for
+     * expectedVersion (0 exige que a chave não exista).
+     *
+     * @return versão nova e LSN, ou null se a versão não coincidir
+     */
+    public CasResult cas(String key, long expectedVersion, byte[] value) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.writeLock();
+        long acquiredAt = acquire(l);
+        try {
+            if (shard.version(key) != expectedVersion) {
+                return null;
+            }
+            long version = store(shard, key, value, 0);
+            notifyListeners(shard, key, value);
+            MutationLog log = mutationLog;
+            return new CasResult(version, log != null ? log.logPut(key, value) : 0);
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Operações atómicas sobre várias chaves
+    // -----------------------------------------------------------
+    /**
+     * @return LSN atribuído pelo registo de mutações (0 se não houver registo)
+     */
+    public long multiPut(Map<String, byte[]> pairs) {
+        return multiPut(pairs, 0);
+    }
+
+    /**
+     * multiPut com todas as chaves a expirar no instante expiresAt.
+     */
+    public long multiPutExpiring(Map<String, byte[]> pairs, long expiresAt) {
+        return multiPut(pairs, expiresAt);
+    }
+
+    private long multiPut(Map<String, byte[]> pairs, long expiresAt) {
+        // Agrupa os pares por shard; o TreeMap garante a ordem crescente de índices
+        SortedMap<Integer, List<Map.Entry<String, byte[]>>> byShard = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            byShard.computeIfAbsent(shardIndex(entry.getKey()), i -> new ArrayList<>()).add(entry);
+        }
+
+        List<Lock> held = new ArrayList<>(byShard.size());
+        long acquiredAt = lockAll(byShard.keySet(), true, held);
+        try {
+            for (Map.Entry<Integer, List<Map.Entry<String, byte[]>>> group : byShard.entrySet()) {
+                Shard shard = shards[group.getKey()];
+                for (Map.Entry<String, byte[]> entry : group.getValue()) {
+                    store(shard, entry.getKey(), entry.getValue(), expiresAt);
+                    notifyListeners(shard, entry.getKey(), entry.getValue());
+                }
+            }
+            MutationLog log = mutationLog;
+            if (log == null) {
+                return 0;
+            }
+            return expiresAt != 0 ? log.logMultiPutExpiring(pairs, expiresAt) : log.logMultiPut(pairs);
+        } finally {
+            unlockAll(held, acquiredAt);
+        }
+    }
+
+    /**
+     * Commit de uma transação otimista: com os write locks de todos os shards
+     * envolvidos, confirma que cada chave lida ainda tem a versão registada em
+     * reads (0 para chaves que não existiam) e aplica writes como um multiPut.
+     * writes pode ser vazio (só valida as leituras).
+     *
+     * @return LSN da escrita (0 sem registo de mutações), ou -1 se alguma versão mudou
+     */
+    public long commitIfUnchanged(Map<String, Long> reads, Map<String, byte[]> writes) {
+        SortedMap<Integer, List<Map.Entry<String, byte[]>>> byShard = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+            byShard.computeIfAbsent(shardIndex(entry.getKey()), i -> new ArrayList<>()).add(entry);
+        }
+        Set<Integer> indices = new TreeSet<>(byShard.keySet());
+        for (String key : reads.keySet()) {
+            indices.add(shardIndex(key));
+        }
+
+        // Só com leituras chegavam read locks, mas o caso comum tem escritas
+        List<Lock> held = new ArrayList<>(indices.size());
+        long acquiredAt = lockAll(indices, true, held);
+        try {
+            for (Map.Entry<String, Long> read : reads.entrySet()) {
+                if (shards[shardIndex(read.getKey())].version(read.getKey()) != read.getValue()) {
+                    return -1;
+                }
+            }
+            if (writes.isEmpty()) {
+                return 0;
+            }
+            for (Map.Entry<Integer, List<Map.Entry<String, byte[]>>> group : byShard.entrySet()) {
+                Shard shard = shards[group.getKey()];
+                for (Map.Entry<String, byte[]> entry : group.getValue()) {
+                    store(shard, entry.getKey(), entry.getValue(), 0);
+                    notifyListeners(shard, entry.getKey(), entry.getValue());
+                }
+            }
+            MutationLog log = mutationLog;
+            return log != null ? log.logMultiPut(writes) : 0;
+        } finally {
+            unlockAll(held, acquiredAt);
+        }
+    }
+
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        SortedMap<Integer, List<String>> byShard = new TreeMap<>();
+        for (String key : keys) {
+            byShard.computeIfAbsent(shardIndex(key), i -> new ArrayList<>()).add(key);
+        }
+
+        Map<String, byte[]> result = new HashMap<>();
+        List<Lock> held = new ArrayList<>(byShard.size());
+        long acquiredAt = lockAll(byShard.keySet(), false, held);
+        try {
+            for (Map.Entry<Integer, List<String>> group : byShard.entrySet()) {
+                Shard shard = shards[group.getKey()];
+                for (String key : group.getValue()) {
+                    byte[] value = shard.data.get(key);
+                    if (value != null && live(shard, key)) {
+                        result.put(key, value);
+                    }
+                }
+            }
+        } finally {
+            unlockAll(held, acquiredAt);
+        }
+        return result;
+    }
+
+    /**
+     * Versão de multiGet() que devolve regiões de ficheiro (todas lidas com os
+     * read locks adquiridos, por isso formam uma vista atómica). Todas as regiões
+     * devolvidas têm de ser fechadas.
+     */
+    public Map<String, FileRegion> multiGetRegions(Set<String> keys) {
+        SortedMap<Integer, List<String>> byShard = new TreeMap<>();
+        for (String key : keys) {
+            byShard.computeIfAbsent(shardIndex(key), i -> new ArrayList<>()).add(key);
+        }
+
+        Map<String, FileRegion> result = new HashMap<>();
+        List<Lock> held = new ArrayList<>(byShard.size());
+        long acquiredAt = lockAll(byShard.keySet(), false, held);
+        try {
+            for (Map.Entry<Integer, List<String>> group : byShard.entrySet()) {
+                Shard shard = shards[group.getKey()];
+                for (String key : group.getValue()) {
+                    FileRegion region = live(shard, key) ? shard.data.getRegion(key) : null;
+                    if (region != null) {
+                        result.put(key, region);
+                    }
+                }
+            }
+        } finally {
+            unlockAll(held, acquiredAt);
+        }
+        return result;
+    }
+
+    // -----------------------------------------------------------
+    // Metadados das chaves (chamados com o lock do shard)
+    // -----------------------------------------------------------
+    /**
+     * Guarda o valor com uma versão nova e atualiza os metadados de key.
+     *
+     * @param expiresAt prazo da chave (0 sem TTL)
+     * @return a versão nova
+     */
+    private long store(Shard shard, String key, byte[] value, long expiresAt) {
+        long version = ++shard.lastVersion;
+        long before = shard.data.storedBytes();
+        boolean created = shard.data.put(key, value, version);
+        usedBytes.add(shard.data.storedBytes() - before);
+        written(shard, key, created, expiresAt);
+        return version;
+    }
+
+    private long store(Shard shard, String key, byte[] buffer, int length, long expiresAt) {
+        long version = ++shard.lastVersion;
+        long before = shard.data.storedBytes();
+        boolean created = shard.data.put(key, buffer, length, version);
+        usedBytes.add(shard.data.storedBytes() - before);
+        written(shard, key, created, expiresAt);
+        return version;
+    }
+
+    /**
+     * Atualiza os metadados de key depois de o valor ser guardado: índice
+     * ordenado e amostra de despejo (chaves novas), acesso e prazo.
+     */
+    private void written(Shard shard, String key, boolean created, long expiresAt) {
+        if (created) {
+            indexKey(key);
+        }
+        KeyMeta m;
+        if (eviction != Eviction.NONE) {
+            if (created) {
+                m = new KeyMeta();
+                shard.meta.put(key, m);
+                m.slot = shard.keys.size();
+                shard.keys.add(key);
+                m.frequency = LFU_INIT;
+            } else {
+                m = shard.meta.get(key);
+                touch(m);
+            }
+            m.lastAccess = accessClock;
+        } else {
+            // Sem despejo só as chaves com TTL têm metadados
+            m = shard.expiring > 0 ? shard.meta.get(key) : null;
+            if (m == null) {
+                if (expiresAt == 0) {
+                    return;
+                }
+                m = new KeyMeta();
+                shard.meta.put(key, m);
+            }
+        }
+        if (expiresAt != m.expiresAt) {
+            if (m.expiresAt == 0) {
+                shard.expiring++;
+            } else if (expiresAt == 0) {
+                shard.expiring--;
+            }
+            m.expiresAt = expiresAt;
+            if (expiresAt != 0) {
+                shard.deadlines.add(new Deadline(expiresAt, key));
+                if (expiresAt < shard.nextDeadline) {
+                    shard.nextDeadline = expiresAt;
+                }
+            }
+        }
+        if (expiresAt == 0 && eviction == Eviction.NONE) {
+            shard.meta.remove(key);
+        }
+    }
+
+    /**
+     * Remove key e os seus metadados e avisa os observadores (com o write lock).
+     *
+     * @return false se a chave não estava guardada
+     */
+    private boolean remove(Shard shard, String key) {
+        long before = shard.data.storedBytes();
+        if (!shard.data.remove(key)) {
+            return false;
+        }
+        usedBytes.add(shard.data.storedBytes() - before);
+        KeyMeta m = shard.meta.remove(key);
+        if (m != null) {
+            if (m.expiresAt != 0) {
+                shard.expiring--;
+            }
+            if (m.slot >= 0) {
+                // Troca com a última para remover da amostra em O(1)
+                String last = shard.keys.remove(shard.keys.size() - 1);
+                if (m.slot < shard.keys.size()) {
+                    shard.keys.set(m.slot, last);
+                    shard.meta.get(last).slot = m.slot;
+                }
+            }
+        }
+        if (orderedIndex != null) {
+            orderedIndex.remove(key);
+        }
+        notifyListeners(shard, key, null);
+        return true;
+    }
+
+    /**
+     * true se key (guardada ou não) não expirou; com despejo, regista o acesso.
+     * Chamado com o read lock, por isso não remove chaves expiradas.
+     */
+    private boolean live(Shard shard, String key) {
+        if (shard.expiring == 0 && eviction == Eviction.NONE) {
+            return true;
+        }
+        KeyMeta m = shard.meta.get(key);
+        if (m == null) {
+            return true;
+        }
+        if (m.expiresAt != 0 && m.expiresAt <= System.currentTimeMillis()) {
+            return false;
+        }
+        if (eviction != Eviction.NONE) {
+            touch(m);
+        }
+        return true;
+    }
+
+    private void touch(KeyMeta m) {
+        if (eviction == Eviction.LFU) {
+            int frequency = decayedFrequency(m);
+            // Incremento logarítmico: cada vez menos provável à medida que o contador sobe
+            if (frequency < 255) {
+                int base = Math.max(0, frequency - LFU_INIT);
+                if (ThreadLocalRandom.current().nextDouble() * (base * LFU_LOG_FACTOR + 1) < 1) {
+                    frequency++;
+                }
+            }
+            m.frequency = frequency;
+        }
+        m.lastAccess = accessClock;
+    }
+
+    private int decayedFrequency(KeyMeta m) {
+        int idleMinutes = (accessClock - m.lastAccess) / 60;
+        return Math.max(0, m.frequency - idleMinutes / LFU_DECAY_MINUTES);
+    }
+
+    // -----------------------------------------------------------
+    // Expiração e despejo (tarefas periódicas)
+    // -----------------------------------------------------------
+    /**
+     * Remove as chaves cujo prazo já passou, no máximo EXPIRE_PER_LOCK por
+     * shard e por chamada. Shards com o write lock ocupado ficam para a
+     * chamada seguinte.
+     *
+     * @return número de chaves removidas
+     */
+    public long expireKeys() {
+        long now = System.currentTimeMillis();
+        long removed = 0;
+        for (Shard shard : shards) {
+            if (shard.nextDeadline > now) {
+                continue;
+            }
+            Lock l = shard.lock.writeLock();
+            if (!l.tryLock()) {
+                continue;
+            }
+            try {
+                int n = 0;
+                while (n < EXPIRE_PER_LOCK) {
+                    Deadline next = shard.deadlines.peek();
+                    if (next == null || next.at > now) {
+                        break;
+                    }
+                    shard.deadlines.poll();
+                    KeyMeta m = shard.meta.get(next.key);
+                    if (m != null && m.expiresAt == next.at && remove(shard, next.key)) {
+                        n++;
+                    }
+                }
+                // Prazos obsoletos (chaves reescritas) acumulam-se: reconstrói o heap
+                if (shard.deadlines.size() > 2 * shard.expiring + 1024) {
+                    shard.deadlines.clear();
+                    for (Map.Entry<String, KeyMeta> entry : shard.meta.entrySet()) {
+                        if (entry.getValue().expiresAt != 0) {
+                            shard.deadlines.add(new Deadline(entry.getValue().expiresAt, entry.getKey()));
+                        }
+                    }
+                }
+                Deadline next = shard.deadlines.peek();
+                shard.nextDeadline = next != null ? next.at : Long.MAX_VALUE;
+                removed += n;
+            } finally {
+                l.unlock();
+            }
+        }
+        expired.add(removed);
+        return removed;
+    }
+
+    /**
+     * Despeja chaves (segundo a política de setEviction()) até os bytes
+     * guardados não passarem de maxBytes ou até passar budgetNanos. Cada
+     * despejo é registado como delete. Não faz nada sem política.
+     *
+     * @return número de chaves despejadas
+     */
+    public long evict(long maxBytes, long budgetNanos) {
+        accessClock = (int) ((System.nanoTime() - startNanos) / 1_000_000_000L);
+        if (eviction == Eviction.NONE) {
+            return 0;
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+        long removed = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (usedBytes.sum() > maxBytes && System.nanoTime() - deadline < 0) {
+            Shard shard = shards[random.nextInt(shards.length)];
+            Lock l = shard.lock.writeLock();
+            if (!l.tryLock()) {
+                continue;
+            }
+            try {
+                MutationLog log = mutationLog;
+                for (int n = 0; n < EVICT_PER_LOCK && !shard.keys.isEmpty() && usedBytes.sum() > maxBytes; n++) {
+                    String victim = victim(shard, random);
+                    remove(shard, victim);
+                    if (log != null) {
+                        log.logDelete(victim);
+                    }
+                    removed++;
+                }
+            } finally {
+                l.unlock();
+            }
+        }
+        evicted.add(removed);
+        return removed;
+    }
+
+    /**
+     * Pior chave de uma amostra aleatória do shard: uma já expirada, ou a de
+     * acesso mais antigo (LRU) ou menor frequência (LFU). Chamado com o write lock.
+     */
+    private String victim(Shard shard, ThreadLocalRandom random) {
+        long now = System.currentTimeMillis();
+        String worst = null;
+        long worstScore = Long.MAX_VALUE;
+        for (int i = 0; i < evictionSamples; i++) {
+            String key = shard.keys.get(random.nextInt(shard.keys.size()));
+            KeyMeta m = shard.meta.get(key);
+            if (m.expiresAt != 0 && m.expiresAt <= now) {
+                return key;
+            }
+            long score = eviction == Eviction.LFU
+                    ? ((long) decayedFrequency(m) << 32) | m.lastAccess
+                    : m.lastAccess;
+            if (score < worstScore) {
+                worst = key;
+                worstScore = score;
+            }
+        }
+        return worst;
+    }
+
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    public long evictedCount() {
+        return evicted.sum();
+    }
+
+    // -----------------------------------------------------------
+    // Índice ordenado
+    // -----------------------------------------------------------
+    private void indexKey(String key) {
+        if (orderedIndex != null && !indexDeferred) {
+            orderedIndex.add(key);
+        }
+    }
+
+    /**
+     * Deixa de pôr as chaves escritas no índice ordenado até rebuildIndex().
+     * Para o arranque: um snapshot vem pela ordem dos shards, e inserir
+     * milhões de chaves por ordem aleatória no skip list custa várias vezes
+     * mais do que ordená-las primeiro e inseri-las por ordem.
+     */
+    public void deferIndex() {
+        indexDeferred = orderedIndex != null;
+    }
+
+    /**
+     * Põe no índice, por ordem, as chaves escritas desde deferIndex(), e volta
+     * a mantê-lo a cada escrita. Sem escritas nem remoções concorrentes.
+     */
+    public void rebuildIndex() {
+        if (!indexDeferred) {
+            return;
+        }
+        List<String> keys = new ArrayList<>((int) size());
+        for (Shard shard : shards) {
+            Lock l = shard.lock.readLock();
+            long acquiredAt = acquire(l);
+            try {
+                shard.data.forEach((key, value) -> keys.add(key));
+            } finally {
+                release(l, acquiredAt);
+            }
+        }
+        keys.sort(null);
+        orderedIndex.addAll(keys);
+        indexDeferred = false;
+    }
+
+    public boolean hasOrderedIndex() {
+        return orderedIndex != null;
+    }
+
+    /**
+     * Pares com chave entre from e to (exclusivo; null sem limite), por ordem,
+     * até maxEntries pares ou até os valores somarem maxBytes (pelo menos um
+     * par). Cada valor é lido com o read lock do seu shard, por isso o
+     * resultado não é uma vista atómica do intervalo. Para continuar, chama-se
+     * de novo com from = última chave e fromInclusive = false.
+     */
+    public ScanResult scan(String from, boolean fromInclusive, String to, int maxEntries, long maxBytes) {
+        if (orderedIndex == null) {
+            throw new IllegalStateException("Índice ordenado desligado.");
+        }
+        if (to != null && from.compareTo(to) >= 0) {
+            return new ScanResult(new ArrayList<>(), false);
+        }
+        NavigableSet<String> range = to != null
+                ? orderedIndex.subSet(from, fromInclusive, to, false)
+                : orderedIndex.tailSet(from, fromInclusive);
+        List<Map.Entry<String, byte[]>> entries = new ArrayList<>(Math.min(maxEntries, 256));
+        long bytes = 0;
+        Iterator<String> keys = range.iterator();
+        while (keys.hasNext() && entries.size() < maxEntries && (entries.isEmpty() || bytes < maxBytes)) {
+            String key = keys.next();
+            byte[] value = get(key);
+            if (value != null) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+                bytes += value.length;
+            }
+        }
+        return new ScanResult(entries, keys.hasNext());
+    }
+
+    /**
+     * Cópia do conteúdo de um shard, tirada com o read lock desse shard.
+     * Usada para snapshots sem bloquear o armazém inteiro.
+     */
+    public List<Map.Entry<String, byte[]>> copyShard(int index) {
+        return copyShard(index, null);
+    }
+
+    /**
+     * Como copyShard(index), sem as chaves expiradas.
+     *
+     * @param expiries recebe, se não for null, o prazo das chaves copiadas que têm TTL
+     */
+    public List<Map.Entry<String, byte[]>> copyShard(int index, Map<String, Long> expiries) {
+        Shard shard = shards[index];
+        Lock l = shard.lock.readLock();
+        long acquiredAt = acquire(l);
+        try {
+            long now = System.currentTimeMillis();
+            List<Map.Entry<String, byte[]>> copy = new ArrayList<>(shard.data.size());
+            shard.data.forEach((key, value) -> {
+                KeyMeta m = shard.expiring > 0 ? shard.meta.get(key) : null;
+                if (m != null && m.expiresAt != 0) {
+                    if (m.expiresAt <= now) {
+                        return;
+                    }
+                    if (expiries != null) {
+                        expiries.put(key, m.expiresAt);
+                    }
+                }
+                copy.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+            });
+            return copy;
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * Manutenção do armazenamento (ex.: compactação), um shard de cada vez,
+     * para que as escritas noutros shards não fiquem à espera.
+     */
+    public void compact() {
+        for (Shard shard : shards) {
+            Lock l = shard.lock.writeLock();
+            long acquiredAt = acquire(l);
+            try {
+                shard.data.compact();
+            } finally {
+                release(l, acquiredAt);
+            }
+        }
+    }
+
+    /**
+     * Número de chaves, somado shard a shard (não é uma vista atómica).
+     * Inclui chaves expiradas ainda não removidas.
+     */
+    public long size() {
+        long total = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                total += shard.data.size();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Bytes ocupados pelas chaves e valores vivos (ver ShardStorage.storedBytes()),
+     * mantidos a cada escrita sem percorrer os shards.
+     */
+    public long storedBytes() {
+        return usedBytes.sum();
+    }
+
+    // -----------------------------------------------------------
+    // Observadores de chaves
+    // -----------------------------------------------------------
+    /**
+     * Regista um observador das escritas em key. Com notifyCurrent, o observador
+     * é chamado já com o valor atual, dentro do mesmo lock do registo, para que
+     * nenhuma escrita fique entre a leitura e a primeira notificação.
+     */
+    public void addListener(String key, KeyListener listener, boolean notifyCurrent) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.writeLock();
+        long acquiredAt = acquire(l);
+        try {
+            if (notifyCurrent) {
+                byte[] current = shard.data.get(key);
+                if (!listener.changed(key, current != null && live(shard, key) ? current : null)) {
+                    return;
+                }
+            }
+            shard.listeners.computeIfAbsent(key, k -> new ArrayList<>(1)).add(listener);
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    public void removeListener(String key, KeyListener listener) {
+        Shard shard = shards[shardIndex(key)];
+        Lock l = shard.lock.writeLock();
+        long acquiredAt = acquire(l);
+        try {
+            List<KeyListener> list = shard.listeners.get(key);
+            if (list != null && list.remove(listener) && list.isEmpty()) {
+                shard.listeners.remove(key);
+            }
+        } finally {
+            release(l, acquiredAt);
+        }
+    }
+
+    /**
+     * Chamado com o write lock do shard, depois de a escrita ser aplicada.
+     */
+    private static void notifyListeners(Shard shard, String key, byte[] value) {
+        if (shard.listeners.isEmpty()) {
+            return;
+        }
+        List<KeyListener> list = shard.listeners.get(key);
+        if (list == null) {
+            return;
+        }
+        list.removeIf(listener -> !listener.changed(key, value));
+        if (list.isEmpty()) {
+            shard.listeners.remove(key);
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Métodos auxiliares de locking
+    // -----------------------------------------------------------
+    /**
+     * Adquire um lock, registando o tempo de espera se lockTiming estiver ativo.
+     *
+     * @return instante (System.nanoTime()) em que o lock foi obtido, ou 0 sem medição
+     */
+    private long acquire(Lock l) {
+        if (!lockTiming) {
+            l.lock();
+            return 0;
+        }
+        long start = System.nanoTime();
+        l.lock();
+        long acquiredAt = System.nanoTime();
+        LOCK_WAIT.record(acquiredAt - start);
+        return acquiredAt;
+    }
+
+    private void release(Lock l, long acquiredAt) {
+        l.unlock();
+        if (acquiredAt != 0) {
+            LOCK_HOLD.recordSince(acquiredAt);
+        }
+    }
+
+    /**
+     * Adquire os locks dos shards indicados por ordem crescente de índice.
+     * Todas as operações multi-shard seguem esta ordem, pelo que não há ciclos de espera.
+     *
+     * @param held recebe os locks adquiridos, pela ordem de aquisição
+     * @return como em acquire(); a espera medida é a do conjunto dos locks
+     */
+    private long lockAll(Set<Integer> indices, boolean write, List<Lock> held) {
+        long start = lockTiming ? System.nanoTime() : 0;
+        for (int index : indices) {
+            ReentrantReadWriteLock rw = shards[index].lock;
+            Lock l = write ? rw.writeLock() : rw.readLock();
+            l.lock();
+            held.add(l);
+        }
+        if (start == 0) {
+            return 0;
+        }
+        long acquiredAt = System.nanoTime();
+        LOCK_WAIT.record(acquiredAt - start);
+        return acquiredAt;
+    }
+
+    private void unlockAll(List<Lock> held, long acquiredAt) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            held.get(i).unlock();
+        }
+        if (acquiredAt != 0) {
+            LOCK_HOLD.recordSince(acquiredAt);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package project;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Snapshots do estado do servidor (utilizadores + dataStore + transações
+ * preparadas entre nós).
+ *
+ * O ficheiro "snapshot-NNNNNNNN.snap" contém o estado correspondente a todos os
+ * segmentos do WAL anteriores a NNNNNNNN. O snapshot é tirado shard a shard
+ * (só com o read lock de cada shard), por isso pode incluir também parte do
+ * segmento NNNNNNNN; como os registos do WAL são "chave = valor" e ficam por
+ * ordem para cada chave, reaplicar esse segmento por cima dá o estado correto.
+ *
+ * Formato: [MAGIC][n utilizadores][(username, password)...][(3, registo do WAL)...]
+ * [(1, chave, valor) ou (2, prazo: long, chave, valor)...][0]; as chaves com TTL
+ * levam o prazo absoluto. Os registos do WAL são os das transações preparadas e
+ * das decisões de commit (PreparedTransactions.records()), que também podem
+ * voltar a aparecer no segmento NNNNNNNN.
+ */
+public final class Snapshot {
+
+    private static final int MAGIC = 0x4B56534E; // "KVSN"
+
+    private Snapshot() {
+    }
+
+    /**
+     * Escreve um snapshot para o segmento indicado. O ficheiro só aparece com o
+     * nome final depois de estar completo e em disco (rename atómico).
+     */
+    public static void write(Path dir, long segmentId, Map<String, String> users, List<byte[]> records,
+                             ShardedStore store) throws IOException {
+        Path tmp = dir.resolve(String.format("snapshot-%08d.tmp", segmentId));
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(MAGIC);
+
+            Map<String, String> usersCopy = new HashMap<>(users);
+            Protocol.writeVarint(out, usersCopy.size());
+            for (Map.Entry<String, String> user : usersCopy.entrySet()) {
+                Protocol.writeBytes(out, Protocol.encodeKey(user.getKey()));
+                Protocol.writeBytes(out, Protocol.encodeKey(user.getValue()));
+            }
+
+            for (byte[] record : records) {
+                out.writeByte(3);
+                Protocol.writeBytes(out, record);
+            }
+
+            Map<String, Long> expiries = new HashMap<>();
+            for (int i = 0; i < store.shardCount(); i++) {
+                expiries.clear();
+                for (Map.Entry<String, byte[]> entry : store.copyShard(i, expiries)) {
+                    Long expiresAt = expiries.get(entry.getKey());
+                    if (expiresAt != null) {
+                        out.writeByte(2);
+                        out.writeLong(expiresAt);
+                    } else {
+                        out.writeByte(1);
+                    }
+                    Protocol.writeBytes(out, Protocol.encodeKey(entry.getKey()));
+                    Protocol.writeBytes(out, entry.getValue());
+                }
+            }
+            out.writeByte(0);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, path(dir, segmentId), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(dir);
+    }
+
+    /**
+     * Carrega o snapshot para os mapas indicados; os registos do WAL vão para handler.
+     *
+     * @return número de chaves carregadas
+     */
+    public static long load(Path file, Map<String, String> users, WriteAheadLog.RecordHandler handler,
+                            ShardedStore store) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Ficheiro de snapshot inválido: " + file);
+            }
+            int numUsers = Protocol.readVarint(in);
+            for (int i = 0; i < numUsers; i++) {
+                String username = readString(in);
+                users.put(username, readString(in));
+            }
+            long keys = 0;
+            long now = System.currentTimeMillis();
+            for (int tag = in.readByte(); tag != 0; tag = in.readByte()) {
+                if (tag == 3) {
+                    byte[] record = new byte[Protocol.readVarint(in)];
+                    in.readFully(record);
+                    WriteAheadLog.applyRecord(record, handler);
+                    continue;
+                }
+                long expiresAt = tag == 2 ? in.readLong() : 0;
+                String key = readString(in);
+                byte[] value = new byte[Protocol.readVarint(in)];
+                in.readFully(value);
+                if (expiresAt == 0) {
+                    store.put(key, value);
+                } else if (expiresAt > now) {
+                    store.putExpiring(key, value, expiresAt);
+                } else {
+                    continue;
+                }
+                keys++;
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Id do segmento do snapshot mais recente em dir, ou 0 se não houver nenhum.
+     */
+    public static long latest(Path dir) throws IOException {
+        long latest = 0;
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                latest = Math.max(latest, Long.parseLong(name.substring(9, name.length() - 5)));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Apaga snapshots mais antigos do que o indicado (e temporários abandonados).
+     */
+    public static void deleteOlderThan(Path dir, long segmentId) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring(9, name.lastIndexOf('.')));
+                if (id < segmentId) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    public static Path path(Path dir, long segmentId) {
+        return dir.resolve(String.format("snapshot-%08d.snap", segmentId));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[Protocol.readVarint(in)];
+        in.readFully(bytes);
+        return Protocol.decodeKey(bytes);
+    }
+
+    private static void syncDirectory(Path dir) {
+        // Garante que o rename fica em disco; nem todos os sistemas permitem abrir diretórios
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // ignorado: o rename já foi feito, só a sua durabilidade imediata fica por garantir
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package project;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Chaves lidas por uma ligação com tracking ativo (OP_TRACK), para que a
+ * cache do cliente seja avisada quando deixam de ser válidas.
+ *
+ * Cada chave tem um observador no armazém que dispara uma única vez: na
+ * escrita seguinte (ou remoção/expiração) a chave é enviada ao cliente e
+ * deixa de ser seguida até voltar a ser lida. O observador é registado antes
+ * da leitura, por isso nenhuma escrita entre a leitura e o registo se perde.
+ * Acima de maxKeys as chaves mais antigas deixam de ser seguidas e são também
+ * enviadas, para o cliente as retirar da cache.
+ */
+public class TrackedKeys {
+
+    private final ShardedStore store;
+    private final int maxKeys;
+    // Chaves seguidas em todas as ligações (métrica tracking.keys)
+    private final AtomicInteger total;
+    // Chamado com o lock do shard da chave: deve apenas enfileirar o aviso
+    private final Consumer<String> invalidate;
+    // Por ordem de registo, para largar as mais antigas
+    private final LinkedHashMap<String, Tracked> keys = new LinkedHashMap<>();
+    private boolean closed = false;
+
+    TrackedKeys(ShardedStore store, int maxKeys, AtomicInteger total, Consumer<String> invalidate) {
+        this.store = store;
+        this.maxKeys = maxKeys;
+        this.total = total;
+        this.invalidate = invalidate;
+    }
+
+    /**
+     * Observador de uma chave seguida; retira-se a si próprio na primeira escrita.
+     */
+    private final class Tracked implements KeyListener {
+        final String key;
+
+        Tracked(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean changed(String k, byte[] value) {
+            if (forget(this)) {
+                invalidate.accept(key);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Segue key a partir de agora; chamado antes de ler o valor para o cliente.
+     */
+    public void track(String key) {
+        Tracked tracked = new Tracked(key);
+        Tracked dropped = null;
+        // Os locks dos shards nunca são pedidos com o monitor deste objeto
+        // (os observadores chamam forget() com o lock do shard)
+        synchronized (this) {
+            if (closed || keys.containsKey(key)) {
+                return;
+            }
+            keys.put(key, tracked);
+            total.incrementAndGet();
+            if (keys.size() > maxKeys) {
+                Iterator<Tracked> oldest = keys.values().iterator();
+                dropped = oldest.next();
+                oldest.remove();
+                total.decrementAndGet();
+            }
+        }
+        store.addListener(key, tracked, false);
+        if (dropped != null) {
+            store.removeListener(dropped.key, dropped);
+            invalidate.accept(dropped.key);
+        }
+    }
+
+    /**
+     * Deixa de seguir todas as chaves (fim da ligação); não envia mais avisos.
+     */
+    public void close() {
+        List<Tracked> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(keys.values());
+            keys.clear();
+            total.addAndGet(-all.size());
+        }
+        for (Tracked tracked : all) {
+            store.removeListener(tracked.key, tracked);
+        }
+    }
+
+    private synchronized boolean forget(Tracked tracked) {
+        if (keys.remove(tracked.key, tracked)) {
+            total.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+}
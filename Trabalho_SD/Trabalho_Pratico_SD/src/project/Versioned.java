@@ -0,0 +1,18 @@
+package project;
+
+/**
+ * Valor de uma chave com a sua versão (ver ShardedStore.getVersioned()).
+ *
+ * A versão muda a cada escrita da chave e só serve para comparar com a
+ * versão atual (cas, transações otimistas); 0 quer dizer que a chave não existe.
+ */
+public final class Versioned {
+
+    public final byte[] value;
+    public final long version;
+
+    public Versioned(byte[] value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+}
@@ -0,0 +1,640 @@
+package project;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log das mutações do dataStore, dos registos de utilizadores e
+ * das transações preparadas entre nós (ver PreparedTransactions).
+ *
+ * O log é uma sequência de segmentos "wal-NNNNNNNN.log". Cada registo tem o
+ * formato [tamanho: int][crc32: int][corpo], o que permite detetar um último
+ * registo incompleto depois de uma falha.
+ *
+ * Group commit: append() só copia o registo para um buffer em memória e devolve
+ * o seu LSN. Uma thread dedicada escreve o buffer no ficheiro e faz um único
+ * fsync por lote, quando passam syncIntervalMs ou se juntam syncRecords
+ * registos. Quem precisa de durabilidade espera com awaitDurable(lsn).
+ */
+public class WriteAheadLog implements MutationLog, Closeable {
+
+    // Tipos de registo
+    static final int REC_PUT = 1;
+    static final int REC_MULTI_PUT = 2;
+    static final int REC_USER = 3;
+    static final int REC_DELETE = 4;
+    static final int REC_PUT_EXPIRING = 5;
+    static final int REC_MULTI_PUT_EXPIRING = 6;
+    static final int REC_TXN_PREPARED = 7;
+    static final int REC_TXN_COMMITTED = 8;
+    static final int REC_TXN_ABORTED = 9;
+
+    /**
+     * Recebe os registos durante a reaplicação do log.
+     */
+    public interface RecordHandler {
+        void put(String key, byte[] value);
+
+        void multiPut(Map<String, byte[]> pairs);
+
+        /**
+         * @param expiresAt prazo absoluto (ms desde a época), que pode já ter passado
+         */
+        void putExpiring(String key, byte[] value, long expiresAt);
+
+        void multiPutExpiring(Map<String, byte[]> pairs, long expiresAt);
+
+        void delete(String key);
+
+        void user(String username, String password);
+
+        /**
+         * Transação de um multiPut entre nós que votou sim (ver PreparedTransactions).
+         *
+         * @param coordinator "" se este nó é o coordenador, senão "host:porta"
+         */
+        default void txnPrepared(String txId, String coordinator, Map<String, byte[]> pairs) {
+        }
+
+        /**
+         * @param decision true se este nó é o coordenador (a decisão fica guardada)
+         */
+        default void txnCommitted(String txId, boolean decision) {
+        }
+
+        default void txnAborted(String txId) {
+        }
+    }
+
+    private final Path dir;
+    private final boolean waitForSync;
+    private final long syncIntervalNanos;
+    private final int syncRecords;
+
+    // Protege o buffer de append e os contadores de LSN
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition durableCond = lock.newCondition();
+    // Protege o ficheiro (escrita, fsync e rotação); adquirido sempre antes de 'lock'
+    private final ReentrantLock ioLock = new ReentrantLock();
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private long lastLsn = 0;
+    private int pendingRecords = 0;
+    private volatile long durableLsn = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    private long segmentId;
+    private FileChannel channel;
+    private final Thread flusher;
+
+    /**
+     * Abre um segmento novo a seguir ao último existente em dir.
+     *
+     * @param waitForSync se true, awaitDurable() espera pelo fsync; se false o
+     *                    log é escrito em segundo plano sem atrasar as respostas
+     */
+    public WriteAheadLog(Path dir, boolean waitForSync, long syncIntervalMs, int syncRecords) throws IOException {
+        this.dir = dir;
+        this.waitForSync = waitForSync;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMs);
+        this.syncRecords = syncRecords;
+        Files.createDirectories(dir);
+        List<Long> existing = segmentIds(dir);
+        this.segmentId = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        this.channel = openSegment(segmentId);
+
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // -----------------------------------------------------------
+    // Escrita de registos
+    // -----------------------------------------------------------
+    @Override
+    public long logPut(String key, byte[] value) {
+        return logPut(key, value, value.length);
+    }
+
+    @Override
+    public long logPut(String key, byte[] buffer, int length) {
+        return append(putRecord(key, buffer, length));
+    }
+
+    @Override
+    public long logMultiPut(Map<String, byte[]> pairs) {
+        return append(multiPutRecord(pairs));
+    }
+
+    @Override
+    public long logPutExpiring(String key, byte[] value, long expiresAt) {
+        return append(putExpiringRecord(key, value, expiresAt));
+    }
+
+    @Override
+    public long logMultiPutExpiring(Map<String, byte[]> pairs, long expiresAt) {
+        return append(multiPutExpiringRecord(pairs, expiresAt));
+    }
+
+    @Override
+    public long logDelete(String key) {
+        return append(deleteRecord(key));
+    }
+
+    public long logUser(String username, String password) {
+        return append(userRecord(username, password));
+    }
+
+    // -----------------------------------------------------------
+    // Corpo dos registos (partilhado com a replicação)
+    // -----------------------------------------------------------
+    static byte[] putRecord(String key, byte[] buffer, int length) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + key.length() + length);
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REC_PUT);
+            Protocol.writeBytes(out, Protocol.encodeKey(key));
+            Protocol.writeVarint(out, length);
+            out.write(buffer, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] putExpiringRecord(String key, byte[] value, long expiresAt) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(24 + key.length() + value.length);
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REC_PUT_EXPIRING);
+            out.writeLong(expiresAt);
+            Protocol.writeBytes(out, Protocol.encodeKey(key));
+            Protocol.writeBytes(out, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] multiPutRecord(Map<String, byte[]> pairs) {
+        return multiPutRecord(REC_MULTI_PUT, pairs, 0);
+    }
+
+    static byte[] multiPutExpiringRecord(Map<String, byte[]> pairs, long expiresAt) {
+        return multiPutRecord(REC_MULTI_PUT_EXPIRING, pairs, expiresAt);
+    }
+
+    private static byte[] multiPutRecord(int type, Map<String, byte[]> pairs, long expiresAt) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(type);
+            if (type == REC_MULTI_PUT_EXPIRING) {
+                out.writeLong(expiresAt);
+            }
+            Protocol.writeVarint(out, pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                Protocol.writeBytes(out, Protocol.encodeKey(entry.getKey()));
+                Protocol.writeBytes(out, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] deleteRecord(String key) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8 + key.length());
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REC_DELETE);
+            Protocol.writeBytes(out, Protocol.encodeKey(key));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] userRecord(String username, String password) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REC_USER);
+            Protocol.writeBytes(out, Protocol.encodeKey(username));
+            Protocol.writeBytes(out, Protocol.encodeKey(password));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] txnPreparedRecord(String txId, String coordinator, Map<String, byte[]> pairs) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REC_TXN_PREPARED);
+            Protocol.writeBytes(out, Protocol.encodeKey(txId));
+            Protocol.writeBytes(out, Protocol.encodeKey(coordinator));
+            Protocol.writeVarint(out, pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                Protocol.writeBytes(out, Protocol.encodeKey(entry.getKey()));
+                Protocol.writeBytes(out, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] txnCommittedRecord(String txId, boolean decision) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REC_TXN_COMMITTED);
+            out.writeByte(decision ? 1 : 0);
+            Protocol.writeBytes(out, Protocol.encodeKey(txId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] txnAbortedRecord(String txId) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeByte(REC_TXN_ABORTED);
+            Protocol.writeBytes(out, Protocol.encodeKey(txId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Junta um registo ao buffer do lote atual e devolve o seu LSN.
+     */
+    long append(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        lock.lock();
+        try {
+            writeInt(buffer, body.length);
+            writeInt(buffer, (int) crc.getValue());
+            buffer.write(body, 0, body.length);
+            pendingRecords++;
+            if (pendingRecords == 1 || pendingRecords >= syncRecords) {
+                flushNeeded.signal();
+            }
+            return ++lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera até o registo com este LSN estar em disco (no modo síncrono).
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        if (!waitForSync || lsn <= durableLsn) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (failure != null) {
+                    throw new IOException("WAL indisponível.", failure);
+                }
+                durableCond.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long lastLsn() {
+        lock.lock();
+        try {
+            return lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Group commit
+    // -----------------------------------------------------------
+    private void flushLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (pendingRecords == 0 && !closed) {
+                    flushNeeded.awaitUninterruptibly();
+                }
+                if (closed && pendingRecords == 0) {
+                    return;
+                }
+                // Dá tempo para outros escritores se juntarem ao mesmo fsync
+                long deadline = System.nanoTime() + syncIntervalNanos;
+                while (pendingRecords < syncRecords && !closed) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    flushNeeded.awaitNanos(left);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            ioLock.lock();
+            try {
+                writeBatch();
+            } finally {
+                ioLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Escreve o lote pendente no segmento atual e faz fsync. Chamado com ioLock.
+     */
+    private void writeBatch() {
+        byte[] batch;
+        long batchLsn;
+        lock.lock();
+        try {
+            if (pendingRecords == 0) {
+                return;
+            }
+            batch = buffer.toByteArray();
+            batchLsn = lastLsn;
+            buffer.reset();
+            pendingRecords = 0;
+        } finally {
+            lock.unlock();
+        }
+
+        IOException error = null;
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(batch);
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        lock.lock();
+        try {
+            if (error != null) {
+                failure = error;
+            } else {
+                durableLsn = batchLsn;
+            }
+            durableCond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Rotação de segmentos (usada pelos snapshots)
+    // -----------------------------------------------------------
+    /**
+     * Fecha o segmento atual (depois de o escrever todo em disco) e passa a
+     * escrever num segmento novo.
+     *
+     * @return id do novo segmento; todos os segmentos anteriores ficam imutáveis
+     */
+    public long rotate() throws IOException {
+        ioLock.lock();
+        try {
+            writeBatch();
+            lock.lock();
+            try {
+                if (failure != null) {
+                    throw new IOException("WAL indisponível.", failure);
+                }
+                channel.close();
+                segmentId++;
+                channel = openSegment(segmentId);
+                return segmentId;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Apaga os segmentos anteriores a firstKept (já cobertos por um snapshot).
+     */
+    public void deleteSegmentsBefore(long firstKept) throws IOException {
+        for (long id : segmentIds(dir)) {
+            if (id < firstKept) {
+                Files.deleteIfExists(segmentPath(dir, id));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ioLock.lock();
+        try {
+            writeBatch();
+            channel.close();
+        } finally {
+            ioLock.unlock();
+        }
+        lock.lock();
+        try {
+            durableCond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Recuperação
+    // -----------------------------------------------------------
+    /**
+     * Reaplica, por ordem, todos os segmentos com id >= fromSegment.
+     * Um registo final incompleto ou corrompido (escrita interrompida) termina
+     * a leitura desse segmento.
+     *
+     * @return número de registos reaplicados
+     */
+    public static long replay(Path dir, long fromSegment, RecordHandler handler) throws IOException {
+        long count = 0;
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        for (long id : segmentIds(dir)) {
+            if (id < fromSegment) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(segmentPath(dir, id)), 1 << 16))) {
+                while (true) {
+                    byte[] body = readRecord(in);
+                    if (body == null) {
+                        break;
+                    }
+                    applyRecord(body, handler);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        int crc;
+        try {
+            length = in.readInt();
+            crc = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        try {
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 check = new CRC32();
+        check.update(body);
+        if ((int) check.getValue() != crc) {
+            return null;
+        }
+        return body;
+    }
+
+    static void applyRecord(byte[] body, RecordHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Protocol.FrameReader record = new Protocol.FrameReader(in, body.length);
+        int type = record.readBytes(1)[0];
+        switch (type) {
+            case REC_PUT: {
+                String key = record.readKey();
+                handler.put(key, record.readField());
+                break;
+            }
+            case REC_MULTI_PUT:
+            case REC_MULTI_PUT_EXPIRING: {
+                long expiresAt = type == REC_MULTI_PUT_EXPIRING ? record.readLong() : 0;
+                int n = record.readVarint();
+                Map<String, byte[]> pairs = new HashMap<>();
+                for (int i = 0; i < n; i++) {
+                    String key = record.readKey();
+                    pairs.put(key, record.readField());
+                }
+                if (expiresAt != 0) {
+                    handler.multiPutExpiring(pairs, expiresAt);
+                } else {
+                    handler.multiPut(pairs);
+                }
+                break;
+            }
+            case REC_PUT_EXPIRING: {
+                long expiresAt = record.readLong();
+                String key = record.readKey();
+                handler.putExpiring(key, record.readField(), expiresAt);
+                break;
+            }
+            case REC_DELETE:
+                handler.delete(record.readKey());
+                break;
+            case REC_USER: {
+                String username = record.readKey();
+                handler.user(username, record.readKey());
+                break;
+            }
+            case REC_TXN_PREPARED: {
+                String txId = record.readKey();
+                String coordinator = record.readKey();
+                int n = record.readVarint();
+                Map<String, byte[]> pairs = new HashMap<>();
+                for (int i = 0; i < n; i++) {
+                    String key = record.readKey();
+                    pairs.put(key, record.readField());
+                }
+                handler.txnPrepared(txId, coordinator, pairs);
+                break;
+            }
+            case REC_TXN_COMMITTED: {
+                boolean decision = record.readBytes(1)[0] != 0;
+                handler.txnCommitted(record.readKey(), decision);
+                break;
+            }
+            case REC_TXN_ABORTED:
+                handler.txnAborted(record.readKey());
+                break;
+            default:
+                throw new IOException("Tipo de registo desconhecido no WAL: " + type);
+        }
+    }
+
+    // -----------------------------------------------------------
+    // Métodos auxiliares
+    // -----------------------------------------------------------
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentPath(dir, id),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static Path segmentPath(Path dir, long id) {
+        return dir.resolve(String.format("wal-%08d.log", id));
+    }
+
+    static List<Long> segmentIds(Path dir) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return ids;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+}
@@ -0,0 +1,201 @@
+package project;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Junta em micro-lotes os puts concorrentes de todos os ClientHandlers.
+ *
+ * Não há thread dedicada: quem abre um lote é o seu líder. O líder espera que
+ * o lote anterior esteja aplicado e depois, no máximo, maxDelay ou até o lote
+ * ter maxBatch puts; fecha-o e aplica-o com ShardedStore.putBatch() (um write
+ * lock por shard). Os restantes puts do lote esperam e são libertados todos
+ * juntos. Os lotes são aplicados um de cada vez, pela ordem em que abriram;
+ * enquanto um é aplicado, os puts que chegam vão enchendo o seguinte.
+ *
+ * Com maxDelay 0 os lotes formam-se só com o que chega durante a aplicação do
+ * lote anterior, sem atrasar um put isolado. Cada ligação tem no máximo um put
+ * no batcher, por isso esperar mais só compensa com muitas ligações a escrever
+ * ao mesmo tempo.
+ */
+public class WriteBatcher {
+
+    private final ShardedStore store;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Acorda os líderes: um lote encheu ou o lote anterior ficou aplicado
+    private final Condition turn = lock.newCondition();
+
+    // Protegidos por lock
+    private Batch open;            // lote a receber puts (null se não houver)
+    private long nextSeq = 0;      // número de ordem do último lote aberto
+    private long lastApplied = 0;  // número de ordem do último lote aplicado
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+
+    private static final class Batch {
+        final long seq;
+        final String[] keys;
+        final byte[][] buffers;
+        final int[] lengths;
+        // O armazém pode ficar com buffers[i] (put(key, value)); senão copia-o
+        final boolean[] owned;
+        final Condition applied;
+        int count = 0;
+        boolean done = false;
+        long lsn;
+        RuntimeException failure;
+
+        Batch(long seq, int capacity, Condition applied) {
+            this.seq = seq;
+            this.keys = new String[capacity];
+            this.buffers = new byte[capacity][];
+            this.lengths = new int[capacity];
+            this.owned = new boolean[capacity];
+            this.applied = applied;
+        }
+    }
+
+    /**
+     * @param maxBatch       número máximo de puts por lote
+     * @param maxDelayMicros tempo máximo que o líder espera por mais puts
+     */
+    public WriteBatcher(ShardedStore store, int maxBatch, long maxDelayMicros) {
+        if (maxBatch <= 0 || maxDelayMicros < 0) {
+            throw new IllegalArgumentException("Configuração de lotes inválida: " + maxBatch + ", " + maxDelayMicros);
+        }
+        this.store = store;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    }
+
+    /**
+     * Junta o put ao lote aberto e só retorna quando esse lote estiver aplicado.
+     * O armazém pode ficar com o próprio array value. Não é interrompível: um
+     * put que entrou num lote é sempre aplicado.
+     *
+     * @return maior LSN do lote, para usar com awaitDurable()
+     */
+    public long put(String key, byte[] value) {
+        return put(key, value, value.length, true);
+    }
+
+    /**
+     * Como put(key, value), com o valor nos primeiros length bytes de buffer,
+     * que é copiado e pode ser reutilizado quando o método retorna.
+     */
+    public long put(String key, byte[] buffer, int length) {
+        return put(key, buffer, length, false);
+    }
+
+    private long put(String key, byte[] buffer, int length, boolean owned) {
+        boolean interrupted = false;
+        Batch batch;
+        lock.lock();
+        try {
+            boolean leader = false;
+            if (open == null) {
+                open = new Batch(++nextSeq, maxBatch, lock.newCondition());
+                leader = true;
+            }
+            batch = open;
+            batch.keys[batch.count] = key;
+            batch.buffers[batch.count] = buffer;
+            batch.lengths[batch.count] = length;
+            batch.owned[batch.count] = owned;
+            if (++batch.count == maxBatch) {
+                // Lote cheio: os puts seguintes já vão para outro
+                open = null;
+                turn.signalAll();
+            }
+
+            if (!leader) {
+                while (!batch.done) {
+                    try {
+                        batch.applied.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return result(batch);
+            }
+
+            long deadline = System.nanoTime() + maxDelayNanos;
+            while (true) {
+                try {
+                    if (lastApplied != batch.seq - 1) {
+                        turn.await();
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (batch != open || remaining <= 0) {
+                        break;
+                    }
+                    turn.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (open == batch) {
+                open = null;
+            }
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return apply(batch);
+    }
+
+    /**
+     * Aplica o lote (fora do lock do batcher) e liberta quem espera por ele e o
+     * líder do lote seguinte.
+     */
+    private long apply(Batch batch) {
+        try {
+            batch.lsn = store.putBatch(batch.keys, batch.buffers, batch.lengths, batch.owned, batch.count);
+        } catch (RuntimeException e) {
+            batch.failure = e;
+        }
+        batches.increment();
+        puts.add(batch.count);
+
+        lock.lock();
+        try {
+            batch.done = true;
+            lastApplied = batch.seq;
+            batch.applied.signalAll();
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return result(batch);
+    }
+
+    private static long result(Batch batch) {
+        if (batch.failure != null) {
+            throw batch.failure;
+        }
+        return batch.lsn;
+    }
+
+    /**
+     * Número de lotes aplicados.
+     */
+    public long batches() {
+        return batches.sum();
+    }
+
+    /**
+     * Número de puts aplicados em lotes (puts / batches dá o tamanho médio).
+     */
+    public long puts() {
+        return puts.sum();
+    }
+}
@@ -0,0 +1,299 @@
+package project;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ClusterClient sobre três nós em localhost, cada um no seu processo. Cada
+ * teste usa as suas próprias chaves (prefixo), porque os nós são partilhados.
+ */
+class ClusterClientTest {
+
+    @TempDir
+    static Path dir;
+
+    private static final List<ServerProcess> nodes = new ArrayList<>();
+    private static final Map<String, ClientLibrary> direct = new HashMap<>();
+
+    private ClusterClient cluster;
+
+    @BeforeAll
+    static void startNodes() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            nodes.add(ServerProcess.start(dir.resolve("node" + i), "-Dserver.txn.timeoutMs=2000"));
+        }
+        for (ServerProcess node : nodes) {
+            direct.put(node.address(), connect(node));
+        }
+    }
+
+    @AfterAll
+    static void stopNodes() throws IOException {
+        for (ClientLibrary client : direct.values()) {
+            client.close();
+        }
+        for (ServerProcess node : nodes) {
+            node.close();
+        }
+    }
+
+    @BeforeEach
+    void connectCluster() throws IOException {
+        cluster = new ClusterClient(addresses(), "alice", "secret", ServerProcess.CLUSTER_SECRET);
+    }
+
+    @AfterEach
+    void closeCluster() {
+        cluster.close();
+    }
+
+    @Test
+    void keysAreStoredOnlyOnTheirOwner() throws IOException {
+        HashRing ring = new HashRing(addresses(), ClusterClient.DEFAULT_VIRTUAL_NODES);
+        Map<String, Integer> perNode = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            String key = "route-" + i;
+            cluster.put(key, ("v" + i).getBytes());
+            perNode.merge(ring.nodeFor(key), 1, Integer::sum);
+        }
+        assertEquals(3, perNode.size(), "Todos os nós recebem chaves: " + perNode);
+
+        for (int i = 0; i < 300; i++) {
+            String key = "route-" + i;
+            String owner = ring.nodeFor(key);
+            for (Map.Entry<String, ClientLibrary> node : direct.entrySet()) {
+                byte[] value = node.getValue().get(key);
+                if (node.getKey().equals(owner)) {
+                    assertArrayEquals(("v" + i).getBytes(), value, key);
+                } else {
+                    assertNull(value, key + " também em " + node.getKey());
+                }
+            }
+            assertArrayEquals(("v" + i).getBytes(), cluster.get(key));
+        }
+    }
+
+    @Test
+    void atomicMultiPutIsAppliedOnEveryNode() throws Exception {
+        Map<String, byte[]> pairs = pairs("atomic-", 60);
+        cluster.multiPut(pairs);
+
+        HashRing ring = new HashRing(addresses(), ClusterClient.DEFAULT_VIRTUAL_NODES);
+        assertEquals(3, ring.partition(pairs.keySet()).size());
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            assertArrayEquals(pair.getValue(), direct.get(ring.nodeFor(pair.getKey())).get(pair.getKey()));
+        }
+        assertEquals(pairs.keySet(), cluster.multiGet(pairs.keySet()).keySet());
+        awaitNoPendingTransactions();
+    }
+
+    @Test
+    void atomicMultiPutIsAbortedEverywhereOnConflict() throws Exception {
+        Map<String, byte[]> pairs = pairs("conflict-", 60);
+        HashRing ring = new HashRing(addresses(), ClusterClient.DEFAULT_VIRTUAL_NODES);
+
+        // Outra transação reserva uma das chaves: o prepare falha nesse nó
+        String blocked = pairs.keySet().iterator().next();
+        ClientLibrary owner = direct.get(ring.nodeFor(blocked));
+        ClientLibrary.await(owner.prepareAsync("other", "", Map.of(blocked, "other".getBytes())));
+        try {
+            IOException e = assertThrows(IOException.class, () -> cluster.multiPut(pairs));
+            assertTrue(e.getMessage().contains("multiPut abortado"), e.getMessage());
+        } finally {
+            ClientLibrary.await(owner.abortAsync("other"));
+        }
+
+        // Nada aplicado em nenhum nó, e nenhuma chave fica reservada
+        for (String key : pairs.keySet()) {
+            assertNull(direct.get(ring.nodeFor(key)).get(key), key);
+        }
+        awaitNoPendingTransactions();
+        cluster.multiPut(pairs);
+        assertEquals(pairs.keySet(), cluster.multiGet(pairs.keySet()).keySet());
+    }
+
+    @Test
+    void perNodeMultiPutNeedsNoTransaction() throws IOException {
+        Map<String, byte[]> pairs = pairs("per-node-", 30);
+        cluster.multiPut(pairs, ClusterClient.MultiPutMode.PER_NODE);
+        assertEquals(pairs.keySet(), cluster.multiGet(pairs.keySet()).keySet());
+    }
+
+    @Test
+    void addNodeCopiesTheKeysItTakesOver() throws IOException {
+        Map<String, byte[]> pairs = pairs("rebalance-", 300);
+        cluster.multiPut(pairs, ClusterClient.MultiPutMode.PER_NODE);
+
+        try (ServerProcess extra = ServerProcess.start(dir.resolve("extra"))) {
+            HashRing before = new HashRing(addresses(), ClusterClient.DEFAULT_VIRTUAL_NODES);
+            HashRing after = before.with(extra.address());
+            Set<String> moving = new HashSet<>();
+            for (String key : pairs.keySet()) {
+                if (after.nodeFor(key).equals(extra.address())) {
+                    moving.add(key);
+                }
+            }
+            assertFalse(moving.isEmpty());
+
+            long moved = cluster.addNode(extra.address());
+            // Os nós guardam também chaves dos outros testes (prefixos diferentes)
+            assertTrue(moved >= moving.size(), moved + " < " + moving.size());
+            assertEquals(4, cluster.nodes().size());
+
+            ClientLibrary toExtra = connect(extra);
+            try {
+                for (String key : moving) {
+                    assertArrayEquals(pairs.get(key), toExtra.get(key), key);
+                }
+            } finally {
+                toExtra.close();
+            }
+            // Pelo anel novo: as chaves que ficam e as que mudaram
+            for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                assertArrayEquals(pair.getValue(), cluster.get(pair.getKey()), pair.getKey());
+            }
+            cluster.put(moving.iterator().next(), "new".getBytes());
+            assertArrayEquals("new".getBytes(), cluster.get(moving.iterator().next()));
+        } finally {
+            cluster.close();
+        }
+    }
+
+    @Test
+    void addNodeKeepsTheTtlOfTheKeysItTakesOver() throws Exception {
+        Map<String, byte[]> pairs = pairs("ttl-", 100);
+        HashRing ring = new HashRing(addresses(), ClusterClient.DEFAULT_VIRTUAL_NODES);
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            direct.get(ring.nodeFor(pair.getKey())).put(pair.getKey(), pair.getValue(), 3000);
+        }
+
+        try (ServerProcess extra = ServerProcess.start(dir.resolve("extra-ttl"))) {
+            String moving = null;
+            for (String key : pairs.keySet()) {
+                if (ring.with(extra.address()).nodeFor(key).equals(extra.address())) {
+                    moving = key;
+                }
+            }
+            assertNotNull(moving);
+            cluster.addNode(extra.address());
+            assertArrayEquals(pairs.get(moving), cluster.get(moving));
+
+            // Copiada sem TTL, a chave ficava no nó novo para sempre
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (cluster.get(moving) != null) {
+                if (System.nanoTime() - deadline > 0) {
+                    fail(moving + " não expirou no nó novo");
+                }
+                Thread.sleep(100);
+            }
+        } finally {
+            cluster.close();
+        }
+    }
+
+    @Test
+    void interNodeOperationsNeedTheClusterSecret() throws Exception {
+        ServerProcess node = nodes.get(0);
+        ClientLibrary client = new ClientLibrary("localhost", node.port());
+        try {
+            assertTrue(client.authenticate("mallory", "secret", true));
+            client.useProtocolV2();
+            String txId = UUID.randomUUID().toString();
+            assertForbidden(() -> ClientLibrary.await(client.prepareAsync(txId, "", Map.of("k", "v".getBytes()))));
+            assertForbidden(() -> ClientLibrary.await(client.dumpShardAsync(0)));
+            assertForbidden(() -> ClientLibrary.await(client.forgetAsync(txId)));
+            // Sem OP_PEER só termina as transações que ela própria enviou em partes
+            assertForbidden(() -> ClientLibrary.await(client.abortAsync(txId)));
+            assertForbidden(() -> client.authenticatePeer("wrong"));
+
+            // Uma pergunta de estado sem o segredo não tem resposta nem efeitos:
+            // o prepare dessa transação continua a ser aceite
+            try (Socket socket = new Socket("localhost", node.port())) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                in.readUTF();
+                out.writeUTF(PreparedTransactions.STATUS_QUERY);
+                out.writeUTF("wrong");
+                out.writeUTF(txId);
+                out.flush();
+                assertEquals(-1, in.read());
+            }
+            ClientLibrary peer = direct.get(node.address());
+            ClientLibrary.await(peer.prepareAsync(txId, "", Map.of("secret-k", "v".getBytes())));
+            ClientLibrary.await(peer.abortAsync(txId));
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void assertForbidden(Executable request) {
+        ClientLibrary.StatusException e = assertThrows(ClientLibrary.StatusException.class, request);
+        assertEquals(Protocol.STATUS_FORBIDDEN, e.status());
+    }
+
+    private static Map<String, byte[]> pairs(String prefix, int n) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            pairs.put(prefix + i, (prefix + "value" + i).getBytes());
+        }
+        return pairs;
+    }
+
+    private static List<String> addresses() {
+        List<String> addresses = new ArrayList<>();
+        for (ServerProcess node : nodes) {
+            addresses.add(node.address());
+        }
+        return addresses;
+    }
+
+    /**
+     * Espera que nenhum nó tenha transações preparadas (os abort vão sem esperar pela resposta).
+     */
+    private static void awaitNoPendingTransactions() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pendingTransactions() > 0) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Transações por terminar: " + pendingTransactions());
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Transações preparadas em todos os nós (gauge txn.prepared do stats).
+     */
+    private static long pendingTransactions() throws IOException {
+        long pending = 0;
+        for (ClientLibrary client : direct.values()) {
+            for (String line : client.stats().split("\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2 && fields[0].equals("txn.prepared")) {
+                    pending += Long.parseLong(fields[1]);
+                }
+            }
+        }
+        return pending;
+    }
+
+    private static ClientLibrary connect(ServerProcess node) throws IOException {
+        ClientLibrary client = new ClientLibrary("localhost", node.port());
+        assertTrue(client.authenticate("alice", "secret", true));
+        client.useProtocolV2();
+        client.authenticatePeer(ServerProcess.CLUSTER_SECRET);
+        return client;
+    }
+}
@@ -0,0 +1,263 @@
+package project;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Primário e réplica em localhost, cada um no seu processo. A réplica liga-se
+ * ao primário através de um proxy que o teste pode suspender, para a deixar
+ * atrasada sem parar o primário.
+ */
+class ReplicationTest {
+
+    private static final long MAX_STALENESS_MS = 500;
+    private static final long TIMEOUT_MS = 20_000;
+
+    @TempDir
+    Path dir;
+
+    private ServerProcess primary;
+    private ServerProcess replica;
+    private PausableProxy proxy;
+    private ClientLibrary client;
+    private ClientLibrary replicaClient;
+
+    @BeforeEach
+    void startNodes() throws IOException {
+        int replicationPort = ServerProcess.freePort();
+        primary = ServerProcess.start(dir.resolve("primary"), "-Dserver.replication.port=" + replicationPort);
+        client = new ClientLibrary("localhost", primary.port());
+        assertTrue(client.authenticate("alice", "secret", true));
+        client.useProtocolV2();
+
+        // O utilizador chega à réplica com a cópia inicial do primário
+        proxy = new PausableProxy(replicationPort);
+        replica = ServerProcess.start(dir.resolve("replica"),
+                "-Dserver.replicaOf=localhost:" + proxy.port(),
+                "-Dserver.replica.maxStalenessMs=" + MAX_STALENESS_MS);
+        replica.awaitOutput("Cópia completa recebida", TIMEOUT_MS);
+        replicaClient = new ClientLibrary("localhost", replica.port());
+        assertTrue(replicaClient.authenticate("alice", "secret", false));
+        replicaClient.useProtocolV2();
+    }
+
+    @AfterEach
+    void stopNodes() throws IOException {
+        for (ClientLibrary c : new ClientLibrary[]{client, replicaClient}) {
+            if (c != null) {
+                c.close();
+            }
+        }
+        if (replica != null) {
+            replica.close();
+        }
+        if (proxy != null) {
+            proxy.close();
+        }
+        if (primary != null) {
+            primary.close();
+        }
+    }
+
+    @Test
+    void writesOnThePrimaryReachTheReplica() throws Exception {
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            pairs.put("key" + i, ("value" + i).getBytes());
+        }
+        client.multiPut(pairs);
+        client.put("single", "x".getBytes());
+        client.delete("key7");
+        client.put("last", "done".getBytes());
+
+        eventually(() -> replicaClient.get("last") != null);
+        assertArrayEquals("value42".getBytes(), replicaClient.get("key42"));
+        assertArrayEquals("x".getBytes(), replicaClient.get("single"));
+        assertNull(replicaClient.get("key7"));
+        assertEquals(99, replicaClient.multiGet(pairs.keySet()).values().stream().filter(Objects::nonNull).count());
+    }
+
+    @Test
+    void replicaRejectsWrites() {
+        IOException e = assertThrows(IOException.class, () -> replicaClient.put("k", "v".getBytes()));
+        assertTrue(e.getMessage().contains("READ_ONLY"), e.getMessage());
+    }
+
+    @Test
+    void staleReplicaRefusesReads() throws Exception {
+        client.put("k", "v1".getBytes());
+        eventually(() -> replicaClient.get("k") != null);
+
+        ClientLibrary v1 = new ClientLibrary("localhost", replica.port());
+        try {
+            assertTrue(v1.authenticate("alice", "secret", false));
+            proxy.pause();
+            Thread.sleep(MAX_STALENESS_MS * 3);
+            IOException e = assertThrows(IOException.class, () -> replicaClient.get("k"));
+            assertTrue(e.getMessage().contains("STALE"), e.getMessage());
+            // O v1 também não serve leituras sem limite de atraso
+            assertThrows(ClientLibrary.RejectedException.class, () -> v1.get("k"));
+            assertThrows(ClientLibrary.RejectedException.class, () -> v1.multiGet(Set.of("k")));
+            // A ligação continua sincronizada depois das recusas
+            assertTrue(v1.stats().contains("get"));
+        } finally {
+            v1.close();
+        }
+
+        // Com o primário de novo ao alcance, volta a servir leituras (já em dia)
+        client.put("k", "v2".getBytes());
+        proxy.resume();
+        eventually(() -> {
+            try {
+                return Arrays.equals("v2".getBytes(), replicaClient.get("k"));
+            } catch (ClientLibrary.StatusException stale) {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    void readsGoToTheReplicaAndFallBackToThePrimary() throws Exception {
+        client.addReadReplica("localhost", replica.port());
+        client.put("r", "replicated".getBytes());
+        eventually(() -> replicaClient.get("r") != null);
+
+        long before = count(replicaClient.stats(), "get");
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals("replicated".getBytes(), client.get("r"));
+        }
+        assertEquals(Set.of("r"), client.multiGet(Set.of("r")).keySet());
+        // As 20 leituras do cliente, mais a da linha anterior feita aqui
+        assertTrue(count(replicaClient.stats(), "get") >= before + 20);
+
+        // Réplica atrasada: o cliente repete as leituras no primário
+        proxy.pause();
+        Thread.sleep(MAX_STALENESS_MS * 3);
+        client.put("s", "fresh".getBytes());
+        assertArrayEquals("fresh".getBytes(), client.get("s"));
+        assertArrayEquals("fresh".getBytes(), client.multiGet(Set.of("s")).get("s"));
+        proxy.resume();
+    }
+
+    /**
+     * Número de pedidos de um comando no relatório de stats.
+     */
+    private static long count(String stats, String command) {
+        for (String line : stats.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length > 1 && fields[0].equals(command)) {
+                return Long.parseLong(fields[1]);
+            }
+        }
+        return 0;
+    }
+
+    private static void eventually(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.call()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Condição não satisfeita em " + TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Proxy TCP para a porta de replicação do primário. Suspenso, retém o que
+     * o primário envia (registos e heartbeats), como uma rede parada.
+     */
+    private static final class PausableProxy implements Closeable {
+
+        private final ServerSocket listener;
+        private final int target;
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean paused;
+
+        PausableProxy(int target) throws IOException {
+            this.target = target;
+            this.listener = new ServerSocket(0);
+            Thread acceptor = new Thread(this::accept, "proxy-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        void pause() {
+            paused = true;
+        }
+
+        void resume() {
+            paused = false;
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket downstream = listener.accept();
+                    Socket upstream = new Socket("localhost", target);
+                    sockets.add(downstream);
+                    sockets.add(upstream);
+                    pump(downstream, upstream, false);
+                    pump(upstream, downstream, true);
+                }
+            } catch (IOException e) {
+                // Proxy fechado
+            }
+        }
+
+        private void pump(Socket from, Socket to, boolean pausable) {
+            Thread t = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        while (pausable && paused) {
+                            Thread.sleep(10);
+                        }
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Ligação fechada
+                } finally {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            }, "proxy-pump");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            synchronized (sockets) {
+                sockets.forEach(PausableProxy::closeQuietly);
+            }
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Já fechado
+            }
+        }
+    }
+}
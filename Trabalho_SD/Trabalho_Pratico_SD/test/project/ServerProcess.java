@@ -0,0 +1,185 @@
+package project;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Um Server noutro processo, para testes com vários nós em localhost (a
+ * configuração do Server é estática, por isso cada nó precisa da sua JVM).
+ *
+ * Guarda o que o servidor escreve, para os testes esperarem por uma mensagem
+ * (arranque, cópia da réplica, ...). close() envia SIGTERM e espera pela
+ * paragem ordenada; kill() simula uma falha.
+ */
+final class ServerProcess implements AutoCloseable {
+
+    private static final long START_TIMEOUT_MS = 30_000;
+    // server.cluster.secret de todos os nós (ver ClusterClient)
+    static final String CLUSTER_SECRET = "cluster-secret";
+
+    private final Process process;
+    private final int port;
+    private final Path dataDir;
+    private final List<String> output = new ArrayList<>();
+    private volatile boolean readerRunning = true;
+
+    private ServerProcess(Process process, int port, Path dataDir) {
+        this.process = process;
+        this.port = port;
+        this.dataDir = dataDir;
+        Thread reader = new Thread(this::readOutput, "server-" + port + "-output");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Arranca um servidor numa porta livre, com os dados em dataDir e as
+     * propriedades indicadas ("-Dserver.x=y"), e espera que aceite ligações.
+     */
+    static ServerProcess start(Path dataDir, String... properties) throws IOException {
+        return start(freePort(), dataDir, properties);
+    }
+
+    static ServerProcess start(int port, Path dataDir, String... properties) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classes());
+        command.add("-Dstdout.encoding=UTF-8");
+        command.add("-Dserver.port=" + port);
+        command.add("-Dserver.dataDir=" + dataDir);
+        command.add("-Dserver.maxSessions=16");
+        command.add("-Dserver.shutdown.drainMs=2000");
+        command.add("-Dserver.cluster.secret=" + CLUSTER_SECRET);
+        command.addAll(List.of(properties));
+        command.add("project.Server");
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectInput(ProcessBuilder.Redirect.PIPE)
+                .start();
+        process.getOutputStream().close();
+        ServerProcess server = new ServerProcess(process, port, dataDir);
+        try {
+            server.awaitOutput("Servidor iniciado na porta", START_TIMEOUT_MS);
+        } catch (IOException e) {
+            server.kill();
+            throw e;
+        }
+        return server;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    int port() {
+        return port;
+    }
+
+    String address() {
+        return "localhost:" + port;
+    }
+
+    Path dataDir() {
+        return dataDir;
+    }
+
+    /**
+     * Espera até o servidor escrever uma linha com text.
+     *
+     * @throws IOException se não aparecer dentro do prazo ou o processo terminar antes
+     */
+    void awaitOutput(String text, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (output) {
+            while (output.stream().noneMatch(line -> line.contains(text))) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0 || (!process.isAlive() && !readerRunning)) {
+                    throw new IOException("Servidor " + port + " não escreveu \"" + text + "\":\n" + output());
+                }
+                try {
+                    output.wait(Math.min(left, 100));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrompido", e);
+                }
+            }
+        }
+    }
+
+    String output() {
+        synchronized (output) {
+            return String.join("\n", output);
+        }
+    }
+
+    /**
+     * Falha súbita (SIGKILL): sem snapshot final nem logout das sessões.
+     */
+    void kill() {
+        process.destroyForcibly();
+        waitForExit();
+    }
+
+    /**
+     * Paragem ordenada (SIGTERM, o shutdown hook do Server).
+     */
+    @Override
+    public void close() {
+        process.destroy();
+        waitForExit();
+    }
+
+    private void waitForExit() {
+        try {
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readOutput() {
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                synchronized (output) {
+                    output.add(line);
+                    output.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // Processo terminado
+        } finally {
+            readerRunning = false;
+            synchronized (output) {
+                output.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Classes compiladas do servidor (target/classes), as mesmas deste teste.
+     */
+    private static String classes() {
+        try {
+            return Paths.get(Server.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
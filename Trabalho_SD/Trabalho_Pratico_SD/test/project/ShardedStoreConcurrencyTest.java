@@ -0,0 +1,156 @@
+package project;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Concorrência do ShardedStore: escritas em shards diferentes não esperam
+ * umas pelas outras, e o débito cresce com o número de threads.
+ */
+class ShardedStoreConcurrencyTest {
+
+    private static final int SHARDS = 64;
+
+    @Test
+    void writesToOtherShardsProceedWhileOneShardIsLocked() throws Exception {
+        ShardedStore store = new ShardedStore(SHARDS);
+        String locked = "a";
+        String sameShard = keyOnShard(store, store.shardIndex(locked), true);
+        String otherShard = keyOnShard(store, store.shardIndex(locked), false);
+
+        // O listener corre com o write lock do shard: prendê-lo aqui segura o shard inteiro
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        store.addListener(locked, (k, value) -> {
+            holding.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }, false);
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            Future<?> holder = pool.submit(() -> store.put(locked, new byte[]{1}));
+            assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+            Future<?> other = pool.submit(() -> store.put(otherShard, new byte[]{2}));
+            other.get(5, TimeUnit.SECONDS);
+            assertArrayEquals(new byte[]{2}, store.get(otherShard));
+
+            Future<?> same = pool.submit(() -> store.put(sameShard, new byte[]{3}));
+            assertThrows(TimeoutException.class, () -> same.get(200, TimeUnit.MILLISECONDS));
+
+            release.countDown();
+            holder.get(5, TimeUnit.SECONDS);
+            same.get(5, TimeUnit.SECONDS);
+            assertArrayEquals(new byte[]{3}, store.get(sameShard));
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void concurrentWritersLoseNoUpdates() throws Exception {
+        ShardedStore store = new ShardedStore(SHARDS);
+        int threads = 8;
+        int keysPerThread = 5_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            Future<?>[] writers = new Future<?>[threads];
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                writers[t] = pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < keysPerThread; i++) {
+                        store.put("t" + id + "-" + i, new byte[]{(byte) id});
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals((long) threads * keysPerThread, store.size());
+        assertArrayEquals(new byte[]{5}, store.get("t5-4999"));
+    }
+
+    @Test
+    void throughputScalesWithThreads() throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        assumeTrue(cpus >= 2, "Precisa de pelo menos 2 processadores");
+        int threads = Math.min(cpus, 4);
+
+        ShardedStore store = new ShardedStore(SHARDS);
+        for (int i = 0; i < 10_000; i++) {
+            store.put("key" + i, new byte[100]);
+        }
+        // Aquecimento, para o JIT não favorecer a segunda medição
+        throughput(store, threads, 300);
+        double single = throughput(store, 1, 1000);
+        double parallel = throughput(store, threads, 1000);
+        // Folga larga: o objetivo é apanhar um lock global, não medir a eficiência exata
+        assertTrue(parallel >= single * Math.min(1.5, 0.5 * threads),
+                String.format("1 thread: %.0f ops/s, %d threads: %.0f ops/s", single, threads, parallel));
+    }
+
+    /**
+     * Operações por segundo (90% get, 10% put sobre 10 000 chaves) com threads threads.
+     */
+    private static double throughput(ShardedStore store, int threads, long millis) throws Exception {
+        LongAdder ops = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] workers = new Future<?>[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = pool.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    byte[] value = new byte[100];
+                    long n = 0;
+                    while (System.nanoTime() < end) {
+                        String key = "key" + random.nextInt(10_000);
+                        if (random.nextInt(10) == 0) {
+                            store.put(key, value);
+                        } else {
+                            store.get(key);
+                        }
+                        n++;
+                    }
+                    ops.add(n);
+                });
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return ops.sum() * 1000.0 / millis;
+    }
+
+    /**
+     * Uma chave no shard indicado (sameShard) ou fora dele.
+     */
+    private static String keyOnShard(ShardedStore store, int shard, boolean sameShard) {
+        for (int i = 0; ; i++) {
+            String key = "k" + i;
+            if ((store.shardIndex(key) == shard) == sameShard) {
+                return key;
+            }
+        }
+    }
+}
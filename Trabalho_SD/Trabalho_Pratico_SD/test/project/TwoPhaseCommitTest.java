@@ -0,0 +1,168 @@
+package project;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Participante do two-phase commit que votou e perdeu o commit ou o abort
+ * (reinício do nó logo depois do prepare): ao arrancar, recupera a transação
+ * do WAL ou do snapshot e pergunta o resultado ao coordenador. Dois nós em localhost, cada
+ * um no seu processo, conduzidos diretamente com OP_PREPARE/OP_COMMIT.
+ */
+class TwoPhaseCommitTest {
+
+    private static final long TXN_TIMEOUT_MS = 1000;
+    private static final long TIMEOUT_MS = 20_000;
+
+    @TempDir
+    Path dir;
+
+    private ServerProcess coordinator;
+    private ServerProcess participant;
+    private ClientLibrary toCoordinator;
+    private ClientLibrary toParticipant;
+
+    @BeforeEach
+    void startNodes() throws IOException {
+        coordinator = start(ServerProcess.freePort(), "coordinator");
+        participant = start(ServerProcess.freePort(), "participant");
+        toCoordinator = connect(coordinator);
+        toParticipant = connect(participant);
+    }
+
+    @AfterEach
+    void stopNodes() throws IOException {
+        for (ClientLibrary c : new ClientLibrary[]{toCoordinator, toParticipant}) {
+            if (c != null) {
+                c.close();
+            }
+        }
+        for (ServerProcess node : new ServerProcess[]{participant, coordinator}) {
+            if (node != null) {
+                node.close();
+            }
+        }
+    }
+
+    @Test
+    void restartedParticipantAppliesACommittedTransaction() throws Exception {
+        String txId = prepareOnBoth("a", "b");
+        ClientLibrary.await(toCoordinator.commitAsync(txId));
+        restartParticipant(false);
+
+        awaitValue(toParticipant, "b", "tx-b");
+        assertArrayEquals("tx-a".getBytes(), toCoordinator.get("a"));
+        // A mensagem sai depois de o commit estar aplicado
+        participant.awaitOutput("confirmada pelo coordenador", TIMEOUT_MS);
+    }
+
+    @Test
+    void restartedParticipantAbortsWhenTheCoordinatorDid() throws Exception {
+        prepareOnBoth("c", "d");
+        // Paragem ordenada: o voto passa do WAL para o snapshot final
+        restartParticipant(true);
+        // Sem commit, o coordenador aborta ao fim de server.txn.timeoutMs; o participante
+        // fica a saber ao perguntar e liberta a chave
+        coordinator.awaitOutput("abortada por timeout", TIMEOUT_MS);
+        participant.awaitOutput("abortada pelo coordenador", TIMEOUT_MS);
+        toParticipant.put("d", "later".getBytes());
+        assertArrayEquals("later".getBytes(), toParticipant.get("d"));
+        assertNull(toCoordinator.get("c"));
+    }
+
+    @Test
+    void participantKeepsTheVoteWhileTheCoordinatorIsDown() throws Exception {
+        prepareOnBoth("e", "f");
+        toCoordinator.close();
+        coordinator.kill();
+
+        // Bem depois do prazo: o participante votou, por isso não aborta sozinho
+        // e a chave continua reservada
+        Thread.sleep(TXN_TIMEOUT_MS * 3);
+        assertFalse(participant.output().contains("abortada"), participant.output());
+        CompletableFuture<Void> write = toParticipant.putAsync("f", "later".getBytes());
+        assertThrows(TimeoutException.class, () -> write.get(500, TimeUnit.MILLISECONDS));
+
+        // O coordenador recupera a transação do WAL e, sem commit, aborta-a
+        coordinator = start(coordinator.port(), "coordinator");
+        participant.awaitOutput("abortada pelo coordenador", TIMEOUT_MS);
+        write.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals("later".getBytes(), toParticipant.get("f"));
+        toCoordinator = connect(coordinator);
+        assertNull(toCoordinator.get("e"));
+    }
+
+    @Test
+    void lateCommitIsRefusedAfterTheCoordinatorExpiredTheTransaction() throws Exception {
+        String txId = prepareOnBoth("g", "h");
+        coordinator.awaitOutput("abortada por timeout", TIMEOUT_MS);
+        IOException e = assertThrows(IOException.class, () -> ClientLibrary.await(toCoordinator.commitAsync(txId)));
+        assertTrue(e.getMessage().contains("NOT_FOUND"), e.getMessage());
+        participant.awaitOutput("abortada pelo coordenador", TIMEOUT_MS);
+        assertNull(toParticipant.get("h"));
+    }
+
+    /**
+     * Prepara uma transação com key0 no coordenador e key1 no participante.
+     */
+    private String prepareOnBoth(String key0, String key1) throws IOException {
+        String txId = UUID.randomUUID().toString();
+        ClientLibrary.await(toCoordinator.prepareAsync(txId, "", Map.of(key0, ("tx-" + key0).getBytes())));
+        ClientLibrary.await(toParticipant.prepareAsync(txId, coordinator.address(),
+                Map.of(key1, ("tx-" + key1).getBytes())));
+        return txId;
+    }
+
+    /**
+     * Novo arranque do participante com os mesmos dados, depois de uma paragem
+     * ordenada (snapshot final) ou de uma falha súbita.
+     */
+    private void restartParticipant(boolean graceful) throws IOException {
+        toParticipant.close();
+        if (graceful) {
+            participant.close();
+        } else {
+            participant.kill();
+        }
+        participant = start(participant.port(), "participant");
+        toParticipant = connect(participant);
+    }
+
+    private ServerProcess start(int port, String name) throws IOException {
+        return ServerProcess.start(port, dir.resolve(name), "-Dserver.txn.timeoutMs=" + TXN_TIMEOUT_MS);
+    }
+
+    private static ClientLibrary connect(ServerProcess node) throws IOException {
+        ClientLibrary client = new ClientLibrary("localhost", node.port());
+        assertTrue(client.authenticate("alice", "secret", true));
+        client.useProtocolV2();
+        client.authenticatePeer(ServerProcess.CLUSTER_SECRET);
+        return client;
+    }
+
+    private static void awaitValue(ClientLibrary client, String key, String expected) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!expected.equals(value(client.get(key)))) {
+            if (System.nanoTime() - deadline > 0) {
+                fail(key + " não ficou com " + expected);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static String value(byte[] bytes) {
+        return bytes != null ? new String(bytes) : null;
+    }
+}